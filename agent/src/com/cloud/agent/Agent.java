@@ -122,6 +122,8 @@ public class Agent implements HandlerFactory, IAgentControl {
     long  _startupWaitDefault = 180000;
     long  _startupWait = _startupWaitDefault;
     boolean                     _reconnectAllowed     = true;
+    boolean                     _binaryWireCodec      = false;
+    volatile boolean            _serverBinaryCapable  = false;
     //For time sentitive task, e.g. PingTask
     private ThreadPoolExecutor     _ugentTaskPool;
     ExecutorService _executor;
@@ -164,6 +166,9 @@ public class Agent implements HandlerFactory, IAgentControl {
             throw new ConfigurationException("Unable to configure " + _resource.getName());
         }
 
+        _binaryWireCodec = "binary".equalsIgnoreCase((String)params.get("wire.codec"));
+        Request.setFastCompression("fast".equalsIgnoreCase((String)params.get("wire.compression")));
+
         _connection = new NioClient("Agent", _shell.getHost(), _shell.getPort(), _shell.getWorkers(), this);
 
         // ((NioClient)_connection).setBindAddress(_shell.getPrivateIp());
@@ -316,6 +321,16 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
     }
 
+    /**
+     * Switches the request to the binary wire format if it's enabled in
+     * agent.properties and the management server has said it can parse it.
+     */
+    protected void setWireVersion(Request request) {
+        if (_binaryWireCodec && _serverBinaryCapable) {
+            request.setVersion(Request.Version.v4);
+        }
+    }
+
     public void sendStartup(Link link) {
         final StartupCommand[] startup = _resource.initialize();
         final Command[] commands = new Command[startup.length];
@@ -610,6 +625,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            setWireVersion(request);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -723,6 +739,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
+            setWireVersion(request);
             try {
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
@@ -867,11 +884,13 @@ public class Agent implements HandlerFactory, IAgentControl {
         public void doTask(final Task task) {
             if (task.getType() == Task.Type.CONNECT) {
                 _shell.getBackoffAlgorithm().reset();
+                _serverBinaryCapable = false;
                 setLink(task.getLink());
                 sendStartup(task.getLink());
             } else if (task.getType() == Task.Type.DATA) {
                 Request request;
                 try {
+                    _serverBinaryCapable = Request.isBinaryCapable(task.getData());
                     request = Request.parse(task.getData());
                     if (request instanceof Response) {
                         //It's for pinganswer etc, should be processed immediately.
@@ -0,0 +1,48 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.api;
+
+/**
+ * Sent between management servers for the locks of the lock master: either
+ * the sender waits for a lock held by the receiver, or a lock the receiver
+ * waits for was released.
+ */
+public class NotifyLockCommand extends Command {
+    String key;
+    boolean released;
+
+    protected NotifyLockCommand() {
+    }
+
+    public NotifyLockCommand(String key, boolean released) {
+        this.key = key;
+        this.released = released;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
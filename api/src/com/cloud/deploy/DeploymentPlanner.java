@@ -18,6 +18,7 @@ package com.cloud.deploy;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import com.cloud.dc.DataCenter;
@@ -80,6 +81,22 @@ public interface DeploymentPlanner extends Adapter {
      */
     boolean canHandle(VirtualMachineProfile<? extends VirtualMachine> vm, DeploymentPlan plan, ExcludeList avoid);
 
+    /**
+     * planBatch is called to place several virtual machines at once. Capacity
+     * handed out to a virtual machine in the batch is not handed out again to
+     * the ones after it, even though none of them has started yet.
+     *
+     * @param vms
+     *            virtual machines, all of which this planner can handle.
+     * @param plan
+     *            deployment plan that tells you where they are being deployed to.
+     * @param avoid
+     *            avoid these data centers, pods, clusters, or hosts.
+     * @return DeployDestination for each virtual machine, in the order of vms;
+     *         null for the virtual machines that could not be placed.
+     */
+    List<DeployDestination> planBatch(List<VirtualMachineProfile<? extends VirtualMachine>> vms, DeploymentPlan plan, ExcludeList avoid) throws InsufficientServerCapacityException;
+
     public enum AllocationAlgorithm {
         random,
         firstfit,
@@ -195,6 +212,43 @@ public interface DeploymentPlanner extends Adapter {
             _hostIds.add(hostId);
         }
 
+        public void addHostList(Collection<Long> hostList) {
+            if (_hostIds == null) {
+                _hostIds = new HashSet<Long>();
+            }
+            _hostIds.addAll(hostList);
+        }
+
+        /**
+         * Adds everything the other list avoids to this one.
+         */
+        public void addAll(ExcludeList other) {
+            if (other._dcIds != null) {
+                if (_dcIds == null) {
+                    _dcIds = new HashSet<Long>();
+                }
+                _dcIds.addAll(other._dcIds);
+            }
+            if (other._podIds != null) {
+                if (_podIds == null) {
+                    _podIds = new HashSet<Long>();
+                }
+                _podIds.addAll(other._podIds);
+            }
+            if (other._clusterIds != null) {
+                addClusterList(other._clusterIds);
+            }
+            if (other._hostIds != null) {
+                addHostList(other._hostIds);
+            }
+            if (other._poolIds != null) {
+                if (_poolIds == null) {
+                    _poolIds = new HashSet<Long>();
+                }
+                _poolIds.addAll(other._poolIds);
+            }
+        }
+
         public boolean shouldAvoid(Host host) {
             if (_dcIds != null && _dcIds.contains(host.getDataCenterId())) {
                 return true;
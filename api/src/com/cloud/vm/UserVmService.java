@@ -344,6 +344,22 @@ public interface UserVmService {
      */
     UserVm startVirtualMachine(DeployVMCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException;
 
+    /**
+     * Starts the virtual machines created by a bulk deploy command. All of them are placed by a single
+     * pass of the deployment planner before any of them is started.
+     *
+     * @param cmd
+     *            Command to deploy.
+     * @return the virtual machines that were started.
+     * @throws InsufficientCapacityException
+     *             if there is insufficient capacity to deploy any of the VMs.
+     * @throws ConcurrentOperationException
+     *             if there are multiple users working on the same VM.
+     * @throws ResourceUnavailableException
+     *             if the resources required the deploy the VMs are not currently available.
+     */
+    List<? extends UserVm> startVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException;
+
     /**
      * Creates a vm group.
      *
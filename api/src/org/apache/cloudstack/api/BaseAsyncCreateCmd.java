@@ -16,6 +16,8 @@
 // under the License.
 package org.apache.cloudstack.api;
 
+import java.util.Map;
+
 import org.apache.cloudstack.api.response.CreateCmdResponse;
 
 import com.cloud.async.AsyncJob;
@@ -45,6 +47,14 @@ public abstract class BaseAsyncCreateCmd extends BaseAsyncCmd {
         this.uuid = uuid;
     }
 
+    /**
+     * Adds the created entity to the parameters the async job executes the
+     * command with.
+     */
+    public void addEntityParameters(Map<String, String> params) {
+        params.put("id", getEntityId().toString());
+    }
+
     public String getResponse(long jobId, String objectUuid) {
         CreateCmdResponse response = new CreateCmdResponse();
         AsyncJob job = _entityMgr.findById(AsyncJob.class, jobId);
@@ -16,8 +16,11 @@
 // under the License.
 package org.apache.cloudstack.api;
 
+import java.util.Map;
+
 import com.cloud.async.AsyncJob;
 import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.utils.exception.CSExceptionErrorCode;
 
 public abstract class BaseListCmd extends BaseCmd {
 
@@ -38,6 +41,14 @@ public abstract class BaseListCmd extends BaseCmd {
     @Parameter(name = ApiConstants.PAGE_SIZE, type = CommandType.INTEGER)
     private Integer pageSize;
 
+    @Parameter(name = ApiConstants.START_AFTER, type = CommandType.STRING, description = "List the resources that come after the one with this id, in id order, instead of by page. " +
+            "Pass the id of the last resource of the previous list. Not supported by all list commands", since = "4.1.0")
+    private String startAfter;
+
+    @Parameter(name = ApiConstants.SKIP_COUNT, type = CommandType.BOOLEAN, description = "true to skip counting all the resources, " +
+            "the count returned is then the number of resources listed", since = "4.1.0")
+    private Boolean skipCount;
+
     // ///////////////////////////////////////////////////
     // ///////////////// Accessors ///////////////////////
     // ///////////////////////////////////////////////////
@@ -50,6 +61,50 @@ public abstract class BaseListCmd extends BaseCmd {
         return page;
     }
 
+    public String getStartAfter() {
+        return startAfter;
+    }
+
+    public boolean isSkipCount() {
+        return skipCount != null && skipCount;
+    }
+
+    /**
+     * @return true if the command lists its resources after startafter, false if it would ignore it.
+     */
+    public boolean isStartAfterSupported() {
+        return false;
+    }
+
+    /**
+     * Checks that the paging parameters of a request go together.
+     *
+     * @param params the unpacked request parameters
+     */
+    public void checkPagingParameters(Map<String, Object> params) {
+        Object pageSizeObj = params.get(ApiConstants.PAGE_SIZE);
+        Long pageSize = null;
+        if (pageSizeObj != null) {
+            pageSize = Long.valueOf((String) pageSizeObj);
+        }
+
+        Object startAfter = params.get(ApiConstants.START_AFTER);
+        if (startAfter != null) {
+            if (!isStartAfterSupported()) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"startafter\" parameter is not supported by " + getCommandName().substring(0, getCommandName().length() - 8));
+            }
+            if (params.get(ApiConstants.PAGE) != null) {
+                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter can't be specified with \"startafter\"");
+            }
+        } else if ((params.get(ApiConstants.PAGE) == null) && (pageSize != null && pageSize != PAGESIZE_UNLIMITED)) {
+            ServerApiException ex = new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter is required when \"pagesize\" is specified");
+            ex.setCSErrorCode(CSExceptionErrorCode.getCSErrCode(ex.getClass().getName()));
+            throw ex;
+        } else if (pageSize == null && (params.get(ApiConstants.PAGE) != null)) {
+            throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"pagesize\" parameter is required when \"page\" is specified");
+        }
+    }
+
     public Integer getPageSize() {
         if (pageSize != null && MAX_PAGESIZE != null && pageSize.longValue() > MAX_PAGESIZE.longValue()) {
             throw new InvalidParameterValueException("Page size can't exceed max allowed page size value: " + MAX_PAGESIZE.longValue());
@@ -93,7 +148,7 @@ public abstract class BaseListCmd extends BaseCmd {
 
         if (pageSizeVal == null) {
             startIndex = null;
-        } else if (page != null) {
+        } else if (page != null && startAfter == null) {
             int pageNum = page.intValue();
             if (pageNum > 0) {
                 startIndex = Long.valueOf(pageSizeVal * (pageNum - 1));
@@ -158,6 +158,11 @@ public class ListHostsCmd extends BaseListCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.Host;
     }
@@ -125,6 +125,11 @@ public class ListRoutersCmd extends BaseListProjectAndAccountResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.DomainRouter;
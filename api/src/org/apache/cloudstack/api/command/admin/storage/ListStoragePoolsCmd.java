@@ -111,6 +111,11 @@ public class ListStoragePoolsCmd extends BaseListCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.StoragePool;
     }
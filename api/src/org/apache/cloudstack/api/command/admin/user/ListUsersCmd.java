@@ -77,6 +77,11 @@ public class ListUsersCmd extends BaseListAccountResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public void execute(){
         ListResponse<UserResponse> response = _queryService.searchForUsers(this);
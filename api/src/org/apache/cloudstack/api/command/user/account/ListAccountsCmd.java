@@ -91,6 +91,11 @@ public class ListAccountsCmd extends BaseListDomainResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public void execute(){
         ListResponse<AccountResponse> response = _queryService.searchForAccounts(this);
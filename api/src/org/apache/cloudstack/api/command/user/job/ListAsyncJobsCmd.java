@@ -58,6 +58,11 @@ public class ListAsyncJobsCmd extends BaseListAccountResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public void execute(){
 
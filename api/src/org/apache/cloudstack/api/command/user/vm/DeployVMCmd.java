@@ -272,7 +272,11 @@ public class DeployVMCmd extends BaseAsyncCreateCmd {
         return startVm == null ? true : startVm;
     }
 
-    private Map<Long, String> getIpToNetworkMap() {
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    protected Map<Long, String> getIpToNetworkMap() {
         if ((networkIds != null || ipAddress != null) && ipToNetworkList != null) {
             throw new InvalidParameterValueException("NetworkIds and ipAddress can't be specified along with ipToNetworkMap parameter");
         }
@@ -388,6 +392,16 @@ public class DeployVMCmd extends BaseAsyncCreateCmd {
 
     @Override
     public void create() throws ResourceAllocationException{
+        UserVm vm = createVirtualMachine(name, displayName);
+        setEntityId(vm.getId());
+        setEntityUuid(vm.getUuid());
+    }
+
+    /**
+     * Creates the virtual machine described by this command's parameters
+     * under the given names, without starting it.
+     */
+    protected UserVm createVirtualMachine(String name, String displayName) throws ResourceAllocationException {
         try {
             //Verify that all objects exist before passing them to the service
             Account owner = _accountService.getActiveAccountById(getEntityOwnerId());
@@ -450,12 +464,10 @@ public class DeployVMCmd extends BaseAsyncCreateCmd {
                 }
             }
 
-            if (vm != null) {
-                setEntityId(vm.getId());
-                setEntityUuid(vm.getUuid());
-            } else {
+            if (vm == null) {
                 throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to deploy vm");
             }
+            return vm;
         } catch (InsufficientCapacityException ex) {
             s_logger.info(ex);
             s_logger.trace(ex);
@@ -0,0 +1,167 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.user.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.api.APICommand;
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.ApiErrorCode;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.ServerApiException;
+import org.apache.cloudstack.api.response.DeployVMsResponse;
+import org.apache.cloudstack.api.response.UserVmResponse;
+import org.apache.log4j.Logger;
+
+import com.cloud.exception.ConcurrentOperationException;
+import com.cloud.exception.InsufficientCapacityException;
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.exception.ResourceAllocationException;
+import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.user.UserContext;
+import com.cloud.uservm.UserVm;
+import com.cloud.utils.StringUtils;
+
+@APICommand(name = "deployVirtualMachines", description="Creates and automatically starts a number of virtual machines with the same service offering, disk offering and template. All of them are placed in a single pass of the deployment planner.", responseObject=DeployVMsResponse.class)
+public class DeployVMsCmd extends DeployVMCmd {
+    public static final Logger s_logger = Logger.getLogger(DeployVMsCmd.class.getName());
+
+    private static final String s_name = "deployvirtualmachinesresponse";
+
+    public static final int MAX_COUNT = 1000;
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name=ApiConstants.COUNT, type=CommandType.INTEGER, required=true, description="the number of virtual machines to deploy, at most 1000. " +
+            "When name or displayname are given they are suffixed with -1, -2, ...")
+    private Integer count;
+
+    // set by create() and handed to the async job like the id of BaseAsyncCreateCmd
+    @Parameter(name="ids", type=CommandType.LIST, collectionType=CommandType.LONG)
+    private List<Long> entityIds;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return ids of the virtual machines created by this command, in order of creation
+     */
+    public List<Long> getEntityIds() {
+        return entityIds;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public String getCreateEventDescription() {
+        return "creating " + count + " Vms";
+    }
+
+    @Override
+    public void addEntityParameters(Map<String, String> params) {
+        super.addEntityParameters(params);
+        params.put("ids", StringUtils.join(entityIds, ","));
+    }
+
+    @Override
+    public String getEventDescription() {
+        return "starting Vms. Vm Ids: " + entityIds;
+    }
+
+    @Override
+    public void execute(){
+        List<? extends UserVm> result;
+
+        if (getStartVm()) {
+            try {
+                UserContext.current().setEventDetails("Vm Ids: " + entityIds);
+                result = _userVmService.startVirtualMachines(this);
+            } catch (ResourceUnavailableException ex) {
+                s_logger.warn("Exception: ", ex);
+                throw new ServerApiException(ApiErrorCode.RESOURCE_UNAVAILABLE_ERROR, ex.getMessage());
+            } catch (ConcurrentOperationException ex) {
+                s_logger.warn("Exception: ", ex);
+                throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, ex.getMessage());
+            } catch (InsufficientCapacityException ex) {
+                s_logger.info(ex);
+                s_logger.trace(ex);
+                throw new ServerApiException(ApiErrorCode.INSUFFICIENT_CAPACITY_ERROR, ex.getMessage());
+            }
+        } else {
+            List<UserVm> vms = new ArrayList<UserVm>();
+            for (Long vmId : entityIds) {
+                vms.add(_userVmService.getUserVm(vmId));
+            }
+            result = vms;
+        }
+
+        if (result != null && !result.isEmpty()) {
+            DeployVMsResponse response = new DeployVMsResponse();
+            response.setVirtualMachines(_responseGenerator.createUserVmResponse("virtualmachine", result.toArray(new UserVm[result.size()])));
+            response.setResponseName(getCommandName());
+            response.setObjectName("virtualmachines");
+            this.setResponseObject(response);
+        } else {
+            throw new ServerApiException(ApiErrorCode.INTERNAL_ERROR, "Failed to deploy vms");
+        }
+    }
+
+    @Override
+    public void create() throws ResourceAllocationException{
+        if (count == null || count < 1 || count > MAX_COUNT) {
+            throw new InvalidParameterValueException("The number of virtual machines to deploy should be between 1 and " + MAX_COUNT);
+        }
+        if (getHypervisor() == HypervisorType.BareMetal) {
+            throw new InvalidParameterValueException("Bare metal virtual machines can't be deployed in bulk");
+        }
+        if (getHostId() != null) {
+            throw new InvalidParameterValueException("Can't specify a destination host when deploying virtual machines in bulk");
+        }
+        if (count > 1 && (getIpAddress() != null || getIpToNetworkMap() != null)) {
+            throw new InvalidParameterValueException("Can't request ip addresses when deploying more than one virtual machine");
+        }
+
+        entityIds = new ArrayList<Long>();
+        String name = getName();
+        String displayName = getDisplayName();
+        for (int i = 1; i <= count; i++) {
+            UserVm vm = createVirtualMachine(name == null ? null : name + "-" + i, displayName == null ? null : displayName + "-" + i);
+            if (entityIds.isEmpty()) {
+                setEntityId(vm.getId());
+                setEntityUuid(vm.getUuid());
+            }
+            entityIds.add(vm.getId());
+        }
+    }
+}
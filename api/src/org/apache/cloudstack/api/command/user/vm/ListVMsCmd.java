@@ -204,6 +204,11 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.VirtualMachine;
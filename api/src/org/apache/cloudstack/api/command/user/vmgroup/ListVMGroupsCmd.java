@@ -63,6 +63,11 @@ public class ListVMGroupsCmd extends BaseListProjectAndAccountResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public void execute(){
         ListResponse<InstanceGroupResponse> response = _queryService.searchForVmGroups(this);
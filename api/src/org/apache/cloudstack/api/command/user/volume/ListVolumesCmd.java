@@ -104,6 +104,11 @@ public class ListVolumesCmd extends BaseListTaggedResourcesCmd {
         return s_name;
     }
 
+    @Override
+    public boolean isStartAfterSupported() {
+        return true;
+    }
+
     @Override
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.Volume;
@@ -0,0 +1,47 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.response;
+
+import java.util.List;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.BaseResponse;
+
+import com.cloud.serializer.Param;
+import com.google.gson.annotations.SerializedName;
+
+public class DeployVMsResponse extends BaseResponse {
+
+    @SerializedName(ApiConstants.COUNT) @Param(description="the number of virtual machines deployed")
+    private Integer count;
+
+    @SerializedName("virtualmachine") @Param(description="the virtual machines deployed", responseObject = UserVmResponse.class)
+    private List<UserVmResponse> virtualMachines;
+
+    public Integer getCount() {
+        return count;
+    }
+
+    public List<UserVmResponse> getVirtualMachines() {
+        return virtualMachines;
+    }
+
+    public void setVirtualMachines(List<UserVmResponse> virtualMachines) {
+        this.virtualMachines = virtualMachines;
+        this.count = virtualMachines == null ? 0 : virtualMachines.size();
+    }
+}
@@ -0,0 +1,76 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cloudstack.api.command.user.event.ListEventsCmd;
+import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
+import org.junit.Test;
+
+public class BaseListCmdTest {
+
+    @Test
+    public void testStartAfterWithPageSize() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(ApiConstants.START_AFTER, "a2c1e6b4-0a2d-4bb2-9cde-3c6b2f1f0e1a");
+        params.put(ApiConstants.PAGE_SIZE, "50");
+        new ListVMsCmd().checkPagingParameters(params);
+    }
+
+    @Test
+    public void testStartAfterWithPageRejected() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(ApiConstants.START_AFTER, "a2c1e6b4-0a2d-4bb2-9cde-3c6b2f1f0e1a");
+        params.put(ApiConstants.PAGE, "2");
+        params.put(ApiConstants.PAGE_SIZE, "50");
+        try {
+            new ListVMsCmd().checkPagingParameters(params);
+            fail("page and startafter were accepted together");
+        } catch (ServerApiException e) {
+            assertEquals(ApiErrorCode.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testStartAfterNotSupported() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(ApiConstants.START_AFTER, "a2c1e6b4-0a2d-4bb2-9cde-3c6b2f1f0e1a");
+        try {
+            new ListEventsCmd().checkPagingParameters(params);
+            fail("startafter was accepted by a command that would ignore it");
+        } catch (ServerApiException e) {
+            assertEquals(ApiErrorCode.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testPageSizeRequiresPage() {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(ApiConstants.PAGE_SIZE, "50");
+        try {
+            new ListVMsCmd().checkPagingParameters(params);
+            fail("pagesize was accepted without page");
+        } catch (ServerApiException e) {
+            assertEquals(ApiErrorCode.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,606 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.Gson;
+
+/**
+ * BinaryCodec marshalls Command and Answer arrays for Request.Version.v4.
+ *
+ * For every class a schema is generated once, on first use, that lists the
+ * fields Gson would have serialized along with an accessor that knows how to
+ * read and write the field in binary form.  Primitives, their wrappers,
+ * Strings, enums and Map<String, String> are written natively.  Any other
+ * field type is written as an embedded json string using the same Gson
+ * configuration as Version.v1, so custom type adaptors still apply.  Classes
+ * that can not be instantiated without arguments are written entirely as json.
+ *
+ * The layout is:
+ * 1. Number of commands - 4 bytes;
+ * 2. For each command:
+ *    a. Encoding - 1 byte; ENCODING_BINARY or ENCODING_JSON, or'ed with
+ *       NAME_QUALIFIED if the class is outside the com.cloud.agent.api package;
+ *    b. Class name, relative to the com.cloud.agent.api package unless NAME_QUALIFIED is set;
+ *    c. ENCODING_BINARY: schema fingerprint - 4 bytes, then the fields in schema order.
+ *       ENCODING_JSON: the command as a json string.
+ */
+public class BinaryCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCodec.class);
+
+    protected static final Gson s_gson = GsonHelper.getGson();
+
+    private static final String s_pkg = Command.class.getPackage().getName() + ".";
+
+    protected static final byte ENCODING_BINARY = 0x0;
+    protected static final byte ENCODING_JSON   = 0x1;
+    protected static final byte NAME_QUALIFIED  = 0x10;
+
+    private static final ConcurrentHashMap<Class<?>, Schema> s_schemas = new ConcurrentHashMap<Class<?>, Schema>();
+
+    public static byte[] encode(final Command[] cmds) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(cmds.length);
+            for (Command cmd : cmds) {
+                Schema schema = getSchema(cmd.getClass());
+                String name = cmd.getClass().getName();
+                byte flags = 0;
+                if (name.startsWith(s_pkg)) {
+                    name = name.substring(s_pkg.length());
+                } else {
+                    flags = NAME_QUALIFIED;
+                }
+                if (schema.isBinary()) {
+                    out.writeByte(ENCODING_BINARY | flags);
+                    writeString(out, name);
+                    out.writeInt(schema.getFingerprint());
+                    for (Accessor accessor : schema.getAccessors()) {
+                        accessor.write(out, cmd);
+                    }
+                } else {
+                    out.writeByte(ENCODING_JSON | flags);
+                    writeString(out, name);
+                    writeString(out, s_gson.toJson(cmd));
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to encode " + cmds.length + " commands", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to encode " + cmds.length + " commands", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Command> T[] decode(final byte[] bytes, final int offset, final int length, final Class<T> type) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        String name = null;
+        try {
+            int count = in.readInt();
+            T[] cmds = (T[])Array.newInstance(type, count);
+            for (int i = 0; i < count; i++) {
+                byte encoding = in.readByte();
+                name = readString(in);
+                if ((encoding & NAME_QUALIFIED) == 0) {
+                    name = s_pkg + name;
+                }
+                encoding &= ~NAME_QUALIFIED;
+                Class<?> clazz = Class.forName(name);
+                if (encoding == ENCODING_JSON) {
+                    cmds[i] = (T)s_gson.fromJson(readString(in), clazz);
+                    continue;
+                }
+
+                Schema schema = getSchema(clazz);
+                int fingerprint = in.readInt();
+                if (!schema.isBinary() || fingerprint != schema.getFingerprint()) {
+                    throw new CloudRuntimeException("Schema of " + name + " does not match the sender's.  Are both sides running the same version?");
+                }
+                T cmd = (T)schema.newInstance();
+                for (Accessor accessor : schema.getAccessors()) {
+                    accessor.read(in, cmd);
+                }
+                cmds[i] = cmd;
+            }
+            return cmds;
+        } catch (ClassNotFoundException e) {
+            throw new CloudRuntimeException("can't find " + name);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to decode " + name, e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to decode " + name, e);
+        } catch (InstantiationException e) {
+            throw new CloudRuntimeException("Unable to decode " + name, e);
+        } catch (InvocationTargetException e) {
+            throw new CloudRuntimeException("Unable to decode " + name, e);
+        }
+    }
+
+    public static <T extends Command> T[] decode(final byte[] bytes, final Class<T> type) {
+        return decode(bytes, 0, bytes.length, type);
+    }
+
+    protected static Schema getSchema(final Class<?> clazz) {
+        Schema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new Schema(clazz);
+            Schema existing = s_schemas.putIfAbsent(clazz, schema);
+            if (existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    protected static void writeString(final DataOutputStream out, final String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(final DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Schema is the list of field accessors for one class.  It is generated
+     * once per class and reused for every command of that class.
+     */
+    protected static class Schema {
+        private final Class<?> _clazz;
+        private final Constructor<?> _constructor;
+        private final Accessor[] _accessors;
+        private final int _fingerprint;
+
+        protected Schema(final Class<?> clazz) {
+            _clazz = clazz;
+            _constructor = findConstructor(clazz);
+
+            List<Accessor> accessors = new ArrayList<Accessor>();
+            StringBuilder signature = new StringBuilder(clazz.getName());
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    Accessor accessor = createAccessor(field);
+                    accessors.add(accessor);
+                    signature.append(';').append(c.getName()).append('.').append(field.getName()).append(':').append(field.getGenericType().toString());
+                }
+            }
+            _accessors = accessors.toArray(new Accessor[accessors.size()]);
+            _fingerprint = signature.toString().hashCode();
+
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Generated " + (_constructor != null ? "binary" : "json") + " schema for " + clazz.getName() + " with " + _accessors.length + " fields");
+            }
+        }
+
+        private static Constructor<?> findConstructor(final Class<?> clazz) {
+            if (Modifier.isAbstract(clazz.getModifiers()) || (clazz.isMemberClass() && !Modifier.isStatic(clazz.getModifiers()))) {
+                return null;
+            }
+            try {
+                Constructor<?> constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor;
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        public boolean isBinary() {
+            return _constructor != null;
+        }
+
+        public int getFingerprint() {
+            return _fingerprint;
+        }
+
+        public Accessor[] getAccessors() {
+            return _accessors;
+        }
+
+        public Object newInstance() throws InstantiationException, IllegalAccessException, InvocationTargetException {
+            return _constructor.newInstance();
+        }
+
+        @Override
+        public String toString() {
+            return "Schema[" + _clazz.getName() + "]";
+        }
+    }
+
+    protected static Accessor createAccessor(final Field field) {
+        Class<?> type = field.getType();
+        if (type == boolean.class) {
+            return new BooleanAccessor(field);
+        } else if (type == byte.class) {
+            return new ByteAccessor(field);
+        } else if (type == short.class) {
+            return new ShortAccessor(field);
+        } else if (type == char.class) {
+            return new CharAccessor(field);
+        } else if (type == int.class) {
+            return new IntAccessor(field);
+        } else if (type == long.class) {
+            return new LongAccessor(field);
+        } else if (type == float.class) {
+            return new FloatAccessor(field);
+        } else if (type == double.class) {
+            return new DoubleAccessor(field);
+        } else if (type == String.class) {
+            return new StringAccessor(field);
+        } else if (type.isEnum()) {
+            return new EnumAccessor(field);
+        } else if (type == Boolean.class || type == Byte.class || type == Short.class || type == Character.class || type == Integer.class || type == Long.class
+                || type == Float.class || type == Double.class) {
+            return new WrapperAccessor(field);
+        } else if ((type == Map.class || type == HashMap.class) && isStringMap(field.getGenericType())) {
+            return new StringMapAccessor(field);
+        }
+        return new JsonAccessor(field);
+    }
+
+    private static boolean isStringMap(final Type type) {
+        if (!(type instanceof ParameterizedType)) {
+            return false;
+        }
+        Type[] args = ((ParameterizedType)type).getActualTypeArguments();
+        return args.length == 2 && args[0] == String.class && args[1] == String.class;
+    }
+
+    /**
+     * Accessor reads and writes one field.  Reference values are preceded by
+     * a presence byte; a null value leaves the field at whatever the no-arg
+     * constructor set it to, which is how Gson treats missing values.
+     */
+    protected static abstract class Accessor {
+        protected final Field _field;
+
+        protected Accessor(final Field field) {
+            _field = field;
+        }
+
+        public abstract void write(DataOutputStream out, Object obj) throws IOException, IllegalAccessException;
+
+        public abstract void read(DataInputStream in, Object obj) throws IOException, IllegalAccessException;
+    }
+
+    protected static abstract class ReferenceAccessor extends Accessor {
+        protected ReferenceAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            Object value = _field.get(obj);
+            if (value == null) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                writeValue(out, value);
+            }
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            if (in.readBoolean()) {
+                _field.set(obj, readValue(in));
+            }
+        }
+
+        protected abstract void writeValue(DataOutputStream out, Object value) throws IOException;
+
+        protected abstract Object readValue(DataInputStream in) throws IOException;
+    }
+
+    protected static class BooleanAccessor extends Accessor {
+        protected BooleanAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeBoolean(_field.getBoolean(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setBoolean(obj, in.readBoolean());
+        }
+    }
+
+    protected static class ByteAccessor extends Accessor {
+        protected ByteAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeByte(_field.getByte(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setByte(obj, in.readByte());
+        }
+    }
+
+    protected static class ShortAccessor extends Accessor {
+        protected ShortAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeShort(_field.getShort(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setShort(obj, in.readShort());
+        }
+    }
+
+    protected static class CharAccessor extends Accessor {
+        protected CharAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeChar(_field.getChar(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setChar(obj, in.readChar());
+        }
+    }
+
+    protected static class IntAccessor extends Accessor {
+        protected IntAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeInt(_field.getInt(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setInt(obj, in.readInt());
+        }
+    }
+
+    protected static class LongAccessor extends Accessor {
+        protected LongAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeLong(_field.getLong(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setLong(obj, in.readLong());
+        }
+    }
+
+    protected static class FloatAccessor extends Accessor {
+        protected FloatAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeFloat(_field.getFloat(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setFloat(obj, in.readFloat());
+        }
+    }
+
+    protected static class DoubleAccessor extends Accessor {
+        protected DoubleAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        public void write(final DataOutputStream out, final Object obj) throws IOException, IllegalAccessException {
+            out.writeDouble(_field.getDouble(obj));
+        }
+
+        @Override
+        public void read(final DataInputStream in, final Object obj) throws IOException, IllegalAccessException {
+            _field.setDouble(obj, in.readDouble());
+        }
+    }
+
+    protected static class StringAccessor extends ReferenceAccessor {
+        protected StringAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        protected void writeValue(final DataOutputStream out, final Object value) throws IOException {
+            writeString(out, (String)value);
+        }
+
+        @Override
+        protected Object readValue(final DataInputStream in) throws IOException {
+            return readString(in);
+        }
+    }
+
+    protected static class EnumAccessor extends ReferenceAccessor {
+        protected EnumAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        protected void writeValue(final DataOutputStream out, final Object value) throws IOException {
+            writeString(out, ((Enum<?>)value).name());
+        }
+
+        @Override
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        protected Object readValue(final DataInputStream in) throws IOException {
+            return Enum.valueOf((Class<Enum>)_field.getType(), readString(in));
+        }
+    }
+
+    protected static class WrapperAccessor extends ReferenceAccessor {
+        protected WrapperAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        protected void writeValue(final DataOutputStream out, final Object value) throws IOException {
+            if (value instanceof Boolean) {
+                out.writeBoolean((Boolean)value);
+            } else if (value instanceof Byte) {
+                out.writeByte((Byte)value);
+            } else if (value instanceof Short) {
+                out.writeShort((Short)value);
+            } else if (value instanceof Character) {
+                out.writeChar((Character)value);
+            } else if (value instanceof Integer) {
+                out.writeInt((Integer)value);
+            } else if (value instanceof Long) {
+                out.writeLong((Long)value);
+            } else if (value instanceof Float) {
+                out.writeFloat((Float)value);
+            } else {
+                out.writeDouble((Double)value);
+            }
+        }
+
+        @Override
+        protected Object readValue(final DataInputStream in) throws IOException {
+            Class<?> type = _field.getType();
+            if (type == Boolean.class) {
+                return in.readBoolean();
+            } else if (type == Byte.class) {
+                return in.readByte();
+            } else if (type == Short.class) {
+                return in.readShort();
+            } else if (type == Character.class) {
+                return in.readChar();
+            } else if (type == Integer.class) {
+                return in.readInt();
+            } else if (type == Long.class) {
+                return in.readLong();
+            } else if (type == Float.class) {
+                return in.readFloat();
+            } else {
+                return in.readDouble();
+            }
+        }
+    }
+
+    protected static class StringMapAccessor extends ReferenceAccessor {
+        protected StringMapAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void writeValue(final DataOutputStream out, final Object value) throws IOException {
+            Map<String, String> map = (Map<String, String>)value;
+            out.writeInt(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+
+        @Override
+        protected Object readValue(final DataInputStream in) throws IOException {
+            int size = in.readInt();
+            Map<String, String> map = new HashMap<String, String>(Math.max(16, size * 2));
+            for (int i = 0; i < size; i++) {
+                map.put(readString(in), readString(in));
+            }
+            return map;
+        }
+    }
+
+    /**
+     * JsonAccessor is the fallback for field types that have no native binary
+     * form.  The value is written with the declared type of the field so the
+     * registered Gson type adaptors are honored.
+     */
+    protected static class JsonAccessor extends ReferenceAccessor {
+        protected JsonAccessor(final Field field) {
+            super(field);
+        }
+
+        @Override
+        protected void writeValue(final DataOutputStream out, final Object value) throws IOException {
+            writeString(out, s_gson.toJson(value, _field.getGenericType()));
+        }
+
+        @Override
+        protected Object readValue(final DataInputStream in) throws IOException {
+            return s_gson.fromJson(readString(in), _field.getGenericType());
+        }
+    }
+}
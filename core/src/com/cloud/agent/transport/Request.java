@@ -16,17 +16,17 @@
 // under the License.
 package com.cloud.agent.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.StringReader;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -59,12 +59,18 @@ import com.google.gson.stream.JsonReader;
  * 
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
- * 3. Sequence - 8 bytes;
- * 4. Length - 4 bytes;
- * 5. ManagementServerId - 8 bytes;
- * 6. AgentId - 8 bytes;
- * 7. Data Package.
+ * 2. Capabilities - 1 byte;
+ * 3. Flags - 2 bytes;
+ * 4. Sequence - 8 bytes;
+ * 5. Length - 4 bytes;
+ * 6. ManagementServerId - 8 bytes;
+ * 7. AgentId - 8 bytes;
+ * 8. Via - 8 bytes;
+ * 9. Data Package.
+ * 
+ * The capabilities byte tells the receiver which wire versions the sender
+ * is able to parse.  A sender should only switch to Version.v4 once the
+ * other side has advertised CAPABILITY_BINARY.
  * 
  */
 public class Request {
@@ -77,7 +83,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // using BinaryCodec to marshall with gson as fallback.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -97,6 +104,37 @@ public class Request {
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
 
+    protected static final byte        CAPABILITY_BINARY    = 0x1;
+
+    // Payloads at least this big are sent gzip compressed.
+    protected static final int         COMPRESSION_THRESHOLD = 8192;
+
+    private static final int           GZIP_MAGIC           = 0x8b1f;
+    private static final int           GZIP_HEADER_SIZE     = 10;
+    private static final int           GZIP_TRAILER_SIZE    = 8;
+    private static final int           GZIP_FHCRC           = 0x02;
+    private static final int           GZIP_FEXTRA          = 0x04;
+    private static final int           GZIP_FNAME           = 0x08;
+    private static final int           GZIP_FCOMMENT        = 0x10;
+
+    private static volatile int s_compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Deflater, Inflater and checksum are expensive to create and hold native
+     * memory so each thread that compresses keeps one set around.
+     */
+    private static final class Compressor {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final Inflater inflater = new Inflater(true);
+        final CRC32 crc = new CRC32();
+    }
+
+    private static final ThreadLocal<Compressor> s_compressor = new ThreadLocal<Compressor>() {
+        @Override
+        protected Compressor initialValue() {
+            return new Compressor();
+        }
+    };
 
     protected Version   _ver;
     protected long      _session;
@@ -107,6 +145,8 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected byte[]    _data;
+    protected byte      _capabilities;
     
     protected Request() {
     }
@@ -131,6 +171,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final byte[] data) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _data = data;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] { command }, true, fromServer);
     }
@@ -201,6 +246,21 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Changes the wire version used by toBytes().  This must be done before
+     * the request is serialized for the first time.
+     */
+    public void setVersion(Version ver) {
+        _ver = ver;
+    }
+
+    /**
+     * @return true if the sender of this request is able to parse Version.v4.
+     */
+    public boolean isBinaryCapable() {
+        return (_capabilities & CAPABILITY_BINARY) > 0;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -227,7 +287,9 @@ public class Request {
     }
 
     public Command[] getCommands() {
-        if (_cmds == null) {
+        if (_cmds == null && _data != null) {
+            _cmds = unmarshall();
+        } else if (_cmds == null) {
             try {
                 StringReader reader = new StringReader(_content);
                 JsonReader jsonReader = new JsonReader(reader);
@@ -248,7 +310,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte) 0);
+        buffer.put(CAPABILITY_BINARY);
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -261,64 +323,177 @@ public class Request {
         return buffer;
     }
 
+    /**
+     * Trades compression ratio for speed on large payloads.  The output is
+     * still gzip so the other side does not need to know about it.
+     */
+    public static void setFastCompression(boolean fast) {
+        s_compressionLevel = fast ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    public static boolean isFastCompression() {
+        return s_compressionLevel == Deflater.BEST_SPEED;
+    }
+
+    /**
+     * Inflates a gzip stream straight into a heap buffer of the uncompressed
+     * length so the result can be handed to the parser without another copy.
+     * 
+     * @param buffer compressed bytes between position and limit.
+     * @param length uncompressed length as carried in the header.
+     * @return buffer wrapping an array of exactly length bytes.
+     */
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
-        ByteArrayInputStream byteIn;
+        byte[] in;
+        int offset;
+        int end;
         if (buffer.hasArray()) {
-            byteIn = new ByteArrayInputStream(buffer.array(),
-                    buffer.position() + buffer.arrayOffset(),
-                    buffer.remaining());
+            in = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            end = buffer.arrayOffset() + buffer.limit();
         } else {
-            byte[] array = new byte[buffer.limit() - buffer.position()];
-            buffer.get(array);
-            byteIn = new ByteArrayInputStream(array);
+            in = new byte[buffer.remaining()];
+            buffer.get(in);
+            offset = 0;
+            end = in.length;
         }
-        ByteBuffer retBuff = ByteBuffer.allocate(length);
+
+        byte[] out = new byte[length];
         int len = 0;
+        Compressor compressor = s_compressor.get();
+        Inflater inflater = compressor.inflater;
         try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
+            offset = skipGzipHeader(in, offset, end);
+            inflater.setInput(in, offset, end - offset);
+            while (len < length && !inflater.finished()) {
+                int n = inflater.inflate(out, len, length - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated stream after " + len + " of " + length + " bytes");
+                }
+                len += n;
             }
-            in.close();
-        } catch (IOException e) {
+            compressor.crc.reset();
+            compressor.crc.update(out, 0, len);
+            int trailer = end - inflater.getRemaining();
+            if (trailer + GZIP_TRAILER_SIZE <= end && (int)compressor.crc.getValue() != getIntLE(in, trailer)) {
+                throw new DataFormatException("Corrupt gzip trailer");
+            }
+        } catch (DataFormatException e) {
             s_logger.error("Fail to decompress the request!", e);
+        } finally {
+            inflater.reset();
         }
-        retBuff.flip();
+        ByteBuffer retBuff = ByteBuffer.wrap(out);
+        retBuff.limit(len);
         return retBuff;
     }
-    
+
+    /**
+     * Deflates the bytes between position and limit into a gzip stream
+     * using this thread's Deflater.
+     * 
+     * @param buffer bytes to compress.
+     * @param length number of bytes to compress; used to size the output.
+     * @return buffer holding the gzip stream.
+     */
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
-        byte[] array;
+        byte[] in;
+        int offset;
+        int count;
         if (buffer.hasArray()) {
-            array = buffer.array();
+            in = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            count = buffer.remaining();
         } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
+            in = new byte[buffer.remaining()];
+            buffer.get(in);
+            offset = 0;
+            count = in.length;
         }
+
+        Compressor compressor = s_compressor.get();
+        Deflater deflater = compressor.deflater;
+        // Deflate rarely grows the data by more than a few bytes per block.
+        byte[] out = new byte[GZIP_HEADER_SIZE + count + (count >> 12) + (count >> 14) + 64 + GZIP_TRAILER_SIZE];
+        putGzipHeader(out);
+        int len = GZIP_HEADER_SIZE;
         try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
-            out.finish();
-            out.close();
-        } catch (IOException e) {
-            s_logger.error("Fail to compress the request!", e);
+            deflater.setLevel(s_compressionLevel);
+            deflater.setInput(in, offset, count);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (len + GZIP_TRAILER_SIZE >= out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                len += deflater.deflate(out, len, out.length - len - GZIP_TRAILER_SIZE);
+            }
+        } finally {
+            deflater.reset();
         }
-        return ByteBuffer.wrap(byteOut.toByteArray());
+        compressor.crc.reset();
+        compressor.crc.update(in, offset, count);
+        putIntLE(out, len, (int)compressor.crc.getValue());
+        putIntLE(out, len + 4, count);
+        return ByteBuffer.wrap(out, 0, len + GZIP_TRAILER_SIZE);
     }
-    
+
+    private static void putGzipHeader(byte[] out) {
+        out[0] = (byte)GZIP_MAGIC;
+        out[1] = (byte)(GZIP_MAGIC >> 8);
+        out[2] = Deflater.DEFLATED;
+        // flags, mtime, xfl and os are all left as zero like GZIPOutputStream.
+    }
+
+    private static int skipGzipHeader(byte[] in, int offset, int end) throws DataFormatException {
+        if (end - offset < GZIP_HEADER_SIZE || ((in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8)) != GZIP_MAGIC || in[offset + 2] != Deflater.DEFLATED) {
+            throw new DataFormatException("Not in gzip format");
+        }
+        int flags = in[offset + 3] & 0xff;
+        int pos = offset + GZIP_HEADER_SIZE;
+        if ((flags & GZIP_FEXTRA) != 0) {
+            pos += 2 + ((in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            while (in[pos++] != 0);
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            while (in[pos++] != 0);
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            pos += 2;
+        }
+        return pos;
+    }
+
+    private static void putIntLE(byte[] b, int pos, int value) {
+        b[pos] = (byte)value;
+        b[pos + 1] = (byte)(value >> 8);
+        b[pos + 2] = (byte)(value >> 16);
+        b[pos + 3] = (byte)(value >> 24);
+    }
+
+    private static int getIntLE(byte[] b, int pos) {
+        return (b[pos] & 0xff) | ((b[pos + 1] & 0xff) << 8) | ((b[pos + 2] & 0xff) << 16) | ((b[pos + 3] & 0xff) << 24);
+    }
+
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (_ver == Version.v4) {
+            if (_data == null) {
+                _data = BinaryCodec.encode(getCommands());
+            }
+            tmp = ByteBuffer.wrap(_data);
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(getCommands(), _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
-        if (capacity >= 8192) {
+        if (capacity >= COMPRESSION_THRESHOLD) {
             tmp = doCompress(tmp, capacity);
             _flags |= FLAG_COMPRESSED;
         }
@@ -383,7 +558,7 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = unmarshall();
                 } catch (RuntimeException e) {
                     s_logger.error("Unable to convert to json: " + _content);
                     throw e;
@@ -405,7 +580,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = unmarshall();
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -429,6 +604,13 @@ public class Request {
         return buf.toString();
     }
 
+    protected Command[] unmarshall() {
+        if (_data != null) {
+            return BinaryCodec.decode(_data, this instanceof Response ? Answer.class : Command.class);
+        }
+        return s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+    }
+
     /**
      * Factory method for Request and Response. It expects the bytes to be
      * correctly formed so it's possible that it throws underflow exceptions
@@ -444,10 +626,10 @@ public class Request {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        final byte reserved = buff.get(); // tossed away for now.
+        final byte capabilities = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -458,7 +640,7 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() == Version.v1.ordinal() || version.ordinal() == Version.v4.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
@@ -470,22 +652,39 @@ public class Request {
         
         byte[] command = null;
         int offset = 0;
+        final int length = buff.remaining();
         if (buff.hasArray()) {
             command = buff.array();
             offset = buff.arrayOffset() + buff.position();
         } else {
-            command = new byte[buff.remaining()];
+            command = new byte[length];
             buff.get(command);
             offset = 0;
         }
 
-        final String content = new String(command, offset, command.length - offset);
-
-        if (isRequest) {
-            return new Request(version, seq, agentId, mgmtId, via, flags, content);
+        Request req;
+        if (version == Version.v4) {
+            // A decompressed payload already sits in an array of its own.
+            byte[] data = command;
+            if (offset != 0 || length != command.length) {
+                data = new byte[length];
+                System.arraycopy(command, offset, data, 0, length);
+            }
+            if (isRequest) {
+                req = new Request(version, seq, agentId, mgmtId, via, flags, data);
+            } else {
+                req = new Response(version, seq, agentId, mgmtId, via, flags, data);
+            }
         } else {
-            return new Response(Version.get(ver), seq, agentId, mgmtId, via, flags, content);
+            final String content = new String(command, offset, length);
+            if (isRequest) {
+                req = new Request(version, seq, agentId, mgmtId, via, flags, content);
+            } else {
+                req = new Response(version, seq, agentId, mgmtId, via, flags, content);
+            }
         }
+        req._capabilities = capabilities;
+        return req;
     }
 
     public long getAgentId() {
@@ -532,6 +731,10 @@ public class Request {
         return NumbersUtil.bytesToLong(bytes, 4);
     }
 
+    public static boolean isBinaryCapable(final byte[] bytes) {
+        return (bytes[1] & CAPABILITY_BINARY) > 0;
+    }
+
     public static boolean isControl(final byte[] bytes) {
         return (bytes[3] & FLAG_CONTROL) > 0;
     }
@@ -48,6 +48,10 @@ public class Response extends Request {
         super(ver, seq, agentId, mgmtId, via, flags, ans);
     }
 
+    protected Response(Version ver, long seq, long agentId, long mgmtId, long via, short flags, byte[] data) {
+        super(ver, seq, agentId, mgmtId, via, flags, data);
+    }
+
     public Answer getAnswer() {
         Answer[] answers = getAnswers();
         return answers[0];
@@ -55,7 +59,7 @@ public class Response extends Request {
 
     public Answer[] getAnswers() {
         if (_cmds == null) {
-            _cmds = s_gson.fromJson(_content, Answer[].class);
+            _cmds = unmarshall();
         }
         return (Answer[])_cmds;
     }
@@ -20,6 +20,7 @@ import java.util.Date;
 import java.util.List;
 
 import com.cloud.event.EventVO;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.SearchCriteria;
@@ -27,7 +28,7 @@ import com.cloud.utils.db.SearchCriteria;
 public interface EventDao extends GenericDao<EventVO, Long> {
     public List<EventVO> searchAllEvents(SearchCriteria<EventVO> sc, Filter filter);
 
-    public List<EventVO> listOlderEvents(Date oldTime);
+    int streamOlderEvents(Date oldTime, EntityConsumer<EventVO> consumer);
 
     EventVO findCompletedEvent(long startId);
 }
@@ -25,6 +25,7 @@ import org.apache.log4j.Logger;
 
 import com.cloud.event.Event.State;
 import com.cloud.event.EventVO;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
@@ -48,12 +49,11 @@ public class EventDaoImpl extends GenericDaoBase<EventVO, Long> implements Event
 	}
 
     @Override
-    public List<EventVO> listOlderEvents(Date oldTime) {
-        if (oldTime == null) return null;
+    public int streamOlderEvents(Date oldTime, EntityConsumer<EventVO> consumer) {
+        if (oldTime == null) return 0;
         SearchCriteria<EventVO> sc = createSearchCriteria();
         sc.addAnd("createDate", SearchCriteria.Op.LT, oldTime);
-        return listIncludingRemovedBy(sc, null);
-        
+        return streamIncludingRemoved(sc, 500, consumer);
     }
     
     @Override
@@ -21,6 +21,7 @@ import java.util.List;
 
 import com.cloud.event.UsageEventVO;
 import com.cloud.exception.UsageServerException;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.GenericDao;
 
 public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
@@ -29,7 +30,15 @@ public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
 
     public List<UsageEventVO> getLatestEvent();
     
-    List<UsageEventVO> getRecentEvents(Date endDate) throws UsageServerException;
+    /**
+     * Copies the events created up to endDate from the cloud db to the usage db.
+     */
+    void copyRecentEvents(Date endDate) throws UsageServerException;
+
+    /**
+     * Hands the unprocessed events created up to endDate to the consumer in id order.
+     */
+    int streamLatestEvents(Date endDate, EntityConsumer<UsageEventVO> consumer);
 
     List<UsageEventVO> listDirectIpEvents(Date startDate, Date endDate, long zoneId);
 
@@ -32,6 +32,7 @@ import com.cloud.event.UsageEventVO;
 import com.cloud.exception.UsageServerException;
 import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
@@ -77,6 +78,14 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         return listBy(sc, filter);
     }
 
+    @Override
+    public int streamLatestEvents(Date endDate, EntityConsumer<UsageEventVO> consumer) {
+        SearchCriteria<UsageEventVO> sc = latestEventsSearch.create();
+        sc.setParameters("processed", false);
+        sc.setParameters("enddate", endDate);
+        return stream(sc, 500, consumer);
+    }
+
     @Override
     public List<UsageEventVO> getLatestEvent() {
         Filter filter = new Filter(UsageEventVO.class, "id", Boolean.FALSE, Long.valueOf(0), Long.valueOf(1));
@@ -85,7 +94,7 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
     
     @Override
     @DB
-    public synchronized List<UsageEventVO> getRecentEvents(Date endDate) throws UsageServerException {
+    public synchronized void copyRecentEvents(Date endDate) throws UsageServerException {
         long recentEventId = getMostRecentEventId();
         long maxEventId = getMaxEventId(endDate);
         Transaction txn = Transaction.open(Transaction.USAGE_DB);
@@ -108,7 +117,6 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
             pstmt.setLong(i++, maxEventId);
             pstmt.executeUpdate();
             txn.commit();
-            return findRecentEvents(endDate);
         } catch (Exception ex) {
             txn.rollback();
             s_logger.error("error copying events from cloud db to usage db", ex);
@@ -137,18 +145,6 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         }
     }
 
-    private List<UsageEventVO> findRecentEvents(Date endDate) throws UsageServerException {
-        Transaction txn = Transaction.open(Transaction.USAGE_DB);
-        try {
-            return listLatestEvents(endDate);
-        } catch (Exception ex) {
-            s_logger.error("error getting most recent event date", ex);
-            throw new UsageServerException(ex.getMessage());
-        } finally {
-            txn.close();
-        }
-    }
-    
     private long getMaxEventId(Date endDate) throws UsageServerException {
         Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
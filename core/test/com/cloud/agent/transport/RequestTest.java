@@ -16,7 +16,15 @@
 // under the License.
 package com.cloud.agent.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
 
@@ -27,17 +35,21 @@ import org.junit.Assert;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.PingRoutingCommand;
 import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
 import com.cloud.exception.UnsupportedVersionException;
+import com.cloud.host.Host;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.resource.DestroyLoadBalancerApplianceAnswer;
 import com.cloud.serializer.GsonHelper;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.storage.VMTemplateVO;
+import com.cloud.vm.VirtualMachine.State;
 
 /**
  * 
@@ -126,6 +138,134 @@ public class RequestTest extends TestCase {
         compareRequest(cresp, sresp);
     }
 
+    public void testBinarySerDeser() {
+        s_logger.info("Testing serializing and deserializing with the binary codec");
+        UpdateHostPasswordCommand cmd1 = new UpdateHostPasswordCommand("abc", "def");
+        SecStorageFirewallCfgCommand cmd2 = new SecStorageFirewallCfgCommand();
+        cmd2.addPortConfig("abc", "24", true, "eth0");
+        cmd2.addPortConfig("127.0.0.1", "44", false, "eth1");
+        GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
+        cmd3.setContextParam("key", "value");
+        cmd3.setWait(20);
+        Request sreq = new Request(2, 3, new Command[] { cmd1, cmd2, cmd3 }, true, true);
+        sreq.setSequence(892403717);
+        sreq.setVersion(Request.Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        assert Request.isBinaryCapable(bytes);
+        assert Request.getSequence(bytes) == 892403717;
+        assert Request.getViaAgentId(bytes) == 2;
+
+        Request creq = null;
+        try {
+            creq = Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assert creq != null : "Couldn't get the request back";
+        assert creq.isBinaryCapable();
+        compareRequest(creq, sreq);
+
+        Command[] cmds = creq.getCommands();
+        assertEquals("abc", ((UpdateHostPasswordCommand)cmds[0]).getUsername());
+        assertEquals("def", ((UpdateHostPasswordCommand)cmds[0]).getNewPassword());
+        assertEquals(2, ((SecStorageFirewallCfgCommand)cmds[1]).getPortConfigs().size());
+        assertEquals("eth1", ((SecStorageFirewallCfgCommand)cmds[1]).getPortConfigs().get(1).getIntf());
+        assertEquals("hostguid", ((GetHostStatsCommand)cmds[2]).getHostGuid());
+        assertEquals(101, ((GetHostStatsCommand)cmds[2]).getHostId());
+        assertEquals("value", cmds[2].getContextParam("key"));
+        assertEquals(20, cmds[2].getWait());
+
+        Answer ans = new Answer(cmd1, true, "No Problem");
+        Response cresp = new Response(creq, ans);
+        assert cresp.getVersion() == Request.Version.v4;
+
+        bytes = cresp.getBytes();
+
+        Response sresp = null;
+        try {
+            sresp = Response.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assert sresp != null : "Couldn't get the response back";
+        compareRequest(cresp, sresp);
+        assertTrue(sresp.getAnswer().getResult());
+        assertEquals("No Problem", sresp.getAnswer().getDetails());
+    }
+
+    public static class ForeignPackageCommand extends Command {
+        String name;
+        long value;
+
+        public ForeignPackageCommand() {
+        }
+
+        public ForeignPackageCommand(String name, long value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public boolean executeInSequence() {
+            return false;
+        }
+    }
+
+    public void testBinarySerDeserOutsideAgentApiPackage() throws Exception {
+        ForeignPackageCommand cmd = new ForeignPackageCommand("lb", 42);
+        Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+        sreq.setSequence(892403718);
+        sreq.setVersion(Request.Version.v4);
+
+        Request creq = Request.parse(sreq.getBytes());
+        compareRequest(creq, sreq);
+        ForeignPackageCommand ccmd = (ForeignPackageCommand)creq.getCommands()[0];
+        assertEquals("lb", ccmd.name);
+        assertEquals(42, ccmd.value);
+
+        Answer ans = new DestroyLoadBalancerApplianceAnswer(cmd, true, "destroyed");
+        Response sresp = Response.parse(new Response(creq, ans).getBytes());
+        assertEquals(Request.Version.v4, sresp.getVersion());
+        assertTrue(sresp.getAnswer() instanceof DestroyLoadBalancerApplianceAnswer);
+        assertEquals("destroyed", sresp.getAnswer().getDetails());
+    }
+
+    public void testBinaryCodecIsSmallerThanJson() throws Exception {
+        Map<String, State> states = new HashMap<String, State>();
+        for (int i = 0; i < 100; i++) {
+            states.put("i-2-" + i + "-VM", i % 2 == 0 ? State.Running : State.Stopped);
+        }
+        Command[] cmds = new Command[] { new PingRoutingCommand(Host.Type.Routing, 10, states), new GetHostStatsCommand("hostguid", "hostname", 101),
+                new UpdateHostPasswordCommand("abc", "def") };
+
+        Request jreq = new Request(2, 3, cmds, true, true);
+        jreq.setVersion(Request.Version.v1);
+        Request breq = new Request(2, 3, cmds, true, true);
+        breq.setVersion(Request.Version.v4);
+        byte[] json = jreq.getBytes();
+        byte[] binary = breq.getBytes();
+        s_logger.info("json: " + json.length + " bytes, binary: " + binary.length + " bytes");
+        assertTrue(binary.length < json.length);
+
+        Command[] parsed = Request.parse(binary).getCommands();
+        assertEquals(3, parsed.length);
+        PingRoutingCommand ping = (PingRoutingCommand)parsed[0];
+        assertEquals(Host.Type.Routing, ping.getHostType());
+        assertEquals(10, ping.getHostId());
+        assertEquals(states, ping.getNewStates());
+        assertEquals("hostguid", ((GetHostStatsCommand)parsed[1]).getHostGuid());
+        assertEquals(101, ((GetHostStatsCommand)parsed[1]).getHostId());
+        assertEquals("abc", ((UpdateHostPasswordCommand)parsed[2]).getUsername());
+        assertEquals("def", ((UpdateHostPasswordCommand)parsed[2]).getNewPassword());
+    }
+
     public void testDownload() {
         s_logger.info("Testing Download answer");
         VMTemplateVO template = new VMTemplateVO(1, "templatename", ImageFormat.QCOW2, true, true, true, TemplateType.USER, "url", true, 32, 1, "chksum", "displayText", true, 30, true,
@@ -162,6 +302,60 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testCompressGzipCompatible() throws IOException {
+        s_logger.info("testCompressGzipCompatible");
+        byte[] input = new byte[100000];
+        Random random = new Random(7);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte)('a' + random.nextInt(8));
+        }
+
+        for (boolean fast : new boolean[] { false, true }) {
+            Request.setFastCompression(fast);
+            try {
+                ByteBuffer compressed = Request.doCompress(ByteBuffer.wrap(input), input.length);
+                GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array(), compressed.position(), compressed.remaining()));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] chunk = new byte[4096];
+                int len;
+                while ((len = in.read(chunk)) > 0) {
+                    out.write(chunk, 0, len);
+                }
+                Assert.assertArrayEquals(input, out.toByteArray());
+            } finally {
+                Request.setFastCompression(false);
+            }
+        }
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gzipped);
+        out.write(input);
+        out.close();
+        ByteBuffer decompressed = Request.doDecompress(ByteBuffer.wrap(gzipped.toByteArray()), input.length);
+        assertEquals(input.length, decompressed.remaining());
+        Assert.assertArrayEquals(input, decompressed.array());
+    }
+
+    public void testCompressedRequest() throws ClassNotFoundException, UnsupportedVersionException {
+        s_logger.info("testCompressedRequest");
+        StringBuilder hostname = new StringBuilder();
+        while (hostname.length() < 10000) {
+            hostname.append("host-").append(hostname.length());
+        }
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", hostname.toString(), 101);
+        for (Request.Version version : new Request.Version[] { Request.Version.v1, Request.Version.v4 }) {
+            Request sreq = new Request(2, 3, new Command[] { cmd }, true, true);
+            sreq.setSequence(1);
+            sreq.setVersion(version);
+            byte[] bytes = sreq.getBytes();
+            assertTrue("Payload should have been compressed", (bytes[3] & Request.FLAG_COMPRESSED) != 0);
+
+            Request creq = Request.parse(bytes);
+            GetHostStatsCommand cmd2 = (GetHostStatsCommand)creq.getCommand();
+            assertEquals(hostname.toString(), cmd2.getHostName());
+        }
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -70,6 +70,14 @@ public class UserDispersingPlanner extends FirstFitPlanner implements Deployment
         
     }
     
+    /**
+     * Every vm of a batch is planned on its own so the dispersion is applied to each of them.
+     */
+    @Override
+    protected boolean reuseClusterInBatch() {
+        return false;
+    }
+
     /**
      * This method should reorder the given list of Pod Ids by applying any necessary heuristic 
      * for this planner
@@ -62,6 +62,7 @@ import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
 import com.cloud.capacity.dao.CapacityDao;
@@ -224,6 +225,7 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     protected ExecutorService _executor;
     protected ThreadPoolExecutor _connectExecutor;
     protected ScheduledExecutorService _directAgentExecutor;
+    protected boolean _binaryWireCodec;
 
     protected StateMachine2<Status, Status.Event, Host> _statusStateMachine = Status.getStateMachine();
     
@@ -264,6 +266,10 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         value = configs.get(Config.DirectAgentLoadSize.key());
         int threads = NumbersUtil.parseInt(value, 16);
 
+        _binaryWireCodec = "binary".equalsIgnoreCase(configs.get(Config.AgentWireCodec.key()));
+        s_logger.info("Wire format for agents: " + (_binaryWireCodec ? "binary" : "json"));
+        Request.setFastCompression("fast".equalsIgnoreCase(configs.get(Config.AgentWireCompression.key())));
+
         _instance = configs.get("instance.name");
         if (_instance == null) {
             _instance = "DEFAULT";
@@ -285,7 +291,8 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         //allow core threads to time out even when there are no items in the queue
         _connectExecutor.allowCoreThreadTimeOut(true);
 
-        _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        final int selectors = NumbersUtil.parseInt(configs.get(Config.AgentSelectors.key()), 0);
+        _connection = new NioServer("AgentManager", _port, workers + 10, this, selectors);
         s_logger.info("Listening on " + _port + " with " + workers + " workers");
 
         value = configs.get(Config.DirectAgentPoolSize.key());
@@ -1119,6 +1126,9 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
     		if (host != null) {
     		    ready = new ReadyCommand(host.getDataCenterId(), host.getId());
     			attache = createAttacheForConnect(host, link);
+    			if (_binaryWireCodec && request.isBinaryCapable() && attache instanceof ConnectedAgentAttache) {
+    			    ((ConnectedAgentAttache)attache).setWireVersion(Version.v4);
+    			}
     			attache = notifyMonitorsOfConnection(attache, startup, false);
     		}
         } catch (Exception e) {
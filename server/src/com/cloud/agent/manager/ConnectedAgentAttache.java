@@ -23,6 +23,7 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
 import com.cloud.utils.nio.Link;
@@ -34,14 +35,30 @@ public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
 
     protected Link _link;
+    protected Version _wireVersion;
 
     public ConnectedAgentAttache(AgentManagerImpl agentMgr, final long id, final Link link, boolean maintenance) {
         super(agentMgr, id, maintenance);
         _link = link;
     }
 
+    /**
+     * Sets the wire version used for requests sent over this link.  Leave it
+     * null to send the requests in whatever version they were created with.
+     */
+    public void setWireVersion(Version ver) {
+        _wireVersion = ver;
+    }
+
+    public Version getWireVersion() {
+        return _wireVersion;
+    }
+
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
+        if (_wireVersion != null) {
+            req.setVersion(_wireVersion);
+        }
         try {
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
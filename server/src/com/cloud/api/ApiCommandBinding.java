@@ -0,0 +1,129 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.cloudstack.api.ACL;
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Parameter;
+import org.apache.cloudstack.api.PlugService;
+
+import com.cloud.utils.ReflectUtil;
+
+/**
+ * The fields of an API command class that are bound on every call, with
+ * their annotations. It is built once per command class, so binding a call
+ * does not walk the class hierarchy and read the annotations again.
+ */
+public class ApiCommandBinding {
+    private static final ConcurrentHashMap<Class<?>, ApiCommandBinding> s_bindings = new ConcurrentHashMap<Class<?>, ApiCommandBinding>();
+
+    public static class ParameterBinding {
+        private final Field _field;
+        private final Parameter _parameter;
+        private final ACL _acl;
+        private final Class<?>[] _entities;
+
+        ParameterBinding(Field field, Parameter parameter) {
+            _field = field;
+            _parameter = parameter;
+            _acl = field.getAnnotation(ACL.class);
+
+            Class<?>[] entityType = parameter.entityType();
+            EntityReference reference = entityType.length > 0 ? entityType[0].getAnnotation(EntityReference.class) : null;
+            _entities = reference != null ? reference.value() : null;
+        }
+
+        public Field getField() {
+            return _field;
+        }
+
+        public Parameter getParameter() {
+            return _parameter;
+        }
+
+        /**
+         * @return the access check on the entity the parameter points to, null if there is none.
+         */
+        public ACL getAcl() {
+            return _acl;
+        }
+
+        /**
+         * @return the entities of the @EntityReference of the parameter's entity type, null if it has none.
+         */
+        public Class<?>[] getEntities() {
+            return _entities;
+        }
+    }
+
+    private final List<Field> _pluggedServices;
+    private final List<ParameterBinding> _parameters;
+
+    private ApiCommandBinding(Class<?> cmdClass) {
+        List<Field> pluggedServices = new ArrayList<Field>();
+        List<ParameterBinding> parameters = new ArrayList<ParameterBinding>();
+
+        for (Field field : ReflectUtil.getAllFieldsForClass(cmdClass, BaseCmd.class)) {
+            if (field.getAnnotation(PlugService.class) != null) {
+                field.setAccessible(true);
+                pluggedServices.add(field);
+            }
+
+            Parameter parameter = field.getAnnotation(Parameter.class);
+            if (parameter != null && parameter.expose()) {
+                field.setAccessible(true);
+                parameters.add(new ParameterBinding(field, parameter));
+            }
+        }
+
+        _pluggedServices = Collections.unmodifiableList(pluggedServices);
+        _parameters = Collections.unmodifiableList(parameters);
+    }
+
+    public static ApiCommandBinding getBinding(Class<?> cmdClass) {
+        ApiCommandBinding binding = s_bindings.get(cmdClass);
+        if (binding == null) {
+            binding = new ApiCommandBinding(cmdClass);
+            ApiCommandBinding existing = s_bindings.putIfAbsent(cmdClass, binding);
+            if (existing != null) {
+                binding = existing;
+            }
+        }
+        return binding;
+    }
+
+    /**
+     * @return the fields annotated with @PlugService, in the order they are plugged.
+     */
+    public List<Field> getPluggedServices() {
+        return _pluggedServices;
+    }
+
+    /**
+     * @return the exposed @Parameter fields, in the order they are bound.
+     */
+    public List<ParameterBinding> getParameters() {
+        return _parameters;
+    }
+}
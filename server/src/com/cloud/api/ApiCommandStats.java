@@ -0,0 +1,124 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Latency and throughput of one API command served on the integration api
+ * port.  The stats of a command are registered as an ApiCommand mbean the
+ * first time the command is called.
+ */
+public class ApiCommandStats extends StandardMBean implements ApiCommandStatsMBean {
+    private static final Logger s_logger = Logger.getLogger(ApiCommandStats.class);
+
+    private static final Map<String, ApiCommandStats> s_stats = new ConcurrentHashMap<String, ApiCommandStats>();
+
+    private final String _command;
+    private long _requests;
+    private long _failedRequests;
+    private long _totalLatency;
+    private long _maxLatency;
+    private long _since;
+
+    protected ApiCommandStats(String command) {
+        super(ApiCommandStatsMBean.class, false);
+        _command = command;
+        _since = System.currentTimeMillis();
+    }
+
+    public static ApiCommandStats getStats(String command) {
+        ApiCommandStats stats = s_stats.get(command);
+        if (stats == null) {
+            synchronized (s_stats) {
+                stats = s_stats.get(command);
+                if (stats == null) {
+                    stats = new ApiCommandStats(command);
+                    s_stats.put(command, stats);
+                    try {
+                        JmxUtil.registerMBean("ApiCommand", command, stats);
+                    } catch (Exception e) {
+                        s_logger.warn("Unable to register mbean for api command " + command, e);
+                    }
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param latency milliseconds between the arrival of the request and its response being ready.
+     * @param failed whether an error was returned.
+     */
+    public synchronized void record(long latency, boolean failed) {
+        _requests++;
+        if (failed) {
+            _failedRequests++;
+        }
+        _totalLatency += latency;
+        if (latency > _maxLatency) {
+            _maxLatency = latency;
+        }
+    }
+
+    @Override
+    public String getCommand() {
+        return _command;
+    }
+
+    @Override
+    public synchronized long getRequests() {
+        return _requests;
+    }
+
+    @Override
+    public synchronized long getFailedRequests() {
+        return _failedRequests;
+    }
+
+    @Override
+    public synchronized long getAverageLatency() {
+        return _requests == 0 ? 0 : _totalLatency / _requests;
+    }
+
+    @Override
+    public synchronized long getMaxLatency() {
+        return _maxLatency;
+    }
+
+    @Override
+    public synchronized double getRequestsPerSecond() {
+        long elapsed = System.currentTimeMillis() - _since;
+        return elapsed <= 0 ? 0 : _requests * 1000.0 / elapsed;
+    }
+
+    @Override
+    public synchronized void reset() {
+        _requests = 0;
+        _failedRequests = 0;
+        _totalLatency = 0;
+        _maxLatency = 0;
+        _since = System.currentTimeMillis();
+    }
+}
@@ -30,9 +30,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.cloud.dao.EntityManager;
-import com.cloud.utils.ReflectUtil;
 import org.apache.cloudstack.acl.ControlledEntity;
 import org.apache.cloudstack.acl.InfrastructureEntity;
 import org.apache.cloudstack.acl.Role;
@@ -63,12 +63,12 @@ import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.component.PluggableService;
 import com.cloud.utils.db.GenericDao;
-import com.cloud.utils.exception.CSExceptionErrorCode;
 import com.cloud.utils.exception.CloudRuntimeException;
 
 // ApiDispatcher: A class that dispatches API commands to the appropriate manager for execution.
 public class ApiDispatcher {
     private static final Logger s_logger = Logger.getLogger(ApiDispatcher.class.getName());
+    private static final Pattern UUID_PATTERN = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
 
     ComponentLocator _locator;
     Long _createSnapshotQueueSizeLimit;
@@ -175,36 +175,19 @@ public class ApiDispatcher {
         Map<String, Object> unpackedParams = cmd.unpackParams(params);
 
         if (cmd instanceof BaseListCmd) {
-            Object pageSizeObj = unpackedParams.get(ApiConstants.PAGE_SIZE);
-            Long pageSize = null;
-            if (pageSizeObj != null) {
-                pageSize = Long.valueOf((String) pageSizeObj);
-            }
-
-            if ((unpackedParams.get(ApiConstants.PAGE) == null) && (pageSize != null && pageSize != BaseListCmd.PAGESIZE_UNLIMITED)) {
-                ServerApiException ex = new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter is required when \"pagesize\" is specified");
-                ex.setCSErrorCode(CSExceptionErrorCode.getCSErrCode(ex.getClass().getName()));
-            	throw ex;
-            } else if (pageSize == null && (unpackedParams.get(ApiConstants.PAGE) != null)) {
-                throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"pagesize\" parameter is required when \"page\" is specified");
-            }
+            ((BaseListCmd) cmd).checkPagingParameters(unpackedParams);
         }
 
-        List<Field> fields = ReflectUtil.getAllFieldsForClass(cmd.getClass(), BaseCmd.class);
-
-        for (Field field : fields) {
-            PlugService plugServiceAnnotation = field.getAnnotation(PlugService.class);
-            if(plugServiceAnnotation != null){
-                plugService(field, cmd);
-            }
+        ApiCommandBinding binding = ApiCommandBinding.getBinding(cmd.getClass());
+        for (Field field : binding.getPluggedServices()) {
+            plugService(field, cmd);
+        }
 
-            Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
-            if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
-                continue;
-            }
+        for (ApiCommandBinding.ParameterBinding parameterBinding : binding.getParameters()) {
+            Field field = parameterBinding.getField();
+            Parameter parameterAnnotation = parameterBinding.getParameter();
 
             //TODO: Annotate @Validate on API Cmd classes, FIXME how to process Validate
-            Validate validateAnnotation = field.getAnnotation(Validate.class);
             Object paramObj = unpackedParams.get(parameterAnnotation.name());
             if (paramObj == null) {
                 if (parameterAnnotation.required()) {
@@ -216,7 +199,7 @@ public class ApiDispatcher {
 
             // marshall the parameter into the correct type and set the field value
             try {
-                setFieldValue(field, cmd, paramObj, parameterAnnotation);
+                setFieldValue(parameterBinding, cmd, paramObj);
             } catch (IllegalArgumentException argEx) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " + parameterAnnotation.name());
@@ -242,7 +225,7 @@ public class ApiDispatcher {
 
             //check access on the resource this field points to
 	        try {
-                ACL checkAccess = field.getAnnotation(ACL.class);
+                ACL checkAccess = parameterBinding.getAcl();
                 CommandType fieldType = parameterAnnotation.type();
 
                 if (checkAccess != null) {
@@ -254,8 +237,8 @@ public class ApiDispatcher {
                     //for maps, specify access to be checkd on key or value.
 
                     // find the controlled entity DBid by uuid
-                    if (parameterAnnotation.entityType() != null) {
-                        Class<?>[] entityList = parameterAnnotation.entityType()[0].getAnnotation(EntityReference.class).value();
+                    Class<?>[] entityList = parameterBinding.getEntities();
+                    if (entityList != null) {
 
                         for (Class entity : entityList) {
                             // Check if the parameter type is a single
@@ -328,8 +311,9 @@ public class ApiDispatcher {
 
     }
 
-    private static Long translateUuidToInternalId(String uuid, Parameter annotation)
+    private static Long translateUuidToInternalId(String uuid, ApiCommandBinding.ParameterBinding binding)
     {
+        Parameter annotation = binding.getParameter();
         if (uuid.equals("-1")) {
             // FIXME: This is to handle a lot of hardcoded special cases where -1 is sent
             // APITODO: Find and get rid of all hardcoded params in API Cmds and service layer
@@ -339,7 +323,7 @@ public class ApiDispatcher {
         // If annotation's empty, the cmd existed before 3.x try conversion to long
         boolean isPre3x = annotation.since().isEmpty();
         // Match against Java's UUID regex to check if input is uuid string
-        boolean isUuid = uuid.matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+        boolean isUuid = UUID_PATTERN.matcher(uuid).matches();
         // Enforce that it's uuid for newly added apis from version 3.x
         if (!isPre3x && !isUuid)
             return null;
@@ -355,7 +339,10 @@ public class ApiDispatcher {
         }
         // There may be multiple entities defined on the @EntityReference of a Response.class
         // UUID CommandType would expect only one entityType, so use the first entityType
-        Class<?>[] entities = annotation.entityType()[0].getAnnotation(EntityReference.class).value();
+        Class<?>[] entities = binding.getEntities();
+        if (entities == null) {
+            throw new CloudRuntimeException("Parameter " + annotation.name() + " has no entity type to look up uuid " + uuid);
+        }
         // Go through each entity which is an interface to a VO class and get a VO object
         // Try to getId() for the object using reflection, break on first non-null value
         for (Class<?> entity: entities) {
@@ -386,9 +373,10 @@ public class ApiDispatcher {
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
-    private static void setFieldValue(Field field, BaseCmd cmdObj, Object paramObj, Parameter annotation) throws IllegalArgumentException, ParseException {
+    private static void setFieldValue(ApiCommandBinding.ParameterBinding binding, BaseCmd cmdObj, Object paramObj) throws IllegalArgumentException, ParseException {
+        Field field = binding.getField();
+        Parameter annotation = binding.getParameter();
         try {
-            field.setAccessible(true);
             CommandType fieldType = annotation.type();
             switch (fieldType) {
             case BOOLEAN:
@@ -454,7 +442,7 @@ public class ApiDispatcher {
                             case UUID:
                                 if (token.isEmpty())
                                     break;
-                                Long internalId = translateUuidToInternalId(token, annotation);
+                                Long internalId = translateUuidToInternalId(token, binding);
                                 listParam.add(internalId);
                                 break;
                             case LONG: {
@@ -473,7 +461,7 @@ public class ApiDispatcher {
             case UUID:
                 if (paramObj.toString().isEmpty())
                     break;
-                Long internalId = translateUuidToInternalId(paramObj.toString(), annotation);
+                Long internalId = translateUuidToInternalId(paramObj.toString(), binding);
                 field.set(cmdObj, internalId);
                 break;
             case LONG:
@@ -0,0 +1,892 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.ParseException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpDateGenerator;
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.StackMaid;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Non-blocking HTTP/1.1 front end of the integration api port.  A single
+ * selector thread accepts the connections, parses the requests and writes
+ * the responses, so idle and slow clients do not hold a thread.  Requests
+ * are handed to ApiServer.handle() on a fixed pool of workers with a bounded
+ * queue; a request that finds all workers busy and the queue full is
+ * answered with 503 right away.
+ * 
+ * Connections are kept alive.  Requests pipelined on a connection are
+ * handled one at a time, in order: the next request is only parsed once the
+ * response to the previous one is queued for writing, and the connection is
+ * not read from in between.  The worker writes the response body in slices
+ * that the selector thread sends as they come: a body that fits in one
+ * slice is sent with a Content-Length, a longer one is sent chunked, and
+ * the worker waits while a connection has MAX_PENDING_SLICES slices left to
+ * send, so a large response never sits in memory as a whole.
+ */
+public class ApiHttpListener extends StandardMBean implements ApiHttpListenerMBean, Runnable {
+    private static final Logger s_logger = Logger.getLogger(ApiHttpListener.class);
+
+    // Context attribute holding the InetAddress of the client.
+    public static final String REMOTE_ADDRESS = "api.remote.address";
+
+    private static final String SERVER = "HttpComponents/1.1";
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final long IDLE_TIMEOUT = 30000;
+    private static final int SLICE_SIZE = 16 * 1024;
+    private static final int MAX_PENDING_SLICES = 8;
+    private static final byte[] HEADER_END = new byte[] { '\r', '\n', '\r', '\n' };
+    private static final byte[] CONTINUE = toBytes("HTTP/1.1 100 Continue\r\n\r\n");
+    private static final byte[] CRLF = toBytes("\r\n");
+    private static final byte[] LAST_CHUNK = toBytes("0\r\n\r\n");
+
+    private final ApiServer _apiServer;
+    private final int _workers;
+    private final int _queueSize;
+    private final ThreadPoolExecutor _executor;
+    private final HttpDateGenerator _dateGenerator = new HttpDateGenerator();
+
+    private Selector _selector;
+    private ServerSocketChannel _serverChannel;
+    private Thread _thread;
+    private volatile boolean _running;
+    private int _port;
+
+    // Only touched by the selector thread.
+    private final Set<Connection> _connections = new HashSet<Connection>();
+    private long _lastIdleCheck;
+
+    // Response slices written by the workers, waiting for the selector thread.
+    private final Queue<Completion> _completions = new ConcurrentLinkedQueue<Completion>();
+
+    private volatile int _openConnections;
+    private final AtomicLong _acceptedConnections = new AtomicLong();
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _rejectedRequests = new AtomicLong();
+
+    private static class Connection {
+        final SocketChannel _channel;
+        final InetAddress _remoteAddress;
+        SelectionKey _key;
+        byte[] _in = new byte[INITIAL_BUFFER_SIZE];
+        int _inLength;
+        final LinkedList<Output> _out = new LinkedList<Output>();
+        // slices a worker may queue before the selector thread sent them
+        final Semaphore _slices = new Semaphore(MAX_PENDING_SLICES);
+        volatile boolean _closed;
+        boolean _busy;
+        boolean _continueSent;
+        boolean _inputClosed;
+        boolean _closeAfterWrite;
+        long _lastActive;
+
+        Connection(SocketChannel channel) {
+            _channel = channel;
+            _remoteAddress = channel.socket().getInetAddress();
+            _lastActive = System.currentTimeMillis();
+        }
+    }
+
+    private static class Request {
+        final HttpRequest _request;
+        final boolean _keepAlive;
+        final String _command;
+        final String _responseType;
+        final long _received = System.currentTimeMillis();
+
+        Request(HttpRequest request, boolean keepAlive, String command, String responseType) {
+            _request = request;
+            _keepAlive = keepAlive;
+            _command = command;
+            _responseType = responseType;
+        }
+    }
+
+    private static class Output {
+        final ByteBuffer _buffer;
+        // holds one of the slice permits of the connection until sent
+        final boolean _slice;
+
+        Output(ByteBuffer buffer, boolean slice) {
+            _buffer = buffer;
+            _slice = slice;
+        }
+    }
+
+    private static class Completion {
+        final Connection _connection;
+        final List<Output> _outputs;
+        // the response is complete and the connection may take the next request
+        final boolean _last;
+        final boolean _close;
+
+        Completion(Connection connection, List<Output> outputs, boolean last, boolean close) {
+            _connection = connection;
+            _outputs = outputs;
+            _last = last;
+            _close = close;
+        }
+    }
+
+    // Exposes the bytes written so they can be sent without another copy.
+    private static class Body extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * @param workers number of threads handling requests.
+     * @param queueSize number of requests waiting for a worker before requests are rejected.
+     */
+    public ApiHttpListener(ApiServer apiServer, int workers, int queueSize) {
+        super(ApiHttpListenerMBean.class, false);
+        _apiServer = apiServer;
+        _workers = workers;
+        _queueSize = queueSize;
+
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>();
+        _executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, queue, new NamedThreadFactory("ApiServer"));
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void start(int port) throws IOException {
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.socket().setReuseAddress(true);
+        _serverChannel.socket().bind(new InetSocketAddress(port));
+        _serverChannel.configureBlocking(false);
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        _port = _serverChannel.socket().getLocalPort();
+
+        _running = true;
+        _thread = new Thread(this, "ApiServer-Listener");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public synchronized void stop() {
+        _running = false;
+        if (_selector != null) {
+            _selector.wakeup();
+        }
+        _executor.shutdown();
+    }
+
+    @Override
+    public void run() {
+        s_logger.info("ApiServer listening on port " + _port);
+        while (_running) {
+            try {
+                _selector.select(1000);
+
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection conn = (Connection)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                    } catch (IOException e) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("ApiServer: closing connection from " + conn._remoteAddress + " - " + e);
+                        }
+                        close(conn);
+                    }
+                }
+
+                completeRequests();
+                closeIdleConnections();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                s_logger.warn("ApiServer: I/O error in the listener of port " + _port, e);
+            } catch (RuntimeException e) {
+                s_logger.error("ApiServer: unexpected error in the listener of port " + _port, e);
+            }
+        }
+
+        for (Connection conn : new ArrayList<Connection>(_connections)) {
+            close(conn);
+        }
+        try {
+            _serverChannel.close();
+            _selector.close();
+        } catch (IOException e) {
+            s_logger.debug("ApiServer: error closing the listener of port " + _port, e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = _serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Connection conn = new Connection(channel);
+        conn._key = channel.register(_selector, SelectionKey.OP_READ, conn);
+        _connections.add(conn);
+        _openConnections = _connections.size();
+        _acceptedConnections.incrementAndGet();
+    }
+
+    private void read(Connection conn) throws IOException {
+        if (conn._inLength == conn._in.length) {
+            byte[] in = new byte[Math.min(conn._in.length * 2, MAX_HEADER_SIZE + HEADER_END.length + MAX_BODY_SIZE)];
+            System.arraycopy(conn._in, 0, in, 0, conn._inLength);
+            conn._in = in;
+        }
+
+        int count = conn._channel.read(ByteBuffer.wrap(conn._in, conn._inLength, conn._in.length - conn._inLength));
+        if (count < 0) {
+            conn._inputClosed = true;
+        } else {
+            conn._inLength += count;
+            conn._lastActive = System.currentTimeMillis();
+        }
+
+        processInput(conn);
+    }
+
+    private void write(Connection conn) throws IOException {
+        while (!conn._out.isEmpty()) {
+            Output output = conn._out.getFirst();
+            conn._channel.write(output._buffer);
+            if (output._buffer.hasRemaining()) {
+                break;
+            }
+            conn._out.removeFirst();
+            if (output._slice) {
+                conn._slices.release();
+            }
+        }
+        conn._lastActive = System.currentTimeMillis();
+
+        if (conn._out.isEmpty() && (conn._closeAfterWrite || (conn._inputClosed && !conn._busy))) {
+            close(conn);
+            return;
+        }
+        updateInterest(conn);
+    }
+
+    /**
+     * Starts on the requests of the connection that are fully read, until
+     * one of them is handed to a worker.
+     */
+    private void processInput(Connection conn) throws IOException {
+        while (!conn._busy && !conn._closeAfterWrite) {
+            Request request = parse(conn);
+            if (request == null) {
+                break;
+            }
+            dispatch(conn, request);
+        }
+
+        if (conn._inputClosed && !conn._busy && conn._out.isEmpty()) {
+            close(conn);
+            return;
+        }
+        updateInterest(conn);
+    }
+
+    private void updateInterest(Connection conn) {
+        if (!conn._key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (!conn._busy && !conn._inputClosed && !conn._closeAfterWrite) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!conn._out.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        conn._key.interestOps(ops);
+    }
+
+    /**
+     * @return the next request of the connection or null if it is not fully
+     *         read yet or is malformed, in which case an error is queued.
+     */
+    private Request parse(Connection conn) throws IOException {
+        int headerEnd = indexOf(conn._in, conn._inLength, HEADER_END);
+        if (headerEnd < 0) {
+            if (conn._inLength >= MAX_HEADER_SIZE) {
+                sendError(conn, HttpStatus.SC_REQUEST_TOO_LONG, "Request header too large");
+            }
+            return null;
+        }
+
+        RequestLine requestLine;
+        List<Header> headers = new ArrayList<Header>();
+        try {
+            String[] lines = new String(conn._in, 0, headerEnd, "ISO-8859-1").split("\r\n");
+            int first = 0;
+            while (first < lines.length - 1 && lines[first].length() == 0) {
+                first++;
+            }
+            requestLine = BasicLineParser.parseRequestLine(lines[first], null);
+            for (int i = first + 1; i < lines.length; i++) {
+                headers.add(BasicLineParser.parseHeader(lines[i], null));
+            }
+        } catch (ParseException e) {
+            sendError(conn, HttpStatus.SC_BAD_REQUEST, "Malformed request");
+            return null;
+        }
+
+        if (getHeader(headers, "Transfer-Encoding") != null) {
+            sendError(conn, HttpStatus.SC_LENGTH_REQUIRED, "Request body must have a Content-Length");
+            return null;
+        }
+        int contentLength = 0;
+        String length = getHeader(headers, "Content-Length");
+        if (length != null) {
+            try {
+                contentLength = Integer.parseInt(length.trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            if (contentLength < 0) {
+                sendError(conn, HttpStatus.SC_BAD_REQUEST, "Invalid Content-Length");
+                return null;
+            }
+            if (contentLength > MAX_BODY_SIZE) {
+                sendError(conn, HttpStatus.SC_REQUEST_TOO_LONG, "Request body too large");
+                return null;
+            }
+        }
+
+        int requestEnd = headerEnd + HEADER_END.length + contentLength;
+        if (conn._inLength < requestEnd) {
+            String expect = getHeader(headers, "Expect");
+            if (expect != null && expect.equalsIgnoreCase("100-continue") && !conn._continueSent) {
+                conn._out.add(new Output(ByteBuffer.wrap(CONTINUE), false));
+                conn._continueSent = true;
+            }
+            return null;
+        }
+
+        HttpRequest request;
+        if (contentLength > 0) {
+            byte[] body = new byte[contentLength];
+            System.arraycopy(conn._in, headerEnd + HEADER_END.length, body, 0, contentLength);
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(getHeader(headers, "Content-Type"));
+            BasicHttpEntityEnclosingRequest enclosing = new BasicHttpEntityEnclosingRequest(requestLine);
+            enclosing.setEntity(entity);
+            request = enclosing;
+        } else {
+            request = new BasicHttpRequest(requestLine);
+        }
+        request.setHeaders(headers.toArray(new Header[headers.size()]));
+
+        // consume the request, pipelined requests move to the front
+        conn._inLength -= requestEnd;
+        if (conn._in.length > INITIAL_BUFFER_SIZE && conn._inLength <= INITIAL_BUFFER_SIZE) {
+            byte[] in = new byte[INITIAL_BUFFER_SIZE];
+            System.arraycopy(conn._in, requestEnd, in, 0, conn._inLength);
+            conn._in = in;
+        } else {
+            System.arraycopy(conn._in, requestEnd, conn._in, 0, conn._inLength);
+        }
+        conn._continueSent = false;
+
+        String command = null;
+        String responseType = BaseCmd.RESPONSE_TYPE_XML;
+        try {
+            for (NameValuePair param : URLEncodedUtils.parse(new URI(requestLine.getUri()), "UTF-8")) {
+                if (param.getName().equalsIgnoreCase("command")) {
+                    command = param.getValue();
+                } else if (param.getName().equalsIgnoreCase("response") && BaseCmd.RESPONSE_TYPE_JSON.equals(param.getValue())) {
+                    responseType = BaseCmd.RESPONSE_TYPE_JSON;
+                }
+            }
+        } catch (URISyntaxException e) {
+            // left to ApiServer.handle() to report
+        }
+
+        return new Request(request, isKeepAlive(requestLine.getProtocolVersion(), getHeader(headers, "Connection")), command, responseType);
+    }
+
+    private boolean isKeepAlive(ProtocolVersion version, String connection) {
+        if (version.lessEquals(HttpVersion.HTTP_1_0)) {
+            return connection != null && connection.toLowerCase().contains("keep-alive");
+        }
+        return connection == null || !connection.toLowerCase().contains("close");
+    }
+
+    private void dispatch(final Connection conn, final Request request) throws IOException {
+        _requests.incrementAndGet();
+        conn._busy = true;
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(conn, request);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            conn._busy = false;
+            _rejectedRequests.incrementAndGet();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("ApiServer: rejecting " + request._command + " from " + conn._remoteAddress + ", all workers are busy");
+            }
+
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, null);
+            String text = _apiServer.getSerializedApiError(HttpStatus.SC_SERVICE_UNAVAILABLE, "Server is busy, please retry the request later", null,
+                    request._responseType);
+            response.setEntity(toEntity(text, request._responseType));
+            response.setHeader("Retry-After", "1");
+            queueResponse(conn, response, request._keepAlive);
+            if (!request._keepAlive) {
+                conn._closeAfterWrite = true;
+            }
+        }
+    }
+
+    /**
+     * Runs on a worker.
+     */
+    private void handle(Connection conn, Request request) {
+        HttpContext context = new BasicHttpContext(null);
+        context.setAttribute(REMOTE_ADDRESS, conn._remoteAddress);
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+
+        // HTTP/1.0 clients get a long body delimited by closing the connection
+        boolean chunked = !request._request.getRequestLine().getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0);
+        ResponseStream out = new ResponseStream(conn, response, request._keepAlive, chunked);
+        try {
+            _apiServer.handle(request._request, response, context);
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.writeTo(out);
+            }
+            out.finish();
+        } catch (Exception e) {
+            if (out.isStarted()) {
+                // the client sees the body cut short
+                s_logger.warn("ApiServer: unable to send the response to " + request._request.getRequestLine() + " to " + conn._remoteAddress
+                        + " - " + e);
+                complete(new Completion(conn, new ArrayList<Output>(), true, true));
+            } else {
+                s_logger.warn("ApiServer: unable to handle " + request._request.getRequestLine() + " from " + conn._remoteAddress, e);
+                response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
+                try {
+                    new ResponseStream(conn, response, false, chunked).finish();
+                } catch (IOException ignore) {
+                    // nothing is written ahead of the head
+                }
+            }
+        } finally {
+            StackMaid.current().exitCleanup();
+        }
+
+        if (request._command != null && _apiServer.isKnownCommand(request._command)) {
+            ApiCommandStats.getStats(request._command).record(System.currentTimeMillis() - request._received,
+                    response.getStatusLine().getStatusCode() >= HttpStatus.SC_BAD_REQUEST);
+        }
+    }
+
+    private void complete(Completion completion) {
+        _completions.add(completion);
+        _selector.wakeup();
+    }
+
+    /**
+     * Body of a response written by a worker.  The body is collected in
+     * slices of SLICE_SIZE bytes and each full slice is handed to the
+     * selector thread as is, without copying it.
+     */
+    private class ResponseStream extends OutputStream {
+        private final Connection _conn;
+        private final HttpResponse _response;
+        private final boolean _chunked;
+        private boolean _keepAlive;
+        private byte[] _slice = new byte[SLICE_SIZE];
+        private int _length;
+        private boolean _started;
+
+        ResponseStream(Connection conn, HttpResponse response, boolean keepAlive, boolean chunked) {
+            _conn = conn;
+            _response = response;
+            _keepAlive = keepAlive;
+            _chunked = chunked;
+        }
+
+        /**
+         * @return true once the head of the response was handed to the
+         *         selector thread.
+         */
+        boolean isStarted() {
+            return _started;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (_length == _slice.length) {
+                sendSlice();
+            }
+            _slice[_length++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (_length == _slice.length) {
+                    sendSlice();
+                }
+                int count = Math.min(len, _slice.length - _length);
+                System.arraycopy(b, off, _slice, _length, count);
+                _length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        void finish() throws IOException {
+            List<Output> outputs = new ArrayList<Output>();
+            if (!_started) {
+                _started = true;
+                outputs.add(new Output(ByteBuffer.wrap(formatHead(_response, _keepAlive, "Content-Length: " + _length)), false));
+                if (_length > 0) {
+                    outputs.add(new Output(ByteBuffer.wrap(_slice, 0, _length), false));
+                }
+            } else {
+                if (_length > 0) {
+                    sendSlice();
+                }
+                if (_chunked) {
+                    outputs.add(new Output(ByteBuffer.wrap(LAST_CHUNK), false));
+                }
+            }
+            complete(new Completion(_conn, outputs, true, !_keepAlive));
+        }
+
+        private void sendSlice() throws IOException {
+            try {
+                if (!_conn._slices.tryAcquire(IDLE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Client is not reading the response");
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (_conn._closed) {
+                throw new IOException("Connection closed");
+            }
+
+            List<Output> outputs = new ArrayList<Output>(4);
+            if (!_started) {
+                _started = true;
+                if (!_chunked) {
+                    _keepAlive = false;
+                }
+                outputs.add(new Output(ByteBuffer.wrap(formatHead(_response, _keepAlive, _chunked ? "Transfer-Encoding: chunked" : null)), false));
+            }
+            if (_chunked) {
+                outputs.add(new Output(ByteBuffer.wrap(toBytes(Integer.toHexString(_length) + "\r\n")), false));
+            }
+            outputs.add(new Output(ByteBuffer.wrap(_slice, 0, _length), true));
+            if (_chunked) {
+                outputs.add(new Output(ByteBuffer.wrap(CRLF), false));
+            }
+            complete(new Completion(_conn, outputs, false, false));
+
+            // the selector thread owns the sent slice now
+            _slice = new byte[SLICE_SIZE];
+            _length = 0;
+        }
+    }
+
+    private void completeRequests() throws IOException {
+        Completion completion;
+        while ((completion = _completions.poll()) != null) {
+            Connection conn = completion._connection;
+            if (!conn._channel.isOpen()) {
+                continue;
+            }
+            conn._out.addAll(completion._outputs);
+            if (completion._last) {
+                conn._busy = false;
+                if (completion._close) {
+                    conn._closeAfterWrite = true;
+                }
+            }
+            try {
+                write(conn);
+                if (conn._channel.isOpen()) {
+                    processInput(conn);
+                }
+            } catch (IOException e) {
+                close(conn);
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - _lastIdleCheck < 1000) {
+            return;
+        }
+        _lastIdleCheck = now;
+
+        for (Connection conn : new ArrayList<Connection>(_connections)) {
+            if (!conn._busy && now - conn._lastActive > IDLE_TIMEOUT) {
+                close(conn);
+            }
+        }
+    }
+
+    private void close(Connection conn) {
+        // a worker waiting to queue a slice gives up
+        conn._closed = true;
+        conn._slices.release(MAX_PENDING_SLICES);
+        _connections.remove(conn);
+        _openConnections = _connections.size();
+        if (conn._key != null) {
+            conn._key.cancel();
+        }
+        try {
+            conn._channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void sendError(Connection conn, int status, String reason) throws IOException {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+        queueResponse(conn, response, false);
+        conn._closeAfterWrite = true;
+    }
+
+    private HttpEntity toEntity(String text, String responseType) throws UnsupportedEncodingException {
+        ByteArrayEntity entity = new ByteArrayEntity(text == null ? new byte[0] : text.getBytes("UTF-8"));
+        entity.setContentType(BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType) ? ApiServer.jsonContentType : "text/xml");
+        return entity;
+    }
+
+    /**
+     * Queues a response built on the selector thread, these have small
+     * bodies only.
+     */
+    private void queueResponse(Connection conn, HttpResponse response, boolean keepAlive) throws IOException {
+        Body body = new Body();
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.writeTo(body);
+        }
+        conn._out.add(new Output(ByteBuffer.wrap(formatHead(response, keepAlive, "Content-Length: " + body.size())), false));
+        conn._out.add(new Output(body.toByteBuffer(), false));
+    }
+
+    /**
+     * @param framing the header delimiting the body, null if the body ends
+     *        with the connection.
+     */
+    private byte[] formatHead(HttpResponse response, boolean keepAlive, String framing) {
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        String reason = response.getStatusLine().getReasonPhrase();
+        if (reason == null) {
+            reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(status, null);
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(clean(reason)).append("\r\n");
+        head.append("Date: ").append(_dateGenerator.getCurrentDate()).append("\r\n");
+        head.append("Server: ").append(SERVER).append("\r\n");
+        for (Header header : response.getAllHeaders()) {
+            head.append(header.getName()).append(": ").append(clean(header.getValue())).append("\r\n");
+        }
+        if (entity != null && entity.getContentType() != null) {
+            head.append("Content-Type: ").append(clean(entity.getContentType().getValue())).append("\r\n");
+        }
+        if (entity != null && entity.getContentEncoding() != null) {
+            head.append("Content-Encoding: ").append(clean(entity.getContentEncoding().getValue())).append("\r\n");
+        }
+        if (framing != null) {
+            head.append(framing).append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        return toBytes(head.toString());
+    }
+
+    // error descriptions end up in the status line
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String getHeader(List<Header> headers, String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        for (int i = 0; i <= length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void registerMBean() {
+        try {
+            JmxUtil.registerMBean("ApiServer", "Listener", this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for the api listener", e);
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return _port;
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return _openConnections;
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return _acceptedConnections.get();
+    }
+
+    @Override
+    public long getRequests() {
+        return _requests.get();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return _rejectedRequests.get();
+    }
+
+    @Override
+    public int getWorkers() {
+        return _workers;
+    }
+
+    @Override
+    public int getActiveWorkers() {
+        return _executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return _queueSize;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return _executor.getQueue().size();
+    }
+
+    @Override
+    public void reset() {
+        _acceptedConnections.set(0);
+        _requests.set(0);
+        _rejectedRequests.set(0);
+    }
+}
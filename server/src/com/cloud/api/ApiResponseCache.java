@@ -0,0 +1,229 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.db.EntityCache;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * ApiResponseCache keeps the serialized responses of the list commands whose
+ * results change rarely but which are polled all the time by the UI and by
+ * monitoring, such as listZones.  A response is cached for the account of
+ * the caller, the response type and the request parameters, so callers only
+ * ever get responses computed for their own account.
+ * 
+ * Every command has its own clustered EntityCache that is cleared, here and
+ * on the other management servers, when an event is saved for a change of
+ * what the command lists.  The time to live bounds how long a response is
+ * served through changes made without an event, such as the progress of a
+ * template download.  listHosts is not cached, nor is listZones with
+ * showcapacities: their capacity figures change with every virtual machine
+ * started or stopped.
+ */
+public class ApiResponseCache {
+    private static final Logger s_logger = Logger.getLogger(ApiResponseCache.class);
+
+    public static final String LIST_ZONES = "listZones";
+    public static final String LIST_SERVICE_OFFERINGS = "listServiceOfferings";
+    public static final String LIST_DISK_OFFERINGS = "listDiskOfferings";
+    public static final String LIST_TEMPLATES = "listTemplates";
+
+    // Prefixes of the event types that change what each command lists.
+    private static final Map<String, String[]> s_invalidatingEvents = new HashMap<String, String[]>();
+    static {
+        s_invalidatingEvents.put(LIST_ZONES, new String[] { "ZONE." });
+        s_invalidatingEvents.put(LIST_SERVICE_OFFERINGS, new String[] { "SERVICE.OFFERING." });
+        s_invalidatingEvents.put(LIST_DISK_OFFERINGS, new String[] { "DISK.OFFERING." });
+        s_invalidatingEvents.put(LIST_TEMPLATES, new String[] { "TEMPLATE." });
+    }
+
+    // Boolean request parameters that make a command list figures changing all the time.
+    private static final Map<String, String[]> s_uncachedFlags = new HashMap<String, String[]>();
+    static {
+        s_uncachedFlags.put(LIST_ZONES, new String[] { ApiConstants.SHOW_CAPACITIES });
+    }
+
+    // Request parameters that do not change the response.
+    private static final String[] s_ignoredParams = new String[] { "command", "response", "sessionkey", "apikey", "signature", "signatureversion",
+            "expires", "_", "ctxUserId", "ctxAccountId", "ctxStartEventId" };
+
+    private static final EntityCache.Weigher s_weigher = new EntityCache.Weigher() {
+        @Override
+        public int weigh(Object value) {
+            return 2 * ((String)value).length();
+        }
+    };
+
+    private static volatile Map<String, ResponseCache> s_caches = new HashMap<String, ResponseCache>();
+
+    /**
+     * EntityCache that counts the times it was cleared so that a response
+     * computed while the cache was cleared is not put into it.
+     */
+    private static class ResponseCache extends EntityCache {
+        private long _generation;
+
+        ResponseCache(String command, int maxEntries, long maxBytes, long ttl) {
+            super("ApiResponse." + command, String.class, maxEntries, maxBytes, ttl, 0, EntityCache.Eviction.LRU, true, s_weigher);
+        }
+
+        synchronized long getGeneration() {
+            return _generation;
+        }
+
+        synchronized void put(String key, String response, long generation) {
+            if (generation == _generation) {
+                put(key, response);
+            }
+        }
+
+        @Override
+        public synchronized void clearLocal() {
+            _generation++;
+            super.clearLocal();
+        }
+    }
+
+    /**
+     * @param ttl seconds a response is served for, 0 or less disables the cache.
+     * @param maxEntries maximum number of responses cached for each command.
+     * @param maxBytes maximum estimated size of the responses cached for each command.
+     */
+    public static synchronized void configure(int ttl, int maxEntries, long maxBytes) {
+        Map<String, ResponseCache> caches = new HashMap<String, ResponseCache>();
+        if (ttl > 0 && maxEntries > 0) {
+            for (String command : s_invalidatingEvents.keySet()) {
+                caches.put(command, new ResponseCache(command, maxEntries, maxBytes, ttl * 1000L));
+            }
+            s_logger.info("Caching the responses of " + caches.keySet() + " for " + ttl + " seconds");
+        }
+        s_caches = caches;
+    }
+
+    public static boolean isCached(String command) {
+        return s_caches.containsKey(command);
+    }
+
+    /**
+     * @return the key of the response to the request, or null if the response is not cached.
+     */
+    public static String getKey(String command, long callerAccountId, String responseType, Map<String, String> params) {
+        if (!isCached(command)) {
+            return null;
+        }
+
+        // Parameter names are case insensitive, so are their positions in the key.
+        TreeMap<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!isIgnored(param.getKey())) {
+                sorted.put(param.getKey().toLowerCase(), param.getValue());
+            }
+        }
+
+        String[] flags = s_uncachedFlags.get(command);
+        if (flags != null) {
+            for (String flag : flags) {
+                if (Boolean.parseBoolean(sorted.get(flag))) {
+                    return null;
+                }
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        key.append(callerAccountId).append('/').append(responseType);
+        for (Map.Entry<String, String> param : sorted.entrySet()) {
+            key.append('&').append(param.getKey()).append('=').append(param.getValue());
+        }
+        return key.toString();
+    }
+
+    private static boolean isIgnored(String param) {
+        for (String ignored : s_ignoredParams) {
+            if (ignored.equalsIgnoreCase(param)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the generation to pass to put() along with the response
+     *         computed after this call.
+     */
+    public static long getGeneration(String command) {
+        ResponseCache cache = s_caches.get(command);
+        return cache == null ? 0 : cache.getGeneration();
+    }
+
+    public static String get(String command, String key) {
+        ResponseCache cache = s_caches.get(command);
+        return cache == null ? null : (String)cache.get(key);
+    }
+
+    /**
+     * Caches the response unless the responses of the command were
+     * invalidated since getGeneration() returned the generation.
+     */
+    public static void put(String command, String key, String response, long generation) {
+        ResponseCache cache = s_caches.get(command);
+        if (cache != null) {
+            cache.put(key, response, generation);
+        }
+    }
+
+    /**
+     * Drops the cached responses of the command on all management servers
+     * once the current transaction ends, so that a response computed from
+     * the rows before the change was committed is not kept.
+     */
+    public static void invalidate(String command) {
+        final ResponseCache cache = s_caches.get(command);
+        if (cache != null) {
+            Transaction.runOnCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    cache.removeAll();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops the cached responses of the commands that list what changed
+     * with an event of this type.
+     */
+    public static void invalidateForEvent(String eventType) {
+        if (eventType == null || s_caches.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, String[]> entry : s_invalidatingEvents.entrySet()) {
+            for (String prefix : entry.getValue()) {
+                if (eventType.startsWith(prefix)) {
+                    invalidate(entry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+}
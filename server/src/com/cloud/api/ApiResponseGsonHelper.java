@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.api;
 
+import java.lang.reflect.Modifier;
+
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.cloudstack.api.ResponseObject;
 
@@ -24,15 +27,30 @@ import org.apache.cloudstack.api.ResponseObject;
  */
 public class ApiResponseGsonHelper {
     private static final GsonBuilder s_gBuilder;
+    private static final Gson s_gson;
 
     static {
-        s_gBuilder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-        s_gBuilder.setVersion(1.3);
-        s_gBuilder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
-        s_gBuilder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
+        s_gBuilder = createBuilder();
+        // Gson is thread safe, responses share one instead of creating one each
+        s_gson = createBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+    }
+
+    private static GsonBuilder createBuilder() {
+        GsonBuilder builder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        builder.setVersion(1.3);
+        builder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
+        builder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
+        return builder;
     }
 
     public static GsonBuilder getBuilder() {
         return s_gBuilder;
     }
+
+    /**
+     * @return the Gson used to serialize api responses, which skips transient fields.
+     */
+    public static Gson getGson() {
+        return s_gson;
+    }
 }
@@ -16,13 +16,14 @@
 // under the License.
 package com.cloud.api;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
@@ -40,10 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -64,32 +62,16 @@ import org.apache.cloudstack.api.command.user.volume.ListVolumesCmd;
 import org.apache.cloudstack.api.command.user.zone.ListZonesByCmd;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpServerConnection;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.entity.BasicHttpEntity;
-import org.apache.http.impl.DefaultHttpResponseFactory;
-import org.apache.http.impl.DefaultHttpServerConnection;
-import org.apache.http.impl.NoConnectionReuseStrategy;
-import org.apache.http.impl.SocketHttpServerConnection;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
-import org.apache.http.protocol.HttpRequestHandlerRegistry;
-import org.apache.http.protocol.HttpService;
-import org.apache.http.protocol.ResponseConnControl;
-import org.apache.http.protocol.ResponseContent;
-import org.apache.http.protocol.ResponseDate;
-import org.apache.http.protocol.ResponseServer;
 import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.api.command.admin.host.ListHostsCmd;
@@ -110,7 +92,6 @@ import com.cloud.async.AsyncCommandQueued;
 import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobManager;
 import com.cloud.async.AsyncJobVO;
-import com.cloud.cluster.StackMaid;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationVO;
 import com.cloud.configuration.dao.ConfigurationDao;
@@ -133,12 +114,12 @@ import com.cloud.user.User;
 import com.cloud.user.UserAccount;
 import com.cloud.user.UserContext;
 import com.cloud.user.UserVO;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.Adapters;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
-import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 
@@ -162,13 +143,10 @@ public class ApiServer implements HttpRequestHandler {
 
     private Account _systemAccount = null;
     private User _systemUser = null;
-    private static int _workerCount = 0;
     private static ApiServer s_instance = null;
     private static final DateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
     private static Map<String, Class<?>> _apiNameCmdClassMap = new HashMap<String, Class<?>>();
 
-    private static ExecutorService _executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ApiServer"));
-
     protected ApiServer() {
         super();
     }
@@ -219,6 +197,8 @@ public class ApiServer implements HttpRequestHandler {
                 continue;
             }
             _apiNameCmdClassMap.put(apiName, cmdClass);
+            // collect the parameter fields now rather than on the first call
+            ApiCommandBinding.getBinding(cmdClass);
         }
 
         encodeApiResponse = Boolean.valueOf(configDao.getValue(Config.EncodeApiResponse.key()));
@@ -227,9 +207,19 @@ public class ApiServer implements HttpRequestHandler {
             jsonContentType = jsonType;
         }
 
+        ApiResponseCache.configure(NumbersUtil.parseInt(configDao.getValue(Config.ApiResponseCacheTimeToLive.key()), 30),
+                NumbersUtil.parseInt(configDao.getValue(Config.ApiResponseCacheSize.key()), 500),
+                NumbersUtil.parseLong(configDao.getValue(Config.ApiResponseCacheBytes.key()), 16777216L));
+
         if (apiPort != null) {
-            ListenerThread listenerThread = new ListenerThread(this, apiPort);
-            listenerThread.start();
+            ApiHttpListener listener = new ApiHttpListener(this, NumbersUtil.parseInt(configDao.getValue(Config.IntegrationApiWorkers.key()), 150),
+                    NumbersUtil.parseInt(configDao.getValue(Config.IntegrationApiQueueSize.key()), 1000));
+            try {
+                listener.start(apiPort);
+                listener.registerMBean();
+            } catch (IOException e) {
+                s_logger.error("error initializing api server", e);
+            }
         }
     }
 
@@ -242,9 +232,8 @@ public class ApiServer implements HttpRequestHandler {
 
         // Create StringBuffer to log information in access log
         StringBuffer sb = new StringBuffer();
-        HttpServerConnection connObj = (HttpServerConnection) context.getAttribute("http.connection");
-        if (connObj instanceof SocketHttpServerConnection) {
-            InetAddress remoteAddr = ((SocketHttpServerConnection) connObj).getRemoteAddress();
+        InetAddress remoteAddr = (InetAddress) context.getAttribute(ApiHttpListener.REMOTE_ADDRESS);
+        if (remoteAddr != null) {
             sb.append(remoteAddr.toString() + " -- ");
         }
         sb.append(StringUtils.cleanString(request.getRequestLine().toString()));
@@ -280,10 +269,16 @@ public class ApiServer implements HttpRequestHandler {
                 // always trust commands from API port, user context will always be UID_SYSTEM/ACCOUNT_ID_SYSTEM
                 UserContext.registerContext(_systemUser.getId(), _systemAccount, null, true);
                 sb.insert(0, "(userId=" + User.UID_SYSTEM + " accountId=" + Account.ACCOUNT_ID_SYSTEM + " sessionId=" + null + ") ");
-                String responseText = handleRequest(parameterMap, true, responseType, sb);
-                sb.append(" 200 " + ((responseText == null) ? 0 : responseText.length()));
+                Object responseObj = handleStreamableRequest(parameterMap, true, responseType, sb);
+                if (responseObj instanceof ResponseObject) {
+                    sb.append(" 200 streamed");
+                    writeStreamedResponse(response, ((String[]) parameterMap.get("command"))[0], (ResponseObject) responseObj, responseType);
+                } else {
+                    String responseText = (String) responseObj;
+                    sb.append(" 200 " + ((responseText == null) ? 0 : responseText.length()));
 
-                writeResponse(response, responseText, HttpStatus.SC_OK, responseType, null);
+                    writeResponse(response, responseText, HttpStatus.SC_OK, responseType, null);
+                }
             } catch (ServerApiException se) {
                 String responseText = getSerializedApiError(se, parameterMap, responseType);
                 writeResponse(response, responseText, se.getErrorCode().getHttpCode(), responseType, se.getDescription());
@@ -301,7 +296,22 @@ public class ApiServer implements HttpRequestHandler {
 
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
-        String response = null;
+        return (String) handleRequest(params, decode, responseType, auditTrailSb, false);
+    }
+
+    /**
+     * Handles the request like handleRequest, except that the ListResponse of a list command is returned
+     * unserialized, for the caller to stream with ApiResponseSerializer.writeSerializedString. Any other
+     * response is returned serialized, as a String.
+     */
+    @SuppressWarnings("rawtypes")
+    public Object handleStreamableRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
+        return handleRequest(params, decode, responseType, auditTrailSb, true);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private Object handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb, boolean stream) throws ServerApiException {
+        Object response = null;
         String[] command = null;
         try {
             command = (String[]) params.get("command");
@@ -350,7 +360,7 @@ public class ApiServer implements HttpRequestHandler {
                     cmdObj.setFullUrlParams(paramMap);
                     cmdObj.setResponseType(responseType);
                     // This is where the command is either serialized, or directly dispatched
-                    response = queueCommand(cmdObj, paramMap);
+                    response = queueCommand(cmdObj, paramMap, stream);
                     buildAuditTrail(auditTrailSb, command[0], response);
                 } else {
                     if (!command[0].equalsIgnoreCase("login") && !command[0].equalsIgnoreCase("logout")) {
@@ -432,7 +442,7 @@ public class ApiServer implements HttpRequestHandler {
         return response;
     }
 
-    private String queueCommand(BaseCmd cmdObj, Map<String, String> params) throws Exception {
+    private Object queueCommand(BaseCmd cmdObj, Map<String, String> params, boolean stream) throws Exception {
         UserContext ctx = UserContext.current();
         Long callerUserId = ctx.getCallerUserId();
         Account caller = ctx.getCaller();
@@ -449,7 +459,7 @@ public class ApiServer implements HttpRequestHandler {
                 _dispatcher.dispatchCreateCmd(createCmd, params);
                 objectId = createCmd.getEntityId();
                 objectUuid = createCmd.getEntityUuid();
-                params.put("id", objectId.toString());
+                createCmd.addEntityParameters(params);
             } else {
                 ApiDispatcher.processParameters(cmdObj, params);
             }
@@ -499,6 +509,17 @@ public class ApiServer implements HttpRequestHandler {
             SerializationContext.current().setUuidTranslation(true);
             return ApiResponseSerializer.toSerializedString(asyncCmd.getResponse(jobId), asyncCmd.getResponseType());
         } else {
+            String cacheCommand = cmdObj.getClass().getAnnotation(APICommand.class).name();
+            String cacheKey = ApiResponseCache.getKey(cacheCommand, caller.getId(), cmdObj.getResponseType(), params);
+            long cacheGeneration = 0;
+            if (cacheKey != null) {
+                String cached = ApiResponseCache.get(cacheCommand, cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+                cacheGeneration = ApiResponseCache.getGeneration(cacheCommand);
+            }
+
             _dispatcher.dispatch(cmdObj, params);
 
             // if the command is of the listXXXCommand, we will need to also return the
@@ -525,7 +546,16 @@ public class ApiServer implements HttpRequestHandler {
             }
 
             SerializationContext.current().setUuidTranslation(true);
-            return ApiResponseSerializer.toSerializedString((ResponseObject) cmdObj.getResponseObject(), cmdObj.getResponseType());
+            ResponseObject responseObject = (ResponseObject) cmdObj.getResponseObject();
+            if (cacheKey != null) {
+                String response = ApiResponseSerializer.toSerializedString(responseObject, cmdObj.getResponseType());
+                ApiResponseCache.put(cacheCommand, cacheKey, response, cacheGeneration);
+                return response;
+            }
+            if (stream && responseObject instanceof ListResponse) {
+                return responseObject;
+            }
+            return ApiResponseSerializer.toSerializedString(responseObject, cmdObj.getResponseType());
         }
     }
 
@@ -566,15 +596,19 @@ public class ApiServer implements HttpRequestHandler {
         }
     }
 
-    private void buildAuditTrail(StringBuffer auditTrailSb, String command, String result) {
+    private void buildAuditTrail(StringBuffer auditTrailSb, String command, Object result) {
         if (result == null) {
             return;
         }
         auditTrailSb.append(" " + HttpServletResponse.SC_OK + " ");
         if (command.equals("createSSHKeyPair")){
             auditTrailSb.append("This result was not logged because it contains sensitive data.");
+        } else if (result instanceof ListResponse) {
+            // a streamed response is never held as a string, log its size only
+            List<?> responses = ((ListResponse<?>) result).getResponses();
+            auditTrailSb.append(((ListResponse<?>) result).getResponseName() + " with " + (responses == null ? 0 : responses.size()) + " items");
         } else {
-            auditTrailSb.append(StringUtils.cleanString(result));
+            auditTrailSb.append(StringUtils.cleanString((String) result));
         }
     }
 
@@ -852,6 +886,10 @@ public class ApiServer implements HttpRequestHandler {
         return _apiNameCmdClassMap.get(cmdName);
     }
 
+    boolean isKnownCommand(String cmdName) {
+        return _apiNameCmdClassMap.containsKey(cmdName);
+    }
+
     // FIXME: rather than isError, we might was to pass in the status code to give more flexibility
     private void writeResponse(HttpResponse resp, final String responseText, final int statusCode, String responseType, String reasonPhrase) {
         try {
@@ -881,106 +919,36 @@ public class ApiServer implements HttpRequestHandler {
         }
     }
 
-    // FIXME: the following two threads are copied from
-    // http://svn.apache.org/repos/asf/httpcomponents/httpcore/trunk/httpcore/src/examples/org/apache/http/examples/ElementalHttpServer.java
-    // we have to cite a license if we are using this code directly, so we need to add the appropriate citation or
-    // modify the
-    // code to be very specific to our needs
-    static class ListenerThread extends Thread {
-        private HttpService _httpService = null;
-        private ServerSocket _serverSocket = null;
-        private HttpParams _params = null;
-
-        public ListenerThread(ApiServer requestHandler, int port) {
-            try {
-                _serverSocket = new ServerSocket(port);
-            } catch (IOException ioex) {
-                s_logger.error("error initializing api server", ioex);
-                return;
-            }
-
-            _params = new BasicHttpParams();
-            _params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 30000).setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
-                    .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false).setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
-                    .setParameter(CoreProtocolPNames.ORIGIN_SERVER, "HttpComponents/1.1");
-
-            // Set up the HTTP protocol processor
-            BasicHttpProcessor httpproc = new BasicHttpProcessor();
-            httpproc.addInterceptor(new ResponseDate());
-            httpproc.addInterceptor(new ResponseServer());
-            httpproc.addInterceptor(new ResponseContent());
-            httpproc.addInterceptor(new ResponseConnControl());
-
-            // Set up request handlers
-            HttpRequestHandlerRegistry reqistry = new HttpRequestHandlerRegistry();
-            reqistry.register("*", requestHandler);
-
-            // Set up the HTTP service
-            _httpService = new HttpService(httpproc, new NoConnectionReuseStrategy(), new DefaultHttpResponseFactory());
-            _httpService.setParams(_params);
-            _httpService.setHandlerResolver(reqistry);
-        }
+    private void writeStreamedResponse(HttpResponse resp, final String command, final ResponseObject responseObj, final String responseType) {
+        resp.setStatusCode(HttpStatus.SC_OK);
 
-        @Override
-        public void run() {
-            s_logger.info("ApiServer listening on port " + _serverSocket.getLocalPort());
-            while (!Thread.interrupted()) {
+        // the entity is written out by the http service once the request is handled
+        EntityTemplate body = new EntityTemplate(new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                AtomicInteger written = new AtomicInteger();
                 try {
-                    // Set up HTTP connection
-                    Socket socket = _serverSocket.accept();
-                    DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
-                    conn.bind(socket, _params);
-
-                    // Execute a new worker task to handle the request
-                    _executor.execute(new WorkerTask(_httpService, conn, _workerCount++));
-                } catch (InterruptedIOException ex) {
-                    break;
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+                    ApiResponseSerializer.writeSerializedString(responseObj, responseType, writer, written);
+                    writer.flush();
                 } catch (IOException e) {
-                    s_logger.error("I/O error initializing connection thread", e);
-                    break;
-                }
-            }
-        }
-    }
-
-    static class WorkerTask implements Runnable {
-        private final HttpService _httpService;
-        private final HttpServerConnection _conn;
-
-        public WorkerTask(final HttpService httpService, final HttpServerConnection conn, final int count) {
-            _httpService = httpService;
-            _conn = conn;
-        }
-
-        @Override
-        public void run() {
-            HttpContext context = new BasicHttpContext(null);
-            try {
-                while (!Thread.interrupted() && _conn.isOpen()) {
-                    try {
-                        _httpService.handleRequest(_conn, context);
-                        _conn.close();
-                    } finally {
-                        StackMaid.current().exitCleanup();
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("exception writing response of " + command + " after " + written.get() + " items: " + e);
                     }
-                }
-            } catch (ConnectionClosedException ex) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("ApiServer:  Client closed connection");
-                }
-            } catch (IOException ex) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("ApiServer:  IOException - " + ex);
-                }
-            } catch (HttpException ex) {
-                s_logger.warn("ApiServer:  Unrecoverable HTTP protocol violation" + ex);
-            } finally {
-                try {
-                    _conn.shutdown();
-                } catch (IOException ignore) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    s_logger.error("unknown exception writing api response of " + command + " after " + written.get() + " items", e);
+                    throw e;
                 }
             }
+        });
+        body.setChunked(true);
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            body.setContentType(jsonContentType);
+        } else {
+            body.setContentType("text/xml");
         }
+        resp.setEntity(body);
     }
 
     public String getSerializedApiError(int errorCode, String errorText, Map<String, Object[]> apiCommandParams, String responseType) {
@@ -22,6 +22,7 @@ import java.net.URLDecoder;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -30,9 +31,11 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.cloudstack.api.ApiErrorCode;
 import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.ResponseObject;
 import org.apache.cloudstack.api.ServerApiException;
 import org.apache.log4j.Logger;
 
+import com.cloud.api.response.ApiResponseSerializer;
 import com.cloud.cluster.StackMaid;
 import com.cloud.exception.CloudAuthenticationException;
 import com.cloud.server.ManagementServer;
@@ -307,8 +310,12 @@ public class ApiServlet extends HttpServlet {
                 auditTrailSb.insert(0, "(userId=" + UserContext.current().getCallerUserId() + " accountId="
                         + UserContext.current().getCaller().getId() + " sessionId=" + (session != null ? session.getId() : null) + ")");
 
-                String response = _apiServer.handleRequest(params, false, responseType, auditTrailSb);
-                writeResponse(resp, response != null ? response : "", HttpServletResponse.SC_OK, responseType);
+                Object response = _apiServer.handleStreamableRequest(params, false, responseType, auditTrailSb);
+                if (response instanceof ResponseObject) {
+                    writeStreamedResponse(resp, ((String[]) params.get("command"))[0], (ResponseObject) response, responseType);
+                } else {
+                    writeResponse(resp, response != null ? (String) response : "", HttpServletResponse.SC_OK, responseType);
+                }
             } else {
                 if (session != null) {
                     try {
@@ -372,6 +379,30 @@ public class ApiServlet extends HttpServlet {
         }
     }
 
+    private void writeStreamedResponse(HttpServletResponse resp, String command, ResponseObject response, String responseType) {
+        AtomicInteger written = new AtomicInteger();
+        try {
+            if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+                resp.setContentType(ApiServer.jsonContentType + "; charset=UTF-8");
+            } else {
+                resp.setContentType("text/xml; charset=UTF-8");
+            }
+
+            resp.setStatus(HttpServletResponse.SC_OK);
+            // the container sends the body chunked as its buffer fills up
+            ApiResponseSerializer.writeSerializedString(response, responseType, resp.getWriter(), written);
+        } catch (IOException ioex) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("exception writing response of " + command + " after " + written.get() + " items: " + ioex);
+            }
+        } catch (Exception ex) {
+            if (!(ex instanceof IllegalStateException)) {
+                // the status and the items written so far are already sent
+                s_logger.error("unknown exception writing api response of " + command + " after " + written.get() + " items", ex);
+            }
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     private String getLoginSuccessResponse(HttpSession session, String responseType) {
         StringBuffer sb = new StringBuffer();
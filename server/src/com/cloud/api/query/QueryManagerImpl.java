@@ -17,7 +17,10 @@
 package com.cloud.api.query;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -86,6 +89,7 @@ import com.cloud.api.query.dao.UserVmJoinDao;
 import com.cloud.api.query.dao.VolumeJoinDao;
 import com.cloud.api.query.vo.AccountJoinVO;
 import com.cloud.api.query.vo.AsyncJobJoinVO;
+import com.cloud.api.query.vo.BaseViewVO;
 import com.cloud.api.query.vo.DataCenterJoinVO;
 import com.cloud.api.query.vo.DiskOfferingJoinVO;
 import com.cloud.api.query.vo.DomainRouterJoinVO;
@@ -140,6 +144,7 @@ import com.cloud.utils.Ternary;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.component.Manager;
 import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
@@ -379,7 +384,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             sc.setParameters("state", state);
         }
 
-        return _userAccountJoinDao.searchAndCount(sc, searchFilter);
+        return searchPage(_userAccountJoinDao, UserAccountJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
     }
 
     @Override
@@ -617,7 +622,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             sc.setParameters("name", "%" + name + "%");
         }
 
-        return _vmGroupJoinDao.searchAndCount(sc, searchFilter);
+        return searchPage(_vmGroupJoinDao, InstanceGroupJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
     }
 
     @Override
@@ -656,6 +661,8 @@ public class QueryManagerImpl implements QueryService, Manager {
         c.addCriteria(Criteria.TEMPLATE_ID, cmd.getTemplateId());
         c.addCriteria(Criteria.ISO_ID, cmd.getIsoId());
         c.addCriteria(Criteria.VPC_ID, cmd.getVpcId());
+        c.addCriteria(Criteria.START_AFTER, cmd.getStartAfter());
+        c.addCriteria(Criteria.SKIP_COUNT, cmd.isSkipCount());
 
         if (domainId != null) {
             c.addCriteria(Criteria.DOMAINID, domainId);
@@ -849,7 +856,9 @@ public class QueryManagerImpl implements QueryService, Manager {
         }
 
         // search vm details by ids
-        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair =  _userVmJoinDao.searchAndCount(sc, searchFilter);
+        String startAfter = (String) c.getCriteria(Criteria.START_AFTER);
+        Pair<List<UserVmJoinVO>, Integer> uniqueVmPair = searchPage(_userVmJoinDao, UserVmJoinVO.class, sc, searchFilter,
+                startAfter, Boolean.TRUE.equals(c.getCriteria(Criteria.SKIP_COUNT)));
         Integer count = uniqueVmPair.second();
         if ( count.intValue() == 0 ){
             // handle empty result cases
@@ -862,6 +871,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             vmIds[i++] = v.getId();
         }
         List<UserVmJoinVO> vms = _userVmJoinDao.searchByIds(vmIds);
+        sortByPage(vms, uniqueVms);
         return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
     }
 
@@ -1088,7 +1098,7 @@ public class QueryManagerImpl implements QueryService, Manager {
         }
 
         // search VR details by ids
-        Pair<List<DomainRouterJoinVO>, Integer> uniqueVrPair = _routerJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<DomainRouterJoinVO>, Integer> uniqueVrPair = searchPage(_routerJoinDao, DomainRouterJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
         Integer count = uniqueVrPair.second();
         if (count.intValue() == 0) {
             // empty result
@@ -1101,6 +1111,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             vrIds[i++] = v.getId();
         }
         List<DomainRouterJoinVO> vrs = _routerJoinDao.searchByIds(vrIds);
+        sortByPage(vrs, uniqueVrs);
         return new Pair<List<DomainRouterJoinVO>, Integer>(vrs, count);
     }
 
@@ -1481,7 +1492,7 @@ public class QueryManagerImpl implements QueryService, Manager {
         }
 
         // search host details by ids
-        Pair<List<HostJoinVO>, Integer> uniqueHostPair =  _hostJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<HostJoinVO>, Integer> uniqueHostPair = searchPage(_hostJoinDao, HostJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
         Integer count = uniqueHostPair.second();
         if ( count.intValue() == 0 ){
             // handle empty result cases
@@ -1494,6 +1505,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             hostIds[i++] = v.getId();
         }
         List<HostJoinVO> hosts = _hostJoinDao.searchByIds(hostIds);
+        sortByPage(hosts, uniqueHosts);
         return new Pair<List<HostJoinVO>, Integer>(hosts, count);
 
     }
@@ -1619,7 +1631,7 @@ public class QueryManagerImpl implements QueryService, Manager {
         sc.setParameters("state", Volume.State.Destroy);
 
         // search Volume details by ids
-        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = _volumeJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<VolumeJoinVO>, Integer> uniqueVolPair = searchPage(_volumeJoinDao, VolumeJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
         Integer count = uniqueVolPair.second();
         if (count.intValue() == 0) {
             // empty result
@@ -1632,6 +1644,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             vrIds[i++] = v.getId();
         }
         List<VolumeJoinVO> vrs = _volumeJoinDao.searchByIds(vrIds);
+        sortByPage(vrs, uniqueVols);
         return new Pair<List<VolumeJoinVO>, Integer>(vrs, count);
     }
 
@@ -1758,7 +1771,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             }
         }
 
-        return _accountJoinDao.searchAndCount(sc, searchFilter);
+        return searchPage(_accountJoinDao, AccountJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
     }
 
     @Override
@@ -1837,7 +1850,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             sc.addAnd("created", SearchCriteria.Op.GTEQ, startDate);
         }
 
-        return _jobJoinDao.searchAndCount(sc, searchFilter);
+        return searchPage(_jobJoinDao, AsyncJobJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
     }
 
     @Override
@@ -1913,7 +1926,7 @@ public class QueryManagerImpl implements QueryService, Manager {
         }
 
         // search Pool details by ids
-        Pair<List<StoragePoolJoinVO>, Integer> uniquePoolPair = _poolJoinDao.searchAndCount(sc, searchFilter);
+        Pair<List<StoragePoolJoinVO>, Integer> uniquePoolPair = searchPage(_poolJoinDao, StoragePoolJoinVO.class, sc, searchFilter, cmd.getStartAfter(), cmd.isSkipCount());
         Integer count = uniquePoolPair.second();
         if (count.intValue() == 0) {
             // empty result
@@ -1926,6 +1939,7 @@ public class QueryManagerImpl implements QueryService, Manager {
             vrIds[i++] = v.getId();
         }
         List<StoragePoolJoinVO> vrs = _poolJoinDao.searchByIds(vrIds);
+        sortByPage(vrs, uniquePools);
         return new Pair<List<StoragePoolJoinVO>, Integer>(vrs, count);
 
     }
@@ -2351,5 +2365,57 @@ public class QueryManagerImpl implements QueryService, Manager {
         return false;
     }
 
+    /**
+     * Searches one page of a list view. With startAfter the page is read by id instead of by
+     * offset: it holds the rows with an id greater than that of the resource the token names, in
+     * id order, so a deep page costs no more than the first one, and the count is that of the
+     * resources after the token. The token is looked up within the caller's criteria, so a
+     * resource the caller can't list is reported the same way as one that doesn't exist. With
+     * skipCount the count query is skipped and the count is the number of rows returned.
+     */
+    static <T extends BaseViewVO> Pair<List<T>, Integer> searchPage(GenericDao<T, Long> dao, Class<T> clazz, SearchCriteria<T> sc, Filter filter,
+            String startAfter, boolean skipCount) {
+        if (startAfter != null) {
+            sc.setMatch("uuid", startAfter);
+            List<T> after = dao.search(sc, new Filter(clazz, "id", true, 0L, 1L));
+            sc.setMatch("uuid", null);
+            if (after.isEmpty()) {
+                throw new InvalidParameterValueException("Unable to find the resource to list after, startafter=" + startAfter);
+            }
+            sc.addAnd("id", Op.GT, after.get(0).getId());
+
+            Long limit = filter != null ? filter.getLimit() : null;
+            filter = new Filter(clazz, "id", true, limit != null ? 0L : null, limit);
+        }
+
+        if (skipCount) {
+            List<T> objects = dao.search(sc, filter);
+            return new Pair<List<T>, Integer>(objects, objects.size());
+        }
+        return dao.searchAndCount(sc, filter);
+    }
 
+    /**
+     * Puts the detail rows of a two step search in the order of the page they were read for,
+     * which the search by ids doesn't keep, so the last resource listed is the last one of the
+     * page and the one to start the next page after.
+     */
+    static <T extends BaseViewVO> void sortByPage(List<T> rows, List<T> page) {
+        final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+        for (T row : page) {
+            if (!positions.containsKey(row.getId())) {
+                positions.put(row.getId(), positions.size());
+            }
+        }
+        Collections.sort(rows, new Comparator<T>() {
+            @Override
+            public int compare(T v1, T v2) {
+                Integer p1 = positions.get(v1.getId());
+                Integer p2 = positions.get(v2.getId());
+                int i1 = p1 != null ? p1.intValue() : Integer.MAX_VALUE;
+                int i2 = p2 != null ? p2.intValue() : Integer.MAX_VALUE;
+                return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+            }
+        });
+    }
 }
@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.api.response;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -24,6 +27,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,6 +61,14 @@ public class ApiResponseSerializer {
         }
     }
 
+    // for test purpose only, the version is otherwise read from the management server
+    static String s_version;
+
+    private static String getVersion() {
+        return s_version != null ? s_version : ApiDBUtils.getVersion();
+    }
+
+    private static final ConcurrentHashMap<Class<?>, Field[]> s_serializedFields = new ConcurrentHashMap<Class<?>, Field[]>();
     private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
 
     public static String unescape(String escaped) {
@@ -69,71 +82,123 @@ public class ApiResponseSerializer {
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            StringWriter out = new StringWriter();
+            try {
+                writeJSON(result, out);
+            } catch (IOException e) {
+                throw new CloudRuntimeException("Unable to serialize response " + result.getResponseName(), e);
+            }
+            return out.toString();
+        }
+        return null;
+    }
 
-            StringBuilder sb = new StringBuilder();
+    /**
+     * Writes the serialized response to out one list item at a time, so a
+     * large list response is never held in memory as a whole.
+     */
+    public static void writeSerializedString(ResponseObject result, String responseType, Writer out) throws IOException {
+        writeSerializedString(result, responseType, out, new AtomicInteger());
+    }
 
-            sb.append("{ \"").append(result.getResponseName()).append("\" : ");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
-                Integer count = ((ListResponse) result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
-                if (nonZeroCount) {
-                    sb.append("{ \"").append(ApiConstants.COUNT).append("\":").append(count);
-                }
+    /**
+     * @param written counts the list items written to out so far, to tell
+     *        how much of the response went out when writing it fails.
+     */
+    public static void writeSerializedString(ResponseObject result, String responseType, Writer out, AtomicInteger written) throws IOException {
+        s_logger.trace("===Serializing Response===");
+        if (BaseCmd.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
+            writeJSON(result, out, written);
+        } else {
+            writeXML(result, out, written);
+        }
+    }
 
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
+    private static void writeJSON(ResponseObject result, Writer out) throws IOException {
+        writeJSON(result, out, new AtomicInteger());
+    }
 
-                    if (nonZeroCount) {
-                        sb.append(" ,\"").append(responses.get(0).getObjectName()).append("\" : [  ").append(jsonStr);
-                    }
+    private static void writeJSON(ResponseObject result, Writer out, AtomicInteger written) throws IOException {
+        Gson gson = ApiResponseGsonHelper.getGson();
 
-                    for (int i = 1; i < ((ListResponse) result).getResponses().size(); i++) {
-                        jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(", ").append(jsonStr);
-                    }
-                    sb.append(" ] }");
-                } else  {
-                    if (!nonZeroCount){
-                        sb.append("{");
-                    }
+        out.write("{ \"" + result.getResponseName() + "\" : ");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
+            Integer count = ((ListResponse) result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            if (nonZeroCount) {
+                out.write("{ \"" + ApiConstants.COUNT + "\":" + count);
+            }
 
-                    sb.append(" }");
+            if ((responses != null) && !responses.isEmpty()) {
+                String jsonStr = gson.toJson(responses.get(0));
+                jsonStr = unescape(jsonStr);
+
+                if (nonZeroCount) {
+                    out.write(" ,\"" + responses.get(0).getObjectName() + "\" : [  ");
+                    out.write(jsonStr);
                 }
-            } else if (result instanceof SuccessResponse) {
-                sb.append("{ \"success\" : \"").append(((SuccessResponse) result).getSuccess()).append("\"} ");
-            } else if (result instanceof ExceptionResponse) {
-            	String jsonErrorText = gson.toJson((ExceptionResponse) result);
-            	jsonErrorText = unescape(jsonErrorText);
-            	sb.append(jsonErrorText);
-            } else {
-                String jsonStr = gson.toJson(result);
-                if ((jsonStr != null) && !"".equals(jsonStr)) {
+                written.incrementAndGet();
+
+                for (int i = 1; i < responses.size(); i++) {
+                    jsonStr = gson.toJson(responses.get(i));
                     jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append(" { \"").append(result.getObjectName()).append("\" : ").append(jsonStr).append(" } ");
-                    }
+                    out.write(", ");
+                    out.write(jsonStr);
+                    written.incrementAndGet();
+                }
+                out.write(" ] }");
+            } else  {
+                if (!nonZeroCount){
+                    out.write("{");
+                }
+
+                out.write(" }");
+            }
+        } else if (result instanceof SuccessResponse) {
+            out.write("{ \"success\" : \"" + ((SuccessResponse) result).getSuccess() + "\"} ");
+        } else if (result instanceof ExceptionResponse) {
+        	String jsonErrorText = gson.toJson((ExceptionResponse) result);
+        	jsonErrorText = unescape(jsonErrorText);
+        	out.write(jsonErrorText);
+        } else {
+            String jsonStr = gson.toJson(result);
+            if ((jsonStr != null) && !"".equals(jsonStr)) {
+                jsonStr = unescape(jsonStr);
+                if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse) {
+                    out.write(jsonStr);
                 } else {
-                    sb.append("{ }");
+                    out.write(" { \"" + result.getObjectName() + "\" : ");
+                    out.write(jsonStr);
+                    out.write(" } ");
                 }
+            } else {
+                out.write("{ }");
             }
-            sb.append(", \"cloudstack-version\": \"");
-            sb.append(ApiDBUtils.getVersion());
-            sb.append("\" }");
-            return sb.toString();
         }
-        return null;
+        out.write(", \"cloudstack-version\": \"");
+        out.write(getVersion());
+        out.write("\" }");
     }
 
     private static String toXMLSerializedString(ResponseObject result) {
+        StringWriter out = new StringWriter();
+        try {
+            writeXML(result, out);
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize response " + result.getResponseName(), e);
+        }
+        return out.toString();
+    }
+
+    private static void writeXML(ResponseObject result, Writer out) throws IOException {
+        writeXML(result, out, new AtomicInteger());
+    }
+
+    private static void writeXML(ResponseObject result, Writer out, AtomicInteger written) throws IOException {
         StringBuilder sb = new StringBuilder();
         sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        sb.append("<").append(result.getResponseName()).append(" cloudstack-version=\"").append(ApiDBUtils.getVersion()).append("\">");
+        sb.append("<").append(result.getResponseName()).append(" cloudstack-version=\"").append(getVersion()).append("\">");
 
         if (result instanceof ListResponse) {
             Integer count = ((ListResponse) result).getCount();
@@ -146,6 +211,10 @@ public class ApiResponseSerializer {
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
                     serializeResponseObjXML(sb, obj);
+                    // write out each item as it is done rather than the whole list at the end
+                    out.append(sb);
+                    sb.setLength(0);
+                    written.incrementAndGet();
                 }
             }
         } else {
@@ -157,7 +226,7 @@ public class ApiResponseSerializer {
         }
 
         sb.append("</").append(result.getResponseName()).append(">");
-        return sb.toString();
+        out.append(sb);
     }
 
     private static void serializeResponseObjXML(StringBuilder sb, ResponseObject obj) {
@@ -179,24 +248,37 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
+    /**
+     * @return the non transient fields of the class that have a serialized
+     *         name, made accessible, in the order they are serialized.
+     */
+    private static Field[] getSerializedFields(Class<?> clz) {
+        Field[] fields = s_serializedFields.get(clz);
+        if (fields == null) {
+            List<Field> serialized = new ArrayList<Field>();
+            for (Field field : getFlattenFields(clz)) {
+                if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
+                    continue; // skip transient fields
+                }
+                if (field.getAnnotation(SerializedName.class) == null) {
+                    continue; // skip fields w/o serialized name
+                }
+                field.setAccessible(true);
+                serialized.add(field);
+            }
+            fields = serialized.toArray(new Field[serialized.size()]);
+            s_serializedFields.put(clz, fields);
+        }
+        return fields;
+    }
+
     private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
         boolean isAsync = false;
         if (obj instanceof AsyncJobResponse)
             isAsync = true;
 
-        //Field[] fields = obj.getClass().getDeclaredFields();
-        Field[] fields = getFlattenFields(obj.getClass());
-        for (Field field : fields) {
-            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
-                continue; // skip transient fields
-            }
-
+        for (Field field : getSerializedFields(obj.getClass())) {
             SerializedName serializedName = field.getAnnotation(SerializedName.class);
-            if (serializedName == null) {
-                continue; // skip fields w/o serialized name
-            }
-
-            field.setAccessible(true);
             Object fieldValue = null;
             try {
                 fieldValue = field.get(obj);
@@ -20,11 +20,14 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -67,6 +70,7 @@ import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -102,6 +106,11 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
 
+    private final ExecutorService _dispatchExecutor =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-Dispatcher"));
+    private final Set<Long> _pendingWakeups = Collections.synchronizedSet(new HashSet<Long>());
+    private final SyncQueueStats _queueStats = new SyncQueueStats();
+
     @Override
     public AsyncJobExecutorContext getExecutorContext() {
         return _context;
@@ -509,12 +518,15 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         };
     }
 
-    private void executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession) {
+    private void executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession, boolean polled) {
         AsyncJobVO job = _jobDao.findById(item.getContentId());
         if (job != null) {
             if(s_logger.isDebugEnabled()) {
                 s_logger.debug("Schedule queued job-" + job.getId());
             }
+            if (item.getCreated() != null) {
+                _queueStats.dispatched(DateUtil.currentGMTTime().getTime() - item.getCreated().getTime(), polled);
+            }
 
             job.setFromPreviousSession(fromPreviousSession);
             job.setSyncSource(item);
@@ -535,6 +547,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             }
 
             _queueMgr.purgeItem(item.getId());
+            wakeupQueue(item.getQueueId());
         }
     }
 
@@ -552,6 +565,33 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	}
     }
 
+    /**
+     * Runs the items of a sync queue that are ready on the dispatcher thread
+     * without waiting for the next poll of the queues.
+     */
+    private void wakeupQueue(final long queueId) {
+        if (!_pendingWakeups.add(queueId)) {
+            return;
+        }
+
+        try {
+            _dispatchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _pendingWakeups.remove(queueId);
+                    _queueStats.localWakeup();
+                    try {
+                        checkQueue(queueId);
+                    } finally {
+                        StackMaid.current().exitCleanup();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _pendingWakeups.remove(queueId);
+        }
+    }
+
     private void checkQueue(long queueId) {
     	while(true) {
     		try {
@@ -561,7 +601,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                         s_logger.debug("Executing sync queue item: " + item.toString());
                     }
 
-		    		executeQueueItem(item, false);
+		    		executeQueueItem(item, false, false);
 		    	} else {
 		    		break;
 		    	}
@@ -583,7 +623,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 							if(s_logger.isDebugEnabled()) {
                                 s_logger.debug("Execute sync-queue item: " + item.toString());
                             }
-							executeQueueItem(item, false);
+							executeQueueItem(item, false, true);
 						}
 					}
 				} catch(Throwable e) {
@@ -620,28 +660,20 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
                     Date cutTime = new Date(DateUtil.currentGMTTime().getTime() - _jobExpireSeconds*1000);
 
-                    // limit to 100 jobs per turn, this gives cleanup throughput as 600 jobs per minute
-                    // hopefully this will be fast enough to balance potential growth of job table
-                    List<AsyncJobVO> l = _jobDao.getExpiredJobs(cutTime, 100);
-                    if(l != null && l.size() > 0) {
-                        for(AsyncJobVO job : l) {
+                    // expired jobs are read 100 at a time so a large backlog is drained in one turn
+                    // without loading the whole job table
+                    int expunged = _jobDao.streamExpiredJobs(cutTime, new EntityConsumer<AsyncJobVO>() {
+                        @Override
+                        public boolean consume(AsyncJobVO job) {
                             expungeAsyncJob(job);
+                            return true;
                         }
+                    });
+                    if (s_logger.isDebugEnabled() && expunged > 0) {
+                        s_logger.debug("Expunged " + expunged + " expired async-jobs");
                     }
 
-                    // forcefully cancel blocking queue items if they've been staying there for too long
-                    List<SyncQueueItemVO> blockItems = _queueMgr.getBlockedQueueItems(_jobCancelThresholdSeconds*1000, false);
-                    if(blockItems != null && blockItems.size() > 0) {
-                        for(SyncQueueItemVO item : blockItems) {
-                            if(item.getContentType().equalsIgnoreCase(SyncQueueItem.AsyncJobContentType)) {
-                                completeAsyncJob(item.getContentId(), AsyncJobResult.STATUS_FAILED, 0,
-                                        getResetResultResponse("Job is cancelled as it has been blocking others for too long"));
-                            }
-
-                            // purge the item and resume queue processing
-                            _queueMgr.purgeItem(item.getId());
-                        }
-                    }
+                    cancelBlockingQueueItems();
 
                     s_logger.trace("End cleanup expired async-jobs");
                 } catch(Throwable e) {
@@ -655,6 +687,26 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         };
     }
 
+    /**
+     * Forcefully cancels the queue items that have been blocking their queue
+     * for too long and resumes the queues.
+     */
+    protected void cancelBlockingQueueItems() {
+        List<SyncQueueItemVO> blockItems = _queueMgr.getBlockedQueueItems(_jobCancelThresholdSeconds*1000, false);
+        if(blockItems != null && blockItems.size() > 0) {
+            for(SyncQueueItemVO item : blockItems) {
+                if(item.getContentType().equalsIgnoreCase(SyncQueueItem.AsyncJobContentType)) {
+                    completeAsyncJob(item.getContentId(), AsyncJobResult.STATUS_FAILED, 0,
+                            getResetResultResponse("Job is cancelled as it has been blocking others for too long"));
+                }
+
+                // purge the item and resume queue processing
+                _queueMgr.purgeItem(item.getId());
+                wakeupQueue(item.getQueueId());
+            }
+        }
+    }
+
     @DB
     protected void expungeAsyncJob(AsyncJobVO job) {
         Transaction txn = Transaction.currentTxn();
@@ -689,6 +741,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                     }
                 }
                 _queueMgr.purgeItem(item.getId());
+                wakeupQueue(item.getQueueId());
             }
         }
     }
@@ -801,6 +854,12 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
                 GC_INTERVAL, TimeUnit.MILLISECONDS);
 
+        try {
+            JmxUtil.registerMBean("AsyncJobManager", "Sync Queue Stats", _queueStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register sync queue stats to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
+
         return true;
     }
 
@@ -818,6 +877,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     @Override
     public boolean stop() {
     	_heartbeatScheduler.shutdown();
+    	_dispatchExecutor.shutdown();
     	_executor.shutdown();
         return true;
     }
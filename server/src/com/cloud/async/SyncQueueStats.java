@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.StandardMBean;
+
+/**
+ * Counts how sync queue items get dispatched and how long they waited in
+ * the queue before a job executor picked them up.
+ */
+public class SyncQueueStats extends StandardMBean implements SyncQueueStatsMBean {
+    // Upper bounds of the wait time buckets in milliseconds; the last bucket is open ended.
+    private static final long[] s_buckets = new long[] { 1000, 2000, 5000, 10000, 30000, 60000, 300000 };
+
+    private final AtomicLong _dispatched = new AtomicLong();
+    private final AtomicLong _localWakeups = new AtomicLong();
+    private final AtomicLong _polled = new AtomicLong();
+    private final AtomicLong _totalWait = new AtomicLong();
+    private final AtomicLong _maxWait = new AtomicLong();
+    private final AtomicLongArray _histogram = new AtomicLongArray(s_buckets.length + 1);
+
+    public SyncQueueStats() {
+        super(SyncQueueStatsMBean.class, false);
+    }
+
+    public void dispatched(long waitMs, boolean polled) {
+        if (waitMs < 0) {
+            waitMs = 0;
+        }
+        _dispatched.incrementAndGet();
+        if (polled) {
+            _polled.incrementAndGet();
+        }
+        _totalWait.addAndGet(waitMs);
+        long max = _maxWait.get();
+        while (waitMs > max && !_maxWait.compareAndSet(max, waitMs)) {
+            max = _maxWait.get();
+        }
+
+        int bucket = 0;
+        while (bucket < s_buckets.length && waitMs >= s_buckets[bucket]) {
+            bucket++;
+        }
+        _histogram.incrementAndGet(bucket);
+    }
+
+    public void localWakeup() {
+        _localWakeups.incrementAndGet();
+    }
+
+    @Override
+    public long getDispatchedItems() {
+        return _dispatched.get();
+    }
+
+    @Override
+    public long getLocalWakeups() {
+        return _localWakeups.get();
+    }
+
+    @Override
+    public long getPolledItems() {
+        return _polled.get();
+    }
+
+    @Override
+    public long getAverageWaitTime() {
+        long dispatched = _dispatched.get();
+        return dispatched == 0 ? 0 : _totalWait.get() / dispatched;
+    }
+
+    @Override
+    public long getMaxWaitTime() {
+        return _maxWait.get();
+    }
+
+    @Override
+    public String[] getWaitTimeHistogram() {
+        String[] histogram = new String[_histogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            String range = i < s_buckets.length ? "< " + s_buckets[i] + " ms" : ">= " + s_buckets[s_buckets.length - 1] + " ms";
+            histogram[i] = range + ": " + _histogram.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void reset() {
+        _dispatched.set(0);
+        _localWakeups.set(0);
+        _polled.set(0);
+        _totalWait.set(0);
+        _maxWait.set(0);
+        for (int i = 0; i < _histogram.length(); i++) {
+            _histogram.set(i, 0);
+        }
+    }
+}
@@ -21,11 +21,12 @@ import java.util.List;
 
 import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobVO;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.GenericDao;
 
 public interface AsyncJobDao extends GenericDao<AsyncJobVO, Long> {
 	AsyncJobVO findInstancePendingAsyncJob(String instanceType, long instanceId);
 	List<AsyncJobVO> findInstancePendingAsyncJobs(AsyncJob.Type instanceType, Long accountId);
-	List<AsyncJobVO> getExpiredJobs(Date cutTime, int limit);
+	int streamExpiredJobs(Date cutTime, EntityConsumer<AsyncJobVO> consumer);
 	void resetJobProcess(long msid, int jobResultCode, String jobResultMessage);
 }
@@ -29,7 +29,7 @@ import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
 import com.cloud.utils.db.DB;
-import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -97,11 +97,11 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         return listBy(sc);
 	}
 	
-	public List<AsyncJobVO> getExpiredJobs(Date cutTime, int limit) {
+	@Override
+	public int streamExpiredJobs(Date cutTime, EntityConsumer<AsyncJobVO> consumer) {
 		SearchCriteria<AsyncJobVO> sc = expiringAsyncJobSearch.create();
 		sc.setParameters("created", cutTime);
-		Filter filter = new Filter(AsyncJobVO.class, "created", true, 0L, (long)limit);
-		return listIncludingRemovedBy(sc, filter);
+		return streamIncludingRemoved(sc, 100, consumer);
 	}
 
 	@DB
@@ -0,0 +1,315 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.utils.Pair;
+
+/**
+ * In-memory copy of the host cpu and memory rows of op_host_capacity, used
+ * by the deployment planner to filter and order pods and clusters without
+ * running the aggregate capacity queries for every vm.
+ *
+ * The index is kept current by the capacity manager after each capacity
+ * change it commits or records in its CapacityLedger and is periodically
+ * reconciled with the database, which
+ * also picks up changes made by other management servers. Rows written after
+ * a reconcile started are never overwritten by the rows that reconcile read.
+ */
+public class CapacityIndex {
+
+    protected static class HostCapacity {
+        final long hostId;
+        final long zoneId;
+        final Long podId;
+        final Long clusterId;
+        final long total;
+        final long used;
+        final long reserved;
+        final long version;
+
+        HostCapacity(CapacityVO capacity, long version) {
+            this.hostId = capacity.getHostOrPoolId();
+            this.zoneId = capacity.getDataCenterId();
+            this.podId = capacity.getPodId();
+            this.clusterId = capacity.getClusterId();
+            this.total = capacity.getTotalCapacity();
+            this.used = capacity.getUsedCapacity();
+            this.reserved = capacity.getReservedCapacity();
+            this.version = version;
+        }
+
+        HostCapacity(HostCapacity capacity, long usedDelta, long reservedDelta, long version) {
+            this.hostId = capacity.hostId;
+            this.zoneId = capacity.zoneId;
+            this.podId = capacity.podId;
+            this.clusterId = capacity.clusterId;
+            this.total = capacity.total;
+            this.used = Math.max(capacity.used + usedDelta, 0);
+            this.reserved = Math.max(capacity.reserved + reservedDelta, 0);
+            this.version = version;
+        }
+
+        boolean isIn(long id, boolean isZone) {
+            if (isZone) {
+                return zoneId == id;
+            }
+            return podId != null && podId.longValue() == id;
+        }
+
+        // same predicate as the host capacity queries in CapacityDaoImpl
+        boolean hasCapacity(long required, float overprovisioningFactor) {
+            return (total * overprovisioningFactor) - used + reserved >= required;
+        }
+    }
+
+    private final ConcurrentMap<Long, HostCapacity> _cpu = new ConcurrentHashMap<Long, HostCapacity>();
+    private final ConcurrentMap<Long, HostCapacity> _memory = new ConcurrentHashMap<Long, HostCapacity>();
+    // hosts removed since the last reconcile, so rows read before the removal are not re-added
+    private final Map<Long, Long> _removed = new ConcurrentHashMap<Long, Long>();
+    private final AtomicLong _version = new AtomicLong();
+    private volatile boolean _loaded;
+
+    public boolean isLoaded() {
+        return _loaded;
+    }
+
+    /**
+     * Records the current values of a host cpu or memory capacity row. Other
+     * capacity types are ignored.
+     */
+    public void update(CapacityVO capacity) {
+        if (capacity == null) {
+            return;
+        }
+        Map<Long, HostCapacity> capacities = getCapacities(capacity.getCapacityType());
+        if (capacities == null) {
+            return;
+        }
+        _removed.remove(capacity.getHostOrPoolId());
+        capacities.put(capacity.getHostOrPoolId(), new HostCapacity(capacity, _version.incrementAndGet()));
+    }
+
+    /**
+     * Applies a change to the used and reserved capacity of a host that is
+     * not written to the database yet. Unknown hosts are ignored.
+     */
+    public void adjust(long hostId, short capacityType, long usedDelta, long reservedDelta) {
+        ConcurrentMap<Long, HostCapacity> capacities = getCapacities(capacityType);
+        if (capacities == null || (usedDelta == 0 && reservedDelta == 0)) {
+            return;
+        }
+        while (true) {
+            HostCapacity current = capacities.get(hostId);
+            if (current == null || capacities.replace(hostId, current, new HostCapacity(current, usedDelta, reservedDelta, _version.incrementAndGet()))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the cpu and memory capacity of a host, e.g. when it is deleted or
+     * put into maintenance.
+     */
+    public void remove(long hostId) {
+        _removed.put(hostId, _version.incrementAndGet());
+        _cpu.remove(hostId);
+        _memory.remove(hostId);
+    }
+
+    /**
+     * @return marker to pass to reconcile() once the rows have been read.
+     */
+    public long beginReconcile() {
+        return _version.get();
+    }
+
+    /**
+     * Replaces the index content with the rows read from the database after
+     * beginReconcile() returned <code>marker</code>. Hosts updated or removed
+     * since then keep their newer state. Like the capacity queries, the index
+     * leaves out the hosts of removed clusters and pods, that is those not
+     * among <code>clusterIds</code> and <code>podIds</code>.
+     */
+    public void reconcile(long marker, Collection<CapacityVO> capacities, Collection<Long> clusterIds, Collection<Long> podIds) {
+        Set<Long> cpuHosts = new HashSet<Long>();
+        Set<Long> memoryHosts = new HashSet<Long>();
+        for (CapacityVO capacity : capacities) {
+            if ((capacity.getClusterId() != null && !clusterIds.contains(capacity.getClusterId()))
+                    || (capacity.getPodId() != null && !podIds.contains(capacity.getPodId()))) {
+                continue;
+            }
+            short type = capacity.getCapacityType();
+            if (type == Capacity.CAPACITY_TYPE_CPU) {
+                cpuHosts.add(capacity.getHostOrPoolId());
+            } else if (type == Capacity.CAPACITY_TYPE_MEMORY) {
+                memoryHosts.add(capacity.getHostOrPoolId());
+            } else {
+                continue;
+            }
+            Long removed = _removed.get(capacity.getHostOrPoolId());
+            if (removed != null && removed > marker) {
+                continue;
+            }
+            Map<Long, HostCapacity> index = getCapacities(type);
+            HostCapacity current = index.get(capacity.getHostOrPoolId());
+            if (current == null || current.version <= marker) {
+                index.put(capacity.getHostOrPoolId(), new HostCapacity(capacity, marker));
+            }
+        }
+        evictMissing(_cpu, cpuHosts, marker);
+        evictMissing(_memory, memoryHosts, marker);
+        Iterator<Long> it = _removed.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() <= marker) {
+                it.remove();
+            }
+        }
+        _loaded = true;
+    }
+
+    public void clear() {
+        _loaded = false;
+        _cpu.clear();
+        _memory.clear();
+        _removed.clear();
+    }
+
+    /**
+     * In memory equivalent of CapacityDao.listClustersInZoneOrPodByHostCapacities.
+     */
+    public List<Long> listClustersByHostCapacities(long id, int requiredCpu, long requiredRam, boolean isZone, float cpuOverprovisioningFactor) {
+        Set<Long> withCpu = new HashSet<Long>();
+        for (HostCapacity capacity : _cpu.values()) {
+            if (capacity.clusterId != null && capacity.isIn(id, isZone) && capacity.hasCapacity(requiredCpu, cpuOverprovisioningFactor)) {
+                withCpu.add(capacity.clusterId);
+            }
+        }
+        Set<Long> result = new HashSet<Long>();
+        for (HostCapacity capacity : _memory.values()) {
+            if (capacity.clusterId != null && withCpu.contains(capacity.clusterId) && capacity.isIn(id, isZone) && capacity.hasCapacity(requiredRam, 1)) {
+                result.add(capacity.clusterId);
+            }
+        }
+        return new ArrayList<Long>(result);
+    }
+
+    /**
+     * In memory equivalent of CapacityDao.orderClustersByAggregateCapacity.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderClustersByAggregateCapacity(long id, short capacityType, boolean isZone, float cpuOverprovisioningFactor) {
+        Map<Long, long[]> sums = new HashMap<Long, long[]>();
+        for (HostCapacity capacity : getCapacities(capacityType).values()) {
+            if (capacity.clusterId != null && capacity.isIn(id, isZone)) {
+                sum(sums, capacity.clusterId, capacity);
+            }
+        }
+        return order(sums, capacityType == Capacity.CAPACITY_TYPE_CPU ? cpuOverprovisioningFactor : 1);
+    }
+
+    /**
+     * In memory equivalent of CapacityDao.listPodsByHostCapacities.
+     */
+    public List<Long> listPodsByHostCapacities(long zoneId, int requiredCpu, long requiredRam, float cpuOverprovisioningFactor) {
+        Set<Long> withCpu = new HashSet<Long>();
+        for (HostCapacity capacity : _cpu.values()) {
+            if (capacity.podId != null && capacity.zoneId == zoneId && capacity.hasCapacity(requiredCpu, cpuOverprovisioningFactor)) {
+                withCpu.add(capacity.podId);
+            }
+        }
+        Set<Long> result = new HashSet<Long>();
+        for (HostCapacity capacity : _memory.values()) {
+            if (capacity.podId != null && withCpu.contains(capacity.podId) && capacity.zoneId == zoneId && capacity.hasCapacity(requiredRam, 1)) {
+                result.add(capacity.podId);
+            }
+        }
+        return new ArrayList<Long>(result);
+    }
+
+    /**
+     * In memory equivalent of CapacityDao.orderPodsByAggregateCapacity.
+     */
+    public Pair<List<Long>, Map<Long, Double>> orderPodsByAggregateCapacity(long zoneId, short capacityType, float cpuOverprovisioningFactor) {
+        Map<Long, long[]> sums = new HashMap<Long, long[]>();
+        for (HostCapacity capacity : getCapacities(capacityType).values()) {
+            if (capacity.podId != null && capacity.zoneId == zoneId) {
+                sum(sums, capacity.podId, capacity);
+            }
+        }
+        return order(sums, capacityType == Capacity.CAPACITY_TYPE_CPU ? cpuOverprovisioningFactor : 1);
+    }
+
+    private ConcurrentMap<Long, HostCapacity> getCapacities(short capacityType) {
+        if (capacityType == Capacity.CAPACITY_TYPE_CPU) {
+            return _cpu;
+        } else if (capacityType == Capacity.CAPACITY_TYPE_MEMORY) {
+            return _memory;
+        }
+        return null;
+    }
+
+    private static void sum(Map<Long, long[]> sums, Long key, HostCapacity capacity) {
+        long[] sum = sums.get(key);
+        if (sum == null) {
+            sum = new long[2];
+            sums.put(key, sum);
+        }
+        sum[0] += capacity.used + capacity.reserved;
+        sum[1] += capacity.total;
+    }
+
+    private static Pair<List<Long>, Map<Long, Double>> order(Map<Long, long[]> sums, float overprovisioningFactor) {
+        final Map<Long, Double> ratios = new HashMap<Long, Double>();
+        for (Map.Entry<Long, long[]> entry : sums.entrySet()) {
+            long[] sum = entry.getValue();
+            double total = sum[1] * (double)overprovisioningFactor;
+            ratios.put(entry.getKey(), total == 0 ? 0d : sum[0] / total);
+        }
+        List<Long> ids = new ArrayList<Long>(ratios.keySet());
+        Collections.sort(ids, new Comparator<Long>() {
+            @Override
+            public int compare(Long id1, Long id2) {
+                int result = ratios.get(id1).compareTo(ratios.get(id2));
+                return result != 0 ? result : id1.compareTo(id2);
+            }
+        });
+        return new Pair<List<Long>, Map<Long, Double>>(ids, ratios);
+    }
+
+    private static void evictMissing(Map<Long, HostCapacity> index, Set<Long> present, long marker) {
+        Iterator<HostCapacity> it = index.values().iterator();
+        while (it.hasNext()) {
+            HostCapacity capacity = it.next();
+            if (!present.contains(capacity.hostId) && capacity.version <= marker) {
+                it.remove();
+            }
+        }
+    }
+}
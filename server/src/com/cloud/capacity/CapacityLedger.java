@@ -0,0 +1,181 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pending changes to the used and reserved cpu and memory of hosts, recorded
+ * by the capacity manager on vm state transitions without touching the
+ * database. The changes of a host are summed as they arrive and written to
+ * op_host_capacity in one batch by the periodic flush, as relative updates
+ * so that management servers flushing concurrently do not overwrite each
+ * other.
+ */
+public class CapacityLedger {
+    public static final int USED_CPU = 0;
+    public static final int RESERVED_CPU = 1;
+    public static final int USED_MEMORY = 2;
+    public static final int RESERVED_MEMORY = 3;
+
+    public static class HostDelta {
+        private final long _hostId;
+        private final long[] _values;
+
+        public HostDelta(long hostId, long[] values) {
+            _hostId = hostId;
+            _values = values;
+        }
+
+        public long getHostId() {
+            return _hostId;
+        }
+
+        public long get(int index) {
+            return _values[index];
+        }
+
+        public long getUsed(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _values[USED_CPU] : _values[USED_MEMORY];
+        }
+
+        public long getReserved(short capacityType) {
+            return capacityType == Capacity.CAPACITY_TYPE_CPU ? _values[RESERVED_CPU] : _values[RESERVED_MEMORY];
+        }
+
+        @Override
+        public String toString() {
+            return "HostDelta[" + _hostId + "-cpu:" + _values[USED_CPU] + "/" + _values[RESERVED_CPU] + "-mem:" + _values[USED_MEMORY] + "/"
+                    + _values[RESERVED_MEMORY] + "]";
+        }
+    }
+
+    private final ConcurrentHashMap<Long, AtomicLong[]> _pending = new ConcurrentHashMap<Long, AtomicLong[]>();
+    private final AtomicLong _recorded = new AtomicLong();
+    private final AtomicLong _flushed = new AtomicLong();
+
+    /**
+     * Adds a change to the used and reserved capacity of a host. Safe to call
+     * from any number of threads.
+     */
+    public void record(long hostId, long usedCpu, long reservedCpu, long usedMemory, long reservedMemory) {
+        AtomicLong[] values = _pending.get(hostId);
+        if (values == null) {
+            values = new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong() };
+            AtomicLong[] existing = _pending.putIfAbsent(hostId, values);
+            if (existing != null) {
+                values = existing;
+            }
+        }
+        add(values[USED_CPU], usedCpu);
+        add(values[RESERVED_CPU], reservedCpu);
+        add(values[USED_MEMORY], usedMemory);
+        add(values[RESERVED_MEMORY], reservedMemory);
+        _recorded.incrementAndGet();
+    }
+
+    private static void add(AtomicLong value, long delta) {
+        if (delta != 0) {
+            value.addAndGet(delta);
+        }
+    }
+
+    /**
+     * @return the changes of the host not flushed yet, indexed by USED_CPU,
+     *         RESERVED_CPU, USED_MEMORY and RESERVED_MEMORY.
+     */
+    public long[] getPending(long hostId) {
+        long[] result = new long[4];
+        AtomicLong[] values = _pending.get(hostId);
+        if (values != null) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = values[i].get();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Takes the pending changes of all hosts. The caller owns the returned
+     * changes and has to restore() them if it fails to write them.
+     */
+    public List<HostDelta> drain() {
+        List<HostDelta> deltas = new ArrayList<HostDelta>();
+        for (Map.Entry<Long, AtomicLong[]> entry : _pending.entrySet()) {
+            HostDelta delta = take(entry.getKey(), entry.getValue());
+            if (delta != null) {
+                deltas.add(delta);
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Takes the pending changes of one host, null if there are none.
+     */
+    public HostDelta drain(long hostId) {
+        AtomicLong[] values = _pending.get(hostId);
+        return values == null ? null : take(hostId, values);
+    }
+
+    private HostDelta take(long hostId, AtomicLong[] values) {
+        long[] taken = new long[values.length];
+        boolean empty = true;
+        for (int i = 0; i < values.length; i++) {
+            taken[i] = values[i].getAndSet(0);
+            empty &= taken[i] == 0;
+        }
+        return empty ? null : new HostDelta(hostId, taken);
+    }
+
+    /**
+     * Puts back changes taken by drain() that could not be written.
+     */
+    public void restore(Collection<HostDelta> deltas) {
+        for (HostDelta delta : deltas) {
+            record(delta.getHostId(), delta.get(USED_CPU), delta.get(RESERVED_CPU), delta.get(USED_MEMORY), delta.get(RESERVED_MEMORY));
+            _recorded.decrementAndGet();
+        }
+    }
+
+    /**
+     * Marks changes taken by drain() as written.
+     */
+    public void flushed(int count) {
+        _flushed.addAndGet(count);
+    }
+
+    /**
+     * Drops the pending changes of a host that is gone.
+     */
+    public void forget(long hostId) {
+        _pending.remove(hostId);
+    }
+
+    public long getRecordedCount() {
+        return _recorded.get();
+    }
+
+    public long getFlushedCount() {
+        return _flushed.get();
+    }
+}
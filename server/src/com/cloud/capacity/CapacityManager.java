@@ -55,4 +55,17 @@ public interface CapacityManager extends Manager {
      * @return true if the count of host's running VMs >= hypervisor limit
      */
     boolean checkIfHostReachMaxGuestLimit(HostVO host);
+
+    /**
+     * @return in-memory index of host cpu and memory capacity, only usable
+     *         once CapacityIndex.isLoaded() returns true
+     */
+    CapacityIndex getCapacityIndex();
+
+    /**
+     * @return cpu and memory changes of the host recorded but not flushed to
+     *         its capacity rows yet, indexed by CapacityLedger.USED_CPU,
+     *         RESERVED_CPU, USED_MEMORY and RESERVED_MEMORY
+     */
+    long[] getPendingCapacity(long hostId);
 }
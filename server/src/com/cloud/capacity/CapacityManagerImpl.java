@@ -17,11 +17,15 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -41,6 +45,10 @@ import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
 import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.dc.dao.HostPodDao;
 import com.cloud.exception.ConnectionException;
 import com.cloud.host.HostVO;
 import com.cloud.host.Status;
@@ -108,6 +116,10 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     ConfigurationManager _configMgr;   
     @Inject
     HypervisorCapabilitiesDao _hypervisorCapabilitiesDao;
+    @Inject
+    ClusterDao _clusterDao;
+    @Inject
+    HostPodDao _podDao;
 
     private int _vmCapacityReleaseInterval;
     private ScheduledExecutorService _executor;
@@ -115,6 +127,10 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     long _extraBytesPerVolume = 0;
     private float _storageOverProvisioningFactor = 1.0f;
     private float _cpuOverProvisioningFactor = 1.0f;
+    private int _capacityIndexReconcileInterval;
+    private final CapacityIndex _capacityIndex = new CapacityIndex();
+    private int _capacityLedgerFlushInterval;
+    private final CapacityLedger _capacityLedger = new CapacityLedger();
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -122,6 +138,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
         _storageOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.StorageOverprovisioningFactor.key()), 1.0f);
         _cpuOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1.0f);
+        _capacityIndexReconcileInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityIndexReconcileInterval.key()), 60);
+        _capacityLedgerFlushInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacityLedgerFlushInterval.key()), 1000);
 
         if (_cpuOverProvisioningFactor < 1.0f) {
             _cpuOverProvisioningFactor = 1.0f;
@@ -138,11 +156,119 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     public boolean start() {
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+    	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_DELETE_HOST_AFTER, this);
+        if (_capacityIndexReconcileInterval > 0) {
+            _executor.scheduleWithFixedDelay(new CapacityIndexReconcileTask(), 0, _capacityIndexReconcileInterval, TimeUnit.SECONDS);
+        }
+        if (_capacityLedgerFlushInterval > 0) {
+            _executor.scheduleWithFixedDelay(new CapacityLedgerFlushTask(), _capacityLedgerFlushInterval, _capacityLedgerFlushInterval, TimeUnit.MILLISECONDS);
+        }
         return true;
     }
 
+    @Override
+    public CapacityIndex getCapacityIndex() {
+        return _capacityIndex;
+    }
+
+    @Override
+    public long[] getPendingCapacity(long hostId) {
+        return _capacityLedger.getPending(hostId);
+    }
+
+    protected class CapacityIndexReconcileTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                // the rows have to include the changes still pending in the ledger
+                flushCapacityLedger();
+                long marker = _capacityIndex.beginReconcile();
+                List<CapacityVO> capacities = _capacityDao.listHostCapacities();
+                // read after the rows, so every cluster and pod they refer to that isn't listed is removed
+                Set<Long> clusterIds = new HashSet<Long>();
+                for (ClusterVO cluster : _clusterDao.listAll()) {
+                    clusterIds.add(cluster.getId());
+                }
+                Set<Long> podIds = new HashSet<Long>();
+                for (HostPodVO pod : _podDao.listAll()) {
+                    podIds.add(pod.getId());
+                }
+                _capacityIndex.reconcile(marker, capacities, clusterIds, podIds);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Reconciled capacity index with " + capacities.size() + " host capacity entries");
+                }
+            } catch (Throwable e) {
+                s_logger.warn("Unable to reconcile the capacity index", e);
+            }
+        }
+    }
+
+    protected class CapacityLedgerFlushTask implements Runnable {
+        @Override
+        public void run() {
+            try {
+                flushCapacityLedger();
+            } catch (Throwable e) {
+                s_logger.warn("Unable to flush the capacity ledger", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the capacity changes recorded in the ledger to the database.
+     * Changes that cannot be written are put back for the next flush.
+     */
+    protected void flushCapacityLedger() {
+        List<CapacityLedger.HostDelta> deltas = _capacityLedger.drain();
+        if (!deltas.isEmpty()) {
+            writeCapacityDeltas(deltas);
+        }
+    }
+
+    protected void flushCapacityLedger(long hostId) {
+        CapacityLedger.HostDelta delta = _capacityLedger.drain(hostId);
+        if (delta != null) {
+            List<CapacityLedger.HostDelta> deltas = new ArrayList<CapacityLedger.HostDelta>(1);
+            deltas.add(delta);
+            writeCapacityDeltas(deltas);
+        }
+    }
+
+    private void writeCapacityDeltas(List<CapacityLedger.HostDelta> deltas) {
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1);
+        try {
+            _capacityDao.updateAllocated(deltas, cpuOverprovisioningFactor);
+            _capacityLedger.flushed(deltas.size());
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Flushed capacity changes of " + deltas.size() + " hosts, " + _capacityLedger.getRecordedCount() + " recorded so far");
+            }
+        } catch (RuntimeException e) {
+            _capacityLedger.restore(deltas);
+            throw e;
+        }
+    }
+
+    /**
+     * Records the capacity change of a vm state transition in the ledger
+     * instead of locking and updating the capacity rows of the host. The
+     * bounds checked by allocateVmCapacity and releaseVmCapacity are applied
+     * by the database when the change is flushed.
+     */
+    private void recordVmCapacity(long hostId, long usedCpu, long reservedCpu, long usedMem, long reservedMem) {
+        _capacityLedger.record(hostId, usedCpu, reservedCpu, usedMem, reservedMem);
+        _capacityIndex.adjust(hostId, CapacityVO.CAPACITY_TYPE_CPU, usedCpu, reservedCpu);
+        _capacityIndex.adjust(hostId, CapacityVO.CAPACITY_TYPE_MEMORY, usedMem, reservedMem);
+    }
+
     @Override
     public boolean stop() {
+        if (_capacityLedgerFlushInterval > 0) {
+            try {
+                flushCapacityLedger();
+            } catch (Exception e) {
+                s_logger.warn("Unable to flush the capacity ledger on stop", e);
+            }
+        }
         _executor.shutdownNow();
         _stopped = true;
         return true;
@@ -157,6 +283,23 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     @Override
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId) {
         ServiceOfferingVO svo = _offeringsDao.findById(vm.getServiceOfferingId());
+
+        if (_capacityLedgerFlushInterval > 0) {
+            if (hostId == null || svo == null) {
+                return false;
+            }
+            long vmCPU = svo.getCpu() * svo.getSpeed();
+            long vmMem = svo.getRamSize() * 1024L * 1024L;
+            if (moveFromReserved) {
+                recordVmCapacity(hostId, 0, -vmCPU, 0, -vmMem);
+            } else if (moveToReservered) {
+                recordVmCapacity(hostId, -vmCPU, vmCPU, -vmMem, vmMem);
+            } else {
+                recordVmCapacity(hostId, -vmCPU, 0, -vmMem, 0);
+            }
+            return true;
+        }
+
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO capacityMemory = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
 
@@ -224,6 +367,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMemory.getId(), capacityMemory);
             txn.commit();
+            _capacityIndex.update(capacityCpu);
+            _capacityIndex.update(capacityMemory);
             return true;
         } catch (Exception e) {
             s_logger.debug("Failed to transit vm's state, due to " + e.getMessage());
@@ -240,6 +385,19 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
         ServiceOfferingVO svo = _offeringsDao.findById(vm.getServiceOfferingId());
 
+        if (_capacityLedgerFlushInterval > 0) {
+            if (svo != null) {
+                long cpu = svo.getCpu() * svo.getSpeed();
+                long ram = svo.getRamSize() * 1024L * 1024L;
+                if (fromLastHost) {
+                    recordVmCapacity(hostId, cpu, -cpu, ram, -ram);
+                } else {
+                    recordVmCapacity(hostId, cpu, 0, ram, 0);
+                }
+            }
+            return;
+        }
+
         CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
 
@@ -314,6 +472,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             _capacityDao.update(capacityCpu.getId(), capacityCpu);
             _capacityDao.update(capacityMem.getId(), capacityMem);
             txn.commit();
+            _capacityIndex.update(capacityCpu);
+            _capacityIndex.update(capacityMem);
         } catch (Exception e) {
             txn.rollback();
             return;
@@ -347,10 +507,12 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             return false;
         }
 
-        long usedCpu = capacityCpu.getUsedCapacity();
-        long usedMem = capacityMem.getUsedCapacity();
-        long reservedCpu = capacityCpu.getReservedCapacity();
-        long reservedMem = capacityMem.getReservedCapacity();
+        // include the changes not flushed to the capacity rows yet
+        long[] pending = _capacityLedger.getPending(hostId);
+        long usedCpu = Math.max(capacityCpu.getUsedCapacity() + pending[CapacityLedger.USED_CPU], 0);
+        long usedMem = Math.max(capacityMem.getUsedCapacity() + pending[CapacityLedger.USED_MEMORY], 0);
+        long reservedCpu = Math.max(capacityCpu.getReservedCapacity() + pending[CapacityLedger.RESERVED_CPU], 0);
+        long reservedMem = Math.max(capacityMem.getReservedCapacity() + pending[CapacityLedger.RESERVED_MEMORY], 0);
         long actualTotalCpu = capacityCpu.getTotalCapacity();
         long totalCpu = (long) (actualTotalCpu * cpuOverprovisioningFactor);
         if (s_logger.isDebugEnabled()) {
@@ -528,10 +690,14 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             }
         }
 
+        // the recalculated values replace whatever the host still has pending
+        flushCapacityLedger(host.getId());
         CapacityVO cpuCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_CPU);
         CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_MEMORY);
 
         if (cpuCap != null && memCap != null){
+            boolean cpuCalibrated = cpuCap.getUsedCapacity() != usedCpu || cpuCap.getReservedCapacity() != reservedCpu;
+            boolean memCalibrated = memCap.getUsedCapacity() != usedMemory || memCap.getReservedCapacity() != reservedMemory;
         	if (cpuCap.getUsedCapacity() == usedCpu && cpuCap.getReservedCapacity() == reservedCpu) {
         		s_logger.debug("No need to calibrate cpu capacity, host:" + host.getId() + " usedCpu: " + cpuCap.getUsedCapacity()
         				+ " reservedCpu: " + cpuCap.getReservedCapacity());
@@ -563,8 +729,14 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 	        }
 	
 	        try {
-	            _capacityDao.update(cpuCap.getId(), cpuCap);
-	            _capacityDao.update(memCap.getId(), memCap);
+	            if (cpuCalibrated) {
+	                _capacityDao.update(cpuCap.getId(), cpuCap);
+	            }
+	            if (memCalibrated) {
+	                _capacityDao.update(memCap.getId(), memCap);
+	            }
+	            _capacityIndex.update(cpuCap);
+	            _capacityIndex.update(memCap);
 	        } catch (Exception e) {
 	        	s_logger.error("Caught exception while updating cpu/memory capacity for the host " +host.getId(), e);
 	        }
@@ -581,7 +753,7 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
             capacity.setCapacityState(capacityState);
             _capacityDao.persist(capacity);
         	
-            capacity = new CapacityVO(
+            CapacityVO cpuCapacity = new CapacityVO(
                     host.getId(),
                     host.getDataCenterId(),
                     host.getPodId(), 
@@ -589,10 +761,12 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
                     usedCpu,
                     (long)(host.getCpus().longValue() * host.getSpeed().longValue()),
                     CapacityVO.CAPACITY_TYPE_CPU);
-            capacity.setReservedCapacity(reservedCpu);
-            capacity.setCapacityState(capacityState);
-            _capacityDao.persist(capacity);
+            cpuCapacity.setReservedCapacity(reservedCpu);
+            cpuCapacity.setCapacityState(capacityState);
+            _capacityDao.persist(cpuCapacity);
             txn.commit();
+            _capacityIndex.update(capacity);
+            _capacityIndex.update(cpuCapacity);
             
         }
         
@@ -794,8 +968,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 
 	@Override
 	public void processDeletHostEventAfter(HostVO host) {
-		// TODO Auto-generated method stub
-		
+		_capacityLedger.forget(host.getId());
+		_capacityIndex.remove(host.getId());
 	}
 
 	@Override
@@ -823,6 +997,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
 	public void processPrepareMaintenaceEventAfter(Long hostId) {		
 		_capacityDao.removeBy(Capacity.CAPACITY_TYPE_MEMORY, null, null, null, hostId);
 		_capacityDao.removeBy(Capacity.CAPACITY_TYPE_CPU, null, null, null, hostId);
+		_capacityLedger.forget(hostId);
+		_capacityIndex.remove(hostId);
 	}
 
 	@Override
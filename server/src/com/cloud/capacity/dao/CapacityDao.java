@@ -19,6 +19,7 @@ package com.cloud.capacity.dao;
 import java.util.List;
 import java.util.Map;
 
+import com.cloud.capacity.CapacityLedger;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDaoImpl.SummedCapacity;
 import com.cloud.utils.Pair;
@@ -26,6 +27,14 @@ import com.cloud.utils.db.GenericDao;
 
 public interface CapacityDao extends GenericDao<CapacityVO, Long> {
 	CapacityVO findByHostIdType(Long hostId, short capacityType);
+	List<CapacityVO> listHostCapacities();
+
+    /**
+     * Applies the cpu and memory changes of hosts as relative updates in one
+     * batch. Used and reserved capacity do not go below 0 and reserved
+     * capacity does not exceed the total.
+     */
+    void updateAllocated(List<CapacityLedger.HostDelta> deltas, float cpuOverprovisioningFactor);
 	List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone, float cpuOverprovisioningFactor);
 	List<Long> listHostsWithEnoughCapacity(int requiredCpu, long requiredRam, Long clusterId, String hostType, float cpuOverprovisioningFactor);	
 	boolean removeBy(Short capacityType, Long zoneId, Long podId, Long clusterId, Long hostId);
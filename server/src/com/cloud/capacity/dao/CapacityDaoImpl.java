@@ -20,19 +20,23 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
 
 import javax.ejb.Local;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityLedger;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.storage.Storage;
 import com.cloud.storage.StoragePoolVO;
 import com.cloud.storage.dao.StoragePoolDaoImpl;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.component.ComponentLocator;
@@ -51,8 +55,8 @@ import com.cloud.utils.exception.CloudRuntimeException;
 public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements CapacityDao {
     private static final Logger s_logger = Logger.getLogger(CapacityDaoImpl.class);
 
-    private static final String ADD_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity + ? WHERE host_id = ? AND capacity_type = ?";
-    private static final String SUBTRACT_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = used_capacity - ? WHERE host_id = ? AND capacity_type = ?";
+    private static final String UPDATE_ALLOCATED_SQL = "UPDATE `cloud`.`op_host_capacity` SET used_capacity = GREATEST(used_capacity + ?, 0), " +
+            "reserved_capacity = LEAST(GREATEST(reserved_capacity + ?, 0), FLOOR(total_capacity * ?)), update_time = ? WHERE host_id = ? AND capacity_type = ?";
 
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART1 = "SELECT DISTINCT capacity.cluster_id  FROM `cloud`.`op_host_capacity` capacity INNER JOIN `cloud`.`cluster` cluster on (cluster.id = capacity.cluster_id AND cluster.removed is NULL) WHERE ";
     private static final String LIST_CLUSTERSINZONE_BY_HOST_CAPACITIES_PART2 = " AND capacity_type = ? AND ((total_capacity * ?) - used_capacity + reserved_capacity) >= ? " +
@@ -63,6 +67,7 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
 	private final SearchBuilder<CapacityVO> _hostOrPoolIdSearch;
     protected GenericSearchBuilder<CapacityVO, SummedCapacity> SummedCapacitySearch;
 	private SearchBuilder<CapacityVO> _allFieldsSearch;
+	private final SearchBuilder<CapacityVO> _hostCapacitySearch;
     protected final StoragePoolDaoImpl _storagePoolDao = ComponentLocator.inject(StoragePoolDaoImpl.class);
 
 	
@@ -137,6 +142,10 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	_allFieldsSearch.and("capacityState", _allFieldsSearch.entity().getCapacityState(), SearchCriteria.Op.EQ);
     	
     	_allFieldsSearch.done();
+
+    	_hostCapacitySearch = createSearchBuilder();
+    	_hostCapacitySearch.and("type", _hostCapacitySearch.entity().getCapacityType(), SearchCriteria.Op.IN);
+    	_hostCapacitySearch.done();
     }
           
     @Override
@@ -357,30 +366,38 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	
     }
     
-    public void updateAllocated(Long hostId, long allocatedAmount, short capacityType, boolean add) {
+    @Override
+    public void updateAllocated(List<CapacityLedger.HostDelta> deltas, float cpuOverprovisioningFactor) {
         Transaction txn = Transaction.currentTxn();
         PreparedStatement pstmt = null;
         try {
             txn.start();
-            String sql = null;
-            if (add) {
-                sql = ADD_ALLOCATED_SQL;
-            } else {
-                sql = SUBTRACT_ALLOCATED_SQL;
+            pstmt = txn.prepareAutoCloseStatement(UPDATE_ALLOCATED_SQL);
+            String now = DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), new Date());
+            for (CapacityLedger.HostDelta delta : deltas) {
+                for (short type : new short[] { Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY }) {
+                    long used = delta.getUsed(type);
+                    long reserved = delta.getReserved(type);
+                    if (used == 0 && reserved == 0) {
+                        continue;
+                    }
+                    pstmt.setLong(1, used);
+                    pstmt.setLong(2, reserved);
+                    pstmt.setFloat(3, type == Capacity.CAPACITY_TYPE_CPU ? cpuOverprovisioningFactor : 1);
+                    pstmt.setString(4, now);
+                    pstmt.setLong(5, delta.getHostId());
+                    pstmt.setShort(6, type);
+                    pstmt.addBatch();
+                }
             }
-            pstmt = txn.prepareAutoCloseStatement(sql);
-            pstmt.setLong(1, allocatedAmount);
-            pstmt.setLong(2, hostId);
-            pstmt.setShort(3, capacityType);
-            pstmt.executeUpdate(); // TODO:  Make sure exactly 1 row was updated?
+            pstmt.executeBatch();
             txn.commit();
-        } catch (Exception e) {
+        } catch (SQLException e) {
             txn.rollback();
-            s_logger.warn("Exception updating capacity for host: " + hostId, e);
+            throw new CloudRuntimeException("Unable to update the allocated capacity of " + deltas.size() + " hosts", e);
         }
     }
 
-    
     @Override
     public CapacityVO findByHostIdType(Long hostId, short capacityType) {
     	SearchCriteria<CapacityVO> sc = _hostIdTypeSearch.create();
@@ -388,6 +405,13 @@ public class CapacityDaoImpl extends GenericDaoBase<CapacityVO, Long> implements
     	sc.setParameters("type", capacityType);
     	return findOneBy(sc);
     }  
+
+    @Override
+    public List<CapacityVO> listHostCapacities() {
+        SearchCriteria<CapacityVO> sc = _hostCapacitySearch.create();
+        sc.setParameters("type", Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY);
+        return listBy(sc);
+    }
     
     @Override
     public List<Long> listClustersInZoneOrPodByHostCapacities(long id, int requiredCpu, long requiredRam, short capacityTypeForOrdering, boolean isZone, float cpuOverprovisioningFactor){
@@ -0,0 +1,126 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCache;
+
+/**
+ * Propagates invalidations of clustered dao caches to the other management
+ * servers.  The daos report an invalidation once the transaction that
+ * caused it has ended; invalidations are collected for a short while and
+ * sent as one broadcast to the peers the last heartbeat found active.
+ */
+public class ClusterEntityCacheInvalidator implements EntityCache.Invalidator, Runnable {
+    private static final Logger s_logger = Logger.getLogger(ClusterEntityCacheInvalidator.class);
+
+    // Beyond this many ids the whole cache is cleared instead.
+    private static final int MAX_IDS_PER_CACHE = 1000;
+
+    private final ClusterManagerImpl _clusterMgr;
+    private final ScheduledExecutorService _flusher = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-CacheInvalidator"));
+
+    // Cache name to ids; a null set means the whole cache.
+    private Map<String, Set<String>> _pending = new HashMap<String, Set<String>>();
+
+    public ClusterEntityCacheInvalidator(ClusterManagerImpl clusterMgr) {
+        _clusterMgr = clusterMgr;
+    }
+
+    public void start(long flushIntervalMs) {
+        _flusher.scheduleWithFixedDelay(this, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        EntityCache.setInvalidator(this);
+    }
+
+    public void stop() {
+        EntityCache.setInvalidator(null);
+        _flusher.shutdownNow();
+    }
+
+    @Override
+    public synchronized void invalidate(String cacheName, Object id) {
+        if (_pending.containsKey(cacheName) && _pending.get(cacheName) == null) {
+            return;
+        }
+        Set<String> ids = _pending.get(cacheName);
+        if (id == null || (ids != null && ids.size() >= MAX_IDS_PER_CACHE)) {
+            _pending.put(cacheName, null);
+            return;
+        }
+        if (ids == null) {
+            ids = new HashSet<String>();
+            _pending.put(cacheName, ids);
+        }
+        ids.add(id.toString());
+    }
+
+    @Override
+    public void run() {
+        Map<String, Set<String>> pending;
+        synchronized (this) {
+            if (_pending.isEmpty()) {
+                return;
+            }
+            pending = _pending;
+            _pending = new HashMap<String, Set<String>>();
+        }
+
+        try {
+            List<Command> cmds = new ArrayList<Command>(pending.size());
+            for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+                Set<String> ids = entry.getValue();
+                cmds.add(new InvalidateEntityCacheCommand(entry.getKey(), ids != null ? ids.toArray(new String[ids.size()]) : null));
+            }
+            _clusterMgr.broadcastToActivePeers(0, cmds.toArray(new Command[cmds.size()]));
+        } catch (Throwable e) {
+            s_logger.warn("Unable to propagate cache invalidations for " + pending.keySet(), e);
+        }
+    }
+
+    /**
+     * Applies invalidations received from a peer.
+     */
+    public static void apply(Command[] cmds) {
+        for (Command cmd : cmds) {
+            InvalidateEntityCacheCommand invalidate = (InvalidateEntityCacheCommand)cmd;
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Invalidating cache " + invalidate.getCacheName());
+            }
+            if (invalidate.getIds() == null) {
+                EntityCache.invalidateLocal(invalidate.getCacheName(), null);
+            } else {
+                for (String id : invalidate.getIds()) {
+                    EntityCache.invalidateLocal(invalidate.getCacheName(), id);
+                }
+            }
+        }
+    }
+}
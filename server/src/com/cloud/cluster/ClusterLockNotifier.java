@@ -0,0 +1,70 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.NotifyLockCommand;
+import com.cloud.utils.db.Merovingian2;
+
+/**
+ * Sends the lock notifications of the lock master to the other management
+ * servers, so that threads waiting for a lock held on another server are
+ * woken up when it is released instead of at their next poll.
+ */
+public class ClusterLockNotifier implements Merovingian2.PeerNotifier {
+    private static final Logger s_logger = Logger.getLogger(ClusterLockNotifier.class);
+
+    private final ClusterManager _clusterMgr;
+
+    public ClusterLockNotifier(ClusterManager clusterMgr) {
+        _clusterMgr = clusterMgr;
+    }
+
+    @Override
+    public void notifyWaiting(long ownerMsId, String key) {
+        send(ownerMsId, new NotifyLockCommand(key, false));
+    }
+
+    @Override
+    public void notifyReleased(long waiterMsId, String key) {
+        send(waiterMsId, new NotifyLockCommand(key, true));
+    }
+
+    private void send(long msId, NotifyLockCommand cmd) {
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Notifying " + msId + " of lck-" + cmd.getKey() + (cmd.isReleased() ? " released" : " waited for"));
+        }
+        _clusterMgr.executeAsync(Long.toString(msId), 0, new Command[] { cmd }, false);
+    }
+
+    /**
+     * Applies a notification received from a peer.
+     */
+    public static void apply(String sourcePeer, NotifyLockCommand cmd) {
+        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if (lockMaster == null) {
+            return;
+        }
+        if (cmd.isReleased()) {
+            lockMaster.wakeup(cmd.getKey());
+        } else {
+            lockMaster.addPeerWaiter(Long.parseLong(sourcePeer), cmd.getKey());
+        }
+    }
+}
@@ -35,6 +35,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -51,6 +52,8 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.InvalidateEntityCacheCommand;
+import com.cloud.agent.api.NotifyLockCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.manager.Commands;
@@ -78,6 +81,7 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Merovingian2;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
@@ -94,12 +98,28 @@ public class ClusterManagerImpl implements ClusterManager {
     private static final Logger s_logger = Logger.getLogger(ClusterManagerImpl.class);
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
-    private static final int DEFAULT_OUTGOING_WORKERS = 5; 
+    private static final int CACHE_INVALIDATION_INTERVAL = 100; // 100 ms
+    private static final int MAX_PDUS_PER_BATCH = 64;
+    private static final int MAX_CHARS_PER_BATCH = 1024 * 1024;
+    private static final int DEFAULT_PDU_DISPATCH_LANES = 16;
+    private static final int DEFAULT_PDU_DISPATCH_QUEUE_SIZE = 1000;
+    // how long a receiver waits for room in a full dispatch lane
+    private static final int PDU_DISPATCH_MAX_WAIT = 5000; // 5 seconds
+    private static final int DEFAULT_PEER_PROBE_INTERVAL = 250; // 250 ms
+    private static final int DEFAULT_PEER_PROBE_TIMEOUT = 1000; // 1 second
+    private static final int DEFAULT_PEER_PROBE_MAX_MISSED_ROUNDS = 3;
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
-    private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
+    private final Map<Long, ManagementServerHostVO> _activePeers = new ConcurrentHashMap<Long, ManagementServerHostVO>();
     private int _heartbeatInterval = ClusterManager.DEFAULT_HEARTBEAT_INTERVAL;
     private int _heartbeatThreshold = ClusterManager.DEFAULT_HEARTBEAT_THRESHOLD;
+    private int _peerProbeInterval = DEFAULT_PEER_PROBE_INTERVAL;
+    private int _peerProbeTimeout = DEFAULT_PEER_PROBE_TIMEOUT;
+    private int _peerProbeMaxMissedRounds = DEFAULT_PEER_PROBE_MAX_MISSED_ROUNDS;
+    private ClusterPeerProber _peerProber;
+    private long _lastHeartbeatUpdate = 0;
+    // peers removed for missing probes, by host id, with the run id they were removed with
+    private final Map<Long, Long> _probedDownPeers = new HashMap<Long, Long>();
 
     private final Map<String, ClusterService> _clusterPeers;
     private final Gson _gson;
@@ -115,6 +135,7 @@ public class ClusterManagerImpl implements ClusterManager {
     private final ExecutorService _notificationExecutor = Executors.newFixedThreadPool(1, new NamedThreadFactory("Cluster-Notification"));
     private final List<ClusterManagerMessage> _notificationMsgs = new ArrayList<ClusterManagerMessage>();
     private ConnectionConcierge _heartbeatConnection = null;
+    private final ClusterEntityCacheInvalidator _cacheInvalidator = new ClusterEntityCacheInvalidator(this);
 
     private final ExecutorService _executor;
 
@@ -142,8 +163,8 @@ public class ClusterManagerImpl implements ClusterManager {
     private double _connectedAgentsThreshold = 0.7;
     private static boolean _agentLbHappened = false;
     
-    private List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
-    private List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
+    private final ConcurrentHashMap<String, ClusterPeerChannel> _peerChannels = new ConcurrentHashMap<String, ClusterPeerChannel>();
+    private ClusterPduDispatcher _pduDispatcher;
     private Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
     
     public ClusterManagerImpl() {
@@ -176,6 +197,17 @@ public class ClusterManagerImpl implements ClusterManager {
     }
     
     private void cancelClusterRequestToPeer(String strPeer) {
+        ClusterPeerChannel channel = _peerChannels.get(strPeer);
+        if (channel != null) {
+            List<ClusterServicePdu> dropped = channel.clear();
+            // the peer may come back running another version
+            channel.setBatchSupported(true);
+            if (!dropped.isEmpty()) {
+                s_logger.warn("Drop " + dropped.size() + " queued cluster PDUs to peer: " + strPeer);
+                channel.failed(dropped.size());
+            }
+        }
+
         List<ClusterServiceRequestPdu> candidates = new ArrayList<ClusterServiceRequestPdu>();
         synchronized(_outgoingPdusWaitingForAck) {
             for(Map.Entry<Long, ClusterServiceRequestPdu> entry : _outgoingPdusWaitingForAck.entrySet()) {
@@ -196,156 +228,164 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
     
-    private void addOutgoingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		_clusterPduOutgoingQueue.add(pdu);
-    		_clusterPduOutgoingQueue.notifyAll();
-    	}
-    }
-    
-    private ClusterServicePdu popOutgoingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduOutgoingQueue) {
-    		try {
-				_clusterPduOutgoingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduOutgoingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-				_clusterPduOutgoingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+    private ClusterPeerChannel getPeerChannel(String strPeer) {
+        ClusterPeerChannel channel = _peerChannels.get(strPeer);
+        if (channel == null) {
+            channel = new ClusterPeerChannel(strPeer);
+            ClusterPeerChannel existing = _peerChannels.putIfAbsent(strPeer, channel);
+            if (existing != null) {
+                return existing;
+            }
+            try {
+                JmxUtil.registerMBean("ClusterManager", "Peer Channel " + strPeer, channel);
+            } catch (Exception e) {
+                s_logger.warn("Unable to register cluster peer channel mbean for " + strPeer, e);
+            }
+        }
+        return channel;
     }
 
-    private void addIncomingClusterPdu(ClusterServicePdu pdu) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		_clusterPduIncomingQueue.add(pdu);
-    		_clusterPduIncomingQueue.notifyAll();
-    	}
-    }
-    
-    private ClusterServicePdu popIncomingClusterPdu(long timeoutMs) {
-    	synchronized(_clusterPduIncomingQueue) {
-    		try {
-    			_clusterPduIncomingQueue.wait(timeoutMs);
-			} catch (InterruptedException e) {
-			}
-			
-			if(_clusterPduIncomingQueue.size() > 0) {
-				ClusterServicePdu pdu = _clusterPduIncomingQueue.get(0);
-				_clusterPduIncomingQueue.remove(0);
-				return pdu;
-			}
-    	}
-    	return null;
+    private void addOutgoingClusterPdu(ClusterServicePdu pdu) {
+        final ClusterPeerChannel channel = getPeerChannel(pdu.getDestPeer());
+        channel.add(pdu);
+        if (channel.tryStartSender()) {
+            _executor.execute(new Runnable() {
+                public void run() {
+                    onSendingClusterPdu(channel);
+                }
+            });
+        }
     }
-    
-    private Runnable getClusterPduSendingTask() {
-        return new Runnable() {
-            public void run() {
-                onSendingClusterPdu();
+
+    private void onSendingClusterPdu(ClusterPeerChannel channel) {
+        while (true) {
+            List<ClusterServicePdu> batch = channel.drainBatch(MAX_PDUS_PER_BATCH, MAX_CHARS_PER_BATCH);
+            if (batch.isEmpty()) {
+                channel.stopSender();
+                // a PDU queued while we were stopping may have found the
+                // sender still running
+                if (channel.isEmpty() || !channel.tryStartSender()) {
+                    return;
+                }
+                continue;
             }
-        };
+
+            try {
+                sendClusterPdus(channel, batch);
+            } catch(Throwable e) {
+                s_logger.error("Unexcpeted exception: ", e);
+            }
+        }
     }
-    
-    private Runnable getClusterPduNotificationTask() {
-        return new Runnable() {
-            public void run() {
-                onNotifyingClusterPdu();
+
+    private void sendClusterPdus(ClusterPeerChannel channel, List<ClusterServicePdu> batch) {
+        String strPeer = channel.getPeer();
+        if (batch.size() == 1 || channel.isBatchSupported()) {
+            try {
+                if (sendClusterPdus(channel, batch.toArray(new ClusterServicePdu[batch.size()]))) {
+                    return;
+                }
+                // the peer may have executed part of the batch, resending it
+                // could run agent commands twice
+                channel.failed(batch.size());
+                s_logger.warn("Unable to deliver " + batch.size() + " cluster PDUs to peer " + strPeer);
+                return;
+            } catch (ClusterMethodNotSupportedException e) {
+                // nothing in the batch was executed, the peer runs a version
+                // that only takes one PDU per request
+                s_logger.info("Peer " + strPeer + " does not support PDU batches, sending PDUs one at a time");
+                channel.setBatchSupported(false);
             }
-        };
+        }
+
+        int failed = 0;
+        for (ClusterServicePdu pdu : batch) {
+            try {
+                if (!sendClusterPdus(channel, new ClusterServicePdu[] { pdu })) {
+                    failed++;
+                }
+            } catch (ClusterMethodNotSupportedException e) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            channel.failed(failed);
+            s_logger.warn("Unable to deliver " + failed + " cluster PDUs to peer " + strPeer);
+        }
     }
-    
-    private void onSendingClusterPdu() {
-        while(true) {
+
+    private boolean sendClusterPdus(ClusterPeerChannel channel, ClusterServicePdu[] pdus) throws ClusterMethodNotSupportedException {
+        String strPeer = channel.getPeer();
+        for(int i = 0; i < 2; i++) {
+            ClusterService peerService =  null;
             try {
-                ClusterServicePdu pdu = popOutgoingClusterPdu(1000);
-                if(pdu == null)
-                	continue;
-                	
-                ClusterService peerService =  null;
-                for(int i = 0; i < 2; i++) {
-                    try {
-                        peerService = getPeerService(pdu.getDestPeer());
-                    } catch (RemoteException e) {
-                        s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
+                peerService = getPeerService(strPeer);
+            } catch (RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + strPeer);
+            }
+            if(peerService == null) {
+                continue;
+            }
+
+            try {
+                if(s_logger.isDebugEnabled()) {
+                    for (ClusterServicePdu pdu : pdus) {
+                        s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + strPeer + ". agent: " + pdu.getAgentId()
+                            + ", pdu seq: " + pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
                     }
+                }
 
-                    if(peerService != null) {
-                        try {
-                            if(s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() 
-                                    + ", pdu seq: " + pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+                long startTick = System.currentTimeMillis();
+                String strResult = peerService.execute(pdus);
+                long latency = System.currentTimeMillis() - startTick;
+                if(s_logger.isDebugEnabled()) {
+                    s_logger.debug("Cluster PDU batch " + getSelfPeerName() + " -> " + strPeer + " completed. time: " +
+                        latency + "ms. pdus: " + pdus.length + ", first pdu seq: " + pdus[0].getSequenceId());
+                }
 
-                            long startTick = System.currentTimeMillis();
-                            String strResult = peerService.execute(pdu);
-                            if(s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
-                                    (System.currentTimeMillis() - startTick) + "ms. agent: " + pdu.getAgentId() 
-                                     + ", pdu seq: " + pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
-                            
-                            if("true".equals(strResult))
-                                break;
-                            
-                        } catch (RemoteException e) {
-                            invalidatePeerService(pdu.getDestPeer());
-                            if(s_logger.isInfoEnabled()) {
-                                s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: "
-                                        + i + ", exception message :" + e.getMessage());
-                            }
-                        }
-                    }
+                if("true".equals(strResult)) {
+                    channel.sent(pdus.length, latency);
+                    return true;
+                }
+            } catch (ClusterMethodNotSupportedException e) {
+                throw e;
+            } catch (RemoteException e) {
+                invalidatePeerService(strPeer);
+                if(s_logger.isInfoEnabled()) {
+                    s_logger.info("Exception on remote execution, peer: " + strPeer + ", iteration: "
+                            + i + ", exception message :" + e.getMessage());
                 }
-            } catch(Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
             }
         }
+        return false;
     }
     
-    private void onNotifyingClusterPdu() {
-        while(true) {
-            try {
-                final ClusterServicePdu pdu = popIncomingClusterPdu(1000);
-                if(pdu == null)
-                	continue;
-
-                _executor.execute(new Runnable() {
-                	public void run() {
-		                if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
-		                    ClusterServiceRequestPdu requestPdu = popRequestPdu(pdu.getAckSequenceId());
-		                    if(requestPdu != null) {
-		                        requestPdu.setResponseResult(pdu.getJsonPackage());
-		                        synchronized(requestPdu) {
-		                            requestPdu.notifyAll();
-		                        }
-		                    } else {
-		                        s_logger.warn("Original request has already been cancelled. pdu: " + _gson.toJson(pdu));
-		                    }
-		                } else {
-		                    String result = dispatchClusterServicePdu(pdu);
-		                    if(result == null)
-		                        result = "";
-		                    
-		                    if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_REQUEST) {
-			                    ClusterServicePdu responsePdu = new ClusterServicePdu();
-			                    responsePdu.setPduType(ClusterServicePdu.PDU_TYPE_RESPONSE);
-			                    responsePdu.setSourcePeer(pdu.getDestPeer());
-			                    responsePdu.setDestPeer(pdu.getSourcePeer());
-			                    responsePdu.setAckSequenceId(pdu.getSequenceId());
-			                    responsePdu.setJsonPackage(result);
-			                    
-			                    addOutgoingClusterPdu(responsePdu);
-		                    }
-		                }
-                	}
-                });
-            } catch(Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
+    private void onClusterResponsePdu(ClusterServicePdu pdu) {
+        ClusterServiceRequestPdu requestPdu = popRequestPdu(pdu.getAckSequenceId());
+        if(requestPdu != null) {
+            requestPdu.setResponseResult(pdu.getJsonPackage());
+            synchronized(requestPdu) {
+                requestPdu.notifyAll();
             }
+        } else {
+            s_logger.warn("Original request has already been cancelled. pdu: " + _gson.toJson(pdu));
+        }
+    }
+
+    private void onClusterServicePdu(ClusterServicePdu pdu) {
+        String result = dispatchClusterServicePdu(pdu);
+        if(result == null)
+            result = "";
+
+        if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_REQUEST) {
+            ClusterServicePdu responsePdu = new ClusterServicePdu();
+            responsePdu.setPduType(ClusterServicePdu.PDU_TYPE_RESPONSE);
+            responsePdu.setSourcePeer(pdu.getDestPeer());
+            responsePdu.setDestPeer(pdu.getSourcePeer());
+            responsePdu.setAckSequenceId(pdu.getSequenceId());
+            responsePdu.setJsonPackage(result);
+
+            addOutgoingClusterPdu(responsePdu);
         }
     }
     
@@ -407,6 +447,12 @@ public class ClusterManagerImpl implements ClusterManager {
             Answer[] answers = new Answer[1];
             answers[0] = new Answer(cmd, result, null);
             return _gson.toJson(answers);
+        } else if (cmds.length > 0 && cmds[0] instanceof InvalidateEntityCacheCommand) {
+            ClusterEntityCacheInvalidator.apply(cmds);
+            return null;
+        } else if (cmds.length == 1 && cmds[0] instanceof NotifyLockCommand) {
+            ClusterLockNotifier.apply(pdu.getSourcePeer(), (NotifyLockCommand)cmds[0]);
+            return null;
         } else if (cmds.length == 1 && cmds[0] instanceof PropagateResourceEventCommand ) {
         	PropagateResourceEventCommand cmd = (PropagateResourceEventCommand) cmds[0];
         	
@@ -457,8 +503,27 @@ public class ClusterManagerImpl implements ClusterManager {
         return null;
     }
 
-    public void OnReceiveClusterServicePdu(ClusterServicePdu pdu) {
-    	addIncomingClusterPdu(pdu);
+    public void OnReceiveClusterServicePdu(final ClusterServicePdu pdu) {
+        if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_RESPONSE) {
+            // only wakes up the caller waiting for it
+            onClusterResponsePdu(pdu);
+            return;
+        }
+
+        Runnable task = new Runnable() {
+            public void run() {
+                onClusterServicePdu(pdu);
+            }
+        };
+        if(pdu.getPduType() == ClusterServicePdu.PDU_TYPE_REQUEST) {
+            // a request is ordered by its sender, which waits for the answer.
+            // Handling one may call back into the sending peer, so requests
+            // do not hold a lane while they wait.
+            _executor.execute(_pduDispatcher.track(task));
+        } else {
+            long key = pdu.getAgentId() != 0 ? pdu.getAgentId() : NumbersUtil.parseLong(pdu.getSourcePeer(), 0);
+            _pduDispatcher.dispatch(key, task);
+        }
     }
     
     @Override
@@ -533,6 +598,25 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
 
+    /**
+     * Sends the commands to the peers the last heartbeat found active.  Unlike
+     * broadcast it doesn't read the peer list from the database, which suits
+     * frequent notifications such as cache invalidations.
+     */
+    void broadcastToActivePeers(long agentId, Command[] cmds) {
+        for (ManagementServerHostVO peer : _activePeers.values()) {
+            String peerName = Long.toString(peer.getMsid());
+            if (getSelfPeerName().equals(peerName)) {
+                continue;
+            }
+            try {
+                executeAsync(peerName, agentId, cmds, true);
+            } catch (Exception e) {
+                s_logger.warn("Caught exception while talking to " + peer.getMsid());
+            }
+        }
+    }
+
     @Override
     public void executeAsync(String strPeer, long agentId, Command [] cmds, boolean stopOnError) {
         ClusterServicePdu pdu = new ClusterServicePdu();
@@ -733,7 +817,13 @@ public class ClusterManagerImpl implements ClusterManager {
                             s_logger.trace("Cluster manager heartbeat update, id:" + _mshostId);
                         }
     
-                        _mshostDao.update(_mshostId, getCurrentRunId(), DateUtil.currentGMTTime());
+                        // while peers watch each other through probes, the timestamp only needs to stay
+                        // within the threshold for the peers that do not answer probes
+                        long now = System.currentTimeMillis();
+                        if (_peerProber == null || now - _lastHeartbeatUpdate >= Math.max(_heartbeatInterval, _heartbeatThreshold / 3)) {
+                            _mshostDao.update(_mshostId, getCurrentRunId(), DateUtil.currentGMTTime());
+                            _lastHeartbeatUpdate = now;
+                        }
                         profilerHeartbeatUpdate.stop();
     
                         profilerPeerScan.start();
@@ -965,6 +1055,59 @@ public class ClusterManagerImpl implements ClusterManager {
         return null;
     }
 
+    private Runnable getPeerProbeTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probePeers();
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception in cluster peer probe", e);
+                }
+            }
+        };
+    }
+
+    private void probePeers() {
+        List<ManagementServerHostVO> downList = new ArrayList<ManagementServerHostVO>();
+        for (ManagementServerHostVO mshost : _activePeers.values()) {
+            if (mshost.getId() == _mshostId.longValue()) {
+                continue;
+            }
+
+            if (_peerProber.isSuspect(mshost.getMsid())) {
+                if (pingManagementNode(mshost)) {
+                    s_logger.info("Management node " + mshost.getId() + " stopped answering probes but is pingable");
+                    _peerProber.forget(mshost.getMsid());
+                } else if (_peerProber.missedRound(mshost.getMsid())) {
+                    s_logger.warn("Management node " + mshost.getId() + " stopped answering probes and was not pingable for "
+                            + _peerProbeMaxMissedRounds + " probe rounds");
+                    downList.add(mshost);
+                    continue;
+                } else if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Management node " + mshost.getId() + " stopped answering probes and is not pingable, waiting for further rounds");
+                }
+            }
+            // suspects keep being probed so a late answer clears them
+            _peerProber.probe(mshost.getMsid(), mshost.getServiceIP(), mshost.getServicePort());
+        }
+
+        for (ManagementServerHostVO mshost : downList) {
+            _activePeers.remove(mshost.getId());
+            _probedDownPeers.put(mshost.getId(), mshost.getRunid());
+            _peerProber.forget(mshost.getMsid());
+            try {
+                JmxUtil.unregisterMBean("ClusterManager", "Node " + mshost.getId());
+            } catch(Exception e) {
+                s_logger.warn("Unable to deregiester cluster node from JMX monitoring due to exception " + e.toString());
+            }
+        }
+
+        if (downList.size() > 0) {
+            this.queueNotification(new ClusterManagerMessage(ClusterManagerMessage.MessageType.nodeRemoved, downList));
+        }
+    }
+
     private void initPeerScan() {
         // upon startup, for all inactive management server nodes that we see at startup time, we will send notification also to help upper layer perform
         // missed cleanup
@@ -1086,7 +1229,12 @@ public class ClusterManagerImpl implements ClusterManager {
         Iterator<ManagementServerHostVO> it = removedNodeList.iterator();
         while(it.hasNext()) {
             ManagementServerHostVO mshost = it.next();
-            if(!pingManagementNode(mshost)) {
+            if(_peerProber != null && _peerProber.isAlive(mshost.getMsid())) {
+                if(s_logger.isDebugEnabled()) {
+                    s_logger.debug("Management node " + mshost.getId() + " is detected inactive by timestamp but answers probes");
+                }
+                it.remove();
+            } else if(!pingManagementNode(mshost)) {
                 s_logger.warn("Management node " + mshost.getId() + " is detected inactive by timestamp and also not pingable");
                 _activePeers.remove(mshost.getId());
                 try {
@@ -1105,9 +1253,21 @@ public class ClusterManagerImpl implements ClusterManager {
         }
         profilerRemovedList.stop();
 
+        // a node removed for missing probes stays out until its session changes or its heartbeat expires
+        if(!_probedDownPeers.isEmpty()) {
+            Iterator<Map.Entry<Long, Long>> itDown = _probedDownPeers.entrySet().iterator();
+            while(itDown.hasNext()) {
+                Map.Entry<Long, Long> entry = itDown.next();
+                ManagementServerHostVO current = getInListById(entry.getKey(), currentList);
+                if(current == null || current.getRunid() != entry.getValue().longValue()) {
+                    itDown.remove();
+                }
+            }
+        }
+
         List<ManagementServerHostVO> newNodeList = new ArrayList<ManagementServerHostVO>();
         for(ManagementServerHostVO mshost : currentList) {
-            if(!_activePeers.containsKey(mshost.getId())) {
+            if(!_activePeers.containsKey(mshost.getId()) && !_probedDownPeers.containsKey(mshost.getId())) {
                 _activePeers.put(mshost.getId(), mshost);
 
                 if(s_logger.isDebugEnabled()) {
@@ -1201,9 +1361,19 @@ public class ClusterManagerImpl implements ClusterManager {
             
             _mshostPeerDao.clearPeerInfo(_mshostId);
 
+            if (_peerProbeInterval > 0) {
+                startPeerProber();
+            }
+
             // use seperate thread for heartbeat updates
             _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), _heartbeatInterval, _heartbeatInterval, TimeUnit.MILLISECONDS);
+            if (_peerProber != null) {
+                // probes share the heartbeat thread as both work on the active peer list
+                _heartbeatScheduler.scheduleAtFixedRate(getPeerProbeTask(), _peerProbeInterval, _peerProbeInterval, TimeUnit.MILLISECONDS);
+            }
             _notificationExecutor.submit(getNotificationTask());
+            _cacheInvalidator.start(CACHE_INVALIDATION_INTERVAL);
+            Merovingian2.getLockMaster().setPeerNotifier(new ClusterLockNotifier(this));
 
         } catch (Throwable e) {
             s_logger.error("Unexpected exception : ", e);
@@ -1219,6 +1389,24 @@ public class ClusterManagerImpl implements ClusterManager {
         return true;
     }
 
+    private void startPeerProber() {
+        ClusterPeerProber prober = new ClusterPeerProber(_msId, getCurrentRunId(), _peerProbeTimeout, _peerProbeMaxMissedRounds);
+        try {
+            prober.start(_clusterNodeIP, _currentServiceAdapter.getServicePort());
+        } catch (IOException e) {
+            s_logger.warn("Unable to start cluster peer probes on udp " + _clusterNodeIP + ":" + _currentServiceAdapter.getServicePort()
+                    + ", peers are watched through the heartbeat only", e);
+            return;
+        }
+        _peerProber = prober;
+
+        try {
+            JmxUtil.registerMBean("ClusterManager", "Peer Prober", prober);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register cluster peer prober mbean", e);
+        }
+    }
+
     @Override @DB
     public boolean stop() {
         if(_mshostId != null) {
@@ -1227,8 +1415,14 @@ public class ClusterManagerImpl implements ClusterManager {
             _mshostDao.update(_mshostId, mshost);
         }
 
+        _cacheInvalidator.stop();
+        Merovingian2.getLockMaster().setPeerNotifier(null);
         _heartbeatScheduler.shutdownNow();
         _executor.shutdownNow();
+        _pduDispatcher.stop();
+        if (_peerProber != null) {
+            _peerProber.stop();
+        }
 
         try {
             _heartbeatScheduler.awaitTermination(EXECUTOR_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
@@ -1293,6 +1487,10 @@ public class ClusterManagerImpl implements ClusterManager {
             _heartbeatThreshold = NumbersUtil.parseInt(value, ClusterManager.DEFAULT_HEARTBEAT_THRESHOLD);
         }
 
+        _peerProbeInterval = NumbersUtil.parseInt(configs.get(Config.ClusterPeerProbeInterval.key()), DEFAULT_PEER_PROBE_INTERVAL);
+        _peerProbeTimeout = NumbersUtil.parseInt(configs.get(Config.ClusterPeerProbeTimeout.key()), DEFAULT_PEER_PROBE_TIMEOUT);
+        _peerProbeMaxMissedRounds = NumbersUtil.parseInt(configs.get(Config.ClusterPeerProbeMaxMissedRounds.key()), DEFAULT_PEER_PROBE_MAX_MISSED_ROUNDS);
+
         File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
         Properties dbProps = new Properties();
         try {
@@ -1316,11 +1514,15 @@ public class ClusterManagerImpl implements ClusterManager {
             throw new ConfigurationException("cluster node IP should be valid local address where the server is running, please check your configuration");
         }
 
-        for(int i = 0; i < DEFAULT_OUTGOING_WORKERS; i++)
-        	_executor.execute(getClusterPduSendingTask());
-        
-        // notification task itself in turn works as a task dispatcher
-        _executor.execute(getClusterPduNotificationTask());
+        int dispatchLanes = NumbersUtil.parseInt(configs.get(Config.ClusterPduDispatchLanes.key()), DEFAULT_PDU_DISPATCH_LANES);
+        int dispatchQueueSize = NumbersUtil.parseInt(configs.get(Config.ClusterPduDispatchQueueSize.key()), DEFAULT_PDU_DISPATCH_QUEUE_SIZE);
+        _pduDispatcher = new ClusterPduDispatcher("Cluster-Dispatch", Math.max(1, dispatchLanes), Math.max(1, dispatchQueueSize), PDU_DISPATCH_MAX_WAIT);
+        _pduDispatcher.start();
+        try {
+            JmxUtil.registerMBean("ClusterManager", "PDU Dispatcher", _pduDispatcher);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register cluster PDU dispatcher mbean", e);
+        }
 
         Adapters<ClusterServiceAdapter> adapters = locator.getAdapters(ClusterServiceAdapter.class);
         if (adapters == null || !adapters.isSet()) {
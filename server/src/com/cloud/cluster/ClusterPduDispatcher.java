@@ -0,0 +1,252 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Runs incoming cluster PDUs on a fixed set of lanes. Each lane is a single
+ * thread, and PDUs with the same key always go to the same lane, so they
+ * are processed in the order they arrived while PDUs with different keys
+ * are processed in parallel.
+ *
+ * A lane holds at most queueSize PDUs. A receiver adding to a full lane
+ * waits up to maxWaitMs for room, which slows down the peer delivering the
+ * PDUs, and then adds the PDU anyway, so a stuck lane can not block the
+ * cluster service threads forever.
+ */
+public class ClusterPduDispatcher extends StandardMBean implements ClusterPduDispatcherMBean {
+    private static final Logger s_logger = Logger.getLogger(ClusterPduDispatcher.class);
+
+    private static class Item {
+        final Runnable _task;
+        final long _queuedTick;
+
+        Item(Runnable task) {
+            _task = task;
+            _queuedTick = System.currentTimeMillis();
+        }
+    }
+
+    private class Lane implements Runnable {
+        final LinkedBlockingQueue<Item> _queue = new LinkedBlockingQueue<Item>();
+        volatile int _waiters;
+
+        void add(Item item) {
+            if (_queue.size() >= _queueSize) {
+                long startTick = System.currentTimeMillis();
+                synchronized (this) {
+                    _waiters++;
+                    try {
+                        long remaining = _maxWaitMs;
+                        while (_queue.size() >= _queueSize && remaining > 0) {
+                            wait(remaining);
+                            remaining = _maxWaitMs - (System.currentTimeMillis() - startTick);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        _waiters--;
+                    }
+                }
+                _backpressureWaits.incrementAndGet();
+                _backpressureWaitTime.addAndGet(System.currentTimeMillis() - startTick);
+            }
+            _queue.add(item);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Item item;
+                try {
+                    item = _queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (_waiters > 0) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+
+                long startTick = System.currentTimeMillis();
+                try {
+                    item._task.run();
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception when dispatching cluster PDU", e);
+                }
+                dispatched(startTick - item._queuedTick, System.currentTimeMillis() - startTick);
+            }
+        }
+    }
+
+    private final Lane[] _lanes;
+    private final Thread[] _threads;
+    private final int _queueSize;
+    private final long _maxWaitMs;
+
+    private final AtomicInteger _requestsInProgress = new AtomicInteger();
+    private final AtomicLong _dispatched = new AtomicLong();
+    private final AtomicLong _totalQueueTime = new AtomicLong();
+    private final AtomicLong _totalDispatchTime = new AtomicLong();
+    private final AtomicLong _maxDispatchTime = new AtomicLong();
+    private final AtomicLong _backpressureWaits = new AtomicLong();
+    private final AtomicLong _backpressureWaitTime = new AtomicLong();
+
+    public ClusterPduDispatcher(String name, int lanes, int queueSize, long maxWaitMs) {
+        super(ClusterPduDispatcherMBean.class, false);
+        _queueSize = queueSize;
+        _maxWaitMs = maxWaitMs;
+        _lanes = new Lane[lanes];
+        _threads = new Thread[lanes];
+
+        ThreadFactory factory = new NamedThreadFactory(name);
+        for (int i = 0; i < lanes; i++) {
+            _lanes[i] = new Lane();
+            _threads[i] = factory.newThread(_lanes[i]);
+            _threads[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread thread : _threads) {
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        for (Thread thread : _threads) {
+            thread.interrupt();
+        }
+    }
+
+    public void dispatch(long key, Runnable task) {
+        int hash = (int)(key ^ (key >>> 32));
+        hash ^= (hash >>> 16);
+        _lanes[(hash & 0x7fffffff) % _lanes.length].add(new Item(task));
+    }
+
+    /**
+     * Wraps a PDU processed outside of the lanes so that it is counted too.
+     */
+    public Runnable track(final Runnable task) {
+        final long queuedTick = System.currentTimeMillis();
+        _requestsInProgress.incrementAndGet();
+        return new Runnable() {
+            @Override
+            public void run() {
+                long startTick = System.currentTimeMillis();
+                try {
+                    task.run();
+                } finally {
+                    _requestsInProgress.decrementAndGet();
+                    dispatched(startTick - queuedTick, System.currentTimeMillis() - startTick);
+                }
+            }
+        };
+    }
+
+    private void dispatched(long queueTime, long dispatchTime) {
+        _dispatched.incrementAndGet();
+        _totalQueueTime.addAndGet(queueTime);
+        _totalDispatchTime.addAndGet(dispatchTime);
+        long max = _maxDispatchTime.get();
+        while (dispatchTime > max && !_maxDispatchTime.compareAndSet(max, dispatchTime)) {
+            max = _maxDispatchTime.get();
+        }
+    }
+
+    @Override
+    public int getLanes() {
+        return _lanes.length;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : _lanes) {
+            depth += lane._queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getMaxLaneQueueDepth() {
+        int depth = 0;
+        for (Lane lane : _lanes) {
+            depth = Math.max(depth, lane._queue.size());
+        }
+        return depth;
+    }
+
+    @Override
+    public int getRequestsInProgress() {
+        return _requestsInProgress.get();
+    }
+
+    @Override
+    public long getDispatchedPdus() {
+        return _dispatched.get();
+    }
+
+    @Override
+    public long getAverageQueueTime() {
+        long dispatched = _dispatched.get();
+        return dispatched == 0 ? 0 : _totalQueueTime.get() / dispatched;
+    }
+
+    @Override
+    public long getAverageDispatchTime() {
+        long dispatched = _dispatched.get();
+        return dispatched == 0 ? 0 : _totalDispatchTime.get() / dispatched;
+    }
+
+    @Override
+    public long getMaxDispatchTime() {
+        return _maxDispatchTime.get();
+    }
+
+    @Override
+    public long getBackpressureWaits() {
+        return _backpressureWaits.get();
+    }
+
+    @Override
+    public long getBackpressureWaitTime() {
+        return _backpressureWaitTime.get();
+    }
+
+    @Override
+    public void reset() {
+        _dispatched.set(0);
+        _totalQueueTime.set(0);
+        _totalDispatchTime.set(0);
+        _maxDispatchTime.set(0);
+        _backpressureWaits.set(0);
+        _backpressureWaitTime.set(0);
+    }
+}
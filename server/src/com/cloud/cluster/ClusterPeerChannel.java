@@ -0,0 +1,214 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+/**
+ * Outgoing PDUs to one peer management server. Each peer has its own queue
+ * so that a slow or unreachable peer only delays the PDUs sent to it. A
+ * single sender drains the queue in batches, each batch going out as one
+ * request over the pooled keep-alive connections to the peer, so PDUs for an
+ * agent reach the peer in the order they were queued.
+ */
+public class ClusterPeerChannel extends StandardMBean implements ClusterPeerChannelMBean {
+    private static class QueuedPdu {
+        final ClusterServicePdu _pdu;
+        final long _queuedTick;
+
+        QueuedPdu(ClusterServicePdu pdu) {
+            _pdu = pdu;
+            _queuedTick = System.currentTimeMillis();
+        }
+    }
+
+    private final String _peer;
+    private final LinkedBlockingQueue<QueuedPdu> _queue = new LinkedBlockingQueue<QueuedPdu>();
+    private final AtomicBoolean _sending = new AtomicBoolean();
+    private volatile boolean _batchSupported = true;
+
+    private final AtomicLong _sentPdus = new AtomicLong();
+    private final AtomicLong _sentBatches = new AtomicLong();
+    private final AtomicLong _failedPdus = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+    private final AtomicLong _dequeuedPdus = new AtomicLong();
+    private final AtomicLong _totalQueueTime = new AtomicLong();
+
+    public ClusterPeerChannel(String peer) {
+        super(ClusterPeerChannelMBean.class, false);
+        _peer = peer;
+    }
+
+    public void add(ClusterServicePdu pdu) {
+        _queue.add(new QueuedPdu(pdu));
+    }
+
+    /**
+     * @return true if the caller became the sender of the channel and has to
+     *         drain it until drainBatch returns nothing.
+     */
+    public boolean tryStartSender() {
+        return _sending.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by a sender that found the queue empty. A PDU queued right
+     * before may not have started a sender of its own, so the caller has
+     * to check isEmpty() and try to start again afterwards.
+     */
+    public void stopSender() {
+        _sending.set(false);
+    }
+
+    /**
+     * @return false once the peer rejected a batch request, PDUs to it then
+     *         go out one per request.
+     */
+    public boolean isBatchSupported() {
+        return _batchSupported;
+    }
+
+    public void setBatchSupported(boolean batchSupported) {
+        _batchSupported = batchSupported;
+    }
+
+    public boolean isEmpty() {
+        return _queue.isEmpty();
+    }
+
+    /**
+     * Takes the next PDUs to send, at least one if the queue is not empty.
+     */
+    public List<ClusterServicePdu> drainBatch(int maxPdus, int maxChars) {
+        List<ClusterServicePdu> batch = new ArrayList<ClusterServicePdu>();
+        long now = System.currentTimeMillis();
+        int chars = 0;
+        while (batch.size() < maxPdus) {
+            QueuedPdu queued = _queue.poll();
+            if (queued == null) {
+                break;
+            }
+            batch.add(queued._pdu);
+            _dequeuedPdus.incrementAndGet();
+            _totalQueueTime.addAndGet(now - queued._queuedTick);
+
+            String json = queued._pdu.getJsonPackage();
+            chars += json != null ? json.length() : 0;
+            if (chars >= maxChars) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * @return the PDUs that were still queued.
+     */
+    public List<ClusterServicePdu> clear() {
+        List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+        QueuedPdu queued;
+        while ((queued = _queue.poll()) != null) {
+            pdus.add(queued._pdu);
+        }
+        return pdus;
+    }
+
+    public void sent(int pdus, long latencyMs) {
+        _sentPdus.addAndGet(pdus);
+        _sentBatches.incrementAndGet();
+        _totalLatency.addAndGet(latencyMs);
+        long max = _maxLatency.get();
+        while (latencyMs > max && !_maxLatency.compareAndSet(max, latencyMs)) {
+            max = _maxLatency.get();
+        }
+    }
+
+    public void failed(int pdus) {
+        _failedPdus.addAndGet(pdus);
+    }
+
+    @Override
+    public String getPeer() {
+        return _peer;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    @Override
+    public int getActiveSenders() {
+        return _sending.get() ? 1 : 0;
+    }
+
+    @Override
+    public long getSentPdus() {
+        return _sentPdus.get();
+    }
+
+    @Override
+    public long getSentBatches() {
+        return _sentBatches.get();
+    }
+
+    @Override
+    public long getFailedPdus() {
+        return _failedPdus.get();
+    }
+
+    @Override
+    public long getAveragePdusPerBatch() {
+        long batches = _sentBatches.get();
+        return batches == 0 ? 0 : _sentPdus.get() / batches;
+    }
+
+    @Override
+    public long getAverageBatchLatency() {
+        long batches = _sentBatches.get();
+        return batches == 0 ? 0 : _totalLatency.get() / batches;
+    }
+
+    @Override
+    public long getMaxBatchLatency() {
+        return _maxLatency.get();
+    }
+
+    @Override
+    public long getAverageQueueTime() {
+        long dequeued = _dequeuedPdus.get();
+        return dequeued == 0 ? 0 : _totalQueueTime.get() / dequeued;
+    }
+
+    @Override
+    public void reset() {
+        _sentPdus.set(0);
+        _sentBatches.set(0);
+        _failedPdus.set(0);
+        _totalLatency.set(0);
+        _maxLatency.set(0);
+        _dequeuedPdus.set(0);
+        _totalQueueTime.set(0);
+    }
+}
@@ -0,0 +1,276 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exchanges small UDP probes with the other management servers so a peer
+ * that went away is noticed within a second instead of after the database
+ * heartbeat threshold.
+ *
+ * Every node answers the probes it receives on the udp port matching its
+ * cluster service port. A peer is suspected once it stops answering for
+ * longer than the probe timeout, and only reported down after it stayed
+ * suspect for a number of consecutive probe rounds, so a dropped datagram
+ * or a short pause of the peer does not take it out of the cluster. Peers
+ * that never answered, such as nodes of an older version or nodes behind a
+ * firewall dropping udp, are never suspected and are left to the database
+ * heartbeat.
+ */
+public class ClusterPeerProber extends StandardMBean implements ClusterPeerProberMBean {
+    private static final Logger s_logger = Logger.getLogger(ClusterPeerProber.class);
+
+    private static final int MAGIC = 0x43535052;
+    private static final byte TYPE_PROBE = 1;
+    private static final byte TYPE_ACK = 2;
+    // magic, type, msid, run id, sequence
+    private static final int MESSAGE_SIZE = 4 + 1 + 8 + 8 + 8;
+
+    private final long _msid;
+    private final long _runId;
+    private final long _timeoutMs;
+    private final int _maxMissedRounds;
+
+    private DatagramChannel _channel;
+    private Thread _receiver;
+    private int _port;
+    private long _sequence;
+
+    // msid -> time the last ack from the peer arrived
+    private final Map<Long, Long> _lastAcks = new ConcurrentHashMap<Long, Long>();
+    // msid -> consecutive probe rounds the peer was suspect and not reachable
+    private final Map<Long, Integer> _missedRounds = new ConcurrentHashMap<Long, Integer>();
+
+    private final AtomicLong _sentProbes = new AtomicLong();
+    private final AtomicLong _receivedAcks = new AtomicLong();
+    private final AtomicLong _answeredProbes = new AtomicLong();
+
+    public ClusterPeerProber(long msid, long runId, long timeoutMs, int maxMissedRounds) {
+        super(ClusterPeerProberMBean.class, false);
+        _msid = msid;
+        _runId = runId;
+        _timeoutMs = timeoutMs;
+        _maxMissedRounds = Math.max(1, maxMissedRounds);
+    }
+
+    public synchronized void start(String ip, int port) throws IOException {
+        _channel = DatagramChannel.open();
+        try {
+            _channel.socket().bind(new InetSocketAddress(ip, port));
+        } catch (IOException e) {
+            _channel.close();
+            throw e;
+        }
+        _port = _channel.socket().getLocalPort();
+
+        _receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "Cluster-Probe-Receiver");
+        _receiver.setDaemon(true);
+        _receiver.start();
+    }
+
+    public synchronized void stop() {
+        if (_channel != null) {
+            try {
+                _channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Sends a probe to a peer. Called from the single cluster heartbeat
+     * thread.
+     */
+    public void probe(long msid, String ip, int port) {
+        ByteBuffer buffer = encode(TYPE_PROBE, ++_sequence);
+        try {
+            _channel.send(buffer, new InetSocketAddress(ip, port));
+            _sentProbes.incrementAndGet();
+        } catch (IOException e) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Unable to probe management server " + msid + " at " + ip + ":" + port + ", " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if the peer has answered probes before but not within
+     *         the probe timeout.
+     */
+    public boolean isSuspect(long msid) {
+        Long lastAck = _lastAcks.get(msid);
+        return lastAck != null && System.currentTimeMillis() - lastAck > _timeoutMs;
+    }
+
+    /**
+     * @return true if the peer has answered a probe within the probe timeout.
+     */
+    public boolean isAlive(long msid) {
+        Long lastAck = _lastAcks.get(msid);
+        return lastAck != null && System.currentTimeMillis() - lastAck <= _timeoutMs;
+    }
+
+    /**
+     * Counts a probe round in which the peer was suspect and could not be
+     * reached otherwise either. The count starts over once the peer answers.
+     *
+     * @return true if the peer has now missed enough consecutive rounds to
+     *         be considered down.
+     */
+    public boolean missedRound(long msid) {
+        Integer missed = _missedRounds.get(msid);
+        missed = missed == null ? 1 : missed + 1;
+        _missedRounds.put(msid, missed);
+        return missed >= _maxMissedRounds;
+    }
+
+    /**
+     * Stops suspecting a peer until it answers a probe again.
+     */
+    public void forget(long msid) {
+        _lastAcks.remove(msid);
+        _missedRounds.remove(msid);
+    }
+
+    private ByteBuffer encode(byte type, long sequence) {
+        ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.put(type);
+        buffer.putLong(_msid);
+        buffer.putLong(_runId);
+        buffer.putLong(sequence);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_SIZE);
+        while (true) {
+            SocketAddress source;
+            buffer.clear();
+            try {
+                source = _channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!_channel.isOpen()) {
+                    return;
+                }
+                s_logger.warn("Unable to receive cluster probe", e);
+                continue;
+            }
+
+            buffer.flip();
+            if (source == null || buffer.remaining() != MESSAGE_SIZE || buffer.getInt() != MAGIC) {
+                continue;
+            }
+            byte type = buffer.get();
+            long msid = buffer.getLong();
+            buffer.getLong();
+            long sequence = buffer.getLong();
+            if (msid == _msid) {
+                continue;
+            }
+
+            if (type == TYPE_PROBE) {
+                try {
+                    _channel.send(encode(TYPE_ACK, sequence), source);
+                    _answeredProbes.incrementAndGet();
+                } catch (IOException e) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Unable to answer cluster probe from " + source + ", " + e.getMessage());
+                    }
+                }
+            } else if (type == TYPE_ACK) {
+                _missedRounds.remove(msid);
+                _lastAcks.put(msid, System.currentTimeMillis());
+                _receivedAcks.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return _port;
+    }
+
+    @Override
+    public long getProbeTimeout() {
+        return _timeoutMs;
+    }
+
+    @Override
+    public int getMaxMissedRounds() {
+        return _maxMissedRounds;
+    }
+
+    @Override
+    public int getProbedPeers() {
+        return _lastAcks.size();
+    }
+
+    @Override
+    public int getSuspectedPeers() {
+        int count = 0;
+        for (Long msid : _lastAcks.keySet()) {
+            if (isSuspect(msid)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getSentProbes() {
+        return _sentProbes.get();
+    }
+
+    @Override
+    public long getReceivedAcks() {
+        return _receivedAcks.get();
+    }
+
+    @Override
+    public long getAnsweredProbes() {
+        return _answeredProbes.get();
+    }
+
+    @Override
+    public void reset() {
+        _sentProbes.set(0);
+        _receivedAcks.set(0);
+        _answeredProbes.set(0);
+    }
+}
@@ -21,5 +21,6 @@ import java.rmi.RemoteException;
 
 public interface ClusterService extends Remote {
     String execute(ClusterServicePdu pdu) throws RemoteException;
+    String execute(ClusterServicePdu[] pdus) throws RemoteException;
     boolean ping(String callingPeer) throws RemoteException;
 }
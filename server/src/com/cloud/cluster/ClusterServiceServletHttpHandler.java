@@ -31,6 +31,8 @@ import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+import com.cloud.serializer.GsonHelper;
+
 public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletHttpHandler.class);
 
@@ -118,6 +120,7 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
 
         int nMethod = RemoteMethodConstants.METHOD_UNKNOWN;
         String responseContent = null;
+        boolean failed = false;
         try {
             if(method != null) {
                 nMethod = Integer.parseInt(method);
@@ -128,6 +131,10 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                 responseContent = handleDeliverPduMethodCall(req);
                 break;
 
+            case RemoteMethodConstants.METHOD_DELIVER_PDUS :
+                responseContent = handleDeliverPdusMethodCall(req);
+                break;
+
             case RemoteMethodConstants.METHOD_PING :
                 responseContent = handlePingMethodCall(req);
                 break;
@@ -140,6 +147,7 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
             }
         } catch(Throwable e) {
             s_logger.error("Unexpected exception when processing cluster service request : ", e);
+            failed = true;
         }
 
         if(responseContent != null) {
@@ -147,6 +155,13 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         		s_logger.trace("Write reponse with HTTP OK " + responseContent);
         	
             writeResponse(response, HttpStatus.SC_OK, responseContent);
+        } else if(failed) {
+            // keep bad request for unknown methods only, senders rely on it
+            // to tell a peer that does not support the method
+            if(s_logger.isTraceEnabled())
+                s_logger.trace("Write reponse with HTTP Internal server error");
+
+            writeResponse(response, HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
         } else {
         	if(s_logger.isTraceEnabled())
         		s_logger.trace("Write reponse with HTTP Bad request");
@@ -180,6 +195,16 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         return "true";
     }
 
+    private String handleDeliverPdusMethodCall(HttpRequest req) {
+        String pdusPackage = (String)req.getParams().getParameter("pdus");
+
+        ClusterServicePdu[] pdus = GsonHelper.getGson().fromJson(pdusPackage, ClusterServicePdu[].class);
+        for (ClusterServicePdu pdu : pdus) {
+            manager.OnReceiveClusterServicePdu(pdu);
+        }
+        return "true";
+    }
+
     private String handlePingMethodCall(HttpRequest req) {
         String callingPeer = (String)req.getParams().getParameter("callingPeer");
 
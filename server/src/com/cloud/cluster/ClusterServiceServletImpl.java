@@ -27,6 +27,8 @@ import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.log4j.Logger;
 
+import com.cloud.serializer.GsonHelper;
+
 public class ClusterServiceServletImpl implements ClusterService {
     private static final long serialVersionUID = 4574025200012566153L;
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletImpl.class);
@@ -65,6 +67,28 @@ public class ClusterServiceServletImpl implements ClusterService {
         return executePostMethod(client, method);
     }
 
+    @Override
+    public String execute(ClusterServicePdu[] pdus) throws RemoteException {
+        if (pdus.length == 1) {
+            return execute(pdus[0]);
+        }
+
+        HttpClient client = getHttpClient();
+        PostMethod method = new PostMethod(_serviceUrl);
+
+        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDUS));
+        method.addParameter("pdus", GsonHelper.getGson().toJson(pdus, ClusterServicePdu[].class));
+
+        String result = executePostMethod(client, method);
+        // peers only answer bad request to a method they do not recognize,
+        // failures while delivering the PDUs come back as server errors
+        if (result == null && method.getStatusLine() != null
+                && method.getStatusLine().getStatusCode() == HttpStatus.SC_BAD_REQUEST) {
+            throw new ClusterMethodNotSupportedException("Peer at " + _serviceUrl + " does not support PDU batches");
+        }
+        return result;
+    }
+
     @Override
     public boolean ping(String callingPeer) throws RemoteException {
         if(s_logger.isDebugEnabled()) {
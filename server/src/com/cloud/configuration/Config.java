@@ -179,6 +179,9 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
+	AgentWireCompression("Advanced", AgentManager.class, String.class, "agent.wire.compression", "default", "Compression used for large payloads sent to agents: default favours size, fast favours speed.", "default,fast"),
+	AgentSelectors("Advanced", AgentManager.class, Integer.class, "agent.selectors", "0", "Number of selector threads agent connections are spread over. 0 means one per core and 1 serves all connections on the accepting thread.", null),
+	AgentWireCodec("Advanced", AgentManager.class, String.class, "agent.wire.codec", "json", "Wire format used for commands sent to agents that are able to parse it: json or binary.", "json,binary"),
 	HAWorkers("Advanced", AgentManager.class, Integer.class, "ha.workers", "5", "Number of ha worker threads.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/lib/cloud/management/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
@@ -209,6 +212,8 @@ public enum Config {
 	CheckPodCIDRs("Advanced", ManagementServer.class, String.class, "check.pod.cidrs", "true", "If true, different pods must belong to different CIDR subnets.", "true,false"),
 	NetworkGcWait("Advanced", ManagementServer.class, Integer.class, "network.gc.wait", "600", "Time (in seconds) to wait before shutting down a network that's not in used", null),
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),
+	CapacityIndexReconcileInterval("Advanced", ManagementServer.class, Integer.class, "capacity.index.reconcile.interval", "60", "Interval (in seconds) at which the in-memory host capacity index used by the deployment planner is reconciled with the database. 0 makes the planner query the database instead.", null),
+	CapacityLedgerFlushInterval("Advanced", ManagementServer.class, Integer.class, "capacity.ledger.flush.interval", "1000", "Interval (in milliseconds) at which the cpu and memory changes of vm state transitions are written to the host capacity table in one batch. 0 writes every change when it happens.", null),
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
@@ -322,6 +327,16 @@ public enum Config {
 	DnsBasicZoneUpdates("Advanced", NetworkManager.class, String.class, "network.dns.basiczone.updates", "all", "This parameter can take 2 values: all (default) and pod. It defines if DHCP/DNS requests have to be send to all dhcp servers in cloudstack, or only to the one in the same pod", "all,pod"),
 
 	ClusterMessageTimeOutSeconds("Advanced", ManagementServer.class, Integer.class, "cluster.message.timeout.seconds", "300", "Time (in seconds) to wait before a inter-management server message post times out.", null),
+	ClusterPduDispatchLanes("Advanced", ManagementServer.class, Integer.class, "cluster.pdu.dispatch.lanes", "16", "Number of threads processing messages from other management servers. Messages for the same agent are processed in order by the same thread.", null),
+	ClusterPduDispatchQueueSize("Advanced", ManagementServer.class, Integer.class, "cluster.pdu.dispatch.queue.size", "1000", "Number of messages from other management servers a dispatch thread queues before slowing down the sender.", null),
+	ClusterPeerProbeInterval("Advanced", ManagementServer.class, Integer.class, "cluster.peer.probe.interval", "250", "Interval (in milliseconds) of the udp probes sent to other management servers, 0 to watch peers through the database heartbeat only.", null),
+	ClusterPeerProbeTimeout("Advanced", ManagementServer.class, Integer.class, "cluster.peer.probe.timeout", "1000", "Time (in milliseconds) after which a management server that stopped answering probes is suspected and checked for reachability.", null),
+	ClusterPeerProbeMaxMissedRounds("Advanced", ManagementServer.class, Integer.class, "cluster.peer.probe.max.missed.rounds", "3", "Number of consecutive probe rounds a suspected management server has to stay unreachable before it is removed from the cluster.", null),
+	ApiResponseCacheTimeToLive("Advanced", ManagementServer.class, Integer.class, "api.response.cache.ttl", "30", "Time (in seconds) a cached response of listZones, listServiceOfferings, listDiskOfferings and listTemplates is served for, 0 to disable the api response cache.", null),
+	ApiResponseCacheSize("Advanced", ManagementServer.class, Integer.class, "api.response.cache.size", "500", "Maximum number of responses cached for each of the cached list commands.", null),
+	ApiResponseCacheBytes("Advanced", ManagementServer.class, Long.class, "api.response.cache.bytes", "16777216", "Maximum estimated size (in bytes) of the responses cached for each of the cached list commands.", null),
+	IntegrationApiWorkers("Advanced", ManagementServer.class, Integer.class, "integration.api.workers", "150", "Number of threads handling the requests received on the integration api port.", null),
+	IntegrationApiQueueSize("Advanced", ManagementServer.class, Integer.class, "integration.api.queue.size", "1000", "Number of requests received on the integration api port that may wait for a thread; further requests are answered with 503.", null),
 	AgentLoadThreshold("Advanced", ManagementServer.class, Float.class, "agent.load.threshold", "0.7", "Percentage (as a value between 0 and 1) of connected agents after which agent load balancing will start happening", null),
 
 	JavaScriptDefaultContentType("Advanced", ManagementServer.class, String.class, "json.content.type", "text/javascript", "Http response content type for .js files (default is text/javascript)", null),
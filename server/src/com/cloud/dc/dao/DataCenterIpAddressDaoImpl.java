@@ -17,7 +17,9 @@
 package com.cloud.dc.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -39,13 +41,64 @@ import com.cloud.utils.net.NetUtils;
 @Local(value={DataCenterIpAddressDao.class}) @DB(txn=false)
 public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddressVO, Long> implements DataCenterIpAddressDao {
     private static final Logger s_logger = Logger.getLogger(DataCenterIpAddressDaoImpl.class);
+
+    // how many ips picked from a bitmap may turn out to be taken already
+    // before falling back to locking a free row
+    private static final int MAX_CLAIM_ATTEMPTS = 16;
     
     private final SearchBuilder<DataCenterIpAddressVO> AllFieldsSearch;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllIpCount;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllAllocatedIpCount;
-    
-    @DB
+    private final GenericSearchBuilder<DataCenterIpAddressVO, String> IpValues;
+    private final FreeEntryIndex _freePodIps;
+    private final FreeEntryIndex _freeZoneIps;
+
+    /**
+     * Picks a random ip that the bitmap of the pool believes is free and
+     * claims it with an update conditional on the row still being free.
+     *
+     * @param pool name of the condition identifying the pool, "pod" or "dc".
+     * @return the claimed row, null if the pool has no free ip, or null after
+     *         too many lost races, in which case the caller locks a free row.
+     */
+    protected DataCenterIpAddressVO claimFreeIp(FreeEntryIndex index, String pool, long poolId, DataCenterIpAddressVO vo) {
+        boolean reload = false;
+        for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+            long ip = index.take(poolId, reload);
+            if (ip < 0) {
+                if (reload) {
+                    return null;
+                }
+                reload = true;
+                continue;
+            }
+
+            SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
+            sc.setParameters(pool, poolId);
+            sc.setParameters("ip", NetUtils.long2Ip(ip));
+            sc.setParameters("taken", (Date)null);
+            if (update(vo, sc) == 1) {
+                sc = AllFieldsSearch.create();
+                sc.setParameters(pool, poolId);
+                sc.setParameters("ip", NetUtils.long2Ip(ip));
+                return findOneBy(sc);
+            }
+        }
+        s_logger.debug("Unable to claim an ip from the free bitmap of " + pool + " " + poolId + ", locking a free row instead");
+        return null;
+    }
+
     public DataCenterIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
+        DataCenterIpAddressVO vo = createForUpdate();
+        vo.setTakenAt(new Date());
+        vo.setInstanceId(instanceId);
+        vo.setReservationId(reservationId);
+        vo = claimFreeIp(_freePodIps, "pod", podId, vo);
+        return vo != null ? vo : lockFreeIpAddress(dcId, podId, instanceId, reservationId);
+    }
+
+    @DB
+    protected DataCenterIpAddressVO lockFreeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
         sc.setParameters("taken", (Date)null);
@@ -65,8 +118,16 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         return vo;
     }
 
-    @DB
     public DataCenterIpAddressVO takeDataCenterIpAddress(long dcId, String reservationId) {
+        DataCenterIpAddressVO vo = createForUpdate();
+        vo.setTakenAt(new Date());
+        vo.setReservationId(reservationId);
+        vo = claimFreeIp(_freeZoneIps, "dc", dcId, vo);
+        return vo != null ? vo : lockFreeDataCenterIpAddress(dcId, reservationId);
+    }
+
+    @DB
+    protected DataCenterIpAddressVO lockFreeDataCenterIpAddress(long dcId, String reservationId) {
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("dc", dcId);
         sc.setParameters("taken", (Date)null);
@@ -89,7 +150,10 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     public boolean deleteIpAddressByPod(long podId) {
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
-        return remove(sc) > 0;
+        boolean removed = remove(sc) > 0;
+        _freePodIps.invalidate(podId);
+        _freeZoneIps.invalidateAll();
+        return removed;
     }
     
     @Override
@@ -107,33 +171,47 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     @DB
     public void addIpRange(long dcId, long podId, String start, String end) {
         Transaction txn = Transaction.currentTxn();
-        String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?))";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
-        PreparedStatement stmt = null;
+        String selectSql = "SELECT mac_address FROM `cloud`.`data_center` WHERE id=? FOR UPDATE";
+        String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, ?)";
+        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+? where id=?";
         
         long startIP = NetUtils.ip2Long(start);
         long endIP = NetUtils.ip2Long(end);
         
         try {
             txn.start();
-            
-            while (startIP <= endIP) {
-                stmt = txn.prepareStatement(insertSql);
-                stmt.setString(1, NetUtils.long2Ip(startIP++));
+
+            // reserve the mac addresses of the whole range at once instead
+            // of bumping data_center.mac_address once per ip
+            PreparedStatement stmt = txn.prepareAutoCloseStatement(selectSql);
+            stmt.setLong(1, dcId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                throw new CloudRuntimeException("Unable to find data center " + dcId);
+            }
+            long mac = rs.getLong(1);
+
+            stmt = txn.prepareAutoCloseStatement(insertSql);
+            for (long ip = startIP; ip <= endIP; ip++) {
+                stmt.setString(1, NetUtils.long2Ip(ip));
                 stmt.setLong(2, dcId);
                 stmt.setLong(3, podId);
-                stmt.setLong(4, dcId);
-                stmt.executeUpdate();
-                stmt.close();
-                stmt = txn.prepareStatement(updateSql);
-                stmt.setLong(1, dcId);
-                stmt.executeUpdate();
-                stmt.close();
+                stmt.setLong(4, mac + ip - startIP);
+                stmt.addBatch();
             }
+            stmt.executeBatch();
+
+            stmt = txn.prepareAutoCloseStatement(updateSql);
+            stmt.setLong(1, endIP - startIP + 1);
+            stmt.setLong(2, dcId);
+            stmt.executeUpdate();
             txn.commit();
         } catch (SQLException ex) {
             throw new CloudRuntimeException("Unable to persist ip address range ", ex);
-        } 
+        } finally {
+            _freePodIps.invalidate(podId);
+            _freeZoneIps.invalidate(dcId);
+        }
     }
     
     public void releaseIpAddress(String ipAddress, long dcId, Long instanceId) {
@@ -145,12 +223,7 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         sc.setParameters("dc", dcId);
         sc.setParameters("instance", instanceId);
 
-        DataCenterIpAddressVO vo = createForUpdate();
-        
-        vo.setTakenAt(null);
-        vo.setInstanceId(null);
-        vo.setReservationId(null);
-        update(vo, sc);
+        releaseIps(sc);
     }
     
     public void releaseIpAddress(long nicId, String reservationId) {
@@ -161,11 +234,27 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         sc.setParameters("instance", nicId);
         sc.setParameters("reservation", reservationId);
         
+        releaseIps(sc);
+    }
+
+    /**
+     * Frees the rows matching the criteria and marks their ips free in the
+     * bitmaps of both their pod and their zone.
+     */
+    protected void releaseIps(SearchCriteria<DataCenterIpAddressVO> sc) {
+        List<DataCenterIpAddressVO> taken = listBy(sc);
+
         DataCenterIpAddressVO vo = createForUpdate();
         vo.setTakenAt(null);
         vo.setInstanceId(null);
         vo.setReservationId(null);
-        update(vo, sc);
+        if (update(vo, sc) > 0) {
+            for (DataCenterIpAddressVO row : taken) {
+                long ip = NetUtils.ip2Long(row.getIpAddress());
+                _freePodIps.release(row.getPodId(), ip);
+                _freeZoneIps.release(row.getDataCenterId(), ip);
+            }
+        }
     }
     
     public List<DataCenterIpAddressVO> listByPodIdDcId(long podId, long dcId) {
@@ -195,6 +284,34 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         List<Integer> count = customSearch(sc, null);
         return count.get(0);
 	}
+
+    protected List<Long> listIps(String pool, long poolId, boolean onlyFree) {
+        SearchCriteria<String> sc = IpValues.create();
+        sc.setParameters(pool, poolId);
+        if (onlyFree) {
+            sc.setParameters("taken", (Date)null);
+        }
+        List<String> ips = customSearch(sc, null);
+        List<Long> values = new ArrayList<Long>(ips.size());
+        for (String ip : ips) {
+            values.add(NetUtils.ip2Long(ip));
+        }
+        return values;
+    }
+
+    protected FreeEntryIndex createFreeIpIndex(final String pool) {
+        return new FreeEntryIndex(new FreeEntryIndex.Loader() {
+            @Override
+            public List<Long> listAll(long poolId) {
+                return listIps(pool, poolId, false);
+            }
+
+            @Override
+            public List<Long> listFree(long poolId) {
+                return listIps(pool, poolId, true);
+            }
+        });
+    }
     
     protected DataCenterIpAddressDaoImpl() {
         super();
@@ -219,5 +336,15 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         AllAllocatedIpCount.and("pod", AllAllocatedIpCount.entity().getPodId(), SearchCriteria.Op.EQ);
         AllAllocatedIpCount.and("removed", AllAllocatedIpCount.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCount.done();
+
+        IpValues = createSearchBuilder(String.class);
+        IpValues.selectField(IpValues.entity().getIpAddress());
+        IpValues.and("dc", IpValues.entity().getDataCenterId(), SearchCriteria.Op.EQ);
+        IpValues.and("pod", IpValues.entity().getPodId(), SearchCriteria.Op.EQ);
+        IpValues.and("taken", IpValues.entity().getTakenAt(), SearchCriteria.Op.EQ);
+        IpValues.done();
+
+        _freePodIps = createFreeIpIndex("pod");
+        _freeZoneIps = createFreeIpIndex("dc");
     }
 }
@@ -18,6 +18,7 @@ package com.cloud.dc.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -42,13 +43,57 @@ import com.cloud.utils.net.NetUtils;
 @Local(value={DataCenterLinkLocalIpAddressDaoImpl.class}) @DB(txn=false)
 public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCenterLinkLocalIpAddressVO, Long> implements GenericDao<DataCenterLinkLocalIpAddressVO, Long> {
     private static final Logger s_logger = Logger.getLogger(DataCenterLinkLocalIpAddressDaoImpl.class);
+
+    // how many ips picked from the bitmap may turn out to be taken already
+    // before falling back to locking a free row
+    private static final int MAX_CLAIM_ATTEMPTS = 16;
     
     private final SearchBuilder<DataCenterLinkLocalIpAddressVO> AllFieldsSearch;
     private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Integer> AllIpCount;
     private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Integer> AllAllocatedIpCount;
-    
-    @DB
+    private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, String> IpValues;
+    private final FreeEntryIndex _freeIps;
+
+    /**
+     * Picks a random ip that the bitmap of the pod believes is free and
+     * claims it with an update conditional on the row still being free, so
+     * that concurrent takes do not queue up on the same row.
+     */
     public DataCenterLinkLocalIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
+        boolean reload = false;
+        for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+            long ip = _freeIps.take(podId, reload);
+            if (ip < 0) {
+                if (reload) {
+                    return null;
+                }
+                reload = true;
+                continue;
+            }
+
+            DataCenterLinkLocalIpAddressVO vo = createForUpdate();
+            vo.setTakenAt(new Date());
+            vo.setInstanceId(instanceId);
+            vo.setReservationId(reservationId);
+
+            SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
+            sc.setParameters("pod", podId);
+            sc.setParameters("ip", NetUtils.long2Ip(ip));
+            sc.setParameters("taken", (Date)null);
+            if (update(vo, sc) == 1) {
+                sc = AllFieldsSearch.create();
+                sc.setParameters("pod", podId);
+                sc.setParameters("ip", NetUtils.long2Ip(ip));
+                return findOneBy(sc);
+            }
+        }
+
+        s_logger.debug("Unable to claim a link local ip from the free bitmap of pod " + podId + ", locking a free row instead");
+        return lockFreeIpAddress(dcId, podId, instanceId, reservationId);
+    }
+
+    @DB
+    protected DataCenterLinkLocalIpAddressVO lockFreeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
         SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
         sc.setParameters("taken", (Date)null);
@@ -72,7 +117,9 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
     public boolean deleteIpAddressByPod(long podId) {
         SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
-        return remove(sc) > 0;
+        boolean removed = remove(sc) > 0;
+        _freeIps.invalidate(podId);
+        return removed;
     }
     
     @DB
@@ -97,6 +144,8 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
             txn.commit();
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to insert", e);
+        } finally {
+            _freeIps.invalidate(podId);
         }
     }
     
@@ -148,6 +197,20 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         List<Integer> count = customSearch(sc, null);
         return count.get(0);
 	}
+
+    protected List<Long> listIps(long podId, boolean onlyFree) {
+        SearchCriteria<String> sc = IpValues.create();
+        sc.setParameters("pod", podId);
+        if (onlyFree) {
+            sc.setParameters("taken", (Date)null);
+        }
+        List<String> ips = customSearch(sc, null);
+        List<Long> values = new ArrayList<Long>(ips.size());
+        for (String ip : ips) {
+            values.add(NetUtils.ip2Long(ip));
+        }
+        return values;
+    }
     
     protected DataCenterLinkLocalIpAddressDaoImpl() {
         super();
@@ -170,7 +233,24 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         AllAllocatedIpCount.and("pod", AllAllocatedIpCount.entity().getPodId(), SearchCriteria.Op.EQ);
         AllAllocatedIpCount.and("removed", AllAllocatedIpCount.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCount.done();
-        
+
+        IpValues = createSearchBuilder(String.class);
+        IpValues.selectField(IpValues.entity().getIpAddress());
+        IpValues.and("pod", IpValues.entity().getPodId(), SearchCriteria.Op.EQ);
+        IpValues.and("taken", IpValues.entity().getTakenAt(), SearchCriteria.Op.EQ);
+        IpValues.done();
+
+        _freeIps = new FreeEntryIndex(new FreeEntryIndex.Loader() {
+            @Override
+            public List<Long> listAll(long podId) {
+                return listIps(podId, false);
+            }
+
+            @Override
+            public List<Long> listFree(long podId) {
+                return listIps(podId, true);
+            }
+        });
     }
     
     @Override
@@ -18,10 +18,14 @@ package com.cloud.dc.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.log4j.Logger;
+
 import com.cloud.dc.DataCenterVnetVO;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.GenericDaoBase;
@@ -39,12 +43,21 @@ import com.cloud.utils.exception.CloudRuntimeException;
  */
 @DB(txn=false)
 public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long> implements GenericDao<DataCenterVnetVO, Long> {
+    private static final Logger s_logger = Logger.getLogger(DataCenterVnetDaoImpl.class);
+
+    // how many vnets picked from the bitmap may turn out to be taken already
+    // before falling back to locking a free row
+    private static final int MAX_CLAIM_ATTEMPTS = 16;
+
     private final SearchBuilder<DataCenterVnetVO> FreeVnetSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearchAllocated;
     private final SearchBuilder<DataCenterVnetVO> DcSearchAllocated;
     private final GenericSearchBuilder<DataCenterVnetVO, Integer> countZoneVlans;
     private final GenericSearchBuilder<DataCenterVnetVO, Integer> countAllocatedZoneVlans;
+    private final GenericSearchBuilder<DataCenterVnetVO, String> VnetValues;
+    private final GenericSearchBuilder<DataCenterVnetVO, String> FreeVnetValues;
+    private final FreeEntryIndex _freeVnets;
     
     public List<DataCenterVnetVO> listAllocatedVnets(long physicalNetworkId) {
         SearchCriteria<DataCenterVnetVO> sc = DcSearchAllocated.create();
@@ -92,6 +105,8 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
             txn.commit();
         } catch (SQLException e) {
             throw new CloudRuntimeException("Exception caught adding vnet ", e);
+        } finally {
+            _freeVnets.invalidate(physicalNetworkId);
         }
     }
     
@@ -99,10 +114,51 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         SearchCriteria<DataCenterVnetVO> sc = VnetDcSearch.create();
         sc.setParameters("physicalNetworkId", physicalNetworkId);
         remove(sc);
+        _freeVnets.invalidate(physicalNetworkId);
     }
 
-    @DB
+    /**
+     * Picks a random vnet that the bitmap of the physical network believes
+     * is free and claims it with an update conditional on the row still
+     * being free, so that concurrent takes do not queue up on the same row.
+     */
     public DataCenterVnetVO take(long physicalNetworkId, long accountId, String reservationId) {
+        boolean reload = false;
+        for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+            long vnet = _freeVnets.take(physicalNetworkId, reload);
+            if (vnet < 0) {
+                if (reload) {
+                    return null;
+                }
+                reload = true;
+                continue;
+            }
+
+            DataCenterVnetVO vo = createForUpdate();
+            vo.setTakenAt(new Date());
+            vo.setAccountId(accountId);
+            vo.setReservationId(reservationId);
+
+            SearchCriteria<DataCenterVnetVO> sc = FreeVnetSearch.create();
+            sc.setParameters("physicalNetworkId", physicalNetworkId);
+            sc.setParameters("vnet", String.valueOf(vnet));
+            if (update(vo, sc) == 1) {
+                sc = VnetDcSearch.create();
+                sc.setParameters("physicalNetworkId", physicalNetworkId);
+                sc.setParameters("vnet", String.valueOf(vnet));
+                return findOneBy(sc);
+            }
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Vnet " + vnet + " in physical network " + physicalNetworkId + " was taken by someone else");
+            }
+        }
+
+        s_logger.debug("Unable to claim a vnet from the free bitmap of physical network " + physicalNetworkId + ", locking a free row instead");
+        return lockFreeVnet(physicalNetworkId, accountId, reservationId);
+    }
+
+    @DB
+    protected DataCenterVnetVO lockFreeVnet(long physicalNetworkId, long accountId, String reservationId) {
         SearchCriteria<DataCenterVnetVO> sc = FreeVnetSearch.create();
         sc.setParameters("physicalNetworkId", physicalNetworkId);        
         Date now = new Date();
@@ -137,6 +193,24 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         vo.setAccountId(null);
         vo.setReservationId(null);
         update(vo.getId(), vo);
+        long value = NumbersUtil.parseLong(vnet, -1);
+        if (value >= 0) {
+            _freeVnets.release(physicalNetworkId, value);
+        }
+    }
+
+    protected List<Long> listVnetValues(GenericSearchBuilder<DataCenterVnetVO, String> sb, long physicalNetworkId) {
+        SearchCriteria<String> sc = sb.create();
+        sc.setParameters("physicalNetworkId", physicalNetworkId);
+        List<String> vnets = customSearch(sc, null);
+        List<Long> values = new ArrayList<Long>(vnets.size());
+        for (String vnet : vnets) {
+            long value = NumbersUtil.parseLong(vnet, -1);
+            if (value >= 0) {
+                values.add(value);
+            }
+        }
+        return values;
     }
 
     protected DataCenterVnetDaoImpl() {
@@ -150,8 +224,32 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         FreeVnetSearch = createSearchBuilder();
         FreeVnetSearch.and("dc", FreeVnetSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         FreeVnetSearch.and("physicalNetworkId", FreeVnetSearch.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
+        FreeVnetSearch.and("vnet", FreeVnetSearch.entity().getVnet(), SearchCriteria.Op.EQ);
         FreeVnetSearch.and("taken", FreeVnetSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
         FreeVnetSearch.done();
+
+        VnetValues = createSearchBuilder(String.class);
+        VnetValues.selectField(VnetValues.entity().getVnet());
+        VnetValues.and("physicalNetworkId", VnetValues.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
+        VnetValues.done();
+
+        FreeVnetValues = createSearchBuilder(String.class);
+        FreeVnetValues.selectField(FreeVnetValues.entity().getVnet());
+        FreeVnetValues.and("physicalNetworkId", FreeVnetValues.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
+        FreeVnetValues.and("taken", FreeVnetValues.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeVnetValues.done();
+
+        _freeVnets = new FreeEntryIndex(new FreeEntryIndex.Loader() {
+            @Override
+            public List<Long> listAll(long physicalNetworkId) {
+                return listVnetValues(VnetValues, physicalNetworkId);
+            }
+
+            @Override
+            public List<Long> listFree(long physicalNetworkId) {
+                return listVnetValues(FreeVnetValues, physicalNetworkId);
+            }
+        });
         
         VnetDcSearch = createSearchBuilder();
         VnetDcSearch.and("vnet", VnetDcSearch.entity().getVnet(), SearchCriteria.Op.EQ);
@@ -0,0 +1,140 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.dc.dao;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.RangeBitmap;
+
+/**
+ * In-memory bitmaps of the free entries of an allocation table such as
+ * op_dc_vnet_alloc, one per pool (physical network, pod or zone). The
+ * bitmaps only point the dao at entries that are likely free; the dao still
+ * claims an entry with an update conditional on it being free, so entries
+ * taken by other management servers are skipped and entries released
+ * elsewhere are picked up when the bitmap of the pool runs empty and is
+ * loaded again.
+ *
+ * A pool is kept as the sorted array of all its entries plus one bit per
+ * position, so its size does not depend on how far apart the ranges of the
+ * pool are.
+ */
+public class FreeEntryIndex {
+    public interface Loader {
+        /**
+         * @return all entries of the pool.
+         */
+        List<Long> listAll(long poolId);
+
+        /**
+         * @return the entries of the pool that are free in the database.
+         */
+        List<Long> listFree(long poolId);
+    }
+
+    private static class Pool {
+        final long[] _entries;
+        final RangeBitmap _free;
+
+        Pool(long[] entries) {
+            _entries = entries;
+            _free = new RangeBitmap(0, entries.length - 1);
+        }
+
+        int indexOf(long value) {
+            return Arrays.binarySearch(_entries, value);
+        }
+    }
+
+    private final Loader _loader;
+    private final ConcurrentHashMap<Long, Pool> _pools = new ConcurrentHashMap<Long, Pool>();
+    private final Random _random = new Random();
+
+    public FreeEntryIndex(Loader loader) {
+        _loader = loader;
+    }
+
+    /**
+     * @param reload whether to load the pool from the database first.
+     * @return an entry of the pool that is probably free, -1 if there is none.
+     */
+    public long take(long poolId, boolean reload) {
+        Pool pool = reload ? null : _pools.get(poolId);
+        if (pool == null) {
+            pool = load(poolId);
+            if (pool == null) {
+                return -1;
+            }
+        }
+        long index = pool._free.take(_random);
+        return index < 0 ? -1 : pool._entries[(int)index];
+    }
+
+    public void release(long poolId, long value) {
+        Pool pool = _pools.get(poolId);
+        if (pool == null) {
+            return;
+        }
+        int index = pool.indexOf(value);
+        if (index < 0) {
+            invalidate(poolId);
+        } else {
+            pool._free.markFree(index);
+        }
+    }
+
+    /**
+     * Forgets a pool whose entries were added or removed.
+     */
+    public void invalidate(long poolId) {
+        _pools.remove(poolId);
+    }
+
+    /**
+     * Forgets all pools, for when entries were removed from a pool that
+     * cannot be named.
+     */
+    public void invalidateAll() {
+        _pools.clear();
+    }
+
+    private Pool load(long poolId) {
+        List<Long> all = _loader.listAll(poolId);
+        if (all.isEmpty()) {
+            _pools.remove(poolId);
+            return null;
+        }
+        long[] entries = new long[all.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = all.get(i);
+        }
+        Arrays.sort(entries);
+
+        Pool pool = new Pool(entries);
+        for (Long value : _loader.listFree(poolId)) {
+            int index = pool.indexOf(value);
+            if (index >= 0) {
+                pool._free.markFree(index);
+            }
+        }
+        _pools.put(poolId, pool);
+        return pool;
+    }
+}
@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.deploy;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -135,6 +136,21 @@ public class BareMetalPlanner implements DeploymentPlanner {
 		return null;
 	}
 
+	@Override
+	public List<DeployDestination> planBatch(List<VirtualMachineProfile<? extends VirtualMachine>> vms, DeploymentPlan plan, ExcludeList avoid)
+			throws InsufficientServerCapacityException {
+		// a bare metal host runs a single vm, so a host is never handed out twice
+		List<DeployDestination> dests = new ArrayList<DeployDestination>(vms.size());
+		for (VirtualMachineProfile<? extends VirtualMachine> vm : vms) {
+			DeployDestination dest = plan(vm, plan, avoid);
+			if (dest != null) {
+				avoid.addHost(dest.getHost().getId());
+			}
+			dests.add(dest);
+		}
+		return dests;
+	}
+
 	@Override
 	public boolean canHandle(VirtualMachineProfile<? extends VirtualMachine> vm, DeploymentPlan plan, ExcludeList avoid) {
 		return vm.getHypervisorType() == HypervisorType.BareMetal;
@@ -32,6 +32,8 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.manager.allocator.HostAllocator;
 import com.cloud.api.ApiDBUtils;
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityIndex;
+import com.cloud.capacity.CapacityLedger;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -577,11 +579,23 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        boolean useIndex = capacityIndex != null && capacityIndex.isLoaded();
+        List<Long> clusterIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (useIndex) {
+            clusterIdswithEnoughCapacity = capacityIndex.listClustersByHostCapacities(id, requiredCpu, requiredRam, isZone, cpuOverprovisioningFactor);
+        } else {
+            clusterIdswithEnoughCapacity = _capacityDao.listClustersInZoneOrPodByHostCapacities(id, requiredCpu, requiredRam, capacityType, isZone, cpuOverprovisioningFactor);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("ClusterId List having enough CPU and RAM capacity: " + clusterIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        if (useIndex) {
+            result = capacityIndex.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        } else {
+            result = _capacityDao.orderClustersByAggregateCapacity(id, capacityType, isZone, cpuOverprovisioningFactor);
+        }
         List<Long> clusterIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -614,11 +628,23 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("CPUOverprovisioningFactor considered: " + cpuOverprovisioningFactor);
         }
-        List<Long> podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+        CapacityIndex capacityIndex = _capacityMgr.getCapacityIndex();
+        boolean useIndex = capacityIndex != null && capacityIndex.isLoaded();
+        List<Long> podIdswithEnoughCapacity;
+        Pair<List<Long>, Map<Long, Double>> result;
+        if (useIndex) {
+            podIdswithEnoughCapacity = capacityIndex.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, cpuOverprovisioningFactor);
+        } else {
+            podIdswithEnoughCapacity = _capacityDao.listPodsByHostCapacities(zoneId, requiredCpu, requiredRam, capacityType, cpuOverprovisioningFactor);
+        }
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("PodId List having enough CPU and RAM capacity: " + podIdswithEnoughCapacity);
         }
-        Pair<List<Long>, Map<Long, Double>> result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        if (useIndex) {
+            result = capacityIndex.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        } else {
+            result = _capacityDao.orderPodsByAggregateCapacity(zoneId, capacityType, cpuOverprovisioningFactor);
+        }
         List<Long> podIdsOrderedByAggregateCapacity = result.first();
         //only keep the clusters that have enough capacity to host this VM
         if (s_logger.isTraceEnabled()) {
@@ -850,6 +876,181 @@ public class FirstFitPlanner extends PlannerBase implements DeploymentPlanner {
         return false;
     }
 
+    /**
+     * Places the virtual machines in order. Virtual machines of the same owner,
+     * offering and template form a group: the first one of a group goes through
+     * plan(), the following ones are placed on the hosts found for the cluster
+     * chosen for it, until that cluster is full and plan() has to be consulted
+     * again. Capacity handed out during the batch is tracked in memory so the
+     * same capacity is never handed out twice.
+     */
+    @Override
+    public List<DeployDestination> planBatch(List<VirtualMachineProfile<? extends VirtualMachine>> vmProfiles, DeploymentPlan plan, ExcludeList avoid)
+            throws InsufficientServerCapacityException {
+        String opFactor = _configDao.getValue(Config.CPUOverprovisioningFactor.key());
+        float cpuOverprovisioningFactor = NumbersUtil.parseFloat(opFactor, 1);
+        BatchReservation reservation = new BatchReservation(cpuOverprovisioningFactor);
+        Map<String, BatchGroup> groups = new HashMap<String, BatchGroup>();
+        List<DeployDestination> dests = new ArrayList<DeployDestination>(vmProfiles.size());
+
+        for (VirtualMachineProfile<? extends VirtualMachine> vmProfile : vmProfiles) {
+            VirtualMachine vm = vmProfile.getVirtualMachine();
+            ServiceOffering offering = vmProfile.getServiceOffering();
+            int cpuRequested = offering.getCpu() * offering.getSpeed();
+            long ramRequested = offering.getRamSize() * 1024L * 1024L;
+
+            String key = vm.getAccountId() + "-" + offering.getId() + "-" + vm.getTemplateId() + "-" + vmProfile.getHypervisorType();
+            BatchGroup group = groups.get(key);
+            if (group == null) {
+                group = new BatchGroup();
+                group.avoid.addAll(avoid);
+                groups.put(key, group);
+            }
+
+            // hosts already promised to earlier vms of the batch are not offered again
+            group.avoid.addHostList(reservation.listHostsWithoutCapacity(cpuRequested, ramRequested));
+
+            boolean reuseCluster = reuseClusterInBatch() && plan.getHostId() == null && plan.getPoolId() == null && vm.getLastHostId() == null
+                    && vmProfile.getParameter(VirtualMachineProfile.Param.HaTag) == null;
+            DeployDestination dest = null;
+            if (reuseCluster && group.cluster != null) {
+                dest = planInBatchCluster(group, vmProfile, plan, reservation, cpuRequested, ramRequested);
+            }
+            if (dest == null) {
+                dest = plan(vmProfile, plan, group.avoid);
+                if (dest != null && reuseCluster && dest.getCluster() != null) {
+                    Cluster cluster = dest.getCluster();
+                    DataCenterDeployment clusterPlan = new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(), cluster.getId(), null, null, null, plan.getReservationContext());
+                    group.cluster = cluster;
+                    group.hosts = findSuitableHosts(vmProfile, clusterPlan, group.avoid, HostAllocator.RETURN_UPTO_ALL);
+                }
+            }
+
+            if (dest != null) {
+                reservation.reserve(dest.getHost().getId(), cpuRequested, ramRequested);
+            } else {
+                s_logger.debug("Unable to place " + vm + " of the batch, continuing with the rest");
+            }
+            dests.add(dest);
+        }
+        return dests;
+    }
+
+    /**
+     * Whether planBatch may place the following virtual machines of a group in
+     * the cluster chosen for the first one, as long as it has room.
+     */
+    protected boolean reuseClusterInBatch() {
+        return true;
+    }
+
+    private DeployDestination planInBatchCluster(BatchGroup group, VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan,
+            BatchReservation reservation, int cpuRequested, long ramRequested) {
+        List<Host> candidates = new ArrayList<Host>();
+        if (group.hosts != null) {
+            for (Host host : group.hosts) {
+                if (!group.avoid.shouldAvoid(host) && reservation.hasCapacity(host.getId(), cpuRequested, ramRequested)) {
+                    candidates.add(host);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Cluster " + group.cluster.getId() + " has no room left for the batch");
+            }
+            group.cluster = null;
+            group.hosts = null;
+            return null;
+        }
+
+        Cluster cluster = group.cluster;
+        DataCenterDeployment clusterPlan = new DataCenterDeployment(plan.getDataCenterId(), cluster.getPodId(), cluster.getId(), null, null, null, plan.getReservationContext());
+        Pair<Map<Volume, List<StoragePool>>, List<Volume>> result = findSuitablePoolsForVolumes(vmProfile, clusterPlan, group.avoid, StoragePoolAllocator.RETURN_UPTO_ALL);
+        Map<Volume, List<StoragePool>> suitableVolumeStoragePools = result.first();
+        List<Volume> readyAndReusedVolumes = result.second();
+        if (suitableVolumeStoragePools.isEmpty()) {
+            return null;
+        }
+        Pair<Host, Map<Volume, StoragePool>> potentialResources = findPotentialDeploymentResources(candidates, suitableVolumeStoragePools);
+        if (potentialResources == null) {
+            return null;
+        }
+
+        DataCenter dc = _dcDao.findById(plan.getDataCenterId());
+        Pod pod = _podDao.findById(cluster.getPodId());
+        Host host = _hostDao.findById(potentialResources.first().getId());
+        Map<Volume, StoragePool> storageVolMap = potentialResources.second();
+        // remove the reused vol<->pool from destination, since we don't have to prepare this volume.
+        for (Volume vol : readyAndReusedVolumes) {
+            storageVolMap.remove(vol);
+        }
+        DeployDestination dest = new DeployDestination(dc, pod, cluster, host, storageVolMap);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Returning Deployment Destination from the batch cluster: " + dest);
+        }
+        return dest;
+    }
+
+    private static class BatchGroup {
+        final ExcludeList avoid = new ExcludeList();
+        Cluster cluster;
+        List<Host> hosts;
+    }
+
+    /**
+     * Cpu and memory of the hosts used by one planBatch() call, less what was
+     * handed out to the virtual machines placed so far.
+     */
+    protected class BatchReservation {
+        private final float _cpuOverprovisioningFactor;
+        private final Map<Long, long[]> _free = new HashMap<Long, long[]>();
+
+        public BatchReservation(float cpuOverprovisioningFactor) {
+            _cpuOverprovisioningFactor = cpuOverprovisioningFactor;
+        }
+
+        private long[] getFree(long hostId) {
+            long[] free = _free.get(hostId);
+            if (free == null) {
+                free = new long[2];
+                CapacityVO cpu = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_CPU);
+                CapacityVO memory = _capacityDao.findByHostIdType(hostId, CapacityVO.CAPACITY_TYPE_MEMORY);
+                if (cpu != null && memory != null) {
+                    // include the changes of this server not flushed to the capacity rows yet
+                    long[] pending = _capacityMgr.getPendingCapacity(hostId);
+                    free[0] = (long)(cpu.getTotalCapacity() * _cpuOverprovisioningFactor) - cpu.getUsedCapacity() - cpu.getReservedCapacity()
+                            - pending[CapacityLedger.USED_CPU] - pending[CapacityLedger.RESERVED_CPU];
+                    free[1] = memory.getTotalCapacity() - memory.getUsedCapacity() - memory.getReservedCapacity()
+                            - pending[CapacityLedger.USED_MEMORY] - pending[CapacityLedger.RESERVED_MEMORY];
+                }
+                _free.put(hostId, free);
+            }
+            return free;
+        }
+
+        public boolean hasCapacity(long hostId, int cpu, long ram) {
+            long[] free = getFree(hostId);
+            return free[0] >= cpu && free[1] >= ram;
+        }
+
+        public void reserve(long hostId, int cpu, long ram) {
+            long[] free = getFree(hostId);
+            free[0] -= cpu;
+            free[1] -= ram;
+        }
+
+        public List<Long> listHostsWithoutCapacity(int cpu, long ram) {
+            List<Long> hostIds = new ArrayList<Long>();
+            for (Map.Entry<Long, long[]> entry : _free.entrySet()) {
+                long[] free = entry.getValue();
+                if (free[0] < cpu || free[1] < ram) {
+                    hostIds.add(entry.getKey());
+                }
+            }
+            return hostIds;
+        }
+    }
+
     @Override
     public boolean check(VirtualMachineProfile<? extends VirtualMachine> vm, DeploymentPlan plan,
             DeployDestination dest, ExcludeList exclude) {
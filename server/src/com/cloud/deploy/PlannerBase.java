@@ -16,8 +16,32 @@
 // under the License.
 package com.cloud.deploy;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.exception.InsufficientServerCapacityException;
 import com.cloud.utils.component.AdapterBase;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
 
 public abstract class PlannerBase extends AdapterBase implements DeploymentPlanner {
 
+    /**
+     * Plans the virtual machines one by one. Without any knowledge of how much
+     * of a host is left, a host chosen for one virtual machine is not offered to
+     * the rest of the batch.
+     */
+    @Override
+    public List<DeployDestination> planBatch(List<VirtualMachineProfile<? extends VirtualMachine>> vms, DeploymentPlan plan, ExcludeList avoid)
+            throws InsufficientServerCapacityException {
+        List<DeployDestination> dests = new ArrayList<DeployDestination>(vms.size());
+        for (VirtualMachineProfile<? extends VirtualMachine> vm : vms) {
+            DeployDestination dest = plan(vm, plan, avoid);
+            if (dest != null && dest.getHost() != null) {
+                avoid.addHost(dest.getHost().getId());
+            }
+            dests.add(dest);
+        }
+        return dests;
+    }
 }
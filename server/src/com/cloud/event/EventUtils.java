@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.event;
 
+import com.cloud.api.ApiResponseCache;
 import com.cloud.event.dao.EventDao;
 import com.cloud.server.ManagementServer;
 import com.cloud.user.AccountVO;
@@ -34,6 +35,7 @@ public class EventUtils {
         event.setType(type);
         event.setDescription(description);
         event = _eventDao.persist(event);
+        ApiResponseCache.invalidateForEvent(type);
         return event.getId();
     }
     
@@ -79,6 +81,7 @@ public class EventUtils {
         event.setLevel(level);
         event.setStartId(startEventId);
         event = _eventDao.persist(event);
+        ApiResponseCache.invalidateForEvent(type);
         return (event != null ? event.getId() : null);
     }
     
@@ -92,6 +95,7 @@ public class EventUtils {
         event.setState(Event.State.Created);
         event.setDescription(description);
         event = _eventDao.persist(event);
+        ApiResponseCache.invalidateForEvent(type);
         return event.getId();
     }
     
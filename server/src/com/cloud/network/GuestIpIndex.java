@@ -0,0 +1,206 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cloud.utils.RangeBitmap;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * In-memory bitmaps of the free guest ips of each guest network, so that
+ * an ip can be handed out without listing the used ips of the network and
+ * materializing its whole cidr. The bitmaps are a hint: the nics table
+ * stays authoritative, callers check the ip they get against it, and a
+ * bitmap that runs empty is loaded again.
+ *
+ * The bitmap of a network holds every host address of its cidr but the
+ * gateway. Callers pass the Exclusion rule of the ips they may hand out.
+ */
+public class GuestIpIndex {
+    public enum Exclusion {
+        /**
+         * Every host address of the cidr but the gateway, the range of
+         * NetUtils.getRandomIpFromCidr.
+         */
+        GATEWAY,
+        /**
+         * Also the first host address and every address ending in .1, which
+         * acquireGuestIpAddress never hands out.
+         */
+        GATEWAY_AND_DOT_ONE
+    }
+
+    public interface Loader {
+        /**
+         * @return the ips used by the nics of the network.
+         */
+        List<String> listUsed(long networkId);
+    }
+
+    private static class Entry {
+        final String _cidr;
+        final String _gateway;
+        final RangeBitmap _free;
+
+        Entry(String cidr, String gateway, RangeBitmap free) {
+            _cidr = cidr;
+            _gateway = gateway;
+            _free = free;
+        }
+
+        boolean matches(String cidr, String gateway) {
+            return _cidr.equals(cidr) && (_gateway == null ? gateway == null : _gateway.equals(gateway));
+        }
+    }
+
+    private final Loader _loader;
+    private final ConcurrentHashMap<Long, Entry> _networks = new ConcurrentHashMap<Long, Entry>();
+    private final Random _random = new Random();
+
+    public GuestIpIndex(Loader loader) {
+        _loader = loader;
+    }
+
+    /**
+     * @param reload whether to load the network from the database first.
+     * @return an ip of the network that is probably free, -1 if there is none.
+     */
+    public long take(long networkId, String cidr, String gateway, Exclusion exclusion, boolean reload) {
+        Entry entry = get(networkId, cidr, gateway, reload);
+        if (entry == null) {
+            return -1;
+        }
+
+        List<Long> skipped = new ArrayList<Long>();
+        long ip;
+        while ((ip = entry._free.take(_random)) >= 0 && isExcluded(ip, entry._free.getStart(), exclusion)) {
+            skipped.add(ip);
+        }
+        for (Long excluded : skipped) {
+            entry._free.markFree(excluded);
+        }
+        return ip;
+    }
+
+    /**
+     * @return the number of ips of the network that are probably free.
+     */
+    public int getFreeCount(long networkId, String cidr, String gateway, Exclusion exclusion, boolean reload) {
+        Entry entry = get(networkId, cidr, gateway, reload);
+        if (entry == null) {
+            return 0;
+        }
+
+        int count = entry._free.getFreeCount();
+        if (exclusion == Exclusion.GATEWAY_AND_DOT_ONE) {
+            long start = entry._free.getStart();
+            if (entry._free.isFree(start)) {
+                count--;
+            }
+            // the .1 addresses after the first host address
+            for (long ip = (start | 0xff) + 2; ip <= entry._free.getEnd(); ip += 256) {
+                if (entry._free.isFree(ip)) {
+                    count--;
+                }
+            }
+        }
+        return count;
+    }
+
+    public Set<Long> listFree(long networkId, String cidr, String gateway, Exclusion exclusion, boolean reload) {
+        Set<Long> free = new TreeSet<Long>();
+        Entry entry = get(networkId, cidr, gateway, reload);
+        if (entry != null) {
+            long start = entry._free.getStart();
+            for (long ip = start; ip <= entry._free.getEnd(); ip++) {
+                if (entry._free.isFree(ip) && !isExcluded(ip, start, exclusion)) {
+                    free.add(ip);
+                }
+            }
+        }
+        return free;
+    }
+
+    public void markTaken(long networkId, String ip) {
+        Entry entry = _networks.get(networkId);
+        if (entry != null && ip != null) {
+            entry._free.markTaken(NetUtils.ip2Long(ip));
+        }
+    }
+
+    public void release(long networkId, String ip) {
+        Entry entry = _networks.get(networkId);
+        if (entry != null && ip != null) {
+            long value = NetUtils.ip2Long(ip);
+            if (!isGateway(value, entry._gateway)) {
+                entry._free.markFree(value);
+            }
+        }
+    }
+
+    public void invalidate(long networkId) {
+        _networks.remove(networkId);
+    }
+
+    private Entry get(long networkId, String cidr, String gateway, boolean reload) {
+        Entry entry = _networks.get(networkId);
+        if (reload || entry == null || !entry.matches(cidr, gateway)) {
+            entry = load(networkId, cidr, gateway);
+        }
+        return entry;
+    }
+
+    private Entry load(long networkId, String cidr, String gateway) {
+        String[] tuple = cidr.split("/");
+        long size = Long.parseLong(tuple[1]);
+        long netmask = NetUtils.ip2Long(NetUtils.getCidrNetmask(size));
+        long start = (NetUtils.ip2Long(tuple[0]) & netmask) + 1;
+        long end = (NetUtils.ip2Long(tuple[0]) | ~netmask & 0xffffffffL) - 1;
+        if (end < start) {
+            _networks.remove(networkId);
+            return null;
+        }
+
+        RangeBitmap free = new RangeBitmap(start, end);
+        for (long ip = start; ip <= end; ip++) {
+            if (!isGateway(ip, gateway)) {
+                free.markFree(ip);
+            }
+        }
+        for (String ip : _loader.listUsed(networkId)) {
+            free.markTaken(NetUtils.ip2Long(ip));
+        }
+
+        Entry entry = new Entry(cidr, gateway, free);
+        _networks.put(networkId, entry);
+        return entry;
+    }
+
+    private static boolean isGateway(long ip, String gateway) {
+        return gateway != null && ip == NetUtils.ip2Long(gateway);
+    }
+
+    private static boolean isExcluded(long ip, long start, Exclusion exclusion) {
+        return exclusion == Exclusion.GATEWAY_AND_DOT_ONE && (ip == start || (ip & 0xff) == 1);
+    }
+}
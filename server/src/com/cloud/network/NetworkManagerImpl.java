@@ -26,7 +26,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -2728,10 +2727,6 @@ public class NetworkManagerImpl implements NetworkManager, Manager, Listener {
         return ip;
     }
 
-    
-
-    Random _rand = new Random(System.currentTimeMillis());
-
     @Override
     @DB
     public String acquireGuestIpAddress(Network network, String requestedIp) {
@@ -2740,18 +2735,14 @@ public class NetworkManagerImpl implements NetworkManager, Manager, Listener {
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
-
-        if (availableIps.isEmpty()) {
-            return null;
-        }
-
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
-
         if (requestedIp != null) {
+            if (_nicDao.findByIp4AddressAndNetworkId(requestedIp, network.getId()) != null) {
+                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+                return null;
+            }
             // check that requested ip has the same cidr
             String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
+            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, cidr[0], Integer.parseInt(cidr[1]));
             if (!isSameCidr) {
                 s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
                 return null;
@@ -2760,11 +2751,8 @@ public class NetworkManagerImpl implements NetworkManager, Manager, Listener {
             }
         }
 
-        String result;
-        do {
-            result = NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
-        } while (result.split("\\.")[3].equals("1"));
-        return result;
+        return _nicDao.takeIpAddressInNetwork(network.getId(), network.getCidr(), network.getGateway(),
+                GuestIpIndex.Exclusion.GATEWAY_AND_DOT_ONE);
     }
 
     
@@ -25,7 +25,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -512,7 +511,9 @@ public class NetworkModelImpl  implements NetworkModel, Manager{
         if (network.getGuestType() == GuestType.Shared) {
             hasFreeIps = _ipAddressDao.countFreeIPsInNetwork(network.getId()) > 0;
         } else {
-            hasFreeIps = (getAvailableIps(network, null)).size() > 0;
+            // vms get their ips from NetworkManager.acquireGuestIpAddress
+            hasFreeIps = _nicDao.countFreeIpAddressesInNetwork(network.getId(), network.getCidr(), network.getGateway(),
+                    GuestIpIndex.Exclusion.GATEWAY_AND_DOT_ONE) > 0;
         }
     
         return hasFreeIps;
@@ -1565,23 +1566,12 @@ public class NetworkModelImpl  implements NetworkModel, Manager{
 
     @Override
     public Set<Long> getAvailableIps(Network network, String requestedIp) {
-        String[] cidr = network.getCidr().split("/");
-        List<String> ips = _nicDao.listIpAddressInNetwork(network.getId());
-        Set<Long> allPossibleIps = NetUtils.getAllIpsFromCidr(cidr[0], Integer.parseInt(cidr[1]));
-        Set<Long> usedIps = new TreeSet<Long>(); 
-        
-        for (String ip : ips) {
-            if (requestedIp != null && requestedIp.equals(ip)) {
-                s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
-                return null;
-            }
-    
-            usedIps.add(NetUtils.ip2Long(ip));
-        }
-        if (usedIps.size() != 0) {
-            allPossibleIps.removeAll(usedIps);
+        if (requestedIp != null && _nicDao.findByIp4AddressAndNetworkId(requestedIp, network.getId()) != null) {
+            s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
+            return null;
         }
-        return allPossibleIps;
+        return _nicDao.listFreeIpAddressesInNetwork(network.getId(), network.getCidr(), network.getGateway(),
+                GuestIpIndex.Exclusion.GATEWAY);
     }
 
     @Override
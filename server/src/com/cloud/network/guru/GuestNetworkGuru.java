@@ -20,8 +20,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import javax.ejb.Local;
 
@@ -41,6 +39,7 @@ import com.cloud.event.EventVO;
 import com.cloud.exception.InsufficientAddressCapacityException;
 import com.cloud.exception.InsufficientVirtualNetworkCapcityException;
 import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.network.GuestIpIndex;
 import com.cloud.network.IPAddressVO;
 import com.cloud.network.Network;
 import com.cloud.network.Network.State;
@@ -225,25 +224,15 @@ public abstract class GuestNetworkGuru extends AdapterBase implements NetworkGur
     }
 
     public Ip4Address acquireIp4Address(Network network, Ip4Address requestedIp, String reservationId) {
-        List<String> ips = _nicDao.listIpAddressInNetwork(network.getId());
         String[] cidr = network.getCidr().split("/");
-        SortedSet<Long> usedIps = new TreeSet<Long>();
 
         if (requestedIp != null && requestedIp.equals(network.getGateway())) {
             s_logger.warn("Requested ip address " + requestedIp + " is used as a gateway address in network " + network);
             return null;
         }
 
-        for (String ip : ips) {
-            usedIps.add(NetUtils.ip2Long(ip));
-        }
-
-        if (network.getGateway() != null) {
-            usedIps.add(NetUtils.ip2Long(network.getGateway()));
-        }
-
         if (requestedIp != null) {
-            if (usedIps.contains(requestedIp.toLong())) {
+            if (_nicDao.findByIp4AddressAndNetworkId(requestedIp.ip4(), network.getId()) != null) {
                 s_logger.warn("Requested ip address " + requestedIp + " is already in used in " + network);
                 return null;
             }
@@ -257,8 +246,9 @@ public abstract class GuestNetworkGuru extends AdapterBase implements NetworkGur
             return requestedIp;
         }
 
-        long ip = NetUtils.getRandomIpFromCidr(cidr[0], Integer.parseInt(cidr[1]), usedIps);
-        if (ip == -1) {
+        String ip = _nicDao.takeIpAddressInNetwork(network.getId(), network.getCidr(), network.getGateway(),
+                GuestIpIndex.Exclusion.GATEWAY);
+        if (ip == null) {
             s_logger.warn("Unable to allocate any more ip address in " + network);
             return null;
         }
@@ -82,6 +82,8 @@ public class Criteria {
     public static final String TEMPLATE_ID = "templateid";
     public static final String ISO_ID = "isoid";
     public static final String VPC_ID = "vpcId";
+    public static final String START_AFTER = "startafter";
+    public static final String SKIP_COUNT = "skipcount";
 
 	public Criteria(String orderBy, Boolean ascending, Long offset, Long limit) {
 		this.offset = offset;
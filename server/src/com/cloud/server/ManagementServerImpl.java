@@ -218,6 +218,7 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.JoinBuilder;
@@ -1824,11 +1825,14 @@ public class ManagementServerImpl implements ManagementServer {
                     purgeCal.add(Calendar.DAY_OF_YEAR, -_purgeDelay);
                     Date purgeTime = purgeCal.getTime();
                     s_logger.debug("Deleting events older than: " + purgeTime.toString());
-                    List<EventVO> oldEvents = _eventDao.listOlderEvents(purgeTime);
-                    s_logger.debug("Found " + oldEvents.size() + " events to be purged");
-                    for (EventVO event : oldEvents) {
-                        _eventDao.expunge(event.getId());
-                    }
+                    int purged = _eventDao.streamOlderEvents(purgeTime, new EntityConsumer<EventVO>() {
+                        @Override
+                        public boolean consume(EventVO event) {
+                            _eventDao.expunge(event.getId());
+                            return true;
+                        }
+                    });
+                    s_logger.debug("Purged " + purged + " events");
                 } catch (Exception e) {
                     s_logger.error("Exception ", e);
                 } finally {
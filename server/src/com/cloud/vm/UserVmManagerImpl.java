@@ -2565,6 +2565,73 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         return vm;
     }
 
+    @Override
+    public List<? extends UserVm> startVirtualMachines(DeployVMsCmd cmd) throws ResourceUnavailableException, InsufficientCapacityException, ConcurrentOperationException {
+        Account caller = UserContext.current().getCaller();
+        UserVO callerUser = _userDao.findById(UserContext.current().getCallerUserId());
+
+        List<UserVmVO> vms = new ArrayList<UserVmVO>();
+        for (Long vmId : cmd.getEntityIds()) {
+            UserVmVO vm = _vmDao.findById(vmId);
+            if (vm == null) {
+                throw new InvalidParameterValueException("unable to find a virtual machine with id " + vmId);
+            }
+            _accountMgr.checkAccess(caller, null, true, vm);
+            vms.add(vm);
+        }
+        if (vms.isEmpty()) {
+            return vms;
+        }
+
+        // place all the vms up front, then start each one on the host planned for it
+        List<DeployDestination> dests = _itMgr.planDeployment(vms, new DataCenterDeployment(vms.get(0).getDataCenterIdToDeployIn()), callerUser, caller);
+
+        List<UserVmVO> started = new ArrayList<UserVmVO>();
+        CloudException firstFailure = null;
+        for (int i = 0; i < vms.size(); i++) {
+            UserVmVO vm = vms.get(i);
+            DeployDestination dest = dests.get(i);
+            try {
+                Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> vmParamPair = null;
+                try {
+                    try {
+                        vmParamPair = startVirtualMachine(vm.getId(), null, dest, null);
+                    } catch (InsufficientCapacityException e) {
+                        if (dest == null) {
+                            throw e;
+                        }
+                        s_logger.debug("Unable to start " + vm + " on planned host " + dest.getHost().getId() + ", letting the planner choose again");
+                        vmParamPair = startVirtualMachine(vm.getId(), null, null, null);
+                    }
+                } finally {
+                    updateVmStateForFailedVmCreation(vm.getId());
+                }
+
+                UserVmVO startedVm = vmParamPair.first();
+                VMTemplateVO template = _templateDao.findByIdIncludingRemoved(startedVm.getTemplateId());
+                if (template.getEnablePassword() && vmParamPair.second() != null) {
+                    // this value is not being sent to the backend; need only for api display purposes
+                    startedVm.setPassword((String)vmParamPair.second().get(VirtualMachineProfile.Param.VmPassword));
+                }
+                started.add(startedVm);
+            } catch (InsufficientCapacityException e) {
+                s_logger.warn("Unable to start " + vm + " of the bulk deployment", e);
+                firstFailure = firstFailure == null ? e : firstFailure;
+            } catch (ResourceUnavailableException e) {
+                s_logger.warn("Unable to start " + vm + " of the bulk deployment", e);
+                firstFailure = firstFailure == null ? e : firstFailure;
+            }
+        }
+
+        if (started.isEmpty() && firstFailure != null) {
+            if (firstFailure instanceof InsufficientCapacityException) {
+                throw (InsufficientCapacityException)firstFailure;
+            }
+            throw (ResourceUnavailableException)firstFailure;
+        }
+        return started;
+    }
+
     @Override
     public boolean finalizeVirtualMachineProfile(VirtualMachineProfile<UserVmVO> profile, DeployDestination dest, ReservationContext context) {
         UserVmVO vm = profile.getVirtualMachine();
@@ -2781,6 +2848,14 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
 
     @Override
     public Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, Map<VirtualMachineProfile.Param, Object> additionalParams) throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
+        return startVirtualMachine(vmId, hostId, null, additionalParams);
+    }
+
+    /**
+     * @param plannedDestination destination already chosen for the vm by a batch plan, ignored when hostId is given
+     */
+    protected Pair<UserVmVO, Map<VirtualMachineProfile.Param, Object>> startVirtualMachine(long vmId, Long hostId, DeployDestination plannedDestination, Map<VirtualMachineProfile.Param, Object> additionalParams)
+            throws ConcurrentOperationException, ResourceUnavailableException, InsufficientCapacityException {
         // Input validation
         Account callerAccount = UserContext.current().getCaller();
         UserVO callerUser = _userDao.findById(UserContext.current().getCallerUserId());
@@ -2838,6 +2913,9 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         if (destinationHost != null) {
             s_logger.debug("Destination Host to deploy the VM is specified, specifying a deployment plan to deploy the VM");
             plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn(), destinationHost.getPodId(), destinationHost.getClusterId(), destinationHost.getId(), null, null);
+        } else if (plannedDestination != null) {
+            Host plannedHost = plannedDestination.getHost();
+            plan = new DataCenterDeployment(vm.getDataCenterIdToDeployIn(), plannedHost.getPodId(), plannedHost.getClusterId(), plannedHost.getId(), null, null);
         }
 
         //Set parameters
@@ -96,6 +96,14 @@ public interface VirtualMachineManager extends Manager {
 
     <T extends VMInstanceVO> T advanceStart(T vm, Map<VirtualMachineProfile.Param, Object> params, User caller, Account account, DeploymentPlan planToDeploy) throws InsufficientCapacityException, ResourceUnavailableException, ConcurrentOperationException, OperationTimedoutException;
 
+    /**
+     * Finds a destination for each of the vms, with one pass of the deployment planner for all the vms it handles.
+     * @param vms vms to place
+     * @param plan where the vms should be deployed to
+     * @return destinations in the order of vms, null for the vms that could not be placed
+     */
+    <T extends VMInstanceVO> List<DeployDestination> planDeployment(List<T> vms, DeploymentPlan plan, User caller, Account account) throws InsufficientServerCapacityException;
+
     <T extends VMInstanceVO> boolean advanceStop(T vm, boolean forced, User caller, Account account) throws ResourceUnavailableException, OperationTimedoutException, ConcurrentOperationException;
 
     <T extends VMInstanceVO> boolean advanceExpunge(T vm, User caller, Account account) throws ResourceUnavailableException, OperationTimedoutException, ConcurrentOperationException;
@@ -19,12 +19,14 @@ package com.cloud.vm;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -600,6 +602,52 @@ public class VirtualMachineManagerImpl implements VirtualMachineManager, Listene
         return advanceStart(vm, params, caller, account, null);
     }
 
+    @Override
+    public <T extends VMInstanceVO> List<DeployDestination> planDeployment(List<T> vms, DeploymentPlan plan, User caller, Account account) throws InsufficientServerCapacityException {
+        ReservationContext ctx = new ReservationContextImpl(null, null, caller, account);
+        DataCenterDeployment batchPlan = new DataCenterDeployment(plan.getDataCenterId(), plan.getPodId(), plan.getClusterId(), plan.getHostId(), plan.getPoolId(), plan.getPhysicalNetworkId(), ctx);
+        ExcludeList avoids = new ExcludeList();
+
+        // one batch per planner, each keeping the order of the vms
+        Map<DeploymentPlanner, List<Integer>> batches = new LinkedHashMap<DeploymentPlanner, List<Integer>>();
+        List<VirtualMachineProfile<? extends VirtualMachine>> profiles = new ArrayList<VirtualMachineProfile<? extends VirtualMachine>>(vms.size());
+        for (int i = 0; i < vms.size(); i++) {
+            T vm = vms.get(i);
+            ServiceOfferingVO offering = _offeringDao.findById(vm.getServiceOfferingId());
+            VMTemplateVO template = _templateDao.findById(vm.getTemplateId());
+            Account owner = _accountDao.findById(vm.getAccountId());
+            VirtualMachineProfileImpl<T> vmProfile = new VirtualMachineProfileImpl<T>(vm, template, offering, owner, null);
+            profiles.add(vmProfile);
+            for (DeploymentPlanner planner : _planners) {
+                if (planner.canHandle(vmProfile, batchPlan, avoids)) {
+                    List<Integer> batch = batches.get(planner);
+                    if (batch == null) {
+                        batch = new ArrayList<Integer>();
+                        batches.put(planner, batch);
+                    }
+                    batch.add(i);
+                    break;
+                }
+            }
+        }
+
+        DeployDestination[] dests = new DeployDestination[vms.size()];
+        for (Map.Entry<DeploymentPlanner, List<Integer>> batch : batches.entrySet()) {
+            List<VirtualMachineProfile<? extends VirtualMachine>> batchProfiles = new ArrayList<VirtualMachineProfile<? extends VirtualMachine>>(batch.getValue().size());
+            for (Integer index : batch.getValue()) {
+                batchProfiles.add(profiles.get(index));
+            }
+            // planners add the hosts they pick to what they avoid, that must not leak into the next planner
+            ExcludeList batchAvoids = new ExcludeList();
+            batchAvoids.addAll(avoids);
+            List<DeployDestination> planned = batch.getKey().planBatch(batchProfiles, batchPlan, batchAvoids);
+            for (int i = 0; i < planned.size(); i++) {
+                dests[batch.getValue().get(i)] = planned.get(i);
+            }
+        }
+        return Arrays.asList(dests);
+    }
+
     @Override
     public <T extends VMInstanceVO> T advanceStart(T vm, Map<VirtualMachineProfile.Param, Object> params, User caller, Account account, DeploymentPlan planToDeploy)
             throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException {
@@ -17,7 +17,9 @@
 package com.cloud.vm.dao;
 
 import java.util.List;
+import java.util.Set;
 
+import com.cloud.network.GuestIpIndex;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.vm.NicVO;
 import com.cloud.vm.VirtualMachine;
@@ -58,4 +60,17 @@ public interface NicDao extends GenericDao<NicVO, Long> {
     NicVO findByNetworkIdInstanceIdAndBroadcastUri(long networkId, long instanceId, String broadcastUri);
     
     NicVO findByIp4AddressAndNetworkIdAndInstanceId(long networkId, long instanceId, String ip4Address);
+
+    /**
+     * Picks a random ip of the cidr that no nic of the network uses. The ip
+     * is not reserved; the caller assigns it to a nic.
+     *
+     * @param exclusion the addresses of the cidr the caller never hands out.
+     * @return the ip or null if the cidr has no free ip left.
+     */
+    String takeIpAddressInNetwork(long networkId, String cidr, String gateway, GuestIpIndex.Exclusion exclusion);
+
+    int countFreeIpAddressesInNetwork(long networkId, String cidr, String gateway, GuestIpIndex.Exclusion exclusion);
+
+    Set<Long> listFreeIpAddressesInNetwork(long networkId, String cidr, String gateway, GuestIpIndex.Exclusion exclusion);
 }
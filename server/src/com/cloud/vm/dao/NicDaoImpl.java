@@ -17,15 +17,20 @@
 package com.cloud.vm.dao;
 
 import java.util.List;
+import java.util.Set;
 
 import javax.ejb.Local;
 
+import org.apache.log4j.Logger;
+
+import com.cloud.network.GuestIpIndex;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Func;
 import com.cloud.utils.db.SearchCriteria.Op;
+import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.Nic;
 import com.cloud.vm.Nic.State;
 import com.cloud.vm.NicVO;
@@ -33,10 +38,17 @@ import com.cloud.vm.VirtualMachine;
 
 @Local(value=NicDao.class)
 public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
+    private static final Logger s_logger = Logger.getLogger(NicDaoImpl.class);
+
+    // how many ips picked from the bitmap may turn out to be used before
+    // the bitmap of the network is loaded again
+    private static final int MAX_STALE_PICKS = 8;
+
     private final SearchBuilder<NicVO> AllFieldsSearch;
     private final GenericSearchBuilder<NicVO, String> IpSearch;
     private final SearchBuilder<NicVO> NonReleasedSearch;
     final GenericSearchBuilder<NicVO, Integer> CountBy;
+    private final GuestIpIndex _guestIps;
 
     
     protected NicDaoImpl() {
@@ -69,13 +81,72 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
         CountBy.and("vmId", CountBy.entity().getInstanceId(), Op.EQ);
         CountBy.and("removed", CountBy.entity().getRemoved(), Op.NULL);
         CountBy.done();
+
+        _guestIps = new GuestIpIndex(new GuestIpIndex.Loader() {
+            @Override
+            public List<String> listUsed(long networkId) {
+                return listIpAddressInNetwork(networkId);
+            }
+        });
     }
     
     @Override
     public void removeNicsForInstance(long instanceId) {
+        List<NicVO> nics = listByVmId(instanceId);
         SearchCriteria<NicVO> sc = AllFieldsSearch.create();
         sc.setParameters("instance", instanceId);
         remove(sc);
+        for (NicVO nic : nics) {
+            _guestIps.release(nic.getNetworkId(), nic.getIp4Address());
+        }
+    }
+
+    @Override
+    public boolean remove(Long id) {
+        NicVO nic = findById(id);
+        boolean removed = super.remove(id);
+        if (removed && nic != null) {
+            _guestIps.release(nic.getNetworkId(), nic.getIp4Address());
+        }
+        return removed;
+    }
+
+    @Override
+    public String takeIpAddressInNetwork(long networkId, String cidr, String gateway, GuestIpIndex.Exclusion exclusion) {
+        boolean reloaded = false;
+        int stale = 0;
+        while (true) {
+            long ip = _guestIps.take(networkId, cidr, gateway, exclusion, false);
+            if (ip >= 0) {
+                String address = NetUtils.long2Ip(ip);
+                if (findByIp4AddressAndNetworkId(address, networkId) == null) {
+                    return address;
+                }
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Ip " + address + " picked for network " + networkId + " is already used");
+                }
+                if (++stale < MAX_STALE_PICKS) {
+                    continue;
+                }
+            }
+            if (reloaded) {
+                return null;
+            }
+            reloaded = true;
+            stale = 0;
+            _guestIps.invalidate(networkId);
+        }
+    }
+
+    @Override
+    public int countFreeIpAddressesInNetwork(long networkId, String cidr, String gateway, GuestIpIndex.Exclusion exclusion) {
+        int count = _guestIps.getFreeCount(networkId, cidr, gateway, exclusion, false);
+        return count > 0 ? count : _guestIps.getFreeCount(networkId, cidr, gateway, exclusion, true);
+    }
+
+    @Override
+    public Set<Long> listFreeIpAddressesInNetwork(long networkId, String cidr, String gateway, GuestIpIndex.Exclusion exclusion) {
+        return _guestIps.listFree(networkId, cidr, gateway, exclusion, true);
     }
     
     @Override
@@ -0,0 +1,54 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.command.admin.router.ListVirtualRouterElementsCmd;
+import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
+
+public class ApiCommandBindingTest extends TestCase {
+
+    public void testParametersIncludeSuperclasses() {
+        ApiCommandBinding binding = ApiCommandBinding.getBinding(ListVMsCmd.class);
+        assertSame(binding, ApiCommandBinding.getBinding(ListVMsCmd.class));
+
+        Map<String, ApiCommandBinding.ParameterBinding> parameters = new HashMap<String, ApiCommandBinding.ParameterBinding>();
+        for (ApiCommandBinding.ParameterBinding parameter : binding.getParameters()) {
+            assertTrue(parameter.getParameter().expose());
+            assertTrue(parameter.getField().isAccessible());
+            parameters.put(parameter.getParameter().name(), parameter);
+        }
+
+        // declared by the command and by BaseListCmd
+        assertTrue(parameters.containsKey(ApiConstants.ID));
+        assertTrue(parameters.containsKey(ApiConstants.PAGE_SIZE));
+        assertNotNull(parameters.get(ApiConstants.ZONE_ID).getEntities());
+        assertNull(parameters.get(ApiConstants.NAME).getEntities());
+        assertTrue(binding.getPluggedServices().isEmpty());
+    }
+
+    public void testPluggedServices() {
+        ApiCommandBinding binding = ApiCommandBinding.getBinding(ListVirtualRouterElementsCmd.class);
+        assertEquals(1, binding.getPluggedServices().size());
+        assertEquals("_service", binding.getPluggedServices().get(0).getName());
+    }
+}
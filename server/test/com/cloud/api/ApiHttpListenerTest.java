@@ -0,0 +1,255 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+
+public class ApiHttpListenerTest extends TestCase {
+    private final CountDownLatch _release = new CountDownLatch(1);
+    private ApiHttpListener _listener;
+
+    private class TestApiServer extends ApiServer {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+            String uri = request.getRequestLine().getUri();
+            if (uri.contains("command=slow")) {
+                try {
+                    _release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+            if (uri.contains("command=large")) {
+                response.setEntity(new EntityTemplate(new ContentProducer() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        out.write(largeBody().getBytes("UTF-8"));
+                    }
+                }));
+                return;
+            }
+            response.setEntity(new StringEntity(uri));
+        }
+
+        @Override
+        public String getSerializedApiError(int errorCode, String errorText, Map<String, Object[]> apiCommandParams, String responseType) {
+            return errorCode + " " + errorText;
+        }
+    }
+
+    // larger than the slices a connection may have queued
+    private static String largeBody() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            body.append("line ").append(i).append('\n');
+        }
+        return body.toString();
+    }
+
+    @Override
+    protected void tearDown() {
+        _release.countDown();
+        if (_listener != null) {
+            _listener.stop();
+        }
+    }
+
+    private void start(int workers, int queueSize) throws IOException {
+        _listener = new ApiHttpListener(new TestApiServer(), workers, queueSize);
+        _listener.start(0);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", _listener.getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String... uris) throws IOException {
+        StringBuilder requests = new StringBuilder();
+        for (String uri : uris) {
+            requests.append("GET ").append(uri).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(requests.toString().getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int read = 0; read < length;) {
+            int count = in.read(data, read, length - read);
+            if (count < 0) {
+                throw new IOException("Connection closed");
+            }
+            read += count;
+        }
+        return data;
+    }
+
+    /**
+     * @return the status code and the body of the next response.
+     */
+    private static String receive(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        String status = readLine(in).split(" ")[1];
+        int length = -1;
+        boolean chunked = false;
+        String header;
+        while ((header = readLine(in)).length() > 0) {
+            if (header.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(header.substring("content-length:".length()).trim());
+            } else if (header.equalsIgnoreCase("transfer-encoding: chunked")) {
+                chunked = true;
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                body.write(readFully(in, size));
+                assertEquals("", readLine(in));
+            }
+            assertEquals("", readLine(in));
+        } else if (length >= 0) {
+            body.write(readFully(in, length));
+        } else {
+            int b;
+            while ((b = in.read()) >= 0) {
+                body.write(b);
+            }
+        }
+        return status + " " + body.toString("UTF-8");
+    }
+
+    public void testPipelinedRequestsOnKeptAliveConnection() throws Exception {
+        start(4, 10);
+        Socket socket = connect();
+        try {
+            send(socket, "/client/api?command=first", "/client/api?command=second");
+            assertEquals("200 /client/api?command=first", receive(socket));
+            assertEquals("200 /client/api?command=second", receive(socket));
+
+            send(socket, "/client/api?command=third");
+            assertEquals("200 /client/api?command=third", receive(socket));
+        } finally {
+            socket.close();
+        }
+        assertEquals(3, _listener.getRequests());
+        assertEquals(1, _listener.getAcceptedConnections());
+    }
+
+    public void testLargeResponseSentChunked() throws Exception {
+        start(1, 1);
+        Socket socket = connect();
+        try {
+            send(socket, "/client/api?command=large", "/client/api?command=after");
+            assertEquals("200 " + largeBody(), receive(socket));
+            assertEquals("200 /client/api?command=after", receive(socket));
+        } finally {
+            socket.close();
+        }
+
+        // HTTP/1.0 has no chunked encoding, the body ends with the connection
+        socket = connect();
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /client/api?command=large HTTP/1.0\r\n\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+            assertEquals("200 " + largeBody(), receive(socket));
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testOverloadRejectedWithServiceUnavailable() throws Exception {
+        start(1, 1);
+        Socket busy = connect();
+        Socket queued = connect();
+        Socket rejected = connect();
+        try {
+            send(busy, "/client/api?command=slow");
+            waitFor(new Condition() {
+                @Override
+                public boolean holds() {
+                    return _listener.getActiveWorkers() == 1;
+                }
+            });
+            send(queued, "/client/api?command=slow&second");
+            waitFor(new Condition() {
+                @Override
+                public boolean holds() {
+                    return _listener.getQueueDepth() == 1;
+                }
+            });
+
+            send(rejected, "/client/api?command=slow&third");
+            assertTrue(receive(rejected).startsWith("503 503"));
+            assertEquals(1, _listener.getRejectedRequests());
+
+            _release.countDown();
+            assertEquals("200 /client/api?command=slow", receive(busy));
+            assertEquals("200 /client/api?command=slow&second", receive(queued));
+        } finally {
+            busy.close();
+            queued.close();
+            rejected.close();
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.holds(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.holds());
+    }
+}
@@ -0,0 +1,89 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ApiResponseCacheTest extends TestCase {
+
+    @Override
+    protected void setUp() {
+        ApiResponseCache.configure(60, 10, 0);
+    }
+
+    @Override
+    protected void tearDown() {
+        ApiResponseCache.configure(0, 0, 0);
+    }
+
+    public void testKey() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("available", "true");
+        params.put("sessionkey", "abc");
+        params.put("_", "1364375000000");
+        String key = ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "json", params);
+
+        params.put("sessionkey", "def");
+        params.put("_", "1364375000001");
+        assertEquals(key, ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "json", params));
+        assertFalse(key.equals(ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 3, "json", params)));
+        assertFalse(key.equals(ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "xml", params)));
+
+        params.put("id", "1");
+        assertFalse(key.equals(ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "json", params)));
+
+        assertNull(ApiResponseCache.getKey("listVirtualMachines", 2, "json", params));
+    }
+
+    public void testZonesWithCapacitiesNotCached() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("showcapacities", "false");
+        assertNotNull(ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "json", params));
+
+        params.put("showcapacities", "true");
+        assertNull(ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "json", params));
+
+        params.remove("showcapacities");
+        params.put("ShowCapacities", "TRUE");
+        assertNull(ApiResponseCache.getKey(ApiResponseCache.LIST_ZONES, 2, "json", params));
+    }
+
+    public void testInvalidateForEvent() {
+        long generation = ApiResponseCache.getGeneration(ApiResponseCache.LIST_ZONES);
+        ApiResponseCache.put(ApiResponseCache.LIST_ZONES, "2/json", "zones", generation);
+        generation = ApiResponseCache.getGeneration(ApiResponseCache.LIST_DISK_OFFERINGS);
+        ApiResponseCache.put(ApiResponseCache.LIST_DISK_OFFERINGS, "2/json", "offerings", generation);
+
+        ApiResponseCache.invalidateForEvent("SERVICE.OFFERING.EDIT");
+        assertEquals("zones", ApiResponseCache.get(ApiResponseCache.LIST_ZONES, "2/json"));
+        assertEquals("offerings", ApiResponseCache.get(ApiResponseCache.LIST_DISK_OFFERINGS, "2/json"));
+
+        ApiResponseCache.invalidateForEvent("ZONE.EDIT");
+        assertNull(ApiResponseCache.get(ApiResponseCache.LIST_ZONES, "2/json"));
+        assertEquals("offerings", ApiResponseCache.get(ApiResponseCache.LIST_DISK_OFFERINGS, "2/json"));
+    }
+
+    public void testStaleResponseNotCached() {
+        long generation = ApiResponseCache.getGeneration(ApiResponseCache.LIST_TEMPLATES);
+        ApiResponseCache.invalidate(ApiResponseCache.LIST_TEMPLATES);
+        ApiResponseCache.put(ApiResponseCache.LIST_TEMPLATES, "2/json", "templates", generation);
+        assertNull(ApiResponseCache.get(ApiResponseCache.LIST_TEMPLATES, "2/json"));
+    }
+}
@@ -0,0 +1,192 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.api.query.vo.UserVmJoinVO;
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDao;
+import com.cloud.utils.db.QueryBuilder;
+import com.cloud.utils.db.SearchCriteria;
+
+public class QueryManagerImplTest extends TestCase {
+
+    /**
+     * The criteria of one caller over the vm view: the caller sees the vms of its own account only.
+     */
+    static class VmCriteria extends SearchCriteria<UserVmJoinVO> {
+        final Set<Long> _visible;
+        String _uuid;
+        long _after;
+
+        VmCriteria(Long... visible) {
+            super((QueryBuilder<?, UserVmJoinVO>) null);
+            _visible = new HashSet<Long>();
+            Collections.addAll(_visible, visible);
+        }
+
+        @Override
+        public void setMatch(String field, Object value) {
+            assertEquals("uuid", field);
+            _uuid = (String) value;
+        }
+
+        @Override
+        public void addAnd(String field, Op op, Object... values) {
+            assertEquals("id", field);
+            assertEquals(Op.GT, op);
+            _after = (Long) values[0];
+        }
+    }
+
+    // vm 3 belongs to another account, every vm has two nics and so two rows in the view
+    static final long[] VMS = new long[] { 1, 2, 3, 4, 5 };
+
+    GenericDao<UserVmJoinVO, Long> _dao;
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void setUp() {
+        _dao = mock(GenericDao.class);
+        when(_dao.search(any(SearchCriteria.class), any(Filter.class))).thenAnswer(new Answer<List<UserVmJoinVO>>() {
+            @Override
+            public List<UserVmJoinVO> answer(InvocationOnMock invocation) {
+                return select((VmCriteria) invocation.getArguments()[0], (Filter) invocation.getArguments()[1]);
+            }
+        });
+        when(_dao.searchAndCount(any(SearchCriteria.class), any(Filter.class))).thenAnswer(new Answer<Pair<List<UserVmJoinVO>, Integer>>() {
+            @Override
+            public Pair<List<UserVmJoinVO>, Integer> answer(InvocationOnMock invocation) {
+                VmCriteria sc = (VmCriteria) invocation.getArguments()[0];
+                return new Pair<List<UserVmJoinVO>, Integer>(select(sc, (Filter) invocation.getArguments()[1]), select(sc, null).size());
+            }
+        });
+    }
+
+    static UserVmJoinVO row(long id) {
+        UserVmJoinVO vm = new UserVmJoinVO();
+        vm.setId(id);
+        vm.setUuid("vm-" + id);
+        return vm;
+    }
+
+    /**
+     * The first step of a two step view: one row per vm, in id order.
+     */
+    static List<UserVmJoinVO> select(VmCriteria sc, Filter filter) {
+        List<UserVmJoinVO> rows = new ArrayList<UserVmJoinVO>();
+        for (long id : VMS) {
+            if (sc._visible.contains(id) && id > sc._after && (sc._uuid == null || sc._uuid.equals("vm-" + id))) {
+                rows.add(row(id));
+            }
+        }
+        if (filter != null && filter.getLimit() != null) {
+            int from = (int) Math.min(filter.getOffset(), rows.size());
+            rows = rows.subList(from, (int) Math.min(from + filter.getLimit(), rows.size()));
+        }
+        return rows;
+    }
+
+    /**
+     * The second step of a two step view: the detail rows of the vms, in no particular order.
+     */
+    static List<UserVmJoinVO> searchByIds(List<UserVmJoinVO> page) {
+        List<UserVmJoinVO> rows = new ArrayList<UserVmJoinVO>();
+        for (UserVmJoinVO vm : page) {
+            rows.add(0, row(vm.getId()));
+            rows.add(row(vm.getId()));
+        }
+        return rows;
+    }
+
+    static List<Long> ids(List<UserVmJoinVO> rows) {
+        List<Long> ids = new ArrayList<Long>();
+        for (UserVmJoinVO row : rows) {
+            ids.add(row.getId());
+        }
+        return ids;
+    }
+
+    public void testStartAfterContinuesTwoStepView() {
+        Filter filter = new Filter(UserVmJoinVO.class, "id", true, 0L, 2L);
+        Pair<List<UserVmJoinVO>, Integer> page = QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), filter, null, false);
+        assertEquals(4, page.second().intValue());
+        List<UserVmJoinVO> vms = searchByIds(page.first());
+        QueryManagerImpl.sortByPage(vms, page.first());
+        assertEquals("[1, 1, 2, 2]", ids(vms).toString());
+
+        String startAfter = vms.get(vms.size() - 1).getUuid();
+        filter = new Filter(UserVmJoinVO.class, "id", true, null, 2L);
+        page = QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), filter, startAfter, false);
+        assertEquals(2, page.second().intValue());
+        vms = searchByIds(page.first());
+        QueryManagerImpl.sortByPage(vms, page.first());
+        assertEquals("[4, 4, 5, 5]", ids(vms).toString());
+
+        page = QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), filter, "vm-5", false);
+        assertTrue(page.first().isEmpty());
+        assertEquals(0, page.second().intValue());
+    }
+
+    public void testStartAfterOutsideCriteria() {
+        String missing = null;
+        try {
+            QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), null, "vm-9", false);
+            fail("a missing resource was accepted as startafter");
+        } catch (InvalidParameterValueException e) {
+            missing = e.getMessage().replace("vm-9", "");
+        }
+
+        // vm 3 exists but the caller can't list it
+        try {
+            QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), null, "vm-3", false);
+            fail("a resource of another account was accepted as startafter");
+        } catch (InvalidParameterValueException e) {
+            assertEquals(missing, e.getMessage().replace("vm-3", ""));
+        }
+    }
+
+    public void testSkipCount() {
+        Filter filter = new Filter(UserVmJoinVO.class, "id", true, 0L, 2L);
+        Pair<List<UserVmJoinVO>, Integer> page = QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), filter, null, true);
+        assertEquals(2, page.first().size());
+        assertEquals(2, page.second().intValue());
+
+        page = QueryManagerImpl.searchPage(_dao, UserVmJoinVO.class, new VmCriteria(1L, 2L, 4L, 5L), filter, "vm-4", true);
+        assertEquals("[5]", ids(page.first()).toString());
+        assertEquals(1, page.second().intValue());
+        verify(_dao, never()).searchAndCount(any(SearchCriteria.class), any(Filter.class));
+    }
+}
@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.cloudstack.api.BaseCmd;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.ResourceTagResponse;
+import org.apache.cloudstack.api.response.SecurityGroupResponse;
+import org.apache.cloudstack.api.response.SecurityGroupRuleResponse;
+
+public class ApiResponseSerializerTest extends TestCase {
+
+    @Override
+    protected void setUp() {
+        ApiResponseSerializer.s_version = "4.1.0";
+    }
+
+    @Override
+    protected void tearDown() {
+        ApiResponseSerializer.s_version = null;
+    }
+
+    private static SecurityGroupResponse createGroup(int i) {
+        SecurityGroupResponse group = new SecurityGroupResponse();
+        group.setObjectName("securitygroup");
+        group.setId("id-" + i);
+        group.setName("group " + i);
+        group.setDescription("<web> & \"db\" 'tier' \\ \u00e9");
+
+        SecurityGroupRuleResponse rule = new SecurityGroupRuleResponse();
+        rule.setRuleId("rule-" + i);
+        rule.setProtocol("tcp");
+        rule.setStartPort(22);
+        rule.setEndPort(22);
+        rule.setCidr("10.0.0.0/8");
+        group.addSecurityGroupIngressRule(rule);
+
+        ResourceTagResponse tag = new ResourceTagResponse();
+        tag.setKey("owner");
+        tag.setValue("a&b");
+        group.addTag(tag);
+        return group;
+    }
+
+    private static ListResponse<SecurityGroupResponse> createList(int size) {
+        List<SecurityGroupResponse> groups = new ArrayList<SecurityGroupResponse>();
+        for (int i = 0; i < size; i++) {
+            groups.add(createGroup(i));
+        }
+        ListResponse<SecurityGroupResponse> response = new ListResponse<SecurityGroupResponse>();
+        response.setResponseName("listsecuritygroupsresponse");
+        response.setResponses(groups, size);
+        return response;
+    }
+
+    private static void assertSameOutput(ListResponse<SecurityGroupResponse> response, String responseType, int items) throws Exception {
+        StringWriter out = new StringWriter();
+        AtomicInteger written = new AtomicInteger();
+        ApiResponseSerializer.writeSerializedString(response, responseType, out, written);
+        assertEquals(ApiResponseSerializer.toSerializedString(response, responseType), out.toString());
+        assertEquals(items, written.get());
+    }
+
+    public void testJsonStreamMatchesString() throws Exception {
+        ListResponse<SecurityGroupResponse> response = createList(3);
+        assertSameOutput(response, BaseCmd.RESPONSE_TYPE_JSON, 3);
+
+        String json = ApiResponseSerializer.toSerializedString(response, BaseCmd.RESPONSE_TYPE_JSON);
+        assertTrue(json.startsWith("{ \"listsecuritygroupsresponse\" : { \"count\":3 ,\"securitygroup\" : [  {"));
+        assertTrue(json.contains("\"ingressrule\":[{"));
+        assertTrue(json.contains("\"description\":\"<web> & \\\"db\\\" 'tier' \\\\ \u00e9\""));
+        assertTrue(json.endsWith(" ] }, \"cloudstack-version\": \"4.1.0\" }"));
+    }
+
+    public void testXmlStreamMatchesString() throws Exception {
+        ListResponse<SecurityGroupResponse> response = createList(3);
+        assertSameOutput(response, BaseCmd.RESPONSE_TYPE_XML, 3);
+
+        String xml = ApiResponseSerializer.toSerializedString(response, BaseCmd.RESPONSE_TYPE_XML);
+        assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><listsecuritygroupsresponse cloudstack-version=\"4.1.0\"><count>3</count>"
+                + "<securitygroup><id>id-0</id>"));
+        assertTrue(xml.contains("<description>&lt;web&gt; &amp; &quot;db&quot; &apos;tier&apos; \\ \u00e9</description>"));
+        assertTrue(xml.contains("<ingressrule><ruleid>rule-0</ruleid><protocol>tcp</protocol>"));
+        assertTrue(xml.contains("<value>a&amp;b</value>"));
+        assertTrue(xml.endsWith("</securitygroup></listsecuritygroupsresponse>"));
+    }
+
+    public void testEmptyList() throws Exception {
+        ListResponse<SecurityGroupResponse> response = createList(0);
+        assertSameOutput(response, BaseCmd.RESPONSE_TYPE_JSON, 0);
+        assertSameOutput(response, BaseCmd.RESPONSE_TYPE_XML, 0);
+
+        assertEquals("{ \"listsecuritygroupsresponse\" : { }, \"cloudstack-version\": \"4.1.0\" }",
+                ApiResponseSerializer.toSerializedString(response, BaseCmd.RESPONSE_TYPE_JSON));
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><listsecuritygroupsresponse cloudstack-version=\"4.1.0\"></listsecuritygroupsresponse>",
+                ApiResponseSerializer.toSerializedString(response, BaseCmd.RESPONSE_TYPE_XML));
+    }
+}
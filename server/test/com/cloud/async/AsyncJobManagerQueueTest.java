@@ -0,0 +1,114 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.async;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.async.dao.AsyncJobDao;
+
+public class AsyncJobManagerQueueTest extends TestCase {
+    private AsyncJobManagerImpl _jobMgr;
+    private SyncQueueManager _queueMgr;
+    private AsyncJobDao _jobDao;
+
+    @Override
+    protected void setUp() throws Exception {
+        _queueMgr = mock(SyncQueueManager.class);
+        _jobDao = mock(AsyncJobDao.class);
+        _jobMgr = new AsyncJobManagerImpl();
+        setField("_queueMgr", _queueMgr);
+        setField("_jobDao", _jobDao);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Field field = AsyncJobManagerImpl.class.getDeclaredField("_dispatchExecutor");
+        field.setAccessible(true);
+        ((ExecutorService)field.get(_jobMgr)).shutdownNow();
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = AsyncJobManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(_jobMgr, value);
+    }
+
+    private static SyncQueueItemVO item(long id, long queueId, String contentType, long contentId) {
+        SyncQueueItemVO item = new SyncQueueItemVO();
+        item.setId(id);
+        item.setQueueId(queueId);
+        item.setContentType(contentType);
+        item.setContentId(contentId);
+        return item;
+    }
+
+    /**
+     * @return a latch counted down on every dequeueFromOne of the queue.
+     */
+    private CountDownLatch countDequeues(long queueId, int count, final SyncQueueItemVO... items) {
+        final CountDownLatch latch = new CountDownLatch(count);
+        doAnswer(new Answer<SyncQueueItemVO>() {
+            int _calls;
+
+            @Override
+            public SyncQueueItemVO answer(InvocationOnMock invocation) {
+                latch.countDown();
+                return _calls < items.length ? items[_calls++] : null;
+            }
+        }).when(_queueMgr).dequeueFromOne(eq(queueId), anyLong());
+        return latch;
+    }
+
+    public void testCancelledBlockingItemWakesQueue() throws Exception {
+        when(_queueMgr.getBlockedQueueItems(anyLong(), eq(false))).thenReturn(Arrays.asList(item(5, 7, "Other", 1)));
+        CountDownLatch dequeued = countDequeues(7, 1);
+
+        _jobMgr.cancelBlockingQueueItems();
+
+        verify(_queueMgr).purgeItem(5);
+        assertTrue(dequeued.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testPurgedItemOfMissingJobWakesQueue() throws Exception {
+        when(_queueMgr.getBlockedQueueItems(anyLong(), eq(false))).thenReturn(Arrays.asList(item(5, 7, "Other", 1)));
+        when(_jobDao.findById(9L)).thenReturn(null);
+        // item 6 is dequeued first, then the queue is empty
+        CountDownLatch dequeued = countDequeues(7, 3, item(6, 7, SyncQueueItem.AsyncJobContentType, 9));
+
+        _jobMgr.cancelBlockingQueueItems();
+
+        // the job of item 6 is gone, so the item is purged and the queue woken up again
+        assertTrue(dequeued.await(5, TimeUnit.SECONDS));
+        verify(_queueMgr).purgeItem(6);
+    }
+}
@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.Pair;
+
+public class CapacityIndexTest extends TestCase {
+
+    private static CapacityVO capacity(long hostId, long podId, long clusterId, long used, long total, short type) {
+        return new CapacityVO(hostId, 1L, podId, clusterId, used, total, type);
+    }
+
+    private static void reconcile(CapacityIndex index, long marker, List<CapacityVO> capacities) {
+        index.reconcile(marker, capacities, Arrays.asList(10L, 20L), Arrays.asList(100L, 200L));
+    }
+
+    private CapacityIndex createIndex() {
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        // cluster 10 in pod 100 is mostly used, cluster 20 in pod 200 is mostly free
+        capacities.add(capacity(1, 100, 10, 3000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(1, 100, 10, 3000, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        capacities.add(capacity(2, 200, 20, 1000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(2, 200, 20, 1000, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+
+        CapacityIndex index = new CapacityIndex();
+        assertFalse(index.isLoaded());
+        reconcile(index, index.beginReconcile(), capacities);
+        assertTrue(index.isLoaded());
+        return index;
+    }
+
+    public void testClustersByCapacity() {
+        CapacityIndex index = createIndex();
+
+        List<Long> clusters = index.listClustersByHostCapacities(1, 2000, 2048, true, 1.0f);
+        assertEquals(1, clusters.size());
+        assertEquals(Long.valueOf(20), clusters.get(0));
+
+        // overprovisioning makes the cpu of the busy cluster available again
+        clusters = index.listClustersByHostCapacities(1, 2000, 1000, true, 2.0f);
+        assertEquals(2, clusters.size());
+
+        Pair<List<Long>, Map<Long, Double>> ordered = index.orderClustersByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, true, 1.0f);
+        assertEquals(Long.valueOf(20), ordered.first().get(0));
+        assertEquals(Long.valueOf(10), ordered.first().get(1));
+        assertEquals(0.25d, ordered.second().get(20L), 0.0001d);
+
+        ordered = index.orderPodsByAggregateCapacity(1, Capacity.CAPACITY_TYPE_MEMORY, 1.0f);
+        assertEquals(Long.valueOf(200), ordered.first().get(0));
+        assertEquals(1, index.listPodsByHostCapacities(1, 2000, 2048, 1.0f).size());
+    }
+
+    public void testUpdatesSurviveStaleReconcile() {
+        CapacityIndex index = createIndex();
+
+        long marker = index.beginReconcile();
+        List<CapacityVO> stale = new ArrayList<CapacityVO>();
+        stale.add(capacity(1, 100, 10, 3000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        stale.add(capacity(1, 100, 10, 3000, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        stale.add(capacity(2, 200, 20, 1000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        stale.add(capacity(2, 200, 20, 1000, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+
+        // host 1 is freed and host 2 removed while the reconcile reads the database
+        index.update(capacity(1, 100, 10, 0, 4000, Capacity.CAPACITY_TYPE_CPU));
+        index.update(capacity(1, 100, 10, 0, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        index.remove(2);
+        reconcile(index, marker, stale);
+
+        List<Long> clusters = index.listClustersByHostCapacities(1, 2000, 2048, true, 1.0f);
+        assertEquals(1, clusters.size());
+        assertEquals(Long.valueOf(10), clusters.get(0));
+
+        // a later reconcile without the host keeps it out, one with it brings it back
+        reconcile(index, index.beginReconcile(), new ArrayList<CapacityVO>());
+        assertTrue(index.listClustersByHostCapacities(1, 1, 1, true, 1.0f).isEmpty());
+        reconcile(index, index.beginReconcile(), stale);
+        assertEquals(2, index.listClustersByHostCapacities(1, 1, 1, true, 1.0f).size());
+    }
+
+    public void testRemovedClusterAndPod() {
+        CapacityIndex index = createIndex();
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        capacities.add(capacity(1, 100, 10, 3000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(1, 100, 10, 3000, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+        capacities.add(capacity(2, 200, 20, 1000, 4000, Capacity.CAPACITY_TYPE_CPU));
+        capacities.add(capacity(2, 200, 20, 1000, 4096, Capacity.CAPACITY_TYPE_MEMORY));
+
+        // cluster 20 is removed while its capacity rows are still there
+        index.reconcile(index.beginReconcile(), capacities, Arrays.asList(10L), Arrays.asList(100L, 200L));
+        assertEquals(Arrays.asList(10L), index.listClustersByHostCapacities(1, 1, 1, true, 1.0f));
+        assertEquals(Arrays.asList(100L), index.listPodsByHostCapacities(1, 1, 1, 1.0f));
+
+        // then pod 100 as well
+        index.reconcile(index.beginReconcile(), capacities, Arrays.asList(10L), Arrays.asList(200L));
+        assertTrue(index.listClustersByHostCapacities(1, 1, 1, true, 1.0f).isEmpty());
+        assertTrue(index.orderPodsByAggregateCapacity(1, Capacity.CAPACITY_TYPE_CPU, 1.0f).first().isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+public class CapacityLedgerTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(CapacityLedgerTest.class);
+
+    public void testDrainAndRestore() {
+        CapacityLedger ledger = new CapacityLedger();
+        ledger.record(1, 1000, 0, 512, 0);
+        ledger.record(1, -1000, 1000, -512, 512);
+        ledger.record(2, 500, 0, 256, 0);
+
+        long[] pending = ledger.getPending(1);
+        assertEquals(0, pending[CapacityLedger.USED_CPU]);
+        assertEquals(1000, pending[CapacityLedger.RESERVED_CPU]);
+
+        List<CapacityLedger.HostDelta> deltas = ledger.drain();
+        assertEquals(2, deltas.size());
+        assertNull(ledger.drain(1));
+
+        // a failed flush puts the changes back
+        ledger.restore(deltas);
+        assertEquals(256, ledger.getPending(2)[CapacityLedger.USED_MEMORY]);
+        assertEquals(3, ledger.getRecordedCount());
+
+        ledger.forget(2);
+        assertEquals(1, ledger.drain().size());
+    }
+
+    /**
+     * Starts and stops vms from several threads while another one keeps
+     * flushing, and checks that no change is lost. Logs the transitions per
+     * second the ledger takes.
+     */
+    public void testConcurrentTransitions() throws Exception {
+        final CapacityLedger ledger = new CapacityLedger();
+        final int threads = 8;
+        final int hosts = 50;
+        final int vmsPerThread = 50000;
+        final AtomicBoolean done = new AtomicBoolean();
+        final Map<Long, long[]> written = new HashMap<Long, long[]>();
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    write(written, ledger.drain());
+                }
+            }
+        };
+        flusher.start();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int vm = 0; vm < vmsPerThread; vm++) {
+                        long hostId = (thread * vmsPerThread + vm) % hosts;
+                        // start, then stop keeping the capacity reserved for the vm
+                        ledger.record(hostId, 1000, 0, 512, 0);
+                        ledger.record(hostId, -1000, 1000, -512, 512);
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        finished.await();
+        long elapsed = System.nanoTime() - start;
+        done.set(true);
+        flusher.join();
+        write(written, ledger.drain());
+
+        long transitions = 2L * threads * vmsPerThread;
+        s_logger.info("Recorded " + transitions + " transitions in " + (elapsed / 1000000) + " ms, " + (transitions * 1000000000L / Math.max(elapsed, 1))
+                + " transitions/sec");
+
+        assertEquals(transitions, ledger.getRecordedCount());
+        long vmsPerHost = threads * vmsPerThread / hosts;
+        for (long hostId = 0; hostId < hosts; hostId++) {
+            long[] values = written.get(hostId);
+            assertEquals(0, values[CapacityLedger.USED_CPU]);
+            assertEquals(vmsPerHost * 1000, values[CapacityLedger.RESERVED_CPU]);
+            assertEquals(0, values[CapacityLedger.USED_MEMORY]);
+            assertEquals(vmsPerHost * 512, values[CapacityLedger.RESERVED_MEMORY]);
+        }
+    }
+
+    private static void write(Map<Long, long[]> written, List<CapacityLedger.HostDelta> deltas) {
+        for (CapacityLedger.HostDelta delta : deltas) {
+            long[] values = written.get(delta.getHostId());
+            if (values == null) {
+                values = new long[4];
+                written.put(delta.getHostId(), values);
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] += delta.get(i);
+            }
+        }
+    }
+}
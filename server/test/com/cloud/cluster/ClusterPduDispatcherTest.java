@@ -0,0 +1,123 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class ClusterPduDispatcherTest extends TestCase {
+
+    public void testOrderedPerKey() throws Exception {
+        ClusterPduDispatcher dispatcher = new ClusterPduDispatcher("Test-Dispatch", 4, 1000, 1000);
+        dispatcher.start();
+        try {
+            final List<List<Integer>> results = new ArrayList<List<Integer>>();
+            final CountDownLatch done = new CountDownLatch(8 * 100);
+            for (int key = 0; key < 8; key++) {
+                results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+            for (int i = 0; i < 100; i++) {
+                for (int key = 0; key < 8; key++) {
+                    final List<Integer> result = results.get(key);
+                    final int value = i;
+                    dispatcher.dispatch(key, new Runnable() {
+                        @Override
+                        public void run() {
+                            result.add(value);
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (List<Integer> result : results) {
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(i, result.get(i).intValue());
+                }
+            }
+            assertEquals(800, dispatcher.getDispatchedPdus());
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    public void testSlowKeyDoesNotBlockOtherLanes() throws Exception {
+        ClusterPduDispatcher dispatcher = new ClusterPduDispatcher("Test-Dispatch", 2, 1000, 1000);
+        dispatcher.start();
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch fast = new CountDownLatch(1);
+            // keys 0 and 1 land on different lanes
+            dispatcher.dispatch(0, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            dispatcher.dispatch(1, new Runnable() {
+                @Override
+                public void run() {
+                    fast.countDown();
+                }
+            });
+            assertTrue(fast.await(5, TimeUnit.SECONDS));
+            release.countDown();
+        } finally {
+            dispatcher.stop();
+        }
+    }
+
+    public void testBackpressure() throws Exception {
+        ClusterPduDispatcher dispatcher = new ClusterPduDispatcher("Test-Dispatch", 1, 2, 200);
+        dispatcher.start();
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            Runnable blocked = new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+            dispatcher.dispatch(0, blocked);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                dispatcher.dispatch(0, blocked);
+            }
+            // the first one runs, two fill the lane and the last one waited
+            assertEquals(1, dispatcher.getBackpressureWaits());
+            assertTrue(dispatcher.getBackpressureWaitTime() >= 150);
+            assertEquals(3, dispatcher.getQueueDepth());
+            release.countDown();
+        } finally {
+            dispatcher.stop();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ClusterPeerChannelTest extends TestCase {
+
+    private static ClusterServicePdu createPdu(String json) {
+        ClusterServicePdu pdu = new ClusterServicePdu();
+        pdu.setDestPeer("2");
+        pdu.setJsonPackage(json);
+        return pdu;
+    }
+
+    public void testDrainBatchLimits() {
+        ClusterPeerChannel channel = new ClusterPeerChannel("2");
+        for (int i = 0; i < 10; i++) {
+            channel.add(createPdu("0123456789"));
+        }
+
+        List<ClusterServicePdu> batch = channel.drainBatch(4, 1000);
+        assertEquals(4, batch.size());
+
+        // the pdu that crosses the size limit still goes into the batch
+        batch = channel.drainBatch(100, 25);
+        assertEquals(3, batch.size());
+
+        batch = channel.drainBatch(100, 1000);
+        assertEquals(3, batch.size());
+        assertTrue(channel.drainBatch(100, 1000).isEmpty());
+        assertTrue(channel.isEmpty());
+    }
+
+    public void testSingleSender() {
+        ClusterPeerChannel channel = new ClusterPeerChannel("2");
+        assertTrue(channel.tryStartSender());
+        assertFalse(channel.tryStartSender());
+        assertEquals(1, channel.getActiveSenders());
+
+        channel.stopSender();
+        assertEquals(0, channel.getActiveSenders());
+        assertTrue(channel.tryStartSender());
+    }
+
+    public void testStatistics() {
+        ClusterPeerChannel channel = new ClusterPeerChannel("2");
+        channel.sent(10, 20);
+        channel.sent(30, 40);
+        channel.failed(1);
+
+        assertEquals(40, channel.getSentPdus());
+        assertEquals(2, channel.getSentBatches());
+        assertEquals(20, channel.getAveragePdusPerBatch());
+        assertEquals(30, channel.getAverageBatchLatency());
+        assertEquals(40, channel.getMaxBatchLatency());
+        assertEquals(1, channel.getFailedPdus());
+
+        channel.reset();
+        assertEquals(0, channel.getSentPdus());
+        assertEquals(0, channel.getMaxBatchLatency());
+    }
+}
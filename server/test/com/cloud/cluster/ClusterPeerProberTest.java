@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import junit.framework.TestCase;
+
+public class ClusterPeerProberTest extends TestCase {
+
+    private static boolean waitFor(ClusterPeerProber prober, long msid, boolean alive) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (alive ? prober.isAlive(msid) : prober.isSuspect(msid)) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    public void testSuspectAfterPeerStops() throws Exception {
+        ClusterPeerProber a = new ClusterPeerProber(1, 100, 300, 1);
+        ClusterPeerProber b = new ClusterPeerProber(2, 200, 300, 1);
+        a.start("127.0.0.1", 0);
+        b.start("127.0.0.1", 0);
+        try {
+            assertFalse(a.isSuspect(2));
+            assertFalse(a.isAlive(2));
+
+            a.probe(2, "127.0.0.1", b.getPort());
+            assertTrue(waitFor(a, 2, true));
+            assertEquals(1, b.getAnsweredProbes());
+            assertEquals(1, a.getReceivedAcks());
+
+            b.stop();
+            a.probe(2, "127.0.0.1", b.getPort());
+            assertTrue(waitFor(a, 2, false));
+            assertFalse(a.isAlive(2));
+            assertEquals(1, a.getSuspectedPeers());
+
+            a.forget(2);
+            assertFalse(a.isSuspect(2));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    public void testDownAfterConsecutiveMissedRounds() throws Exception {
+        ClusterPeerProber a = new ClusterPeerProber(1, 100, 300, 3);
+        ClusterPeerProber b = new ClusterPeerProber(2, 200, 300, 3);
+        a.start("127.0.0.1", 0);
+        b.start("127.0.0.1", 0);
+        try {
+            assertEquals(3, a.getMaxMissedRounds());
+            assertFalse(a.missedRound(2));
+            assertFalse(a.missedRound(2));
+
+            // an answer starts the count over
+            a.probe(2, "127.0.0.1", b.getPort());
+            assertTrue(waitFor(a, 2, true));
+            assertFalse(a.missedRound(2));
+            assertFalse(a.missedRound(2));
+            assertTrue(a.missedRound(2));
+
+            a.forget(2);
+            assertFalse(a.missedRound(2));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    public void testSilentPeerIsNotSuspected() throws Exception {
+        ClusterPeerProber a = new ClusterPeerProber(1, 100, 100, 1);
+        a.start("127.0.0.1", 0);
+        try {
+            // nothing listens on the port, the peer never answers
+            a.probe(3, "127.0.0.1", 1);
+            Thread.sleep(300);
+            assertFalse(a.isSuspect(3));
+            assertEquals(0, a.getProbedPeers());
+        } finally {
+            a.stop();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.dc.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.dc.DataCenterIpAddressVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.net.NetUtils;
+
+public class DataCenterIpAddressDaoImplTest extends TestCase {
+
+    /**
+     * Keeps op_dc_ip_address_alloc in memory and counts how often the free
+     * bitmaps are loaded from it.
+     */
+    private static class InMemoryIpAddressDao extends DataCenterIpAddressDaoImpl {
+        final List<DataCenterIpAddressVO> _rows = new ArrayList<DataCenterIpAddressVO>();
+        int _loads;
+
+        void add(String ip, long dcId, long podId) {
+            _rows.add(new DataCenterIpAddressVO(ip, dcId, podId));
+        }
+
+        private List<DataCenterIpAddressVO> match(SearchCriteria<DataCenterIpAddressVO> sc, boolean onlyFree) {
+            List<DataCenterIpAddressVO> rows = new ArrayList<DataCenterIpAddressVO>();
+            for (DataCenterIpAddressVO row : _rows) {
+                boolean matches = !onlyFree || row.getTakenAt() == null;
+                for (Pair<Attribute, Object> value : sc.getValues()) {
+                    matches &= value.second().equals(value.first().get(row));
+                }
+                if (matches) {
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+
+        @Override
+        protected List<DataCenterIpAddressVO> listBy(SearchCriteria<DataCenterIpAddressVO> sc) {
+            return match(sc, false);
+        }
+
+        @Override
+        public DataCenterIpAddressVO findOneBy(SearchCriteria<DataCenterIpAddressVO> sc) {
+            List<DataCenterIpAddressVO> rows = match(sc, false);
+            return rows.isEmpty() ? null : rows.get(0);
+        }
+
+        @Override
+        public int update(DataCenterIpAddressVO vo, SearchCriteria<DataCenterIpAddressVO> sc) {
+            // claims are conditional on the row being free, releases are not
+            List<DataCenterIpAddressVO> rows = match(sc, vo.getTakenAt() != null);
+            for (DataCenterIpAddressVO row : rows) {
+                row.setTakenAt(vo.getTakenAt());
+                row.setInstanceId(vo.getInstanceId());
+                row.setReservationId(vo.getReservationId());
+            }
+            return rows.size();
+        }
+
+        @Override
+        protected List<Long> listIps(String pool, long poolId, boolean onlyFree) {
+            _loads++;
+            List<Long> ips = new ArrayList<Long>();
+            for (DataCenterIpAddressVO row : _rows) {
+                long id = "pod".equals(pool) ? row.getPodId() : row.getDataCenterId();
+                if (id == poolId && (!onlyFree || row.getTakenAt() == null)) {
+                    ips.add(NetUtils.ip2Long(row.getIpAddress()));
+                }
+            }
+            return ips;
+        }
+    }
+
+    private InMemoryIpAddressDao _dao;
+
+    @Override
+    protected void setUp() {
+        _dao = new InMemoryIpAddressDao();
+        _dao.add("10.1.1.1", 1L, 1L);
+        _dao.add("10.1.1.2", 1L, 1L);
+        _dao.add("10.1.2.1", 1L, 2L);
+    }
+
+    public void testReleaseByDataCenterFreesThePodIp() {
+        DataCenterIpAddressVO first = _dao.takeIpAddress(1L, 1L, 10L, "r1");
+        DataCenterIpAddressVO second = _dao.takeIpAddress(1L, 1L, 11L, "r2");
+        assertNotNull(first);
+        assertNotNull(second);
+        assertFalse(first.getIpAddress().equals(second.getIpAddress()));
+        int loads = _dao._loads;
+
+        _dao.releaseIpAddress(first.getIpAddress(), 1L, 10L);
+        assertNull(first.getTakenAt());
+
+        // the pod bitmap hands the released ip out again without a reload
+        DataCenterIpAddressVO again = _dao.takeIpAddress(1L, 1L, 12L, "r3");
+        assertEquals(first.getIpAddress(), again.getIpAddress());
+        assertEquals(Long.valueOf(12L), again.getInstanceId());
+        assertEquals(loads, _dao._loads);
+    }
+
+    public void testReleaseByReservationFreesPodAndZoneIps() {
+        DataCenterIpAddressVO podIp = _dao.takeIpAddress(1L, 2L, 10L, "r1");
+        assertEquals("10.1.2.1", podIp.getIpAddress());
+        List<String> zoneIps = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            zoneIps.add(_dao.takeDataCenterIpAddress(1L, "z" + i).getIpAddress());
+        }
+        assertFalse(zoneIps.contains("10.1.2.1"));
+        int loads = _dao._loads;
+
+        _dao.releaseIpAddress(10L, "r1");
+        assertNull(podIp.getTakenAt());
+
+        assertEquals("10.1.2.1", _dao.takeIpAddress(1L, 2L, 11L, "r2").getIpAddress());
+        _dao.releaseIpAddress(11L, "r2");
+        assertEquals("10.1.2.1", _dao.takeDataCenterIpAddress(1L, "z2").getIpAddress());
+        assertEquals(loads, _dao._loads);
+    }
+}
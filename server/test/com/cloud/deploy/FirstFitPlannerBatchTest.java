@@ -0,0 +1,196 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.deploy;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.capacity.CapacityLedger;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.DataCenterVO;
+import com.cloud.dc.HostPodVO;
+import com.cloud.dc.dao.DataCenterDao;
+import com.cloud.dc.dao.HostPodDao;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.host.HostVO;
+import com.cloud.host.dao.HostDao;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.Volume;
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+public class FirstFitPlannerBatchTest extends TestCase {
+    private ClusterVO _cluster;
+    private List<Host> _hosts;
+    private CapacityDao _capacityDao;
+    private CapacityManager _capacityMgr;
+    private int _planCalls;
+
+    @Override
+    protected void setUp() {
+        _cluster = mock(ClusterVO.class);
+        when(_cluster.getId()).thenReturn(1L);
+        when(_cluster.getPodId()).thenReturn(1L);
+
+        _hosts = new ArrayList<Host>();
+        _capacityDao = mock(CapacityDao.class);
+        _capacityMgr = mock(CapacityManager.class);
+        when(_capacityMgr.getPendingCapacity(anyLong())).thenReturn(new long[4]);
+        // host 1 has room for two vms, host 2 for one
+        addHost(1L, 2000);
+        addHost(2L, 1000);
+    }
+
+    private void addHost(long id, long cpu) {
+        HostVO host = mock(HostVO.class);
+        when(host.getId()).thenReturn(id);
+        when(host.getDataCenterId()).thenReturn(1L);
+        when(host.getPodId()).thenReturn(1L);
+        when(host.getClusterId()).thenReturn(1L);
+        _hosts.add(host);
+        when(_capacityDao.findByHostIdType(id, CapacityVO.CAPACITY_TYPE_CPU)).thenReturn(new CapacityVO(id, 1L, 1L, 1L, 0, cpu, CapacityVO.CAPACITY_TYPE_CPU));
+        when(_capacityDao.findByHostIdType(id, CapacityVO.CAPACITY_TYPE_MEMORY)).thenReturn(new CapacityVO(id, 1L, 1L, 1L, 0, 8L * 1024 * 1024 * 1024, CapacityVO.CAPACITY_TYPE_MEMORY));
+    }
+
+    private FirstFitPlanner createPlanner(final boolean reuseCluster) {
+        FirstFitPlanner planner = new FirstFitPlanner() {
+            @Override
+            public DeployDestination plan(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid) {
+                _planCalls++;
+                for (Host host : _hosts) {
+                    if (!avoid.shouldAvoid(host)) {
+                        return new DeployDestination(null, null, _cluster, host);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            protected List<Host> findSuitableHosts(VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, int returnUpTo) {
+                return new ArrayList<Host>(_hosts);
+            }
+
+            @Override
+            protected Pair<Map<Volume, List<StoragePool>>, List<Volume>> findSuitablePoolsForVolumes(VirtualMachineProfile<? extends VirtualMachine> vmProfile,
+                    DeploymentPlan plan, ExcludeList avoid, int returnUpTo) {
+                Map<Volume, List<StoragePool>> pools = new HashMap<Volume, List<StoragePool>>();
+                pools.put(mock(Volume.class), Arrays.asList(mock(StoragePool.class)));
+                return new Pair<Map<Volume, List<StoragePool>>, List<Volume>>(pools, new ArrayList<Volume>());
+            }
+
+            @Override
+            protected Pair<Host, Map<Volume, StoragePool>> findPotentialDeploymentResources(List<Host> suitableHosts, Map<Volume, List<StoragePool>> suitableVolumeStoragePools) {
+                return new Pair<Host, Map<Volume, StoragePool>>(suitableHosts.get(0), new HashMap<Volume, StoragePool>());
+            }
+
+            @Override
+            protected boolean reuseClusterInBatch() {
+                return reuseCluster;
+            }
+        };
+        planner._capacityDao = _capacityDao;
+        planner._capacityMgr = _capacityMgr;
+        planner._configDao = mock(ConfigurationDao.class);
+        planner._dcDao = mock(DataCenterDao.class);
+        when(planner._dcDao.findById(anyLong())).thenReturn(mock(DataCenterVO.class));
+        planner._podDao = mock(HostPodDao.class);
+        when(planner._podDao.findById(anyLong())).thenReturn(mock(HostPodVO.class));
+        planner._hostDao = mock(HostDao.class);
+        for (Host host : _hosts) {
+            when(planner._hostDao.findById(host.getId())).thenReturn((HostVO)host);
+        }
+        return planner;
+    }
+
+    private List<VirtualMachineProfile<? extends VirtualMachine>> createProfiles(int count) {
+        ServiceOffering offering = mock(ServiceOffering.class);
+        when(offering.getId()).thenReturn(1L);
+        when(offering.getCpu()).thenReturn(1);
+        when(offering.getSpeed()).thenReturn(1000);
+        when(offering.getRamSize()).thenReturn(512);
+
+        List<VirtualMachineProfile<? extends VirtualMachine>> profiles = new ArrayList<VirtualMachineProfile<? extends VirtualMachine>>();
+        for (int i = 0; i < count; i++) {
+            VirtualMachine vm = mock(VirtualMachine.class);
+            when(vm.getAccountId()).thenReturn(2L);
+            when(vm.getTemplateId()).thenReturn(3L);
+            when(vm.getLastHostId()).thenReturn(null);
+            @SuppressWarnings("unchecked")
+            VirtualMachineProfile<VirtualMachine> profile = mock(VirtualMachineProfile.class);
+            when(profile.getVirtualMachine()).thenReturn(vm);
+            when(profile.getServiceOffering()).thenReturn(offering);
+            when(profile.getHypervisorType()).thenReturn(HypervisorType.KVM);
+            profiles.add(profile);
+        }
+        return profiles;
+    }
+
+    public void testBatchReusesClusterWithinCapacity() throws Exception {
+        FirstFitPlanner planner = createPlanner(true);
+        List<DeployDestination> dests = planner.planBatch(createProfiles(4), new DataCenterDeployment(1L), new ExcludeList());
+
+        assertEquals(4, dests.size());
+        assertEquals(1L, dests.get(0).getHost().getId());
+        assertEquals(1L, dests.get(1).getHost().getId());
+        assertEquals(2L, dests.get(2).getHost().getId());
+        assertNull("the cluster has no room left for the fourth vm", dests.get(3));
+        // only the first vm and the one that exhausted the cluster go through the full planner
+        assertEquals(2, _planCalls);
+    }
+
+    public void testBatchWithoutClusterReuse() throws Exception {
+        FirstFitPlanner planner = createPlanner(false);
+        List<DeployDestination> dests = planner.planBatch(createProfiles(3), new DataCenterDeployment(1L), new ExcludeList());
+
+        assertEquals(1L, dests.get(0).getHost().getId());
+        assertEquals(1L, dests.get(1).getHost().getId());
+        assertEquals(2L, dests.get(2).getHost().getId());
+        assertEquals(3, _planCalls);
+    }
+
+    public void testBatchCountsPendingCapacity() throws Exception {
+        // a vm started on host 1 is recorded in the ledger but not flushed yet
+        long[] pending = new long[4];
+        pending[CapacityLedger.USED_CPU] = 1000;
+        pending[CapacityLedger.USED_MEMORY] = 512L * 1024 * 1024;
+        when(_capacityMgr.getPendingCapacity(1L)).thenReturn(pending);
+
+        FirstFitPlanner planner = createPlanner(true);
+        List<DeployDestination> dests = planner.planBatch(createProfiles(3), new DataCenterDeployment(1L), new ExcludeList());
+
+        assertEquals(1L, dests.get(0).getHost().getId());
+        assertEquals(2L, dests.get(1).getHost().getId());
+        assertNull("host 1 is full once its pending vm is counted", dests.get(2));
+    }
+}
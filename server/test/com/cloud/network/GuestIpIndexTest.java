@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.cloud.network.GuestIpIndex.Exclusion;
+import com.cloud.utils.net.NetUtils;
+
+public class GuestIpIndexTest extends TestCase {
+    private final List<String> _used = new ArrayList<String>();
+    private final GuestIpIndex _index = new GuestIpIndex(new GuestIpIndex.Loader() {
+        @Override
+        public List<String> listUsed(long networkId) {
+            return new ArrayList<String>(_used);
+        }
+    });
+
+    public void testTakesEveryFreeIpOnce() {
+        _used.addAll(Arrays.asList("10.1.1.10", "10.1.1.11"));
+
+        // 10.1.1.2 - 10.1.1.254 minus the gateway and the used ips
+        assertEquals(250, _index.getFreeCount(1, "10.1.1.0/24", "10.1.1.254", Exclusion.GATEWAY_AND_DOT_ONE, false));
+
+        Set<Long> taken = new HashSet<Long>();
+        long ip;
+        while ((ip = _index.take(1, "10.1.1.0/24", "10.1.1.254", Exclusion.GATEWAY_AND_DOT_ONE, false)) >= 0) {
+            assertTrue(taken.add(ip));
+        }
+        assertEquals(250, taken.size());
+        assertFalse(taken.contains(NetUtils.ip2Long("10.1.1.1")));
+        assertFalse(taken.contains(NetUtils.ip2Long("10.1.1.10")));
+        assertFalse(taken.contains(NetUtils.ip2Long("10.1.1.254")));
+
+        // the excluded .1 is still free for callers that may hand it out
+        assertEquals(1, _index.getFreeCount(1, "10.1.1.0/24", "10.1.1.254", Exclusion.GATEWAY, false));
+
+        _index.release(1, "10.1.1.20");
+        assertEquals(NetUtils.ip2Long("10.1.1.20"), _index.take(1, "10.1.1.0/24", "10.1.1.254", Exclusion.GATEWAY_AND_DOT_ONE, false));
+    }
+
+    public void testGatewayNotOnDotOne() {
+        _used.add("10.1.0.5");
+
+        // 10.1.0.1 - 10.1.1.254 minus the gateway and the used ip
+        Set<Long> free = _index.listFree(1, "10.1.0.0/23", "10.1.1.254", Exclusion.GATEWAY, false);
+        assertEquals(508, free.size());
+        assertEquals(508, _index.getFreeCount(1, "10.1.0.0/23", "10.1.1.254", Exclusion.GATEWAY, false));
+        assertTrue(free.contains(NetUtils.ip2Long("10.1.0.1")));
+        assertTrue(free.contains(NetUtils.ip2Long("10.1.1.1")));
+        assertFalse(free.contains(NetUtils.ip2Long("10.1.1.254")));
+
+        free = _index.listFree(1, "10.1.0.0/23", "10.1.1.254", Exclusion.GATEWAY_AND_DOT_ONE, false);
+        assertEquals(506, free.size());
+        assertEquals(506, _index.getFreeCount(1, "10.1.0.0/23", "10.1.1.254", Exclusion.GATEWAY_AND_DOT_ONE, false));
+        assertFalse(free.contains(NetUtils.ip2Long("10.1.1.1")));
+
+        // the first host address of a cidr that does not start a /24
+        assertEquals(61, _index.getFreeCount(2, "10.1.2.64/26", "10.1.2.126", Exclusion.GATEWAY, false));
+        assertEquals(60, _index.getFreeCount(2, "10.1.2.64/26", "10.1.2.126", Exclusion.GATEWAY_AND_DOT_ONE, false));
+        assertFalse(_index.listFree(2, "10.1.2.64/26", "10.1.2.126", Exclusion.GATEWAY_AND_DOT_ONE, false)
+                .contains(NetUtils.ip2Long("10.1.2.65")));
+
+        // taking with the gateway only rule eventually hands out the .1 addresses
+        Set<Long> taken = new HashSet<Long>();
+        long ip;
+        while ((ip = _index.take(1, "10.1.0.0/23", "10.1.1.254", Exclusion.GATEWAY, false)) >= 0) {
+            taken.add(ip);
+        }
+        assertEquals(508, taken.size());
+        assertTrue(taken.contains(NetUtils.ip2Long("10.1.1.1")));
+    }
+
+    public void testReloadsWhenCidrChanges() {
+        assertEquals(250 + 3, _index.getFreeCount(1, "10.1.1.0/24", "10.1.1.1", Exclusion.GATEWAY_AND_DOT_ONE, false));
+        _used.add("10.1.0.5");
+        // 10.1.0.2 - 10.1.1.254 minus the .1 addresses, the gateway and the used ip
+        assertEquals(509 - 1 - 1, _index.getFreeCount(1, "10.1.0.0/23", "10.1.0.1", Exclusion.GATEWAY_AND_DOT_ONE, false));
+        assertEquals(0, _index.getFreeCount(2, "10.1.2.0/31", null, Exclusion.GATEWAY, false));
+    }
+}
@@ -300,6 +300,12 @@ public class MockUserVmManagerImpl implements UserVmManager, UserVmService, Mana
         return null;
     }
 
+    @Override
+    public List<? extends UserVm> startVirtualMachines(DeployVMsCmd cmd) throws InsufficientCapacityException, ConcurrentOperationException, ResourceUnavailableException {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public InstanceGroup createVmGroup(CreateVMGroupCmd cmd) {
         // TODO Auto-generated method stub
@@ -100,6 +100,12 @@ public class MockVirtualMachineManagerImpl implements VirtualMachineManager {
         return false;
     }
 
+    @Override
+    public <T extends VMInstanceVO> List<DeployDestination> planDeployment(List<T> vms, DeploymentPlan plan, User caller, Account account) throws InsufficientServerCapacityException {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     @Override
     public <T extends VMInstanceVO> boolean advanceStop(T vm, boolean forced, User caller, Account account) throws ResourceUnavailableException, OperationTimedoutException,
     ConcurrentOperationException {
@@ -70,6 +70,7 @@ import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntityConsumer;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
@@ -490,33 +491,32 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 userTxn.close();
             }
 
-            // TODO:  Fetch a maximum number of events and process them before moving on to the next range of events
-
-            // - get a list of the latest events
             // - insert the latest events into the usage.events table
-            List<UsageEventVO> events = _usageEventDao.getRecentEvents(new Date(endDateMillis));
+            _usageEventDao.copyRecentEvents(new Date(endDateMillis));
 
             
             Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
             try {
                 usageTxn.start();
 
-                // make sure start date is before all of our un-processed events (the events are ordered oldest
-                // to newest, so just test against the first event)
-                if ((events != null) && (events.size() > 0)) {
-                    Date oldestEventDate = events.get(0).getCreateDate();
-                    if (oldestEventDate.getTime() < startDateMillis) {
-                        startDateMillis = oldestEventDate.getTime();
-                        startDate = new Date(startDateMillis);
-                    }
-
-                    // - loop over the list of events and create entries in the helper tables
-                    // - create the usage records using the parse methods below
-                    for (UsageEventVO event : events) {
+                // - loop over the latest events, a page at a time, and create entries in the helper tables
+                // - create the usage records using the parse methods below
+                final long[] oldestEventMillis = new long[] { Long.MAX_VALUE };
+                _usageEventDao.streamLatestEvents(new Date(endDateMillis), new EntityConsumer<UsageEventVO>() {
+                    @Override
+                    public boolean consume(UsageEventVO event) {
+                        oldestEventMillis[0] = Math.min(oldestEventMillis[0], event.getCreateDate().getTime());
                         event.setProcessed(true);
                         _usageEventDao.update(event.getId(), event);
                         createHelperRecord(event);
+                        return true;
                     }
+                });
+
+                // make sure start date is before all of our un-processed events
+                if (oldestEventMillis[0] < startDateMillis) {
+                    startDateMillis = oldestEventMillis[0];
+                    startDate = new Date(startDateMillis);
                 }
 
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
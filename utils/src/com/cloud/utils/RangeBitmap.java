@@ -0,0 +1,133 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Free/taken state of a range of numbers such as vlan ids or ip addresses,
+ * one bit per number. Taking and releasing a number does not allocate, and
+ * finding a free number only skips over fully taken 64 bit words.
+ */
+public class RangeBitmap {
+    private final long _start;
+    private final long _end;
+    // a set bit is a free number
+    private final BitSet _free;
+    private int _freeCount;
+
+    /**
+     * Creates a bitmap for [start, end] with every number taken.
+     */
+    public RangeBitmap(long start, long end) {
+        if (end < start || end - start >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid range " + start + "-" + end);
+        }
+        _start = start;
+        _end = end;
+        _free = new BitSet((int)(end - start + 1));
+    }
+
+    public long getStart() {
+        return _start;
+    }
+
+    public long getEnd() {
+        return _end;
+    }
+
+    public boolean contains(long value) {
+        return value >= _start && value <= _end;
+    }
+
+    public synchronized boolean isFree(long value) {
+        return contains(value) && _free.get(index(value));
+    }
+
+    /**
+     * @return false if the number is outside of the range or already free.
+     */
+    public synchronized boolean markFree(long value) {
+        if (!contains(value) || _free.get(index(value))) {
+            return false;
+        }
+        _free.set(index(value));
+        _freeCount++;
+        return true;
+    }
+
+    /**
+     * @return false if the number is outside of the range or already taken.
+     */
+    public synchronized boolean markTaken(long value) {
+        if (!contains(value) || !_free.get(index(value))) {
+            return false;
+        }
+        _free.clear(index(value));
+        _freeCount--;
+        return true;
+    }
+
+    /**
+     * Takes the first free number.
+     *
+     * @return the number or -1 if none is free.
+     */
+    public synchronized long take() {
+        return take(0);
+    }
+
+    /**
+     * Takes a free number starting the search at a random position, so that
+     * several takers working from stale copies of the bitmap rarely pick the
+     * same number.
+     *
+     * @return the number or -1 if none is free.
+     */
+    public synchronized long take(Random random) {
+        if (_freeCount == 0) {
+            return -1;
+        }
+        return take(random.nextInt(size()));
+    }
+
+    private long take(int from) {
+        int index = _free.nextSetBit(from);
+        if (index < 0 && from > 0) {
+            index = _free.nextSetBit(0);
+        }
+        if (index < 0) {
+            return -1;
+        }
+        _free.clear(index);
+        _freeCount--;
+        return _start + index;
+    }
+
+    public synchronized int getFreeCount() {
+        return _freeCount;
+    }
+
+    public int size() {
+        return (int)(_end - _start + 1);
+    }
+
+    private int index(long value) {
+        return (int)(value - _start);
+    }
+}
@@ -0,0 +1,357 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * EntityCache is the entity bean cache used by GenericDaoBase.  It is
+ * bounded both by the number of entries and by the estimated memory used by
+ * the cached rows, entries expire after a time to live and the cache can be
+ * made to evict either the least recently or the least frequently used
+ * entries.
+ * 
+ * Caches that are clustered hand every invalidation to the Invalidator
+ * registered through setInvalidator() so that the other management servers
+ * can drop the entry as well.  The invalidator is expected to call
+ * invalidateLocal() on the other side.
+ */
+public class EntityCache implements EntityCacheMBean {
+    private static final Logger s_logger = Logger.getLogger(EntityCache.class);
+
+    // Number of entries looked at to find the least frequently used one.
+    private static final int LFU_SAMPLES = 8;
+
+    public enum Eviction {
+        LRU,
+        LFU
+    }
+
+    public interface Weigher {
+        /**
+         * @return estimated number of bytes used by the value.
+         */
+        int weigh(Object value);
+    }
+
+    public interface Invalidator {
+        /**
+         * Called when an entry of a clustered cache is invalidated.
+         * 
+         * @param cacheName name of the cache.
+         * @param id id of the entry or null if the whole cache is cleared.
+         */
+        void invalidate(String cacheName, Object id);
+    }
+
+    private static final Map<String, EntityCache> s_caches = new ConcurrentHashMap<String, EntityCache>();
+    private static volatile Invalidator s_invalidator;
+
+    private static class Entry {
+        final Object value;
+        final int weight;
+        final long created;
+        long accessed;
+        int hits;
+
+        Entry(Object value, int weight, long now) {
+            this.value = value;
+            this.weight = weight;
+            this.created = now;
+            this.accessed = now;
+        }
+    }
+
+    private final String _name;
+    private final Class<?> _keyType;
+    private final int _maxEntries;
+    private final long _maxWeight;
+    private final long _ttl;
+    private final long _idle;
+    private final Eviction _eviction;
+    private final boolean _clustered;
+    private final Weigher _weigher;
+    private final LinkedHashMap<Object, Entry> _entries;
+    private long _weight;
+
+    private long _hits;
+    private long _misses;
+    private long _evictions;
+    private long _invalidations;
+
+    /**
+     * @param name name of the cache; also the name used for invalidations.
+     * @param keyType type of the ids; used to convert ids received from peers.
+     * @param maxEntries maximum number of entries.
+     * @param maxWeight maximum estimated bytes held by the cache.
+     * @param ttl milliseconds an entry lives; 0 or less means forever.
+     * @param idle milliseconds an entry lives without being read; 0 or less means forever.
+     * @param eviction how to pick the entry to evict.
+     * @param clustered whether invalidations are sent to the other management servers.
+     * @param weigher estimates the size of an entry.
+     */
+    public EntityCache(String name, Class<?> keyType, int maxEntries, long maxWeight, long ttl, long idle, Eviction eviction, boolean clustered, Weigher weigher) {
+        _name = name;
+        _keyType = keyType;
+        _maxEntries = maxEntries;
+        _maxWeight = maxWeight;
+        _ttl = ttl;
+        _idle = idle;
+        _eviction = eviction;
+        _clustered = clustered;
+        _weigher = weigher;
+        _entries = new LinkedHashMap<Object, Entry>(16, 0.75f, eviction == Eviction.LRU);
+
+        s_caches.put(name, this);
+        try {
+            JmxUtil.registerMBean("EntityCache", name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for entity cache " + name, e);
+        }
+    }
+
+    public static void setInvalidator(Invalidator invalidator) {
+        s_invalidator = invalidator;
+    }
+
+    public static EntityCache getCache(String name) {
+        return s_caches.get(name);
+    }
+
+    /**
+     * Drops an entry on this management server only.  Used when a peer
+     * reports an invalidation.
+     * 
+     * @param name name of the cache.
+     * @param id id as a string or null to clear the whole cache.
+     */
+    public static void invalidateLocal(String name, String id) {
+        EntityCache cache = s_caches.get(name);
+        if (cache == null) {
+            return;
+        }
+        if (id == null) {
+            cache.clearLocal();
+        } else {
+            cache.removeLocal(cache.toKey(id));
+        }
+    }
+
+    protected Object toKey(String id) {
+        if (_keyType == Long.class || _keyType == long.class) {
+            return Long.valueOf(id);
+        } else if (_keyType == Integer.class || _keyType == int.class) {
+            return Integer.valueOf(id);
+        } else if (_keyType == Short.class || _keyType == short.class) {
+            return Short.valueOf(id);
+        }
+        return id;
+    }
+
+    public Object get(Object id) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = _entries.get(id);
+            if (entry != null && isExpired(entry, now)) {
+                remove(id, entry);
+                entry = null;
+            }
+            if (entry == null) {
+                _misses++;
+                return null;
+            }
+            _hits++;
+            entry.hits++;
+            entry.accessed = now;
+            return entry.value;
+        }
+    }
+
+    public void put(Object id, Object value) {
+        int weight = _weigher != null ? _weigher.weigh(value) : 0;
+        if (_maxWeight > 0 && weight > _maxWeight) {
+            return;
+        }
+
+        Entry entry = new Entry(value, weight, System.currentTimeMillis());
+        synchronized (this) {
+            Entry old = _entries.put(id, entry);
+            if (old != null) {
+                _weight -= old.weight;
+            }
+            _weight += weight;
+            while (_entries.size() > _maxEntries || (_maxWeight > 0 && _weight > _maxWeight)) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Invalidates an entry here and, if the cache is clustered, on the other
+     * management servers.
+     */
+    public void remove(Object id) {
+        removeLocal(id);
+        invalidatePeers(id);
+    }
+
+    /**
+     * Invalidates all entries here and, if the cache is clustered, on the
+     * other management servers.
+     */
+    public void removeAll() {
+        clearLocal();
+        invalidatePeers(null);
+    }
+
+    public void removeLocal(Object id) {
+        synchronized (this) {
+            Entry entry = _entries.get(id);
+            if (entry != null) {
+                remove(id, entry);
+                _invalidations++;
+            }
+        }
+    }
+
+    public void clearLocal() {
+        synchronized (this) {
+            _invalidations += _entries.size();
+            _entries.clear();
+            _weight = 0;
+        }
+    }
+
+    private void invalidatePeers(Object id) {
+        Invalidator invalidator = s_invalidator;
+        if (_clustered && invalidator != null) {
+            invalidator.invalidate(_name, id);
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return (_ttl > 0 && now - entry.created > _ttl) || (_idle > 0 && now - entry.accessed > _idle);
+    }
+
+    private void remove(Object id, Entry entry) {
+        _entries.remove(id);
+        _weight -= entry.weight;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Object, Entry>> it = _entries.entrySet().iterator();
+        Map.Entry<Object, Entry> victim = it.next();
+        if (_eviction == Eviction.LFU) {
+            // Sample the oldest entries and drop the one read the least.
+            // Survivors have their count halved so old popularity fades.
+            for (int i = 1; i < LFU_SAMPLES && it.hasNext(); i++) {
+                Map.Entry<Object, Entry> candidate = it.next();
+                if (candidate.getValue().hits < victim.getValue().hits) {
+                    victim.getValue().hits >>= 1;
+                    victim = candidate;
+                } else {
+                    candidate.getValue().hits >>= 1;
+                }
+            }
+        }
+        remove(victim.getKey(), victim.getValue());
+        _evictions++;
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public synchronized int getEntryCount() {
+        return _entries.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return _weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return _maxWeight;
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return _ttl;
+    }
+
+    @Override
+    public String getEviction() {
+        return _eviction.toString();
+    }
+
+    @Override
+    public boolean isClustered() {
+        return _clustered;
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        long lookups = _hits + _misses;
+        return lookups == 0 ? 0 : (double)_hits / lookups;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+
+    @Override
+    public synchronized long getInvalidations() {
+        return _invalidations;
+    }
+
+    @Override
+    public void clear() {
+        removeAll();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache[" + _name + ", entries=" + _maxEntries + ", bytes=" + _maxWeight + ", ttl=" + _ttl + ", " + _eviction + (_clustered ? ", clustered]" : "]");
+    }
+}
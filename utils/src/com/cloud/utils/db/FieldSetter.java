@@ -0,0 +1,345 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import com.cloud.utils.crypt.DBEncryptionUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * Sets one field of an entity bean from a column of a ResultSet.  The
+ * conversion is chosen once when the setter is created so reading a row
+ * does not have to go through the type checks and annotation lookups for
+ * every column again.
+ */
+public abstract class FieldSetter {
+    protected final Field _field;
+
+    protected FieldSetter(Field field) {
+        _field = field;
+    }
+
+    public Field getField() {
+        return _field;
+    }
+
+    public void set(Object entity, ResultSet rs, int index) throws SQLException {
+        try {
+            setValue(entity, rs, index);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    protected abstract void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException;
+
+    public static FieldSetter create(Field field) {
+        field.setAccessible(true);
+        final Class<?> type = field.getType();
+        if (type == String.class) {
+            Encrypt encrypt = field.getAnnotation(Encrypt.class);
+            return new StringSetter(field, encrypt != null && encrypt.encrypt());
+        } else if (type == long.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setLong(entity, rs.getLong(index));
+                }
+            };
+        } else if (type == Long.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    long value = rs.getLong(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type.isEnum()) {
+            return new EnumSetter(field, getEnumType(field));
+        } else if (type == int.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setInt(entity, rs.getInt(index));
+                }
+            };
+        } else if (type == Integer.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    int value = rs.getInt(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == Date.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, rs.getDate(index) == null ? null : parseDate(rs.getString(index)));
+                }
+            };
+        } else if (type == Calendar.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    if (rs.getDate(index) == null) {
+                        _field.set(entity, null);
+                        return;
+                    }
+                    final Calendar cal = Calendar.getInstance();
+                    cal.setTime(parseDate(rs.getString(index)));
+                    _field.set(entity, cal);
+                }
+            };
+        } else if (type == boolean.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setBoolean(entity, rs.getBoolean(index));
+                }
+            };
+        } else if (type == Boolean.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    boolean value = rs.getBoolean(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == URI.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str == null ? null : new URI(str));
+                    } catch (URISyntaxException e) {
+                        throw new CloudRuntimeException("Invalid URI: " + str, e);
+                    }
+                }
+            };
+        } else if (type == URL.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        _field.set(entity, str != null ? new URL(str) : null);
+                    } catch (MalformedURLException e) {
+                        throw new CloudRuntimeException("Invalid URL: " + str, e);
+                    }
+                }
+            };
+        } else if (type == Ip.class) {
+            if (getEnumType(field) == EnumType.STRING) {
+                return new FieldSetter(field) {
+                    @Override
+                    protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                        String s = rs.getString(index);
+                        _field.set(entity, s == null ? null : new Ip(NetUtils.ip2Long(s)));
+                    }
+                };
+            }
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, new Ip(rs.getLong(index)));
+                }
+            };
+        } else if (type == short.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setShort(entity, rs.getShort(index));
+                }
+            };
+        } else if (type == Short.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    short value = rs.getShort(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == float.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setFloat(entity, rs.getFloat(index));
+                }
+            };
+        } else if (type == Float.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    float value = rs.getFloat(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == double.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setDouble(entity, rs.getDouble(index));
+                }
+            };
+        } else if (type == Double.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    double value = rs.getDouble(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.setByte(entity, rs.getByte(index));
+                }
+            };
+        } else if (type == Byte.class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte value = rs.getByte(index);
+                    _field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte[].class) {
+            return new FieldSetter(field) {
+                @Override
+                protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    _field.set(entity, rs.getBytes(index));
+                }
+            };
+        }
+        return new FieldSetter(field) {
+            @Override
+            protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                _field.set(entity, rs.getObject(index));
+            }
+        };
+    }
+
+    private static EnumType getEnumType(Field field) {
+        final Enumerated enumerated = field.getAnnotation(Enumerated.class);
+        return (enumerated == null) ? EnumType.STRING : enumerated.value();
+    }
+
+    private static final ThreadLocal<DateFormat> s_gmtFormat = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return df;
+        }
+    };
+
+    protected static Date parseDate(String str) {
+        try {
+            return s_gmtFormat.get().parse(str);
+        } catch (ParseException e) {
+            throw new CloudRuntimeException("why why ", e);
+        }
+    }
+
+    private static class StringSetter extends FieldSetter {
+        private final boolean _encrypted;
+
+        StringSetter(Field field, boolean encrypted) {
+            super(field);
+            _encrypted = encrypted;
+        }
+
+        @Override
+        protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+            byte[] bytes = rs.getBytes(index);
+            if (bytes == null) {
+                _field.set(entity, null);
+                return;
+            }
+            try {
+                String value = new String(bytes, "UTF-8");
+                _field.set(entity, _encrypted ? DBEncryptionUtil.decrypt(value) : value);
+            } catch (UnsupportedEncodingException e) {
+                assert(false);
+                throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
+            }
+        }
+    }
+
+    /**
+     * Leaves the field untouched if the column does not match any constant.
+     */
+    private static class EnumSetter extends FieldSetter {
+        private final EnumType _enumType;
+        private final Enum<?>[] _constants;
+        private final Map<String, Enum<?>> _byName;
+
+        EnumSetter(Field field, EnumType enumType) {
+            super(field);
+            _enumType = enumType;
+            _constants = (Enum<?>[])field.getType().getEnumConstants();
+            _byName = new HashMap<String, Enum<?>>(_constants.length * 2);
+            for (Enum<?> e : _constants) {
+                _byName.put(e.name().toUpperCase(Locale.US), e);
+            }
+        }
+
+        @Override
+        protected void setValue(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+            Enum<?> e = null;
+            if (_enumType == EnumType.STRING) {
+                String name = rs.getString(index);
+                if (name != null) {
+                    e = _byName.get(name.toUpperCase(Locale.US));
+                }
+            } else {
+                int ordinal = rs.getInt(index);
+                if (ordinal >= 0 && ordinal < _constants.length) {
+                    e = _constants[ordinal];
+                }
+            }
+            if (e != null) {
+                _field.set(entity, e);
+            }
+        }
+    }
+}
@@ -171,6 +171,24 @@ public interface GenericDao<T, ID extends Serializable> {
     
 
     List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, final boolean cache, final boolean enable_query_cache);
+
+    /**
+     * Hands every entity bean matching the search criteria to the consumer
+     * without loading them all at once.  The beans are read in pages ordered
+     * by id, each page starting after the last id of the previous one, so the
+     * consumer may modify or remove the beans it receives.  Beans that have
+     * been removed are skipped.
+     * @param sc search criteria; it is modified to hold the page position.
+     * @param pageSize number of beans read per query.
+     * @param consumer receives the beans in id order.
+     * @return number of beans given to the consumer.
+     */
+    int stream(SearchCriteria<T> sc, int pageSize, EntityConsumer<T> consumer);
+
+    /**
+     * Same as stream but includes beans that have been removed.
+     */
+    int streamIncludingRemoved(SearchCriteria<T> sc, int pageSize, EntityConsumer<T> consumer);
     
     
     /**
@@ -202,6 +220,23 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
+
+    /**
+     * Persist a list of entity beans using batched inserts so the whole list
+     * costs a few round trips instead of one per bean.  Beans that were
+     * generated by this dao are updated as in persist.
+     * @param entities the beans to persist.
+     * @return the persisted versions of the objects in the same order.
+     **/
+    List<T> persistAll(List<T> entities);
+
+    /**
+     * Write the changes made to each entity bean.  Beans that changed the
+     * same columns share one batched UPDATE.
+     * @param entities beans generated by this dao.
+     * @return number of rows updated.
+     */
+    int updateAll(List<T> entities);
     
     /**
      * remove the entity bean.  This will call delete automatically if
@@ -20,12 +20,12 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -37,6 +37,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -58,9 +59,6 @@ import net.sf.cglib.proxy.CallbackFilter;
 import net.sf.cglib.proxy.Enhancer;
 import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.NoOp;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
 
 import org.apache.log4j.Logger;
 
@@ -116,6 +114,24 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
+    // Maximum number of rows sent in one executeBatch() by persistAll and updateAll.
+    protected final static int BATCH_SIZE = 256;
+
+    // com.mysql.jdbc.ConnectionProperties, looked up at runtime as the driver
+    // is not a compile time dependency
+    private static Class<?> s_mysqlConnectionProperties;
+    private static Method s_getRewriteBatchedStatements;
+    private static Method s_setRewriteBatchedStatements;
+    static {
+        try {
+            s_mysqlConnectionProperties = Class.forName("com.mysql.jdbc.ConnectionProperties");
+            s_getRewriteBatchedStatements = s_mysqlConnectionProperties.getMethod("getRewriteBatchedStatements");
+            s_setRewriteBatchedStatements = s_mysqlConnectionProperties.getMethod("setRewriteBatchedStatements", boolean.class);
+        } catch (Exception e) {
+            s_mysqlConnectionProperties = null;
+        }
+    }
+
     protected final static Map<Class<?>, GenericDaoBase<?, ? extends Serializable>> s_daoMaps = new ConcurrentHashMap<Class<?>, GenericDaoBase<?, ? extends Serializable>>(71);
 
     protected Class<T> _entityBeanType;
@@ -144,6 +160,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected final Map<String, Attribute> _allAttributes;
     protected final List<Attribute> _ecAttributes;
     protected final Map<Pair<String, String>, Attribute> _allColumns;
+    protected final Map<Field, FieldSetter> _fieldSetters = new ConcurrentHashMap<Field, FieldSetter>();
     protected Enhancer _enhancer;
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
@@ -218,6 +235,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         _allAttributes = generator.getAllAttributes();
         _allColumns = generator.getAllColumns();
+        for (Attribute attr : _allColumns.values()) {
+            if (attr.field != null) {
+                getFieldSetter(attr.field);
+            }
+        }
 
         _selectByIdSql = buildSelectByIdSql(createPartialSelectSql(null, true));
         _removeSql = generator.buildRemoveSql();
@@ -348,23 +370,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     @Override
     public List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, 
             final boolean cache, final boolean enable_query_cache) {
-        String clause = sc != null ? sc.getWhereClause() : null;
-        if (clause != null && clause.length() == 0) {
-            clause = null;
-        }
-
-        final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
-        if (clause != null) {
-            str.append(clause);
-        }
-
-        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
-        if (sc != null) {
-            joins = sc.getJoins();
-            if (joins != null) {
-                addJoins(str, joins);
-            }
-        }
+        final StringBuilder str = createSearchSql(sc, enable_query_cache);
+        final Collection<JoinBuilder<SearchCriteria<?>>> joins = sc != null ? sc.getJoins() : null;
 
         List<Object> groupByValues = addGroupBy(str, sc);
         addFilter(str, filter);
@@ -382,7 +389,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         try {
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
-            if (clause != null) {
+            if (sc != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
                     prepareAttribute(++i, pstmt, value.first(), value.second());
                 }
@@ -402,9 +409,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 txn.registerLock(pstmt.toString());
             }
             final ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                result.add(toEntityBean(rs, cache));
-            }
+            result.addAll(toEntityBeans(rs, cache));
             return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -413,25 +418,52 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
-    @Override @SuppressWarnings("unchecked")
-    public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
-        String clause = sc != null ? sc.getWhereClause() : null;
-        if (clause != null && clause.length() == 0) {
-            clause = null;
+    @Override @DB(txn=false)
+    public int stream(SearchCriteria<T> sc, final int pageSize, final EntityConsumer<T> consumer) {
+        if (_removed != null) {
+            if (sc == null) {
+                sc = createSearchCriteria();
+            }
+            sc.addAnd(_removed.second().field.getName(), SearchCriteria.Op.NULL);
         }
+        return streamIncludingRemoved(sc, pageSize, consumer);
+    }
 
-        final StringBuilder str = createPartialSelectSql(sc, clause != null);
-        if (clause != null) {
-            str.append(clause);
+    @Override @DB(txn=false)
+    public int streamIncludingRemoved(SearchCriteria<T> sc, final int pageSize, final EntityConsumer<T> consumer) {
+        if (_idField == null) {
+            throw new CloudRuntimeException("Unable to stream " + _table + " without an id");
+        }
+        assert pageSize > 0 : "What's the point of a page with no rows?";
+        if (sc == null) {
+            sc = createSearchCriteria();
         }
 
-        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
-        if (sc != null) {
-            joins = sc.getJoins();
-            if (joins != null) {
-                addJoins(str, joins);
+        final Filter filter = new Filter(_entityBeanType, _idField.getName(), true, 0L, (long)pageSize);
+        int count = 0;
+        while (true) {
+            final List<T> page = searchIncludingRemoved(sc, filter, null, false);
+            for (final T entity : page) {
+                count++;
+                if (!consumer.consume(entity)) {
+                    return count;
+                }
+            }
+            if (page.size() < pageSize) {
+                return count;
+            }
+            try {
+                sc.setKeysetPosition(_idAttributes.get(_table)[0], _idField.get(page.get(page.size() - 1)));
+            } catch (final IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to read the id of " + _table, e);
             }
         }
+    }
+
+    @Override @SuppressWarnings("unchecked")
+    public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
+        final StringBuilder str = createSearchSql(sc, false);
+        final Collection<JoinBuilder<SearchCriteria<?>>> joins = sc != null ? sc.getJoins() : null;
 
         List<Object> groupByValues = addGroupBy(str, sc);
         addFilter(str, filter);
@@ -443,7 +475,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         try {
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
-            if (clause != null) {
+            if (sc != null) {
                 for (final Pair<Attribute, Object> value : sc.getValues()) {
                     prepareAttribute(++i, pstmt, value.first(), value.second());
                 }
@@ -463,17 +495,19 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             SelectType st = sc.getSelectType();
             ArrayList<M> results = new ArrayList<M>();
             List<Field> fields = sc.getSelectFields();
-            while (rs.next()) {
-                if (st == SelectType.Entity) {
-                    results.add((M)toEntityBean(rs, false));
-                } else if (st == SelectType.Fields || st == SelectType.Result) {
-                    M m = sc.getResultType().newInstance();
-                    for (int j = 1; j <= fields.size(); j++) {
-                        setField(m, fields.get(j - 1), rs, j);
+            if (st == SelectType.Entity) {
+                results.addAll((List<M>)toEntityBeans(rs, false));
+            } else {
+                while (rs.next()) {
+                    if (st == SelectType.Fields || st == SelectType.Result) {
+                        M m = sc.getResultType().newInstance();
+                        for (int j = 1; j <= fields.size(); j++) {
+                            setField(m, fields.get(j - 1), rs, j);
+                        }
+                        results.add(m);
+                    } else if (st == SelectType.Single) {
+                        results.add(getObject(sc.getResultType(), rs, 1));
                     }
-                    results.add(m);
-                } else if (st == SelectType.Single) {
-                    results.add(getObject(sc.getResultType(), rs, 1));
                 }
             }
 
@@ -496,146 +530,16 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @DB(txn=false)
     protected void setField(Object entity, Field field, ResultSet rs, int index) throws SQLException {
-        try {
-            final Class<?> type = field.getType();
-            if (type == String.class) {
-                byte[] bytes = rs.getBytes(index);
-                if(bytes != null) {
-                    try {
-                        Encrypt encrypt = field.getAnnotation(Encrypt.class);
-                        if (encrypt != null && encrypt.encrypt()){
-                            field.set(entity, DBEncryptionUtil.decrypt(new String(bytes, "UTF-8")));
-                        } else {
-                            field.set(entity, new String(bytes, "UTF-8"));
-                        }
-                    } catch (IllegalArgumentException e) {
-                        assert(false);
-                        throw new CloudRuntimeException("IllegalArgumentException when converting UTF-8 data");
-                    } catch (UnsupportedEncodingException e) {
-                        assert(false);
-                        throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
-                    }
-                } else {
-                    field.set(entity, null);
-                }
-            } else if (type == long.class) {
-                field.setLong(entity, rs.getLong(index));
-            } else if (type == Long.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getLong(index));
-                }
-            } else if (type.isEnum()) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
-                final Enum<?>[] enums =  (Enum<?>[])field.getType().getEnumConstants();
-                for (final Enum<?> e : enums) {
-                    if ((enumType == EnumType.STRING && e.name().equalsIgnoreCase(rs.getString(index))) ||
-                            (enumType == EnumType.ORDINAL && e.ordinal() == rs.getInt(index))) {
-                        field.set(entity, e);
-                        return;
-                    }
-                }
-            } else if (type == int.class) {
-                field.set(entity, rs.getInt(index));
-            } else if (type == Integer.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getInt(index));
-                }
-            } else if (type == Date.class) {
-                final Object data = rs.getDate(index);
-                if (data == null) {
-                    field.set(entity, null);
-                    return;
-                }
-                field.set(entity, DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
-            } else if (type == Calendar.class) {
-                final Object data = rs.getDate(index);
-                if (data == null) {
-                    field.set(entity, null);
-                    return;
-                }
-                final Calendar cal = Calendar.getInstance();
-                cal.setTime(DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
-                field.set(entity, cal);
-            } else if (type == boolean.class) {
-                field.setBoolean(entity, rs.getBoolean(index));
-            } else if (type == Boolean.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getBoolean(index));
-                }
-            } else if (type == URI.class) {
-                try {
-                    String str = rs.getString(index);
-                    field.set(entity, str == null ? null : new URI(str));
-                } catch (URISyntaxException e) {
-                    throw new CloudRuntimeException("Invalid URI: " + rs.getString(index), e);
-                }
-            } else if (type == URL.class) {
-                try {
-                    String str = rs.getString(index);
-                    field.set(entity, str != null ? new URL(str) : null);
-                } catch (MalformedURLException e) {
-                    throw new CloudRuntimeException("Invalid URL: " + rs.getString(index), e);
-                }
-            } else if (type == Ip.class) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
-                Ip ip = null;
-                if (enumType == EnumType.STRING) {
-                    String s = rs.getString(index);
-                    ip = s == null ? null : new Ip(NetUtils.ip2Long(s));
-                } else {
-                    ip = new Ip(rs.getLong(index));
-                }
-                field.set(entity, ip);
-            } else if (type == short.class) {
-                field.setShort(entity, rs.getShort(index));
-            } else if (type == Short.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getShort(index));
-                }
-            } else if (type == float.class) {
-                field.setFloat(entity, rs.getFloat(index));
-            } else if (type == Float.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getFloat(index));
-                }
-            } else if (type == double.class) {
-                field.setDouble(entity, rs.getDouble(index));
-            } else if (type == Double.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getDouble(index));
-                }
-            } else if (type == byte.class) {
-                field.setByte(entity, rs.getByte(index));
-            } else if (type == Byte.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getByte(index));
-                }
-            } else if (type == byte[].class) {
-                field.set(entity, rs.getBytes(index));
-            } else {
-                field.set(entity, rs.getObject(index));
-            }
-        } catch (final IllegalAccessException e) {
-            throw new CloudRuntimeException("Yikes! ", e);
+        getFieldSetter(field).set(entity, rs, index);
+    }
+
+    protected FieldSetter getFieldSetter(Field field) {
+        FieldSetter setter = _fieldSetters.get(field);
+        if (setter == null) {
+            setter = FieldSetter.create(field);
+            _fieldSetters.put(field, setter);
         }
+        return setter;
     }
 
     @DB(txn=false) @SuppressWarnings("unchecked")
@@ -751,9 +655,6 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         Transaction txn = Transaction.currentTxn();
@@ -807,6 +708,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             int result = pstmt.executeUpdate();
+            invalidateCache(sc);
             txn.commit();
             ub.clear();
             return result;
@@ -906,8 +808,8 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     @SuppressWarnings("unchecked")
     public T findById(final ID id) {
         if (_cache != null) {
-            final Element element = _cache.get(id);
-            return element == null ? lockRow(id, null) : (T)element.getObjectValue();
+            final T entity = (T)_cache.get(id);
+            return entity == null ? lockRow(id, null) : entity;
         } else {
             return lockRow(id, null);
         }
@@ -941,7 +843,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
 
         if (_cache != null) {
-            _cache.remove(id);
+            _cache.removeLocal(id);
         }
         return lockRow(id, null);
     }
@@ -1075,9 +977,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             final ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                result.add(toEntityBean(rs, true));
-            }
+            result.addAll(toEntityBeans(rs, true));
             return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1124,9 +1024,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
 
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCached(id);
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1154,7 +1052,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            int result = pstmt.executeUpdate();
+            invalidateCache(sc);
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1162,6 +1062,98 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    /**
+     * Drops the cached entity beans that a bulk update or delete with this
+     * criteria may have changed.  Only the one bean is dropped when the
+     * criteria pins the id, otherwise the whole cache is.
+     */
+    @DB(txn=false)
+    protected void invalidateCache(final SearchCriteria<?> sc) {
+        if (_cache == null) {
+            return;
+        }
+        invalidateCached(sc != null ? sc.getEqualityValue(_idAttributes.get(_table)[0]) : null);
+    }
+
+    /**
+     * Drops a cached entity bean, or all of them if the id is null.  The bean
+     * is dropped here right away so the transaction reads its own change, and
+     * again here and on the other management servers when the transaction
+     * ends, since until the commit anyone may load and cache the old row.
+     */
+    @DB(txn=false)
+    protected void invalidateCached(final Object id) {
+        if (_cache == null) {
+            return;
+        }
+        final EntityCache cache = _cache;
+        if (id != null) {
+            cache.removeLocal(id);
+        } else {
+            cache.clearLocal();
+        }
+        Transaction.runOnCompletion(new Runnable() {
+            @Override
+            public void run() {
+                if (id != null) {
+                    cache.remove(id);
+                } else {
+                    cache.removeAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the select, where and join part of a search.  The result is
+     * cached with the SearchBuilder that created the criteria so searches
+     * done through the same builder do not generate the sql again.
+     */
+    @DB(txn=false)
+    protected StringBuilder createSearchSql(SearchCriteria<?> sc, final boolean enable_query_cache) {
+        GenericSearchBuilder<?, ?> sb = null;
+        String key = null;
+        if (sc != null) {
+            sb = sc.getSearchBuilder();
+            // The builder has to come from this dao for the select part to match.
+            if (sb != null && sb._attrs == _allAttributes) {
+                key = sc.getSqlCacheKey();
+            }
+        }
+
+        if (key != null) {
+            if (enable_query_cache) {
+                key = "Q" + key;
+            }
+            String sql = sb.getCachedSql(key);
+            if (sql != null) {
+                return new StringBuilder(sql);
+            }
+        }
+
+        String clause = sc != null ? sc.getWhereClause() : null;
+        if (clause != null && clause.length() == 0) {
+            clause = null;
+        }
+
+        final StringBuilder str = createPartialSelectSql(sc, clause != null, enable_query_cache);
+        if (clause != null) {
+            str.append(clause);
+        }
+
+        if (sc != null) {
+            Collection<JoinBuilder<SearchCriteria<?>>> joins = sc.getJoins();
+            if (joins != null) {
+                addJoins(str, joins);
+            }
+        }
+
+        if (key != null) {
+            sb.cacheSql(key, str.toString());
+        }
+        return str;
+    }
+
     @DB(txn=false)
     protected StringBuilder createPartialSelectSql(SearchCriteria<?> sc, final boolean whereClause, final boolean enable_query_cache) {
         StringBuilder sql = new StringBuilder(enable_query_cache ? _partialQueryCacheSelectSql.first() : _partialSelectSql.first());
@@ -1345,6 +1337,208 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> persistAll(final List<T> entities) {
+        final List<T> results = new ArrayList<T>(entities.size());
+        if (_idField == null || _insertSqls.size() != 1 || (_ecAttributes != null && _ecAttributes.size() > 0)) {
+            // Secondary tables need the generated id of the primary row so these are done one by one.
+            final Transaction txn = Transaction.currentTxn();
+            txn.start();
+            for (T entity : entities) {
+                results.add(persist(entity));
+            }
+            txn.commit();
+            return results;
+        }
+
+        final List<T> inserts = new ArrayList<T>(entities.size());
+        final List<T> updates = new ArrayList<T>();
+        for (T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                updates.add(entity);
+            } else {
+                inserts.add(entity);
+            }
+        }
+
+        final String sql = _insertSqls.get(0).first();
+        final Attribute[] attrs = _insertSqls.get(0).second();
+        final List<ID> ids = new ArrayList<ID>(inserts.size());
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            for (int start = 0; start < inserts.size(); start += BATCH_SIZE) {
+                final List<T> batch = inserts.subList(start, Math.min(start + BATCH_SIZE, inserts.size()));
+                pstmt = txn.prepareAutoCloseStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                for (T entity : batch) {
+                    prepareAttributes(pstmt, entity, attrs, 1);
+                    pstmt.addBatch();
+                }
+                executeRewrittenBatch(txn, pstmt);
+
+                final ResultSet rs = pstmt.getGeneratedKeys();
+                for (T entity : batch) {
+                    if (rs != null && rs.next()) {
+                        _idField.set(entity, rs.getObject(1));
+                    }
+                    ids.add((ID)_idField.get(entity));
+                }
+            }
+
+            updateAll(updates);
+            txn.commit();
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+
+        final Map<ID, T> persisted = findByIdsIncludingRemoved(ids);
+        int i = 0;
+        for (T entity : entities) {
+            results.add(Enhancer.isEnhanced(entity.getClass()) ? entity : persisted.get(ids.get(i++)));
+        }
+        return results;
+    }
+
+    /**
+     * Executes a batch with the rewriteBatchedStatements option of the MySQL
+     * driver turned on, so the rows go to the server as multi-row statements
+     * instead of one round trip each.  The option is only set around the
+     * batches of persistAll and updateAll: rewritten inserts report
+     * SUCCESS_NO_INFO instead of a row count, which the other batches in the
+     * code base do not expect.
+     */
+    @DB(txn=false)
+    protected static int[] executeRewrittenBatch(final Transaction txn, final PreparedStatement pstmt) throws SQLException {
+        final Connection conn = txn.getConnection();
+        Object props = null;
+        boolean rewrite = false;
+        if (s_mysqlConnectionProperties != null && conn.isWrapperFor(s_mysqlConnectionProperties)) {
+            props = conn.unwrap(s_mysqlConnectionProperties);
+            try {
+                rewrite = (Boolean)s_getRewriteBatchedStatements.invoke(props);
+                if (!rewrite) {
+                    s_setRewriteBatchedStatements.invoke(props, true);
+                }
+            } catch (Exception e) {
+                s_logger.debug("Unable to turn on rewriteBatchedStatements", e);
+                props = null;
+            }
+        }
+
+        try {
+            return pstmt.executeBatch();
+        } finally {
+            if (props != null && !rewrite) {
+                try {
+                    s_setRewriteBatchedStatements.invoke(props, false);
+                } catch (Exception e) {
+                    s_logger.warn("Unable to turn off rewriteBatchedStatements", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateAll(final List<T> entities) {
+        final Attribute idAttribute = _idAttributes.get(_table)[0];
+
+        // Entities that changed the same columns share one statement.
+        final Map<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> batches = new LinkedHashMap<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>>();
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        int rows = 0;
+        try {
+            txn.start();
+            for (T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+                final ID id = (ID)_idField.get(entity);
+                invalidateCached(id);
+
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, idAttribute, id, ub.getCollectionChanges());
+                }
+
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(idAttribute, SearchCriteria.Op.EQ, id);
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    continue;
+                }
+                sql.append(sc.getWhereClause());
+
+                final String key = sql.toString();
+                List<Pair<UpdateBuilder, SearchCriteria<T>>> batch = batches.get(key);
+                if (batch == null) {
+                    batch = new ArrayList<Pair<UpdateBuilder, SearchCriteria<T>>>();
+                    batches.put(key, batch);
+                }
+                batch.add(new Pair<UpdateBuilder, SearchCriteria<T>>(ub, sc));
+            }
+
+            for (Map.Entry<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> entry : batches.entrySet()) {
+                final List<Pair<UpdateBuilder, SearchCriteria<T>>> batch = entry.getValue();
+                for (int start = 0; start < batch.size(); start += BATCH_SIZE) {
+                    final List<Pair<UpdateBuilder, SearchCriteria<T>>> chunk = batch.subList(start, Math.min(start + BATCH_SIZE, batch.size()));
+                    pstmt = txn.prepareAutoCloseStatement(entry.getKey());
+                    for (Pair<UpdateBuilder, SearchCriteria<T>> update : chunk) {
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : update.first().getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        for (Pair<Attribute, Object> value : update.second().getValues()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.second());
+                        }
+                        pstmt.addBatch();
+                    }
+
+                    for (int count : executeRewrittenBatch(txn, pstmt)) {
+                        rows += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                    for (Pair<UpdateBuilder, SearchCriteria<T>> update : chunk) {
+                        update.first().clear();
+                    }
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Map<ID, T> findByIdsIncludingRemoved(final List<ID> ids) {
+        final Map<ID, T> entities = new HashMap<ID, T>(ids.size());
+        final Attribute idAttribute = _idAttributes.get(_table)[0];
+        try {
+            for (int start = 0; start < ids.size(); start += BATCH_SIZE) {
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(idAttribute, SearchCriteria.Op.IN, ids.subList(start, Math.min(start + BATCH_SIZE, ids.size())).toArray());
+                for (T entity : searchIncludingRemoved(sc, null, null, false)) {
+                    entities.put((ID)_idField.get(entity), entity);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+        return entities;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -1516,20 +1710,53 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     }
 
     @SuppressWarnings("unchecked") @DB(txn=false)
+    protected T createEntityBean() {
+        return (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+    }
+
+    @DB(txn=false)
     protected T toEntityBean(final ResultSet result, final boolean cache) throws SQLException {
-        final T entity = (T)_factory.newInstance(new Callback[] {NoOp.INSTANCE, new UpdateBuilder(this)});
+        final T entity = createEntityBean();
 
         toEntityBean(result, entity);
 
-        if (cache && _cache != null) {
+        if (cache) {
+            putInCache(entity);
+        }
+
+        return entity;
+    }
+
+    /**
+     * Reads the remaining rows of the result set.  The columns of the result
+     * set are matched to fields once, for the first row.
+     */
+    @DB(txn=false)
+    protected List<T> toEntityBeans(final ResultSet result, final boolean cache) throws SQLException {
+        final List<T> entities = new ArrayList<T>();
+        FieldSetter[] setters = null;
+        while (result.next()) {
+            final T entity = createEntityBean();
+            if (setters == null) {
+                setters = getFieldSetters(result, entity);
+            }
+            toEntityBean(result, entity, setters);
+            if (cache) {
+                putInCache(entity);
+            }
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    private void putInCache(final T entity) {
+        if (_cache != null) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(_idField.get(entity), entity);
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
         }
-
-        return entity;
     }
 
     @DB(txn=false)
@@ -1545,7 +1772,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         toEntityBean(result, entity);
         if (cache && _cache != null) {
             try {
-                _cache.put(new Element(_idField.get(entity), entity));
+                _cache.put(_idField.get(entity), entity);
             } catch (final Exception e) {
                 s_logger.debug("Can't put it in the cache", e);
             }
@@ -1554,11 +1781,28 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return entity;
     }
 
+    /**
+     * @return the field setters for the columns of the result set, by column index - 1.
+     */
     @DB(txn=false)
-    protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
+    protected FieldSetter[] getFieldSetters(final ResultSet result, final Object entity) throws SQLException {
         ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
+        FieldSetter[] setters = new FieldSetter[meta.getColumnCount()];
+        for (int index = 1; index <= setters.length; index++) {
+            setters[index - 1] = getFieldSetter(findAttribute(entity, meta, index).field);
+        }
+        return setters;
+    }
+
+    @DB(txn=false)
+    protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
+        toEntityBean(result, entity, getFieldSetters(result, entity));
+    }
+
+    @DB(txn=false)
+    protected void toEntityBean(final ResultSet result, final T entity, final FieldSetter[] setters) throws SQLException {
+        for (int index = 1; index <= setters.length; index++) {
+            setters[index - 1].set(entity, result, index);
         }
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
@@ -1669,6 +1913,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
     @DB(txn=false)
     protected void setField(final Object entity, final ResultSet rs, ResultSetMetaData meta, final int index) throws SQLException {
+        setField(entity, findAttribute(entity, meta, index).field, rs, index);
+    }
+
+    @DB(txn=false)
+    protected Attribute findAttribute(final Object entity, ResultSetMetaData meta, final int index) throws SQLException {
         Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
         if ( attr == null ){
             // work around for mysql bug to return original table name instead of view name in db view case
@@ -1677,8 +1926,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
                 attr = _allColumns.get(new Pair<String, String>(tbl.name(), meta.getColumnLabel(index)));
             }
         }
-        assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
-        setField(entity, attr.field, rs, index);
+        if (attr == null) {
+            throw new CloudRuntimeException("How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index));
+        }
+        return attr;
     }
 
     @Override
@@ -1701,9 +1952,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCached(id);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1723,24 +1972,67 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return update(ub, sc, null);
     }
 
-    protected Cache _cache;
+    protected EntityCache _cache;
+
+    /**
+     * Creates the entity bean cache if cache.size is specified.  The other
+     * parameters are
+     *   cache.max.bytes - estimated memory the cached beans may use; defaults to 2KB per entry.
+     *   cache.time.to.live - seconds a bean stays cached; -1 for forever.
+     *   cache.time.to.idle - seconds a bean stays cached without being read; -1 for forever.
+     *   cache.eviction - lru or lfu.
+     *   cache.clustered - whether invalidations are sent to the other management servers; defaults to true.
+     */
     @DB(txn=false)
     protected void createCache(final Map<String, ? extends Object> params) {
         final String value = (String)params.get("cache.size");
 
-        if (value != null) {
-            final CacheManager cm = CacheManager.create();
+        if (value != null && _idField != null) {
             final int maxElements = NumbersUtil.parseInt(value, 0);
+            final long maxBytes = NumbersUtil.parseLong((String)params.get("cache.max.bytes"), maxElements * 2048L);
             final int live = NumbersUtil.parseInt((String)params.get("cache.time.to.live"), 300);
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
-            _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
-            cm.addCache(_cache);
+            final String eviction = (String)params.get("cache.eviction");
+            final String clustered = (String)params.get("cache.clustered");
+            _cache = new EntityCache(getName(), _idField.getType(), maxElements, maxBytes, live * 1000L, live == -1 ? 0 : idle * 1000L,
+                    "lfu".equalsIgnoreCase(eviction) ? EntityCache.Eviction.LFU : EntityCache.Eviction.LRU,
+                    clustered == null || Boolean.parseBoolean(clustered), new EntityCache.Weigher() {
+                @Override
+                public int weigh(Object value) {
+                    return estimateSize(value);
+                }
+            });
             s_logger.info("Cache created: " + _cache.toString());
         } else {
             _cache = null;
         }
     }
 
+    /**
+     * Rough estimate of the memory held by an entity bean, used to bound
+     * the cache.
+     */
+    @DB(txn=false)
+    protected int estimateSize(final Object entity) {
+        int size = 64;
+        for (Attribute attr : _allAttributes.values()) {
+            final Class<?> type = attr.field.getType();
+            if (type.isPrimitive()) {
+                size += 8;
+            } else if (type == String.class) {
+                try {
+                    final String str = (String)attr.field.get(entity);
+                    size += 40 + (str != null ? str.length() * 2 : 0);
+                } catch (IllegalAccessException e) {
+                    size += 40;
+                }
+            } else {
+                size += 24;
+            }
+        }
+        return size;
+    }
+
     @Override @DB(txn=false)
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
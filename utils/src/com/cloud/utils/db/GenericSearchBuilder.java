@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.Transient;
 
@@ -43,6 +45,12 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * @param <K> Result object that should contain the results.
  */
 public class GenericSearchBuilder<T, K> implements MethodInterceptor {
+    // Upper bound on the sql variations (IN list lengths etc) kept per builder.
+    protected static final int SQL_CACHE_SIZE = 64;
+
+    private static final AtomicLong s_sqlCacheHits = new AtomicLong();
+    private static final AtomicLong s_sqlCacheMisses = new AtomicLong();
+
     final protected Map<String, Attribute> _attrs;
     
     protected ArrayList<Condition> _conditions;
@@ -55,6 +63,9 @@ public class GenericSearchBuilder<T, K> implements MethodInterceptor {
     
     protected T _entity;
     protected ArrayList<Attribute> _specifiedAttrs;
+
+    private volatile boolean _reused = false;
+    private volatile ConcurrentHashMap<String, String> _sqlCache;
     
     @SuppressWarnings("unchecked")
     protected GenericSearchBuilder(T entity, Class<K> clazz, Map<String, Attribute> attrs) {
@@ -351,6 +362,52 @@ public class GenericSearchBuilder<T, K> implements MethodInterceptor {
         _selectType = SelectType.Fields;
     }
     
+    /**
+     * @param key key returned by SearchCriteria.getSqlCacheKey().
+     * @return the select statement built earlier for criteria with this key.
+     */
+    protected String getCachedSql(String key) {
+        ConcurrentHashMap<String, String> cache = _sqlCache;
+        String sql = cache != null ? cache.get(key) : null;
+        if (sql != null) {
+            s_sqlCacheHits.incrementAndGet();
+        } else {
+            s_sqlCacheMisses.incrementAndGet();
+        }
+        return sql;
+    }
+
+    protected void cacheSql(String key, String sql) {
+        // Builders that are only used once, like the ones behind
+        // createSearchCriteria(), are not worth a cache.
+        if (!_reused) {
+            _reused = true;
+            return;
+        }
+
+        ConcurrentHashMap<String, String> cache = _sqlCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = _sqlCache;
+                if (cache == null) {
+                    cache = new ConcurrentHashMap<String, String>();
+                    _sqlCache = cache;
+                }
+            }
+        }
+        if (cache.size() < SQL_CACHE_SIZE) {
+            cache.put(key, sql);
+        }
+    }
+
+    public static long getSqlCacheHits() {
+        return s_sqlCacheHits.get();
+    }
+
+    public static long getSqlCacheMisses() {
+        return s_sqlCacheMisses.get();
+    }
+
     protected static class Condition {
         protected final String name;
         protected final String cond;
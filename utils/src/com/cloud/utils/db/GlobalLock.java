@@ -18,14 +18,13 @@ package com.cloud.utils.db;
 
 import static java.lang.String.format;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
-import com.cloud.utils.Profiler;
-
 //
 // Wrapper class for global database lock to reduce contention for database connections from within process
 //
@@ -45,162 +44,196 @@ import com.cloud.utils.Profiler;
 public class GlobalLock {
     protected final static Logger s_logger = Logger.getLogger(GlobalLock.class);
 
-	private String name;
-	private int lockCount = 0;
-	private Thread ownerThread = null;
-	
-	private int referenceCount = 0;
+	// consecutive owners on this server that may take over the database lock before it is given up for the other servers
+	private static final int MAX_HAND_OFFS = 16;
+
+	private final String name;
+
+	// fair, so threads of this server get the lock in the order they asked for it
+	private final ReentrantLock localLock = new ReentrantLock(true);
+	// guarded by localLock
+	private boolean dbLockHeld = false;
+	private int handOffs = 0;
+	private long ownerSequence = 0;
 	private long holdingStartTick = 0;
-	
-	private static Map<String, GlobalLock> s_lockMap = new HashMap<String, GlobalLock>();
-	
+
+	// guarded by this
+	private int referenceCount = 0;
+	private boolean removed = false;
+
+	private static final ConcurrentHashMap<String, GlobalLock> s_lockMap = new ConcurrentHashMap<String, GlobalLock>(256, 0.75f, 64);
+
 	private GlobalLock(String name) {
 		this.name = name;
 	}
-	
+
 	public int addRef() {
 		synchronized(this) {
 			referenceCount++;
 			return referenceCount;
 		}
 	}
-	
+
+	private synchronized boolean tryAddRef() {
+		if(removed)
+			return false;
+		referenceCount++;
+		return true;
+	}
+
 	public int releaseRef() {
 		int refCount;
-		
+
 		boolean needToRemove = false;
 		synchronized(this) {
 			referenceCount--;
 			refCount = referenceCount;
-			
+
 			if(referenceCount < 0)
 				s_logger.warn("Unmatched Global lock " + name + " reference usage detected, check your code!");
-			
-			if(referenceCount == 0)
+
+			if(referenceCount == 0) {
+				removed = true;
 				needToRemove = true;
+			}
 		}
-		
+
 		if(needToRemove)
-			releaseInternLock(name);
-		
+			releaseInternLock(name, this);
+
 		return refCount;
 	}
 
 	public static GlobalLock getInternLock(String name) {
-		synchronized(s_lockMap) {
-			if(s_lockMap.containsKey(name)) {
-				GlobalLock lock = s_lockMap.get(name);
-				lock.addRef();
-				return lock;
-			} else {
-				GlobalLock lock = new GlobalLock(name);
-				lock.addRef();
-				s_lockMap.put(name, lock);
-				return lock;
-			}
-		}
-	}
-	
-	private static void releaseInternLock(String name) {
-		synchronized(s_lockMap) {
+		while(true) {
 			GlobalLock lock = s_lockMap.get(name);
-			if(lock != null) {
-				if(lock.referenceCount == 0)
-					s_lockMap.remove(name);
-			} else {
-				s_logger.warn("Releasing " + name + ", but it is already released.");
+			if(lock == null) {
+				GlobalLock newLock = new GlobalLock(name);
+				lock = s_lockMap.putIfAbsent(name, newLock);
+				if(lock == null)
+					lock = newLock;
 			}
+			if(lock.tryAddRef())
+				return lock;
+
+			// the last reference was released concurrently, make sure its entry is gone and start over
+			s_lockMap.remove(name, lock);
 		}
 	}
-	
+
+	private static void releaseInternLock(String name, GlobalLock lock) {
+		if(!s_lockMap.remove(name, lock))
+			s_logger.warn("Releasing " + name + ", but it is already released.");
+	}
+
+	static int getInternLockCount() {
+		return s_lockMap.size();
+	}
+
 	public boolean lock(int timeoutSeconds) {
-		int remainingMilliSeconds = timeoutSeconds*1000;
-		Profiler profiler = new Profiler();
+		if(localLock.isHeldByCurrentThread()) {
+			s_logger.warn("Global lock re-entrance detected");
+			localLock.lock();
+
+			if(s_logger.isTraceEnabled())
+				s_logger.trace("lock " + name + " is acquired, lock count :" + localLock.getHoldCount());
+			return true;
+		}
+
+		long startTick = System.currentTimeMillis();
+		long timeoutMilliSeconds = timeoutSeconds*1000L;
 		boolean interrupted = false;
 		try {
-			while(true) {
-				synchronized(this) {
-					if(ownerThread != null && ownerThread == Thread.currentThread()) {
-						s_logger.warn("Global lock re-entrance detected");
-						
-						lockCount++;
-	
-						if(s_logger.isTraceEnabled())
-							s_logger.trace("lock " + name + " is acquired, lock count :" + lockCount);
-						return true;
-					}
-					
-					if(ownerThread != null) {
-						profiler.start();
-						try {
-							wait(((long)timeoutSeconds)*1000L);
-						} catch (InterruptedException e) {
-							interrupted = true;
-						}
-						profiler.stop();
-						
-						remainingMilliSeconds -= profiler.getDuration();
-						if(remainingMilliSeconds < 0)
-							return false;
-						
-						continue;
-					} else {
-						// take ownership temporarily to prevent others enter into stage of acquiring DB lock
-						ownerThread = Thread.currentThread();
-						addRef();
-					}
+			boolean locked = localLock.tryLock();
+			while(!locked) {
+				long remainingMilliSeconds = timeoutMilliSeconds - (System.currentTimeMillis() - startTick);
+				if(remainingMilliSeconds <= 0) {
+					// one last try, an owner may have handed the lock over to a waiter that just gave up
+					locked = localLock.tryLock();
+					break;
 				}
+				try {
+					locked = localLock.tryLock(remainingMilliSeconds, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(!locked)
+				return false;
 
-				if(DbUtil.getGlobalLock(name, remainingMilliSeconds / 1000)) {
-					synchronized(this) {
-						lockCount++;
-						holdingStartTick = System.currentTimeMillis();
-						
-						if(s_logger.isTraceEnabled())
-							s_logger.trace("lock " + name + " is acquired, lock count :" + lockCount);
-						return true;
-					}
-				} else {
-					synchronized(this) {
-						ownerThread = null;
-						releaseRef();
-						return false;
-					}
+			addRef();
+			if(!dbLockHeld) {
+				long remainingMilliSeconds = Math.max(0, timeoutMilliSeconds - (System.currentTimeMillis() - startTick));
+				if(!DbUtil.getGlobalLock(name, (int)(remainingMilliSeconds / 1000))) {
+					releaseRef();
+					localLock.unlock();
+					return false;
 				}
+				dbLockHeld = true;
+				handOffs = 0;
+			} else if(s_logger.isTraceEnabled()) {
+				s_logger.trace("lock " + name + " is taken over from the previous owner without going to the database");
 			}
+			ownerSequence++;
+			holdingStartTick = System.currentTimeMillis();
+
+			if(s_logger.isTraceEnabled())
+				s_logger.trace("lock " + name + " is acquired, lock count :" + localLock.getHoldCount());
+			return true;
 		} finally {
 			if(interrupted) {
 				Thread.currentThread().interrupt();
 			}
 		}
 	}
-	
+
 	public boolean unlock() {
-		synchronized(this) {
-			if(ownerThread != null && ownerThread == Thread.currentThread()) {
-				lockCount--;
-				if(lockCount == 0) {
-					ownerThread = null;
-					DbUtil.releaseGlobalLock(name);
-					
-					if(s_logger.isTraceEnabled())
-						s_logger.trace("lock " + name + " is returned to free state, total holding time :" + 
-							(System.currentTimeMillis() - holdingStartTick));
-					holdingStartTick = 0;
-					
-					// release holding position in intern map when we released the DB connection
-					releaseRef();
-					notifyAll();
-				}
-				
-				if(s_logger.isTraceEnabled())
-					s_logger.trace("lock " + name + " is released, lock count :" + lockCount);
-				return true;
-			}
+		if(!localLock.isHeldByCurrentThread())
 			return false;
+
+		boolean handedOff = false;
+		long sequence = 0;
+		if(localLock.getHoldCount() == 1) {
+			if(localLock.hasQueuedThreads() && handOffs < MAX_HAND_OFFS) {
+				// the next thread of this server in line takes over the database lock
+				handOffs++;
+				handedOff = true;
+				sequence = ownerSequence;
+			} else {
+				releaseDbLock();
+			}
+
+			if(s_logger.isTraceEnabled())
+				s_logger.trace("lock " + name + " is returned to free state, total holding time :" +
+					(System.currentTimeMillis() - holdingStartTick));
+			holdingStartTick = 0;
+
+			// release holding position in intern map when we released the DB connection
+			releaseRef();
 		}
+
+		localLock.unlock();
+		if(s_logger.isTraceEnabled())
+			s_logger.trace("lock " + name + " is released, lock count :" + localLock.getHoldCount());
+
+		// the waiters may all have timed out in the meantime, do not leave the database lock behind
+		if(handedOff && !localLock.hasQueuedThreads() && localLock.tryLock()) {
+			try {
+				if(ownerSequence == sequence && dbLockHeld)
+					releaseDbLock();
+			} finally {
+				localLock.unlock();
+			}
+		}
+		return true;
 	}
-	
+
+	private void releaseDbLock() {
+		dbLockHeld = false;
+		handOffs = 0;
+		DbUtil.releaseGlobalLock(name);
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -20,12 +20,16 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.StandardMBean;
 
@@ -52,6 +56,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    // waiters are woken up on release; polling only covers lost notifications
+    private static final long POLL_INTERVAL = 5000;
+    private static final int MAX_STATS_KEYS = 1000;
+    private static final String OTHER_STATS_KEY = "(other)";
+
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -60,6 +69,30 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private volatile PeerNotifier _peerNotifier;
+    // threads of this server waiting for a lock
+    private final ConcurrentHashMap<String, Waiters> _waiters = new ConcurrentHashMap<String, Waiters>();
+    // locks held by this server and the other servers waiting for them
+    private final ConcurrentHashMap<String, Boolean> _held = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentHashMap<String, Set<Long>> _peerWaiters = new ConcurrentHashMap<String, Set<Long>>();
+    private final ConcurrentHashMap<String, LockStats> _stats = new ConcurrentHashMap<String, LockStats>();
+
+    /**
+     * Carries lock notifications to the other management servers.
+     */
+    public interface PeerNotifier {
+        /**
+         * Tells the management server holding the lock that this one waits
+         * for it.
+         */
+        void notifyWaiting(long ownerMsId, String key);
+
+        /**
+         * Tells a management server that a lock it waits for was released.
+         */
+        void notifyReleased(long waiterMsId, String key);
+    }
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -91,6 +124,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    public void setPeerNotifier(PeerNotifier notifier) {
+        _peerNotifier = notifier;
+    }
+
 
     protected void incrCount() {
         Count count = s_tls.get();
@@ -121,31 +158,191 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
         long startTime = InaccurateClock.getTime();
+        long waitStart = System.currentTimeMillis();
+        boolean contended = false;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+        Waiters waiters = enterWait(key);
+        try {
+            while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
+                long generation = waiters.getGeneration();
+                Map<String, String> owner = isLocked(key);
+                int count = owns(owner, threadId);
+
+                if (count >= 1) {
+                    return increment(key, threadName, threadId);
+                } else if (count == 0) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        recordAcquired(key, contended, waitStart);
+                        return true;
+                    }
+                    // lost the race for the row, find out who has it
+                    contended = true;
+                    continue;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                contended = true;
+                long ownerMsId = Long.parseLong(owner.get("mgmt"));
+                PeerNotifier notifier = _peerNotifier;
+                if (ownerMsId != _msId && notifier != null) {
+                    notifier.notifyWaiting(ownerMsId, key);
                 }
-            }
-            try {
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    s_logger.trace("Waiting for lck-" + key + " held by " + ownerMsId);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
+                long remaining = timeInSeconds * 1000 - (InaccurateClock.getTime() - startTime);
+                waiters.await(generation, Math.min(remaining, POLL_INTERVAL));
             }
+        } finally {
+            leaveWait(key, waiters);
         }
+        recordTimeout(key, waitStart);
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
         }
         return false;
     }
 
+    private Waiters enterWait(String key) {
+        while (true) {
+            Waiters waiters = _waiters.get(key);
+            if (waiters == null) {
+                waiters = new Waiters();
+                Waiters existing = _waiters.putIfAbsent(key, waiters);
+                if (existing != null) {
+                    waiters = existing;
+                }
+            }
+            if (waiters.enter()) {
+                return waiters;
+            }
+        }
+    }
+
+    private void leaveWait(String key, Waiters waiters) {
+        if (waiters.leave()) {
+            _waiters.remove(key, waiters);
+        }
+    }
+
+    /**
+     * Wakes up the threads of this server waiting for a lock, e.g. when it
+     * was released by another management server.
+     */
+    public void wakeup(String key) {
+        Waiters waiters = _waiters.get(key);
+        if (waiters != null) {
+            waiters.wakeup();
+        }
+    }
+
+    protected void wakeupAll() {
+        for (Waiters waiters : _waiters.values()) {
+            waiters.wakeup();
+        }
+    }
+
+    /**
+     * Registers a management server waiting for a lock of this server. It is
+     * notified right away if the lock is not held here anymore.
+     */
+    public void addPeerWaiter(long msId, String key) {
+        Set<Long> peers = _peerWaiters.get(key);
+        if (peers == null) {
+            peers = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            Set<Long> existing = _peerWaiters.putIfAbsent(key, peers);
+            if (existing != null) {
+                peers = existing;
+            }
+        }
+        peers.add(msId);
+        if (!_held.containsKey(key)) {
+            notifyPeers(key);
+        }
+    }
+
+    protected void lockReleased(String key) {
+        _held.remove(key);
+        wakeup(key);
+        notifyPeers(key);
+    }
+
+    protected void notifyPeers(String key) {
+        Set<Long> peers = _peerWaiters.remove(key);
+        PeerNotifier notifier = _peerNotifier;
+        if (peers == null || notifier == null) {
+            return;
+        }
+        for (Long msId : peers) {
+            try {
+                notifier.notifyReleased(msId, key);
+            } catch (Exception e) {
+                s_logger.warn("Unable to notify " + msId + " of the release of lck-" + key, e);
+            }
+        }
+    }
+
+    protected void recordAcquired(String key, boolean contended, long waitStart) {
+        LockStats stats = getStats(key);
+        synchronized (stats) {
+            stats.acquired++;
+            if (contended) {
+                long waited = System.currentTimeMillis() - waitStart;
+                stats.contended++;
+                stats.totalWait += waited;
+                stats.maxWait = Math.max(stats.maxWait, waited);
+            }
+        }
+    }
+
+    protected void recordTimeout(String key, long waitStart) {
+        LockStats stats = getStats(key);
+        long waited = System.currentTimeMillis() - waitStart;
+        synchronized (stats) {
+            stats.timeouts++;
+            stats.totalWait += waited;
+            stats.maxWait = Math.max(stats.maxWait, waited);
+        }
+    }
+
+    private LockStats getStats(String key) {
+        LockStats stats = _stats.get(key);
+        if (stats == null) {
+            if (_stats.size() >= MAX_STATS_KEYS) {
+                key = OTHER_STATS_KEY;
+            }
+            stats = new LockStats();
+            LockStats existing = _stats.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public List<Map<String, String>> getLockWaitStatistics() {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>(_stats.size());
+        for (Map.Entry<String, LockStats> entry : _stats.entrySet()) {
+            LockStats stats = entry.getValue();
+            Map<String, String> map = new HashMap<String, String>();
+            synchronized (stats) {
+                map.put("key", entry.getKey());
+                map.put("acquired", Long.toString(stats.acquired));
+                map.put("contended", Long.toString(stats.contended));
+                map.put("timeouts", Long.toString(stats.timeouts));
+                map.put("totalWaitMs", Long.toString(stats.totalWait));
+                map.put("maxWaitMs", Long.toString(stats.maxWait));
+            }
+            results.add(map);
+        }
+        return results;
+    }
+
+    @Override
+    public void resetLockWaitStatistics() {
+        _stats.clear();
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
         try {
@@ -193,6 +390,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Acquired for lck-" + key);
                     }
+                    _held.put(key, Boolean.TRUE);
                     incrCount();
                     return true;
                 }
@@ -257,6 +455,14 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (msId != _msId) {
+                for (Set<Long> peers : _peerWaiters.values()) {
+                    peers.remove(msId);
+                }
+                if (rows > 0) {
+                    wakeupAll();
+                }
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -293,8 +499,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 pstmt.setString(1, key);
                 pstmt.setLong(2, _msId);
                 int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+                if (result == 1) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " removed");
+                    }
+                    lockReleased(key);
                 }
                 decrCount();
             } else  if (rows < 1) {
@@ -372,7 +581,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     public int owns(String key) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
-        Map<String, String> owner = isLocked(key);
+        return owns(isLocked(key), threadId);
+    }
+
+    protected int owns(Map<String, String> owner, int threadId) {
         if (owner == null) {
             return 0;
         }
@@ -428,6 +640,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setString(2, threadName);
             pstmt.setInt(3, threadId);
             int rows = pstmt.executeUpdate();
+            // the keys are unknown here, let every waiter check again
+            wakeupAll();
+            for (String key : _peerWaiters.keySet()) {
+                notifyPeers(key);
+            }
             assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
         } catch (SQLException e) {
             throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
@@ -449,6 +666,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                lockReleased(key);
+            }
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
@@ -458,4 +678,57 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     protected static class Count {
         public int count = 0;
     }
+
+    protected static class LockStats {
+        long acquired;
+        long contended;
+        long timeouts;
+        long totalWait;
+        long maxWait;
+    }
+
+    /**
+     * Threads of this server waiting for one lock. The generation changes on
+     * every wake up so a release between a waiter's last check and its wait
+     * is not missed.
+     */
+    protected static class Waiters {
+        private long _generation;
+        private int _count;
+        private boolean _removed;
+
+        synchronized boolean enter() {
+            if (_removed) {
+                return false;
+            }
+            _count++;
+            return true;
+        }
+
+        synchronized boolean leave() {
+            if (--_count == 0) {
+                _removed = true;
+            }
+            return _removed;
+        }
+
+        synchronized long getGeneration() {
+            return _generation;
+        }
+
+        synchronized void await(long generation, long timeout) {
+            if (_generation != generation || timeout <= 0) {
+                return;
+            }
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        synchronized void wakeup() {
+            _generation++;
+            notifyAll();
+        }
+    }
 }
@@ -29,4 +29,12 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    /**
+     * @return per lock key the number of acquisitions, how many of them had
+     *         to wait, the timeouts and the total and longest wait in ms.
+     */
+    List<Map<String, String>> getLockWaitStatistics();
+
+    void resetLockWaitStatistics();
 }
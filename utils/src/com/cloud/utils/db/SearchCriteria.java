@@ -108,6 +108,8 @@ public class SearchCriteria<K> {
 
     private final Map<String, Attribute> _attrs;
     private final ArrayList<Condition> _conditions;
+    private static final String KEYSET_CONDITION = "keyset";
+    private static final String MATCH_CONDITION = "match";
     private ArrayList<Condition> _additionals = null;
     private HashMap<String, Object[]> _params = new HashMap<String, Object[]>();
     private int _counter;
@@ -118,9 +120,11 @@ public class SearchCriteria<K> {
     private final Class<K> _resultType;
     private final SelectType _selectType;
     private final QueryBuilder<?, K> _builder;
+    private final GenericSearchBuilder<?, K> _searchBuilder;
     
     protected SearchCriteria(QueryBuilder<?, K> builder) {
         _builder = builder;
+        _searchBuilder = null;
         _attrs = null;
         _conditions = null;
         _additionals = null;
@@ -141,6 +145,7 @@ public class SearchCriteria<K> {
 		this._resultType = resultType;
 		this._params = params;
 		this._builder = null;
+		this._searchBuilder = null;
 		this._additionals = new ArrayList<Condition>();
 		this._counter = 0;
 		this._joins = null;
@@ -150,6 +155,7 @@ public class SearchCriteria<K> {
     
     protected SearchCriteria(GenericSearchBuilder<?, K> sb) {
         this._builder = null;
+        this._searchBuilder = sb;
     	this._attrs = sb._attrs;
         this._conditions = sb._conditions;
         this._additionals = new ArrayList<Condition>();
@@ -297,6 +303,33 @@ public class SearchCriteria<K> {
         setParameters(name, values);
     }
     
+    /**
+     * Restricts the search to rows whose attribute is greater than the value.
+     * Calling it again moves the position instead of adding a condition.
+     */
+    protected void setKeysetPosition(Attribute attr, Object after) {
+        if (!_additionals.contains(new Condition(KEYSET_CONDITION))) {
+            addCondition(KEYSET_CONDITION, " AND ", attr, Op.GT);
+        }
+        setParameters(KEYSET_CONDITION, after);
+    }
+    
+    /**
+     * Restricts the search to rows whose field equals the value. Calling it again
+     * replaces the value and a null value lifts the restriction, so a lookup can be
+     * run within the criteria without changing the search that follows it.
+     */
+    public void setMatch(String field, Object value) {
+        if (!_additionals.contains(new Condition(MATCH_CONDITION))) {
+            addCondition(MATCH_CONDITION, " AND ", field, Op.EQ);
+        }
+        if (value == null) {
+            _params.remove(MATCH_CONDITION);
+        } else {
+            setParameters(MATCH_CONDITION, value);
+        }
+    }
+    
     protected void addCondition(String conditionName, String cond, String fieldName, Op op) {
     	Attribute attr = _attrs.get(fieldName);
     	assert attr != null : "Unable to find field: " + fieldName;
@@ -328,6 +361,101 @@ public class SearchCriteria<K> {
         return sql.toString();
     }
     
+    protected GenericSearchBuilder<?, K> getSearchBuilder() {
+        return _searchBuilder;
+    }
+
+    /**
+     * Describes which conditions take part in the where clause and how many
+     * values each of them binds.  Criteria created by the same builder with
+     * the same key produce the same sql so the builder can keep it around.
+     * 
+     * @return key or null if the sql of this criteria can't be cached.
+     */
+    protected String getSqlCacheKey() {
+        if (_searchBuilder == null || _groupBy != null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        return appendSqlCacheKey(key) ? key.toString() : null;
+    }
+
+    private boolean appendSqlCacheKey(StringBuilder key) {
+        for (Condition condition : _conditions) {
+            if (!appendSqlCacheKey(key, condition, _params.get(condition.name))) {
+                return false;
+            }
+        }
+
+        for (Condition condition : _additionals) {
+            key.append('{').append(condition.cond).append(condition.attr.table).append('.').append(condition.attr.columnName).append(condition.op.name());
+            if (!appendSqlCacheKey(key, condition, _params.get(condition.name))) {
+                return false;
+            }
+            key.append('}');
+        }
+
+        if (_joins != null) {
+            for (JoinBuilder<SearchCriteria<?>> join : _joins.values()) {
+                key.append('[');
+                if (join.getT()._searchBuilder == null || !join.getT().appendSqlCacheKey(key)) {
+                    return false;
+                }
+                key.append(']');
+            }
+        }
+        return true;
+    }
+
+    private static boolean appendSqlCacheKey(StringBuilder key, Condition condition, Object[] params) {
+        if (condition.op == null || condition.op.params == 0) {
+            key.append('+');
+        } else if (params == null) {
+            key.append('-');
+        } else if (condition.op == Op.SC) {
+            // The nested criteria may come from any builder.
+            return false;
+        } else if (condition.op.params == -1) {
+            key.append(params.length).append(',');
+        } else if ((condition.op == Op.EQ || condition.op == Op.NEQ) && (params.length == 0 || params[0] == null)) {
+            key.append('N');
+        } else {
+            key.append('+');
+        }
+        return true;
+    }
+
+    /**
+     * @return the value the attribute is required to be equal to or null if
+     *         the criteria does not pin the attribute to one value.
+     */
+    protected Object getEqualityValue(Attribute attr) {
+        Object value = null;
+        for (Condition condition : _conditions) {
+            Object[] params = _params.get(condition.name);
+            if (condition.op == null || condition.op.params == 0 || params != null) {
+                if (condition.cond != null && condition.cond.contains("OR")) {
+                    return null;
+                }
+                if (value == null && condition.attr == attr && params != null && params.length == 1 && (condition.op == Op.EQ || condition.op == Op.IN)) {
+                    value = params[0];
+                }
+            }
+        }
+        for (Condition condition : _additionals) {
+            Object[] params = _params.get(condition.name);
+            if (condition.op.params == 0 || params != null) {
+                if (condition.cond.contains("OR")) {
+                    return null;
+                }
+                if (value == null && condition.attr == attr && params != null && params.length == 1 && (condition.op == Op.EQ || condition.op == Op.IN)) {
+                    value = params[0];
+                }
+            }
+        }
+        return value;
+    }
+
     public List<Pair<Attribute, Object>> getValues() {
         ArrayList<Pair<Attribute, Object>> params = new ArrayList<Pair<Attribute, Object>>(_params.size());
         for (Condition condition : _conditions) {
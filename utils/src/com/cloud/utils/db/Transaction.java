@@ -24,9 +24,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -83,7 +86,12 @@ public class Transaction {
     public static final short SIMULATOR_DB = 3;
     public static final short CONNECTED_DB = -1;
 
+    // Number of idle auto close statements kept per connection.
+    private static final int STMT_CACHE_SIZE = 32;
+
     private static AtomicLong s_id = new AtomicLong();
+    private static final AtomicLong s_stmtCacheHits = new AtomicLong();
+    private static final AtomicLong s_stmtCacheMisses = new AtomicLong();
     private static final TransactionMBeanImpl s_mbean = new TransactionMBeanImpl();
     static {
         try {
@@ -104,7 +112,10 @@ public class Transaction {
     private short _dbId;
     private long _txnTime;
     private Statement _stmt;
+    private String _stmtKey;
+    private LinkedHashMap<String, PreparedStatement> _stmtCache;
     private String _creator;
+    private List<Runnable> _completionTasks;
 
     private Transaction _prev = null;
 
@@ -137,6 +148,8 @@ public class Transaction {
 
     public void transitToAutoManagedConnection(short dbId) {
         // assert(_stack.size() <= 1) : "Can't change to auto managed connection unless your stack is empty";
+        closePreviousStatement();
+        clearStatementCache();
         _dbId = dbId;
         _conn = null;
     }
@@ -272,6 +285,39 @@ public class Transaction {
         return null;
     }
 
+    /**
+     * Runs the task once the transaction of this thread ends, that is after its
+     * changes are committed or rolled back, or right away if no transaction is
+     * started.  Used to drop cached copies of the rows a transaction changes when
+     * other connections can read the new rows.
+     */
+    public static void runOnCompletion(Runnable task) {
+        Transaction txn = tls.get();
+        if (txn == null || !txn._txn) {
+            task.run();
+            return;
+        }
+        if (txn._completionTasks == null) {
+            txn._completionTasks = new ArrayList<Runnable>();
+        }
+        txn._completionTasks.add(task);
+    }
+
+    protected void runCompletionTasks() {
+        if (_completionTasks == null) {
+            return;
+        }
+        List<Runnable> tasks = _completionTasks;
+        _completionTasks = null;
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                s_logger.warn("Unable to run " + task + " at the end of the transaction", e);
+            }
+        }
+    }
+
     public static void attachToTxn(TransactionAttachment value) {
         Transaction txn = tls.get();
         assert txn != null && txn.peekInStack(CURRENT_TXN) != null: "Come on....how can we attach something to the transaction if you haven't started it?";
@@ -423,13 +469,99 @@ public class Transaction {
                 } catch(SQLException e) {
                     s_stmtLogger.trace("Unable to close resultset");
                 }
-                _stmt.close();
+                // a statement its caller already closed can not be handed out again
+                if (_stmtKey != null && _conn != null && !_stmt.isClosed()) {
+                    if (_stmtCache == null) {
+                        _stmtCache = new LinkedHashMap<String, PreparedStatement>(STMT_CACHE_SIZE, 0.75f, true) {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                                if (size() <= STMT_CACHE_SIZE) {
+                                    return false;
+                                }
+                                closeStatement(eldest.getValue());
+                                return true;
+                            }
+                        };
+                    }
+                    PreparedStatement replaced = _stmtCache.put(_stmtKey, (PreparedStatement)_stmt);
+                    if (replaced != null) {
+                        closeStatement(replaced);
+                    }
+                } else {
+                    _stmt.close();
+                }
             } catch (final SQLException e) {
                 s_stmtLogger.trace("Unable to close statement: " + _stmt.toString());
             } finally {
                 _stmt = null;
+                _stmtKey = null;
+            }
+        }
+    }
+
+    protected void clearStatementCache() {
+        if (_stmtCache != null) {
+            for (PreparedStatement pstmt : _stmtCache.values()) {
+                closeStatement(pstmt);
+            }
+            _stmtCache = null;
+        }
+    }
+
+    private static void closeStatement(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (final SQLException e) {
+            s_stmtLogger.trace("Unable to close statement: " + stmt.toString());
+        }
+    }
+
+    /**
+     * Hands out an auto close statement.  Once the statement is closed it is
+     * kept with the connection so the next request for the same sql reuses
+     * it instead of preparing it again.  Reused statements have their
+     * parameters and batch cleared and their fetch size, max rows and query
+     * timeout put back to the defaults.
+     */
+    protected PreparedStatement prepareCachedStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
+        closePreviousStatement();
+
+        final String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "+" + sql : sql;
+        PreparedStatement pstmt = _stmtCache != null ? _stmtCache.remove(key) : null;
+        if (pstmt != null && pstmt.isClosed()) {
+            pstmt = null;
+        }
+        if (pstmt != null) {
+            s_stmtCacheHits.incrementAndGet();
+            pstmt.clearParameters();
+            pstmt.clearBatch();
+            pstmt.setFetchSize(0);
+            pstmt.setMaxRows(0);
+            pstmt.setQueryTimeout(0);
+            if (s_stmtLogger.isTraceEnabled()) {
+                s_stmtLogger.trace("Reusing: " + sql);
+            }
+        } else {
+            s_stmtCacheMisses.incrementAndGet();
+            final Connection conn = getConnection();
+            pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
+            if (s_stmtLogger.isTraceEnabled()) {
+                s_stmtLogger.trace("Preparing: " + sql);
             }
         }
+        _stmt = pstmt;
+        _stmtKey = key;
+        return pstmt;
+    }
+
+    public static long getStatementCacheHits() {
+        return s_stmtCacheHits.get();
+    }
+
+    public static long getStatementCacheMisses() {
+        return s_stmtCacheMisses.get();
     }
 
     /**
@@ -443,10 +575,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql) throws SQLException {
-        PreparedStatement stmt = prepareStatement(sql);
-        closePreviousStatement();
-        _stmt = stmt;
-        return stmt;
+        return prepareCachedStatement(sql, Statement.NO_GENERATED_KEYS);
     }
 
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
@@ -470,14 +599,7 @@ public class Transaction {
      * @see java.sql.Connection
      */
     public PreparedStatement prepareAutoCloseStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
-        final Connection conn = getConnection();
-        final PreparedStatement pstmt = conn.prepareStatement(sql, autoGeneratedKeys);
-        if (s_stmtLogger.isTraceEnabled()) {
-            s_stmtLogger.trace("Preparing: " + sql);
-        }
-        closePreviousStatement();
-        _stmt = pstmt;
-        return pstmt;
+        return prepareCachedStatement(sql, autoGeneratedKeys);
     }
 
     /**
@@ -731,6 +853,8 @@ public class Transaction {
         } catch (final SQLException e) {
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
+        } finally {
+            runCompletionTasks();
         }
     }
 
@@ -752,6 +876,7 @@ public class Transaction {
                 if (s_connLogger.isTraceEnabled()) {
                     s_connLogger.trace("Closing DB connection: dbconn" + System.identityHashCode(_conn));
                 }                                
+                clearStatementCache();
                 _conn.close();
                 _conn = null;  
             }
@@ -848,6 +973,7 @@ public class Transaction {
         } catch(final SQLException e) {
             s_logger.warn("Unable to rollback", e);
         }
+        runCompletionTasks();
     }
 
     protected void rollbackSavepoint(Savepoint sp) {
@@ -862,6 +988,7 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runCompletionTasks();
         }
     }
 
@@ -913,6 +1040,7 @@ public class Transaction {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runCompletionTasks();
         }
     }
 
@@ -29,5 +29,13 @@ public interface TransactionMBean {
     List<Map<String, String>> getActiveTransactions();
     
     List<Map<String, String>> getTransactionsWithDatabaseConnection();
+
+    long getStatementCacheHits();
+
+    long getStatementCacheMisses();
+
+    long getSqlCacheHits();
+
+    long getSqlCacheMisses();
     
 }
@@ -64,6 +64,26 @@ public class TransactionMBeanImpl extends StandardMBean implements TransactionMB
         return count;
     }
     
+    @Override
+    public long getStatementCacheHits() {
+        return Transaction.getStatementCacheHits();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return Transaction.getStatementCacheMisses();
+    }
+
+    @Override
+    public long getSqlCacheHits() {
+        return GenericSearchBuilder.getSqlCacheHits();
+    }
+
+    @Override
+    public long getSqlCacheMisses() {
+        return GenericSearchBuilder.getSqlCacheMisses();
+    }
+
     @Override
     public List<Map<String, String>> getTransactions() {
         ArrayList<Map<String, String>> txns = new ArrayList<Map<String, String>>();
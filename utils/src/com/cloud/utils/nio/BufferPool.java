@@ -0,0 +1,223 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * BufferPool keeps released ByteBuffers around so that Link can reuse them
+ * for SSL packets and message reassembly instead of allocating new ones for
+ * every message.  Buffers are kept in power of two size classes and every
+ * class is capped by the number of bytes it may hold, so a burst of large
+ * messages can't pin an unbounded amount of memory.  Requests larger than
+ * the largest class are simply allocated and dropped on release.  Buffers
+ * that keep growing past the largest class move to the heap and grow by
+ * doubling, see expand().
+ */
+public class BufferPool extends StandardMBean implements BufferPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(BufferPool.class);
+
+    protected static final int MIN_SHIFT = 11;                   // 2KB
+    protected static final int MAX_SHIFT = 20;                   // 1MB
+    protected static final int MAX_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    private static final BufferPool s_instance = new BufferPool(MIN_SHIFT, MAX_SHIFT, MAX_BYTES_PER_CLASS, true);
+    static {
+        try {
+            JmxUtil.registerMBean("Link", "BufferPool", s_instance);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register mbean for the nio buffer pool", e);
+        }
+    }
+
+    private final int _minShift;
+    private final boolean _direct;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _free;
+    private final AtomicInteger[] _freeCount;
+    private final int[] _maxFreeCount;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _releases = new AtomicLong();
+    private final AtomicLong _discards = new AtomicLong();
+
+    public static BufferPool getInstance() {
+        return s_instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minShift, int maxShift, int maxBytesPerClass, boolean direct) {
+        super(BufferPoolMBean.class, false);
+        _minShift = minShift;
+        _direct = direct;
+        int classes = maxShift - minShift + 1;
+        _free = new ConcurrentLinkedQueue[classes];
+        _freeCount = new AtomicInteger[classes];
+        _maxFreeCount = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            _free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _freeCount[i] = new AtomicInteger();
+            _maxFreeCount[i] = Math.max(1, maxBytesPerClass >> (minShift + i));
+        }
+    }
+
+    /**
+     * @param size minimum capacity needed.
+     * @return a cleared buffer with at least size bytes of capacity.
+     */
+    public ByteBuffer acquire(int size) {
+        int index = indexFor(size);
+        if (index >= _free.length) {
+            _misses.incrementAndGet();
+            return allocate(size);
+        }
+
+        ByteBuffer buffer = _free[index].poll();
+        if (buffer == null) {
+            _misses.incrementAndGet();
+            return allocate(1 << (index + _minShift));
+        }
+
+        _freeCount[index].decrementAndGet();
+        _hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Replaces a buffer that is being filled with one that has room for at
+     * least size more bytes, copies the content over and releases the old
+     * buffer.  The capacity at least doubles, so a message that grows a piece
+     * at a time is copied a bounded number of times per byte.  Past the
+     * largest class the new buffer is not pooled anyway and is taken from
+     * the heap rather than allocated as a large direct buffer.
+     *
+     * @param buffer buffer in write mode, its position marks the content.
+     * @return a buffer in write mode holding the same content.
+     */
+    public ByteBuffer expand(ByteBuffer buffer, int size) {
+        int needed = buffer.position() + size;
+        ByteBuffer expanded;
+        if (indexFor(needed) < _free.length) {
+            // pooled sizes are powers of two, so this at least doubles
+            expanded = acquire(needed);
+        } else {
+            _misses.incrementAndGet();
+            long doubled = (long)buffer.capacity() * 2;
+            expanded = ByteBuffer.allocate((int)Math.min(Integer.MAX_VALUE, Math.max(needed, doubled)));
+        }
+
+        buffer.flip();
+        expanded.put(buffer);
+        release(buffer);
+        return expanded;
+    }
+
+    /**
+     * Returns a buffer to the pool.  The caller must not touch the buffer
+     * afterwards.  Buffers that were not handed out by this pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != _direct) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int index = indexFor(capacity);
+        if (index >= _free.length || (1 << (index + _minShift)) != capacity) {
+            _discards.incrementAndGet();
+            return;
+        }
+
+        if (_freeCount[index].incrementAndGet() > _maxFreeCount[index]) {
+            _freeCount[index].decrementAndGet();
+            _discards.incrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        _free[index].offer(buffer);
+        _releases.incrementAndGet();
+    }
+
+    protected int indexFor(int size) {
+        if (size > (1 << (_free.length - 1 + _minShift))) {
+            return _free.length;
+        }
+        int index = 0;
+        while ((1 << (index + _minShift)) < size) {
+            index++;
+        }
+        return index;
+    }
+
+    protected ByteBuffer allocate(int size) {
+        return _direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getReleases() {
+        return _releases.get();
+    }
+
+    @Override
+    public long getDiscards() {
+        return _discards.get();
+    }
+
+    @Override
+    public int getPooledBufferCount() {
+        int count = 0;
+        for (AtomicInteger freeCount : _freeCount) {
+            count += freeCount.get();
+        }
+        return count;
+    }
+
+    @Override
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < _freeCount.length; i++) {
+            bytes += ((long)_freeCount[i].get()) << (i + _minShift);
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean isDirect() {
+        return _direct;
+    }
+}
@@ -48,6 +48,9 @@ import com.cloud.utils.PropertiesUtil;
  */
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
+
+    private static final BufferPool s_pool = BufferPool.getInstance();
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
    
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
@@ -135,58 +138,54 @@ public class Link {
     }
     */
     
+    /**
+     * Wraps the buffers into SSL packets and writes them out.  The 4 byte
+     * packet header is reserved at the front of the pooled packet buffer so
+     * header and packet go out in one write without any extra allocation.
+     */
     private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-        
-        int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
-        }
-
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            
-            processedLen = 0;
+        try {
+            int totalLen = 0;
             for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+                totalLen += buffer.limit();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                pkgBuf.clear();
+                pkgBuf.position(4);
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                        engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+
+                int header = pkgBuf.position() - 4;
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
+                }
+                pkgBuf.putInt(0, header);
+                pkgBuf.flip();
+
+                while (pkgBuf.hasRemaining()) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + pkgBuf.remaining());
+                    }
+                    ch.write(pkgBuf);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            s_pool.release(pkgBuf);
         }
     }
     
@@ -235,7 +234,7 @@ public class Link {
             }
             
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                _plaintextBuffer = s_pool.acquire(2000);
             }
             
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -269,37 +268,38 @@ public class Link {
         
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
         int remaining = 0;
 
-        while (_readBuffer.hasRemaining()) {
-            remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            if (remaining == _readBuffer.remaining()) {
-                throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
-            }
-            
-            appBuf.flip();
-            if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-                _plaintextBuffer.flip();
-                newBuffer.put(_plaintextBuffer);
-                _plaintextBuffer = newBuffer;
-            }
-            _plaintextBuffer.put(appBuf);
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("Done with packet: " + appBuf.limit());
+        ByteBuffer appBuf = s_pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            while (_readBuffer.hasRemaining()) {
+                remaining = _readBuffer.remaining();
+                appBuf.clear();
+                engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                        engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
+                if (remaining == _readBuffer.remaining()) {
+                    throw new IOException("SSL: Unable to unwrap received data! still remaining " + remaining + "bytes!");
+                }
+
+                appBuf.flip();
+                if (_plaintextBuffer.remaining() < appBuf.limit()) {
+                    // We need to expand _plaintextBuffer for more data, the pool
+                    // at least doubles it so large messages are not copied over and over.
+                    _plaintextBuffer = s_pool.expand(_plaintextBuffer, appBuf.limit());
+                }
+                _plaintextBuffer.put(appBuf);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Done with packet: " + appBuf.limit());
+                }
             }
+        } finally {
+            s_pool.release(appBuf);
         }
         
         _readBuffer.clear();
@@ -309,6 +309,8 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            s_pool.release(_plaintextBuffer);
+            _plaintextBuffer = null;
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -326,25 +328,23 @@ public class Link {
         send(new ByteBuffer[] { ByteBuffer.wrap(data) }, close);
     }
     
+    /**
+     * Queues the buffers to be written by the selector thread.  The array is
+     * queued as is, and gathered into the SSL packets when written, so the
+     * caller must not reuse it.
+     */
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
         
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if  (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -367,17 +367,14 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_REQUEST) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine);
         }
         return false;
     }
@@ -448,17 +445,27 @@ public class Link {
             s_logger.trace("SSL: begin Handshake, isClient: " + isClient);
         }
 
-        SSLEngineResult engResult;
         SSLSession sslSession = sslEngine.getSession();
+        ByteBuffer in_pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer in_appBuf = s_pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer out_pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
+        ByteBuffer out_appBuf = s_pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        ByteBuffer tmp_pkgBuf = s_pool.acquire(sslSession.getPacketBufferSize() + 40);
+        try {
+            doHandshake(ch, sslEngine, isClient, in_pkgBuf, in_appBuf, out_pkgBuf, out_appBuf, tmp_pkgBuf);
+        } finally {
+            s_pool.release(in_pkgBuf);
+            s_pool.release(in_appBuf);
+            s_pool.release(out_pkgBuf);
+            s_pool.release(out_appBuf);
+            s_pool.release(tmp_pkgBuf);
+        }
+    }
+
+    private static void doHandshake(SocketChannel ch, SSLEngine sslEngine, boolean isClient, ByteBuffer in_pkgBuf, ByteBuffer in_appBuf,
+            ByteBuffer out_pkgBuf, ByteBuffer out_appBuf, ByteBuffer tmp_pkgBuf) throws IOException {
+        SSLEngineResult engResult;
         HandshakeStatus hsStatus;
-        ByteBuffer in_pkgBuf =
-            ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer in_appBuf =
-            ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        ByteBuffer out_pkgBuf =
-            ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
-        ByteBuffer out_appBuf =
-            ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
         int count;
 
         if (isClient) {
@@ -497,8 +504,6 @@ public class Link {
                     in_pkgBuf.flip();
                 }
                 engResult = sslEngine.unwrap(in_pkgBuf, in_appBuf);
-                ByteBuffer tmp_pkgBuf =
-                    ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
                 int loop_count = 0;
                 while (engResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
                     // The client is too slow? Cut it and let it reconnect
@@ -58,15 +58,25 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected int _workers;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler")), factory);
+    }
+
+    /**
+     * Creates a connection that runs its handler tasks on the given executor,
+     * which may be shared with other connections.
+     */
+    protected NioConnection(String name, int port, int workers, ExecutorService executor, HandlerFactory factory) {
         _name = name;
         _isRunning = false;
         _thread = null;
         _selector = null;
         _port = port;
         _factory = factory;
-        _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        _workers = workers;
+        _executor = executor;
     }
 
     public void start() {
@@ -75,10 +85,13 @@ public abstract class NioConnection implements Runnable {
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
         _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done.  The thread notifies when init() is
+        // done and the jvm notifies when the thread dies because init() failed.
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (!_isStartup && _thread.isAlive()) {
+                    _thread.wait();
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
@@ -212,7 +225,16 @@ public abstract class NioConnection implements Runnable {
             s_logger.trace("SSL: Handshake done");
         }
         socketChannel.configureBlocking(false);
-        InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
+        accepted(key, socketChannel, sslEngine);
+    }
+
+    /**
+     * Called on the selector thread once a connection has been accepted and
+     * the SSL handshake is done.  By default the link is served by this
+     * connection's own selector.
+     */
+    protected void accepted(SelectionKey key, SocketChannel socketChannel, SSLEngine sslEngine) throws IOException {
+        InetSocketAddress saddr = (InetSocketAddress)socketChannel.socket().getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
         link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
@@ -332,6 +354,23 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ADOPT :
+                    SocketChannel channel = (SocketChannel)todo.key;
+                    Link adopted = (Link)todo.att;
+                    try {
+                        adopted.setKey(channel.register(_selector, todo.ops, adopted));
+                        registerLink(adopted.getSocketAddress(), adopted);
+                        _executor.execute(_factory.create(Task.Type.CONNECT, adopted, null));
+                    } catch (ClosedChannelException e) {
+                        s_logger.warn("Couldn't adopt socket: " + channel);
+                        try {
+                            channel.close();
+                        } catch (IOException ignore) {
+                        } finally {
+                            adopted.terminated();
+                        }
+                    }
+                    break;
                 case ChangeRequest.CLOSE :
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -424,6 +463,19 @@ public abstract class NioConnection implements Runnable {
         _selector.wakeup();
     }
 
+    /**
+     * Hands an accepted and handshaked channel over to this connection.  The
+     * channel is registered on this connection's selector and the CONNECT
+     * task is scheduled from the selector thread.
+     */
+    public void adopt(int ops, SocketChannel channel, Link link) {
+        ChangeRequest todo = new ChangeRequest(channel, ChangeRequest.ADOPT, ops, link);
+        synchronized (this) {
+            _todos.add(todo);
+        }
+        _selector.wakeup();
+    }
+
     public void change(int ops, SelectionKey key, Object att) {
         ChangeRequest todo = new ChangeRequest(key, ChangeRequest.CHANGEOPS, ops, att);
         synchronized (this) {
@@ -451,6 +503,7 @@ public abstract class NioConnection implements Runnable {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ADOPT = 4;
 
         public Object key;
         public int type;
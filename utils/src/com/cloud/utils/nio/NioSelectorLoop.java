@@ -0,0 +1,110 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioSelectorLoop is one of the event loops a NioServer spreads its links
+ * over.  It doesn't listen on anything itself; the server accepts the
+ * connection, does the SSL handshake and then hands the channel over with
+ * adopt().  From then on all reads and writes for the link happen on this
+ * loop's selector thread.  The handler tasks run on the server's executor,
+ * which all the loops share.
+ */
+public class NioSelectorLoop extends NioConnection implements NioSelectorLoopMBean {
+    protected final NioServer _server;
+    protected final AtomicLong _adoptedCount = new AtomicLong();
+    protected final AtomicLong _readCount = new AtomicLong();
+    protected final AtomicLong _writeCount = new AtomicLong();
+
+    public NioSelectorLoop(String name, NioServer server) {
+        super(name, 0, server._workers, server._executor, server._factory);
+        _server = server;
+    }
+
+    @Override
+    public void stop() {
+        // the executor is the server's, it shuts it down
+        _isRunning = false;
+        if (_thread != null) {
+            _thread.interrupt();
+        }
+    }
+
+    @Override
+    protected void init() throws IOException {
+        _selector = SelectorProvider.provider().openSelector();
+    }
+
+    @Override
+    protected void registerLink(InetSocketAddress saddr, Link link) {
+        _adoptedCount.incrementAndGet();
+        _server.registerLink(saddr, link);
+    }
+
+    @Override
+    protected void unregisterLink(InetSocketAddress saddr) {
+        _server.unregisterLink(saddr);
+    }
+
+    @Override
+    protected void read(SelectionKey key) throws IOException {
+        _readCount.incrementAndGet();
+        super.read(key);
+    }
+
+    @Override
+    protected void write(SelectionKey key) throws IOException {
+        _writeCount.incrementAndGet();
+        super.write(key);
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    @Override
+    public int getLinkCount() {
+        return _selector == null ? 0 : _selector.keys().size();
+    }
+
+    @Override
+    public long getAdoptedCount() {
+        return _adoptedCount.get();
+    }
+
+    @Override
+    public long getReadCount() {
+        return _readCount.get();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return _writeCount.get();
+    }
+
+    @Override
+    public synchronized int getPendingChangeCount() {
+        return _todos == null ? 0 : _todos.size();
+    }
+}
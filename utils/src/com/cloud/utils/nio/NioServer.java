@@ -21,22 +21,101 @@ import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Map;
 import java.util.WeakHashMap;
 
+import javax.net.ssl.SSLEngine;
+
 import org.apache.log4j.Logger;
 
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * NioServer accepts connections on its own selector thread.  By default the
+ * accepted links are served by that same thread.  When it's created with more
+ * than one selector, the accepting thread only accepts and does the SSL
+ * handshake and the links are spread round robin over that many
+ * NioSelectorLoops, each with its own selector thread.  All of them run their
+ * handler tasks on the server's executor, so the number of workers is the
+ * same however many selectors there are.
+ */
 public class NioServer extends NioConnection {
     private final static Logger s_logger = Logger.getLogger(NioServer.class);
     
     protected InetSocketAddress _localAddr;
     
-    protected WeakHashMap<InetSocketAddress, Link> _links;
+    protected Map<InetSocketAddress, Link> _links;
+
+    protected int _selectors;
+    protected NioSelectorLoop[] _loops;
+    protected int _nextLoop;
     
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, factory, 1);
+    }
+
+    /**
+     * @param selectors number of selector loops to spread the links over.  0
+     *        means one per core and 1 serves the links on the accepting thread.
+     */
+    public NioServer(String name, int port, int workers, HandlerFactory factory, int selectors) {
         super(name, port, workers, factory);
         _localAddr = null;
-        _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        _links = Collections.synchronizedMap(new WeakHashMap<InetSocketAddress, Link>(1024));
+        _selectors = selectors > 0 ? selectors : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void start() {
+        if (_selectors > 1) {
+            _loops = new NioSelectorLoop[_selectors];
+            for (int i = 0; i < _selectors; i++) {
+                NioSelectorLoop loop = new NioSelectorLoop(_name + "-" + i, this);
+                loop.start();
+                try {
+                    JmxUtil.registerMBean("NioServer", loop.getName(), loop);
+                } catch (Exception e) {
+                    s_logger.warn("Unable to register mbean for " + loop.getName(), e);
+                }
+                _loops[i] = loop;
+            }
+            s_logger.info("Serving links of " + _name + " over " + _selectors + " selectors sharing " + _workers + " workers");
+        }
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (_loops != null) {
+            for (NioSelectorLoop loop : _loops) {
+                loop.stop();
+                try {
+                    JmxUtil.unregisterMBean("NioServer", loop.getName());
+                } catch (Exception e) {
+                    s_logger.debug("Unable to unregister mbean for " + loop.getName() + ": " + e.getMessage());
+                }
+            }
+            _loops = null;
+        }
+    }
+
+    @Override
+    protected void accepted(SelectionKey key, SocketChannel socketChannel, SSLEngine sslEngine) throws IOException {
+        if (_loops == null) {
+            super.accepted(key, socketChannel, sslEngine);
+            return;
+        }
+
+        NioSelectorLoop loop = _loops[_nextLoop];
+        _nextLoop = (_nextLoop + 1) % _loops.length;
+
+        Link link = new Link((InetSocketAddress)socketChannel.socket().getRemoteSocketAddress(), loop);
+        link.setSSLEngine(sslEngine);
+        loop.adopt(SelectionKey.OP_READ, socketChannel, link);
     }
     
     @Override
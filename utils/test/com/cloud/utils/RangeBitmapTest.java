@@ -0,0 +1,59 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class RangeBitmapTest extends TestCase {
+
+    public void testTakeAndRelease() {
+        RangeBitmap bitmap = new RangeBitmap(100, 199);
+        assertEquals(100, bitmap.size());
+        assertEquals(-1, bitmap.take());
+
+        assertTrue(bitmap.markFree(150));
+        assertFalse(bitmap.markFree(150));
+        assertFalse(bitmap.markFree(200));
+        assertTrue(bitmap.markFree(120));
+        assertEquals(2, bitmap.getFreeCount());
+
+        assertEquals(120, bitmap.take());
+        assertFalse(bitmap.isFree(120));
+        assertTrue(bitmap.markTaken(150));
+        assertEquals(0, bitmap.getFreeCount());
+        assertEquals(-1, bitmap.take(new Random()));
+    }
+
+    public void testRandomTakeReturnsEveryFreeNumberOnce() {
+        RangeBitmap bitmap = new RangeBitmap(0, 65535);
+        for (long i = 0; i <= 65535; i += 3) {
+            bitmap.markFree(i);
+        }
+        Random random = new Random(1);
+        Set<Long> taken = new HashSet<Long>();
+        long value;
+        while ((value = bitmap.take(random)) >= 0) {
+            assertEquals(0, value % 3);
+            assertTrue(taken.add(value));
+        }
+        assertEquals(21846, taken.size());
+    }
+}
@@ -51,6 +51,22 @@ public class DbTestVO {
         return fieldLong;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setFieldInt(int fieldInt) {
+        this.fieldInt = fieldInt;
+    }
+
+    public void setFieldLong(Long fieldLong) {
+        this.fieldLong = fieldLong;
+    }
+
+    public void setFieldString(String fieldString) {
+        this.fieldString = fieldString;
+    }
+
     public DbTestVO() {
     }
 }
@@ -0,0 +1,140 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class EntityCacheTest extends TestCase {
+
+    public void testLruEviction() {
+        EntityCache cache = new EntityCache("lru-test", Long.class, 2, 0, 0, 0, EntityCache.Eviction.LRU, false, null);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        assertEquals("one", cache.get(1L));
+        cache.put(3L, "three");
+        assertEquals("one", cache.get(1L));
+        assertNull(cache.get(2L));
+        assertEquals("three", cache.get(3L));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testLfuEviction() {
+        EntityCache cache = new EntityCache("lfu-test", Long.class, 2, 0, 0, 0, EntityCache.Eviction.LFU, false, null);
+        cache.put(1L, "one");
+        cache.put(2L, "two");
+        cache.get(1L);
+        cache.get(1L);
+        cache.put(3L, "three");
+        assertEquals("one", cache.get(1L));
+        assertNull(cache.get(2L));
+    }
+
+    public void testWeightBound() {
+        EntityCache.Weigher weigher = new EntityCache.Weigher() {
+            @Override
+            public int weigh(Object value) {
+                return ((String)value).length();
+            }
+        };
+        EntityCache cache = new EntityCache("weight-test", Long.class, 100, 10, 0, 0, EntityCache.Eviction.LRU, false, weigher);
+        cache.put(1L, "aaaa");
+        cache.put(2L, "bbbb");
+        assertEquals(8, cache.getWeight());
+        cache.put(3L, "cccc");
+        assertEquals(2, cache.getEntryCount());
+        assertNull(cache.get(1L));
+        cache.put(4L, "this is too large");
+        assertNull(cache.get(4L));
+    }
+
+    public void testTimeToLive() throws Exception {
+        EntityCache cache = new EntityCache("ttl-test", Long.class, 10, 0, 50, 0, EntityCache.Eviction.LRU, false, null);
+        cache.put(1L, "one");
+        assertEquals("one", cache.get(1L));
+        Thread.sleep(100);
+        assertNull(cache.get(1L));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testInvalidation() {
+        final List<Object> invalidated = new ArrayList<Object>();
+        EntityCache.setInvalidator(new EntityCache.Invalidator() {
+            @Override
+            public void invalidate(String cacheName, Object id) {
+                invalidated.add(cacheName + ":" + id);
+            }
+        });
+        try {
+            EntityCache cache = new EntityCache("invalidate-test", Long.class, 10, 0, 0, 0, EntityCache.Eviction.LRU, true, null);
+            cache.put(1L, "one");
+            cache.put(2L, "two");
+            cache.remove(1L);
+            assertNull(cache.get(1L));
+            assertEquals("invalidate-test:1", invalidated.get(0));
+
+            EntityCache.invalidateLocal("invalidate-test", "2");
+            assertNull(cache.get(2L));
+            assertEquals(1, invalidated.size());
+
+            cache.removeAll();
+            assertEquals("invalidate-test:null", invalidated.get(1));
+        } finally {
+            EntityCache.setInvalidator(null);
+        }
+    }
+
+    public void testInvalidationAtTransactionEnd() {
+        final List<Object> invalidated = new ArrayList<Object>();
+        EntityCache.setInvalidator(new EntityCache.Invalidator() {
+            @Override
+            public void invalidate(String cacheName, Object id) {
+                invalidated.add(cacheName + ":" + id);
+            }
+        });
+        final EntityCache cache = new EntityCache("txn-test", Long.class, 10, 0, 0, 0, EntityCache.Eviction.LRU, true, null);
+        Runnable remove = new Runnable() {
+            @Override
+            public void run() {
+                cache.remove(1L);
+            }
+        };
+        Transaction txn = Transaction.open("testInvalidationAtTransactionEnd");
+        try {
+            txn.start();
+            txn.start();
+            Transaction.runOnCompletion(remove);
+            txn.commit();
+            assertTrue(invalidated.isEmpty());
+            txn.commit();
+            assertEquals("txn-test:1", invalidated.get(0));
+
+            txn.start();
+            Transaction.runOnCompletion(remove);
+            txn.rollback();
+            assertEquals(2, invalidated.size());
+
+            Transaction.runOnCompletion(remove);
+            assertEquals(3, invalidated.size());
+        } finally {
+            txn.close();
+            EntityCache.setInvalidator(null);
+        }
+    }
+}
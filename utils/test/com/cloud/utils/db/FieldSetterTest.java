@@ -0,0 +1,120 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.db.QueryBuilderTest.TestDao;
+import com.cloud.utils.db.QueryBuilderTest.TestVO;
+
+public class FieldSetterTest extends TestCase {
+    enum Color {
+        Red, Green
+    }
+
+    static class Bean {
+        Color byName;
+        @Enumerated(value=EnumType.ORDINAL)
+        Color byOrdinal;
+        Long nullableLong;
+        Boolean nullableBoolean;
+        Date date;
+        String string;
+    }
+
+    private FieldSetter setter(String name) throws Exception {
+        return FieldSetter.create(Bean.class.getDeclaredField(name));
+    }
+
+    public void testConversions() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString(1)).thenReturn("green");
+        when(rs.getInt(2)).thenReturn(1);
+        when(rs.getLong(3)).thenReturn(0L);
+        when(rs.getBoolean(4)).thenReturn(true);
+        when(rs.getDate(5)).thenReturn(new java.sql.Date(0));
+        when(rs.getString(5)).thenReturn("2012-12-21 10:20:30");
+        when(rs.getBytes(6)).thenReturn("abc".getBytes("UTF-8"));
+
+        Bean bean = new Bean();
+        bean.nullableLong = 5L;
+        setter("byName").set(bean, rs, 1);
+        setter("byOrdinal").set(bean, rs, 2);
+        when(rs.wasNull()).thenReturn(true);
+        setter("nullableLong").set(bean, rs, 3);
+        when(rs.wasNull()).thenReturn(false);
+        setter("nullableBoolean").set(bean, rs, 4);
+        setter("date").set(bean, rs, 5);
+        setter("string").set(bean, rs, 6);
+
+        assertEquals(Color.Green, bean.byName);
+        assertEquals(Color.Green, bean.byOrdinal);
+        assertNull(bean.nullableLong);
+        assertEquals(Boolean.TRUE, bean.nullableBoolean);
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.setTime(bean.date);
+        assertEquals(2012, cal.get(Calendar.YEAR));
+        assertEquals(10, cal.get(Calendar.HOUR_OF_DAY));
+        assertEquals("abc", bean.string);
+
+        // an unknown constant leaves the field alone
+        when(rs.getString(1)).thenReturn("Blue");
+        setter("byName").set(bean, rs, 1);
+        assertEquals(Color.Green, bean.byName);
+    }
+
+    public void testColumnsMatchedOncePerResultSet() throws Exception {
+        TestDao dao = new TestDao();
+        ResultSetMetaData meta = mock(ResultSetMetaData.class);
+        when(meta.getColumnCount()).thenReturn(2);
+        when(meta.getTableName(1)).thenReturn("test");
+        when(meta.getColumnName(1)).thenReturn("id");
+        when(meta.getTableName(2)).thenReturn("test");
+        when(meta.getColumnName(2)).thenReturn("string");
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getMetaData()).thenReturn(meta);
+        when(rs.next()).thenReturn(true, true, false);
+        when(rs.getLong(1)).thenReturn(1L, 2L);
+        when(rs.getBytes(2)).thenReturn("one".getBytes("UTF-8"), "two".getBytes("UTF-8"));
+
+        List<TestVO> rows = dao.toEntityBeans(rs, false);
+        assertEquals(2, rows.size());
+        TestVO first = rows.get(0);
+        TestVO second = rows.get(1);
+
+        assertEquals(1L, first.id);
+        assertEquals("one", first.fieldString);
+        assertEquals(2L, second.id);
+        assertEquals("two", second.fieldString);
+        verify(rs, times(1)).getMetaData();
+    }
+}
@@ -0,0 +1,194 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityExistsException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Tests persistAll and updateAll against the test table, which has a unique
+ * fld_string so that a batch can be made to fail half way.
+ */
+public class GenericDaoBatchTest {
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test` ("
+                + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_int` int unsigned,"
+                + "`fld_long` bigint unsigned," + "`fld_string` varchar(255) UNIQUE," + "PRIMARY KEY (`id`)"
+                + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+    }
+
+    @After
+    public void tearDown() {
+        execute("truncate table `cloud`.`test`");
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test`");
+    }
+
+    private static DbTestVO create(int fldInt, String fldString) {
+        DbTestVO vo = new DbTestVO();
+        vo.setFieldInt(fldInt);
+        vo.setFieldLong((long)fldInt);
+        vo.setFieldString(fldString);
+        return vo;
+    }
+
+    @Test
+    public void testPersistAllReturnsGeneratedIds() {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        List<DbTestVO> vos = new ArrayList<DbTestVO>();
+        // more than one batch
+        for (int i = 0; i < GenericDaoBase.BATCH_SIZE + 10; i++) {
+            vos.add(create(i, "Record " + i));
+        }
+
+        List<DbTestVO> persisted = testDao.persistAll(vos);
+        Assert.assertEquals(vos.size(), persisted.size());
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < persisted.size(); i++) {
+            DbTestVO vo = persisted.get(i);
+            Assert.assertTrue(vo.getId() > 0);
+            Assert.assertTrue("Ids must be unique", ids.add(vo.getId()));
+            Assert.assertEquals("Record " + i, vo.getFieldString());
+            Assert.assertEquals("Record " + i, testDao.findById(vo.getId()).getFieldString());
+        }
+        Assert.assertEquals(vos.size(), count());
+    }
+
+    @Test
+    public void testPersistAllRollsBackOnFailure() {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        List<DbTestVO> vos = new ArrayList<DbTestVO>();
+        vos.add(create(1, "Record 1"));
+        vos.add(create(2, "Record 2"));
+        vos.add(create(3, "Record 1"));
+
+        try {
+            testDao.persistAll(vos);
+            Assert.fail("The duplicate fld_string must fail the batch");
+        } catch (EntityExistsException e) {
+        }
+        Assert.assertEquals("None of the batch may be kept", 0, count());
+    }
+
+    @Test
+    public void testUpdateAllInvalidatesCache() throws Exception {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "100");
+        params.put("cache.clustered", "false");
+        testDao.configure("DbTestDao", params);
+
+        List<DbTestVO> persisted = testDao.persistAll(Arrays.asList(create(1, "Record 1"), create(2, "Record 2")));
+        long id1 = persisted.get(0).getId();
+        long id2 = persisted.get(1).getId();
+        // load both into the cache
+        Assert.assertEquals("Record 1", testDao.findById(id1).getFieldString());
+        Assert.assertEquals("Record 2", testDao.findById(id2).getFieldString());
+
+        List<DbTestVO> updates = new ArrayList<DbTestVO>();
+        DbTestVO update = testDao.createForUpdate(id1);
+        update.setFieldString("Updated 1");
+        updates.add(update);
+        update = testDao.createForUpdate(id2);
+        update.setFieldString("Updated 2");
+        updates.add(update);
+
+        Assert.assertEquals(2, testDao.updateAll(updates));
+        Assert.assertEquals("Updated 1", testDao.findById(id1).getFieldString());
+        Assert.assertEquals("Updated 2", testDao.findById(id2).getFieldString());
+    }
+
+    @Test
+    public void testUpdateAllRollsBackOnFailure() {
+        DbTestDao testDao = ComponentLocator.inject(DbTestDao.class);
+        List<DbTestVO> persisted = testDao.persistAll(Arrays.asList(create(1, "Record 1"), create(2, "Record 2")));
+
+        List<DbTestVO> updates = new ArrayList<DbTestVO>();
+        DbTestVO update = testDao.createForUpdate(persisted.get(0).getId());
+        update.setFieldString("Record 3");
+        updates.add(update);
+        update = testDao.createForUpdate(persisted.get(1).getId());
+        update.setFieldString("Record 3");
+        updates.add(update);
+
+        try {
+            testDao.updateAll(updates);
+            Assert.fail("The duplicate fld_string must fail the batch");
+        } catch (EntityExistsException e) {
+        }
+        Assert.assertEquals("Record 1", testDao.findById(persisted.get(0).getId()).getFieldString());
+        Assert.assertEquals("Record 2", testDao.findById(persisted.get(1).getId()).getFieldString());
+    }
+
+    private static int count() {
+        Connection conn = Transaction.getStandaloneConnection();
+        try {
+            PreparedStatement pstmt = conn.prepareStatement("SELECT COUNT(*) FROM `cloud`.`test`");
+            ResultSet rs = pstmt.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private static void execute(String sql) {
+        Connection conn = Transaction.getStandaloneConnection();
+        try {
+            PreparedStatement pstmt = conn.prepareStatement(sql);
+            pstmt.execute();
+            pstmt.close();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
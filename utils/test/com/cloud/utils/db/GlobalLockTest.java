@@ -0,0 +1,92 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+public class GlobalLockTest extends TestCase {
+    static final Logger s_logger = Logger.getLogger(GlobalLockTest.class);
+
+    @Test
+    public void testInternLockReferences() {
+        GlobalLock lock = GlobalLock.getInternLock("intern-test");
+        Assert.assertSame(lock, GlobalLock.getInternLock("intern-test"));
+        Assert.assertEquals(1, lock.releaseRef());
+        Assert.assertEquals(0, lock.releaseRef());
+
+        // the released entry is not handed out again
+        GlobalLock again = GlobalLock.getInternLock("intern-test");
+        Assert.assertNotSame(lock, again);
+        again.releaseRef();
+        Assert.assertEquals(0, GlobalLock.getInternLockCount());
+    }
+
+    /**
+     * 64 threads interning and releasing a few hot names plus names of their
+     * own; logs the intern operations per second.
+     */
+    @Test
+    public void testConcurrentInternLocks() throws Exception {
+        final int threads = 64;
+        final int iterations = 20000;
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < iterations; j++) {
+                            String name = (j % 2 == 0) ? "network-" + (j % 4) : "account-" + thread;
+                            GlobalLock lock = GlobalLock.getInternLock(name);
+                            if (!name.equals(lock.getName())) {
+                                errors.incrementAndGet();
+                            }
+                            lock.releaseRef();
+                        }
+                    } catch (Throwable e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startTick = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsed = System.nanoTime() - startTick;
+
+        long operations = (long)threads * iterations;
+        s_logger.info(threads + " threads interned " + operations + " locks in " + (elapsed / 1000000) + " ms, "
+                + (operations * 1000000000L / Math.max(elapsed, 1)) + " ops/sec");
+        Assert.assertEquals(0, errors.get());
+        Assert.assertEquals(0, GlobalLock.getInternLockCount());
+    }
+}
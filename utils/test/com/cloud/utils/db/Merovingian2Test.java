@@ -73,5 +73,32 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void testWaiterIsWokenUpOnRelease() throws Exception {
+        final String key = "wakeup" + 1234;
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final long[] acquiredAt = new long[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                if (_lockMaster.acquire(key, 30)) {
+                    acquiredAt[0] = System.currentTimeMillis();
+                    _lockMaster.release(key);
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(1000);
+
+        long releasedAt = System.currentTimeMillis();
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(30000);
+
+        Assert.assertTrue("waiter did not get the lock", acquiredAt[0] > 0);
+        // without the wake up the waiter would only retry after the poll interval
+        Assert.assertTrue(acquiredAt[0] - releasedAt < 2000);
+    }
     
 }
@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.db.QueryBuilderTest.TestDao;
+import com.cloud.utils.db.QueryBuilderTest.TestVO;
+
+public class SqlCacheTest extends TestCase {
+
+    public void testCachedSqlMatchesGenerated() {
+        TestDao dao = new TestDao();
+        SearchBuilder<TestVO> sb = dao.createSearchBuilder();
+        sb.and("int", sb.entity().getFieldInt(), SearchCriteria.Op.EQ);
+        sb.and("long", sb.entity().getFieldLong(), SearchCriteria.Op.IN);
+        sb.and("string", sb.entity().getFieldString(), SearchCriteria.Op.EQ);
+        sb.done();
+
+        long hits = GenericSearchBuilder.getSqlCacheHits();
+        String first = null;
+        for (int i = 0; i < 3; i++) {
+            SearchCriteria<TestVO> sc = sb.create();
+            sc.setParameters("int", i);
+            sc.setParameters("long", 1L, 2L);
+            sc.addAnd("fieldString", SearchCriteria.Op.NNULL);
+            String sql = dao.createSearchSql(sc, false).toString();
+            if (first == null) {
+                first = sql;
+            }
+            assertEquals(first, sql);
+        }
+        assertEquals(hits + 1, GenericSearchBuilder.getSqlCacheHits());
+
+        SearchCriteria<TestVO> sc = sb.create();
+        sc.setParameters("long", 1L, 2L, 3L);
+        sc.setParameters("string", (Object)null);
+        String sql = dao.createSearchSql(sc, false).toString();
+        assertFalse(first.equals(sql));
+        assertTrue(sql, sql.contains("IN (?,?,?)"));
+        assertTrue(sql, sql.contains("IS NULL"));
+        assertFalse(sql, sql.contains("test.int ="));
+    }
+
+    public void testKeysetPosition() {
+        TestDao dao = new TestDao();
+        SearchCriteria<TestVO> sc = dao.createSearchCriteria();
+        sc.addAnd("fieldInt", SearchCriteria.Op.EQ, 1);
+        sc.setKeysetPosition(dao._idAttributes.get("test")[0], 10L);
+        sc.setKeysetPosition(dao._idAttributes.get("test")[0], 20L);
+
+        String sql = dao.createSearchSql(sc, false).toString();
+        assertTrue(sql, sql.contains("test.id > ?"));
+        assertEquals(sql, sql.indexOf("test.id > ?"), sql.lastIndexOf("test.id > ?"));
+        assertEquals(2, sc.getValues().size());
+        assertEquals(20L, sc.getValues().get(1).second());
+    }
+}
@@ -0,0 +1,83 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionStatementCacheTest {
+    private static final String SQL = "SELECT * FROM `cloud`.`configuration` WHERE name=?";
+    private static final String OTHER_SQL = "SELECT * FROM `cloud`.`host` WHERE id=?";
+
+    private Connection _conn;
+    private Transaction _txn;
+
+    @Before
+    public void setUp() throws SQLException {
+        _conn = mock(Connection.class);
+        _txn = new Transaction("test", false, Transaction.CONNECTED_DB);
+        _txn.transitToUserManagedConnection(_conn);
+    }
+
+    private PreparedStatement expectPrepare(String sql) throws SQLException {
+        PreparedStatement pstmt = mock(PreparedStatement.class);
+        when(_conn.prepareStatement(sql, Statement.NO_GENERATED_KEYS)).thenReturn(pstmt);
+        return pstmt;
+    }
+
+    @Test
+    public void testReusedStatementIsReset() throws SQLException {
+        PreparedStatement pstmt = expectPrepare(SQL);
+        expectPrepare(OTHER_SQL);
+
+        assertSame(pstmt, _txn.prepareAutoCloseStatement(SQL));
+        pstmt.setMaxRows(10);
+        _txn.prepareAutoCloseStatement(OTHER_SQL);
+
+        assertSame(pstmt, _txn.prepareAutoCloseStatement(SQL));
+        verify(pstmt).clearParameters();
+        verify(pstmt).setFetchSize(0);
+        verify(pstmt).setMaxRows(0);
+        verify(pstmt).setQueryTimeout(0);
+    }
+
+    @Test
+    public void testClosedStatementIsNotReused() throws SQLException {
+        PreparedStatement closed = expectPrepare(SQL);
+        expectPrepare(OTHER_SQL);
+
+        assertSame(closed, _txn.prepareAutoCloseStatement(SQL));
+        // the caller closes the statement itself
+        when(closed.isClosed()).thenReturn(true);
+        _txn.prepareAutoCloseStatement(OTHER_SQL);
+
+        PreparedStatement fresh = expectPrepare(SQL);
+        assertSame(fresh, _txn.prepareAutoCloseStatement(SQL));
+        verify(closed, never()).clearParameters();
+    }
+}
@@ -0,0 +1,91 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testAcquireRelease() {
+        BufferPool pool = new BufferPool(11, 14, 16 * 1024, false);
+
+        ByteBuffer buffer = pool.acquire(3000);
+        assertEquals("Buffers are handed out in power of two sizes", 4096, buffer.capacity());
+        assertEquals(1, pool.getMisses());
+
+        buffer.putInt(10);
+        pool.release(buffer);
+        assertEquals(1, pool.getPooledBufferCount());
+        assertEquals(4096, pool.getPooledBytes());
+
+        ByteBuffer reused = pool.acquire(4000);
+        assertSame(buffer, reused);
+        assertEquals("Reused buffers must be cleared", 0, reused.position());
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getPooledBufferCount());
+    }
+
+    public void testBounds() {
+        BufferPool pool = new BufferPool(11, 14, 16 * 1024, false);
+
+        ByteBuffer large = pool.acquire(100000);
+        assertEquals(100000, large.capacity());
+        pool.release(large);
+        assertEquals("Oversized buffers are not pooled", 0, pool.getPooledBufferCount());
+
+        ByteBuffer[] buffers = new ByteBuffer[6];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(4096);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals("Only 16KB worth of 4KB buffers may be kept", 4, pool.getPooledBufferCount());
+        assertEquals(3, pool.getDiscards());
+
+        pool.release(ByteBuffer.allocate(3000));
+        assertEquals("Buffers not from the pool are dropped", 4, pool.getPooledBufferCount());
+    }
+
+    public void testExpand() {
+        BufferPool pool = new BufferPool(11, 14, 16 * 1024, true);
+
+        ByteBuffer buffer = pool.acquire(2048);
+        buffer.putInt(42);
+        buffer = pool.expand(buffer, 2048);
+        assertEquals(4096, buffer.capacity());
+        assertEquals(4, buffer.position());
+        assertEquals(42, buffer.getInt(0));
+        assertEquals("The old buffer goes back to the pool", 1, pool.getPooledBufferCount());
+
+        // growing in small steps past the largest class still doubles
+        int expansions = 0;
+        while (buffer.capacity() < 1024 * 1024) {
+            int capacity = buffer.capacity();
+            buffer.position(capacity);
+            buffer = pool.expand(buffer, 100);
+            assertTrue(buffer.capacity() >= capacity * 2);
+            assertEquals(capacity, buffer.position());
+            expansions++;
+        }
+        assertEquals(8, expansions);
+        assertFalse("Buffers past the largest class come from the heap", buffer.isDirect());
+        assertEquals(42, buffer.getInt(0));
+    }
+}
@@ -75,10 +75,10 @@ public class NioTest extends TestCase {
         _testCount = 0;
         _completedCount = 0;
         
-        _server = new NioServer("NioTestServer", 7777, 5, new NioTestServer());
+        _server = createServer();
         _server.start();
         
-        _client = new NioClient("NioTestServer", "127.0.0.1", 7777, 5, new NioTestClient());
+        _client = new NioClient("NioTestServer", "127.0.0.1", getPort(), 5, new NioTestClient());
         _client.start();
         
         while (_clientLink == null) {
@@ -91,6 +91,14 @@ public class NioTest extends TestCase {
         }
     }
     
+    protected int getPort() {
+        return 7777;
+    }
+
+    protected NioServer createServer() {
+        return new NioServer("NioTestServer", getPort(), 5, new NioTestServer());
+    }
+
     public void tearDown() {
         while (!isTestsDone()) {
             try {